@@ -0,0 +1,353 @@
+package bbn.api.sms;
+
+import bbn.api.sms.utils.FormBodyWriter;
+import bbn.api.sms.utils.FormValue;
+import bbn.api.sms.utils.URLComposer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * Makes non-blocking HTTP requests on behalf of the BBN SMS API.
+ *
+ * Requests are made with java.net.http.HttpClient, so waiting on the BBN
+ * gateway doesn't hold a thread; the executor given only runs the completion
+ * stages of each request.
+ */
+public class AsyncHttp {
+
+  /**
+   * The client which makes the requests.
+   */
+  private final HttpClient client;
+
+  /**
+   * Initializes an AsyncHttp object with the executor to run completion stages
+   * on.
+   *
+   * @param executor The executor to use, or null for the default executor of
+   * HttpClient.
+   */
+  public AsyncHttp(final Executor executor) {
+    HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NORMAL);
+
+    if (executor != null) {
+      builder.executor(executor);
+    }
+    this.client = builder.build();
+  }
+
+  /**
+   * Performs an HTTP GET request.
+   *
+   * @param requestUrl The request URL.
+   * @param params The query parameters of the request.
+   * @return the response from the request.
+   */
+  public CompletableFuture<GatewayResponse> get(
+          final String requestUrl,
+          final Map<String, String> params) {
+    final URLComposer urlComposer = new URLComposer(requestUrl).addParams(params);
+    final HttpRequest request = HttpRequest.newBuilder(URI.create(urlComposer.getFullURL()))
+            .GET()
+            .build();
+    return send(request);
+  }
+
+  /**
+   * Performs an HTTP POST request.
+   *
+   * @param requestUrl The request URL.
+   * @param params The form parameters of the request.
+   * @return the response from the request.
+   */
+  public CompletableFuture<GatewayResponse> post(
+          final String requestUrl,
+          final Map<String, String> params) {
+    final URLComposer urlComposer = new URLComposer(requestUrl).addParams(params);
+    final HttpRequest request = HttpRequest.newBuilder(URI.create(urlComposer.getURLPath()))
+            .header("Content-type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(urlComposer.requestEncodedParams()))
+            .build();
+    return send(request);
+  }
+
+  /**
+   * Performs an HTTP GET request to an endpoint.
+   *
+   * @param endpoint The endpoint of the request.
+   * @param params The query parameters of the request.
+   * @return the response from the request.
+   */
+  public CompletableFuture<GatewayResponse> get(
+          final Endpoint endpoint,
+          final Map<String, String> params) {
+    return get(endpoint, params, Deadline.none());
+  }
+
+  /**
+   * Performs an HTTP GET request to an endpoint, which times out after the
+   * endpoint's timeouts or at the deadline, whichever comes first.
+   *
+   * @param endpoint The endpoint of the request.
+   * @param params The query parameters of the request.
+   * @param deadline The deadline of the request.
+   * @return the response from the request, completed exceptionally with a
+   * DeadlineExceededException if the deadline passes first.
+   */
+  public CompletableFuture<GatewayResponse> get(
+          final Endpoint endpoint,
+          final Map<String, String> params,
+          final Deadline deadline) {
+    final URLComposer urlComposer = (endpoint.getRequestURL() != null)
+            ? new URLComposer(endpoint.getRequestURL()) : new URLComposer(endpoint.getUrl());
+    urlComposer.addParams(params);
+    final HttpRequest.Builder request;
+
+    try {
+      request = HttpRequest.newBuilder(URI.create(urlComposer.getFullURL())).GET();
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return send(request, endpoint, deadline);
+  }
+
+  /**
+   * Performs an HTTP POST request to an endpoint.
+   *
+   * @param endpoint The endpoint of the request.
+   * @param params The form parameters of the request.
+   * @return the response from the request.
+   */
+  public CompletableFuture<GatewayResponse> post(
+          final Endpoint endpoint,
+          final Map<String, String> params) {
+    return post(endpoint, params, Deadline.none());
+  }
+
+  /**
+   * Performs an HTTP POST request to an endpoint, which times out after the
+   * endpoint's timeouts or at the deadline, whichever comes first.
+   *
+   * @param endpoint The endpoint of the request.
+   * @param params The form parameters of the request.
+   * @param deadline The deadline of the request.
+   * @return the response from the request, completed exceptionally with a
+   * DeadlineExceededException if the deadline passes first.
+   */
+  public CompletableFuture<GatewayResponse> post(
+          final Endpoint endpoint,
+          final Map<String, String> params,
+          final Deadline deadline) {
+    return post(endpoint, params, Collections.<String, FormValue>emptyMap(), deadline);
+  }
+
+  /**
+   * Performs an HTTP POST request to an endpoint, with form parameters whose
+   * values are written straight into the request body instead of being built
+   * as Strings, which times out after the endpoint's timeouts or at the
+   * deadline, whichever comes first.
+   *
+   * @param endpoint The endpoint of the request.
+   * @param params The form parameters of the request.
+   * @param streamedParams The form parameters written into the body.
+   * @param deadline The deadline of the request.
+   * @return the response from the request, completed exceptionally with a
+   * DeadlineExceededException if the deadline passes first.
+   */
+  public CompletableFuture<GatewayResponse> post(
+          final Endpoint endpoint,
+          final Map<String, String> params,
+          final Map<String, FormValue> streamedParams,
+          final Deadline deadline) {
+    final URLComposer urlComposer = (endpoint.getRequestURL() != null)
+            ? new URLComposer(endpoint.getRequestURL()) : new URLComposer(endpoint.getUrl());
+    urlComposer.addParams(params);
+    final HttpRequest.Builder request;
+
+    try {
+      request = HttpRequest.newBuilder((endpoint.getRequestURI() != null)
+              ? endpoint.getRequestURI() : URI.create(urlComposer.getURLPath()))
+              .header("Content-type", "application/x-www-form-urlencoded")
+              .POST(bodyOf(urlComposer.requestEncodedParams(), streamedParams));
+    } catch (IllegalArgumentException | IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return send(request, endpoint, deadline);
+  }
+
+  /*
+   * Writes the streamed parameters after the encoded ones through a
+   * FormBodyWriter, keeping the body as the writer's chunks rather than one
+   * String, and sends it with a fixed length as Http does.
+   */
+  private static HttpRequest.BodyPublisher bodyOf(
+          final String encodedParams,
+          final Map<String, FormValue> streamedParams) throws IOException {
+    if (streamedParams.isEmpty()) {
+      return HttpRequest.BodyPublishers.ofString(encodedParams);
+    }
+    final Chunks chunks = new Chunks();
+    final FormBodyWriter body = new FormBodyWriter(chunks).encodedParams(encodedParams);
+
+    for (Map.Entry<String, FormValue> param : streamedParams.entrySet()) {
+      body.param(param.getKey(), param.getValue());
+    }
+    body.flush();
+    return HttpRequest.BodyPublishers.fromPublisher(
+            HttpRequest.BodyPublishers.ofByteArrays(chunks.chunks), body.getLength());
+  }
+
+  /*
+   * Keeps each chunk written by a FormBodyWriter.
+   */
+  private static final class Chunks extends OutputStream {
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    @Override
+    public void write(final int b) {
+      chunks.add(new byte[] {(byte) b});
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      chunks.add(Arrays.copyOfRange(b, off, off + len));
+    }
+  }
+
+  /*
+   * Sends the request with a timeout covering the endpoint's connect and
+   * read timeouts, shortened to fit the deadline.
+   */
+  private CompletableFuture<GatewayResponse> send(
+          final HttpRequest.Builder request,
+          final Endpoint endpoint,
+          final Deadline deadline) {
+    if (deadline.isExpired()) {
+      return CompletableFuture.failedFuture(new DeadlineExceededException(
+              "The deadline passed before the request to " + endpoint + " was made."));
+    }
+    final long timeout = deadline.clamp(
+            (long) endpoint.getConnectTimeout() + endpoint.getReadTimeout());
+
+    if (timeout > 0) {
+      request.timeout(Duration.ofMillis(timeout));
+    }
+    return send(request.build()).handle((response, error) -> {
+      if (error == null) {
+        return response;
+      }
+      final Throwable cause = ((error instanceof CompletionException) && (error.getCause() != null))
+              ? error.getCause() : error;
+
+      if ((cause instanceof HttpTimeoutException) && deadline.isExpired()) {
+        throw new CompletionException(new DeadlineExceededException(
+                "The deadline passed during the request.", cause));
+      }
+      throw (error instanceof CompletionException)
+              ? (CompletionException) error : new CompletionException(error);
+    });
+  }
+
+  private CompletableFuture<GatewayResponse> send(final HttpRequest request) {
+    return client.sendAsync(request, info -> (info.statusCode() >= 400)
+            ? HttpResponse.BodySubscribers.replacing((GatewayResponse) null)
+            : new CappedBody(info.headers().firstValueAsLong("Content-Length").orElse(-1),
+                    GatewayResponse.DEFAULT_MAX_BYTES,
+                    Http.charsetOf(info.headers().firstValue("Content-Type").orElse(null))))
+            .thenApply(response -> {
+              // Fail the same way HttpURLConnection does on error responses.
+              if (response.statusCode() >= 400) {
+                throw new CompletionException(new IOException(
+                        "Server returned HTTP response code: " + response.statusCode()
+                        + " for URL: " + request.uri()));
+              }
+              return response.body();
+            });
+  }
+
+  /*
+   * Collects a response body as it arrives, giving up on it as soon as it is
+   * larger than the maximum rather than once it has all been received.
+   */
+  private static final class CappedBody implements HttpResponse.BodySubscriber<GatewayResponse> {
+
+    private final CompletableFuture<GatewayResponse> response = new CompletableFuture<>();
+    private final int maxBytes;
+    private final Charset charset;
+    private Flow.Subscription subscription;
+    private byte[] body;
+    private int length;
+
+    private CappedBody(final long contentLength, final int maxBytes, final Charset charset) {
+      this.maxBytes = maxBytes;
+      this.charset = charset;
+      // Sized for the whole body when its length is known and allowed.
+      this.body = new byte[(int) Math.min(maxBytes + 1L,
+              (contentLength >= 0) ? contentLength : 256)];
+    }
+
+    @Override
+    public CompletionStage<GatewayResponse> getBody() {
+      return response;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(final List<ByteBuffer> buffers) {
+      for (ByteBuffer buffer : buffers) {
+        final int remaining = buffer.remaining();
+
+        if (length + (long) remaining > maxBytes) {
+          subscription.cancel();
+          response.completeExceptionally(new IOException(
+                  "The response is larger than " + maxBytes + " bytes."));
+          return;
+        }
+
+        if (length + remaining > body.length) {
+          body = Arrays.copyOf(body, (int) Math.min(maxBytes,
+                  Math.max(length + (long) remaining, body.length * 2L)));
+        }
+        buffer.get(body, length, remaining);
+        length += remaining;
+      }
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(final Throwable error) {
+      response.completeExceptionally(error);
+    }
+
+    @Override
+    public void onComplete() {
+      response.complete(GatewayResponse.of(body, length, charset));
+    }
+  }
+}
@@ -13,70 +13,33 @@ public final class BBN {
 
   public static class Resource {
 
-    private static String mainUrl() {
+    /*
+     * Returns the endpoints resolved by the default sms api, if any.
+     */
+    private static Endpoints endpoints() {
       // retrieve the default sms api.
       BbnApi api = BbnApi.defaultInstance();
-      // Construct the request URL.
-      final String requestUrl = (api.getConfigAsBoolean("bbn.api.secure")
-              ? api.getConfig("bbn.request.uri.secure")
-              : api.getConfig("bbn.request.uri.basic"));
-      return requestUrl;
+      return (api != null) ? api.getEndpoints() : null;
     }
 
     public static String AUTH_URL() {
-      // retrieve the default sms api.
-      BbnApi api = BbnApi.defaultInstance();
-
-      if (api != null) {
-        // Construct the request URL.
-        final String requestUrl = mainUrl()
-                + api.getConfig("bbn.resource.uri.auth");
-        return requestUrl;
-      } else {
-        return null;
-      }
+      Endpoints endpoints = endpoints();
+      return (endpoints != null) ? endpoints.getAuth().getUrl() : null;
     }
 
     public static String ACCOUNT_BALANCE_URL() {
-      // retrieve the default sms api.
-      BbnApi api = BbnApi.defaultInstance();
-
-      if (api != null) {
-        // Construct the request URL.
-        final String requestUrl = mainUrl()
-                + api.getConfig("bbn.resource.uri.acctbals");
-        return requestUrl;
-      } else {
-        return null;
-      }
+      Endpoints endpoints = endpoints();
+      return (endpoints != null) ? endpoints.getAccountBalance().getUrl() : null;
     }
 
     public static String SEND_SMS_URL() {
-      // retrieve the default sms api.
-      BbnApi api = BbnApi.defaultInstance();
-
-      if (api != null) {
-        // Construct the request URL.
-        final String requestUrl = mainUrl()
-                + api.getConfig("bbn.resource.uri.send_sms");
-        return requestUrl;
-      } else {
-        return null;
-      }
+      Endpoints endpoints = endpoints();
+      return (endpoints != null) ? endpoints.getSendSms().getUrl() : null;
     }
 
     public static String SCHEDULE_SMS_URL() {
-      // retrieve the default sms api.
-      BbnApi api = BbnApi.defaultInstance();
-
-      if (api != null) {
-        // Construct the request URL.
-        final String requestUrl = mainUrl()
-                + api.getConfig("bbn.resource.uri.schedule_sms");
-        return requestUrl;
-      } else {
-        return null;
-      }
+      Endpoints endpoints = endpoints();
+      return (endpoints != null) ? endpoints.getScheduleSms().getUrl() : null;
     }
   }
 
@@ -215,5 +178,29 @@ public final class BBN {
     public static final Response SCHEDULE_NAME_TOO_LONG = new Response(1904, "Schedule name is too long. Maximum of 16 alphanumeric characters allowed.");
     public static final Response INVALID_NOTIFY_ME_VALUE = new Response(1905, "Invalid value for notify me. 0 or 1 expected.");
     public static final Response INCORRECT_SCHEDULE_NAME = new Response(1906, "Incorrect schedule name. Schedule name may contain special character.");
+    // The lowest code, used to index the lookup table.
+    private static final int FIRST_CODE = 1800;
+    private static final Response[] BY_CODE = new Response[107];
+
+    static {
+      for (Response response : new Response[]{
+        REQUEST_TIMEOUT, MESSAGE_SENT, INVALID_USERNAME, INCORRECT_PASSWORD,
+        INSUFFICIENT_CREDIT, INVALID_URL_SUBMISSION, INVALID_MOBILE, INVALID_SENDER_ID,
+        MESSAGE_TOO_LONG, EMPTY_MESSAGE, SCHEDULE_SAVED, SCHEDULE_, INVALID_BROADCAST_TIME,
+        SCHEDULE_NAME_TOO_LONG, INVALID_NOTIFY_ME_VALUE, INCORRECT_SCHEDULE_NAME}) {
+        BY_CODE[response.getCode() - FIRST_CODE] = response;
+      }
+    }
+
+    /**
+     * Returns the response constant with the code specified.
+     *
+     * @param code The code returned by the BBN API.
+     * @return Response the matching response, or null if the code is unknown.
+     */
+    public static Response forCode(final int code) {
+      final int index = code - FIRST_CODE;
+      return ((index >= 0) && (index < BY_CODE.length)) ? BY_CODE[index] : null;
+    }
   }
 }
@@ -0,0 +1,351 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an estimate of the credit of each account, so checking it before a
+ * send doesn't need a request to the gateway.
+ *
+ * The balance of an account is fetched from the gateway once, then lowered
+ * locally by the cost of every message the gateway accepts (recipients times
+ * segments times the cost of a segment). Once it is older than the refresh
+ * point the estimate is still used while a fresh balance is fetched in the
+ * background, which then replaces it less whatever was sent meanwhile. An
+ * estimate older than the time to live is no longer trusted.
+ *
+ * Sends whose cost is more than the estimate are refused with
+ * INSUFFICIENT_CREDIT (1804) without a request; a 1804 from the gateway sets
+ * the estimate to nothing until the next refresh.
+ */
+public class BalanceCache {
+
+  public static final long DEFAULT_TTL = 60000;
+  public static final double DEFAULT_REFRESH_AHEAD = 0.8;
+  public static final double DEFAULT_SEGMENT_COST = 1;
+  private static final Logger LOGGER = Logger.getLogger(BalanceCache.class.getName());
+  // The API the balances are fetched with.
+  private final BbnApi api;
+  // How long (nanoseconds) an estimate is trusted, and refreshed after.
+  private final long ttl;
+  private final long refreshAfter;
+  // Prices messages by their segments and recipients.
+  private final CostEstimator estimator;
+  // The estimate of each account, by username.
+  private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+
+  /**
+   * Construct a cache with the default refresh point and segment cost.
+   *
+   * @param api The API the balances are fetched with.
+   * @param ttl How long (milliseconds) an estimate is trusted.
+   */
+  public BalanceCache(final BbnApi api, final long ttl) {
+    this(api, ttl, DEFAULT_REFRESH_AHEAD, DEFAULT_SEGMENT_COST);
+  }
+
+  /**
+   * Construct a cache.
+   *
+   * @param api The API the balances are fetched with.
+   * @param ttl How long (milliseconds) an estimate is trusted.
+   * @param refreshAhead The fraction of the ttl after which the balance is
+   * fetched again in the background.
+   * @param segmentCost The credit charged for each segment sent to each
+   * recipient.
+   */
+  public BalanceCache(
+          final BbnApi api,
+          final long ttl,
+          final double refreshAhead,
+          final double segmentCost) {
+    if (api == null) {
+      throw new NullPointerException("api cannot be null.");
+    }
+
+    if ((ttl < 1) || !(refreshAhead > 0) || (refreshAhead > 1)) {
+      throw new IllegalArgumentException("Invalid ttl or refresh point.");
+    }
+    this.api = api;
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    this.refreshAfter = (long) (this.ttl * refreshAhead);
+    this.estimator = new CostEstimator(segmentCost);
+  }
+
+  /**
+   * Creates the cache configured by the bbn.balance.* settings of the API.
+   *
+   * @param api The API whose configuration is read.
+   * @return BalanceCache the cache, or null if it is disabled.
+   */
+  public static BalanceCache fromConfig(final BbnApi api) {
+    if (!api.getConfigAsBoolean("bbn.balance.cache.enabled")) {
+      return null;
+    }
+    return new BalanceCache(api,
+            api.getConfigAsLong("bbn.balance.cache.ttl", DEFAULT_TTL),
+            api.getConfigAsDouble("bbn.balance.cache.refresh_ahead", DEFAULT_REFRESH_AHEAD),
+            api.getConfigAsDouble("bbn.balance.segment_cost", DEFAULT_SEGMENT_COST));
+  }
+
+  /**
+   * Returns the estimated balance of the account, only fetching it from the
+   * gateway if there is no estimate or it is too old.
+   *
+   * @param username The username of the account.
+   * @param password The associated password.
+   * @return Result<Float> the estimate, or the result of fetching it.
+   * @throws IOException if the balance had to be fetched and that failed.
+   */
+  public Result<Float> getBalance(
+          final String username,
+          final String password) throws IOException {
+    final Account account = accounts.computeIfAbsent(String.valueOf(username), name -> new Account());
+    account.password = password;
+    final double estimate = account.estimate(System.nanoTime());
+
+    if (!Double.isNaN(estimate)) {
+      if (account.isDue(System.nanoTime())) {
+        refreshAsync(username, account);
+      }
+      final Result<Float> result = new Result<>((float) estimate);
+      result.setError(false);
+      return result;
+    }
+    final double debited = account.startRefresh(true);
+
+    try {
+      final Result<Float> result = api.checkBalance(username, password);
+      account.finishRefresh(result, debited);
+      return result;
+    } catch (IOException | RuntimeException e) {
+      account.finishRefresh(null, debited);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the estimated balance of the default account.
+   *
+   * @return Result<Float>
+   * @throws IOException if the balance had to be fetched and that failed.
+   */
+  public Result<Float> getBalance() throws IOException {
+    return getBalance(api.getConfig(BBN.Params.USERNAME), api.getConfig(BBN.Params.PASSWORD));
+  }
+
+  /**
+   * Returns the estimated balance of the account without fetching it.
+   *
+   * @param username The username of the account.
+   * @return double the estimate, or NaN if there is none to trust.
+   */
+  public double getEstimate(final String username) {
+    final Account account = accounts.get(String.valueOf(username));
+    return (account != null) ? account.estimate(System.nanoTime()) : Double.NaN;
+  }
+
+  /**
+   * Returns the credit a message costs.
+   *
+   * @param recipients The number of recipients.
+   * @param message The message.
+   * @return double
+   */
+  public double cost(final int recipients, final String message) {
+    return estimator.cost(recipients, message);
+  }
+
+  /**
+   * Returns the estimator messages are priced with.
+   *
+   * @return CostEstimator
+   */
+  public CostEstimator getEstimator() {
+    return estimator;
+  }
+
+  /**
+   * Returns true if the account is known not to have the credit specified.
+   * Fetches the balance in the background if it is unknown or due for a
+   * refresh, so later checks are answered from memory.
+   *
+   * @param username The username of the account.
+   * @param password The associated password.
+   * @param cost The credit needed.
+   * @return boolean
+   */
+  public boolean isInsufficient(final String username, final String password, final double cost) {
+    final Account account = account(username, password);
+    final double estimate = account.estimate(System.nanoTime());
+    return !Double.isNaN(estimate) && (estimate < cost);
+  }
+
+  /**
+   * Charges the account for a message the gateway accepted.
+   *
+   * @param username The username of the account.
+   * @param cost The credit charged.
+   */
+  public void debit(final String username, final double cost) {
+    final Account account = accounts.get(String.valueOf(username));
+
+    if (account != null) {
+      account.debit(cost);
+    }
+  }
+
+  /**
+   * Records that the gateway refused a send for lack of credit.
+   *
+   * @param username The username of the account.
+   */
+  public void exhausted(final String username) {
+    final Account account = accounts.get(String.valueOf(username));
+
+    if (account != null) {
+      account.exhausted();
+    }
+  }
+
+  /**
+   * Forgets the estimate of every account.
+   */
+  public void clear() {
+    accounts.clear();
+  }
+
+  /**
+   * Returns the result of a send refused because the account doesn't have
+   * the credit for it.
+   *
+   * @return Result<String>
+   */
+  public static Result<String> insufficientCredit() {
+    final Result<String> result = new Result<>(
+            String.valueOf(BBN.ResponseCode.INSUFFICIENT_CREDIT.getCode()));
+    result.setCode(BBN.ResponseCode.INSUFFICIENT_CREDIT.getCode());
+    result.setMessage(BBN.ResponseCode.INSUFFICIENT_CREDIT.getMessage());
+    return result;
+  }
+
+  /*
+   * Returns the account, fetching its balance in the background if it is
+   * unknown or due for a refresh.
+   */
+  private Account account(final String username, final String password) {
+    final Account account = accounts.computeIfAbsent(String.valueOf(username), name -> new Account());
+    account.password = password;
+
+    if (account.isDue(System.nanoTime())) {
+      refreshAsync(username, account);
+    }
+    return account;
+  }
+
+  private void refreshAsync(final String username, final Account account) {
+    final double debited = account.startRefresh(false);
+
+    if (Double.isNaN(debited)) {
+      // Already being refreshed.
+      return;
+    }
+    final CompletableFuture<Result<Float>> result;
+
+    try {
+      result = api.checkBalanceAsync(username, account.password);
+    } catch (RuntimeException e) {
+      account.finishRefresh(null, debited);
+      throw e;
+    }
+    result.whenComplete((value, error) -> {
+      if (error != null) {
+        LOGGER.log(Level.FINE, "The balance of " + username + " could not be refreshed.", error);
+      }
+      account.finishRefresh(value, debited);
+    });
+  }
+
+  @Override
+  public String toString() {
+    return "BalanceCache{" + "accounts=" + accounts.size()
+            + ", ttl=" + TimeUnit.NANOSECONDS.toMillis(ttl) + '}';
+  }
+
+  /*
+   * The estimated balance of an account.
+   */
+  private final class Account {
+
+    // The password last used with the account, for refreshes.
+    private volatile String password;
+    // Guarded by this.
+    private double balance = Double.NaN;
+    private long fetchedAt;
+    // The credit charged since the account was added.
+    private double debited;
+    private boolean refreshing;
+
+    /*
+     * Returns the estimate, or NaN if there is none or it is too old.
+     */
+    private synchronized double estimate(final long now) {
+      if (Double.isNaN(balance) || (now - fetchedAt >= ttl)) {
+        return Double.NaN;
+      }
+      return balance;
+    }
+
+    private synchronized boolean isDue(final long now) {
+      return !refreshing && (Double.isNaN(balance) || (now - fetchedAt >= refreshAfter));
+    }
+
+    /*
+     * Marks the account as being refreshed and returns the credit charged
+     * so far, or NaN if it is already being refreshed in the background.
+     */
+    private synchronized double startRefresh(final boolean blocking) {
+      if (refreshing && !blocking) {
+        return Double.NaN;
+      }
+      refreshing = true;
+      return debited;
+    }
+
+    /*
+     * Replaces the estimate with the balance fetched, less the credit
+     * charged since the fetch started.
+     */
+    private synchronized void finishRefresh(final Result<Float> result, final double since) {
+      refreshing = false;
+
+      if ((result != null) && !result.isError() && (result.getValue() != null)) {
+        balance = result.getValue() - (debited - since);
+        fetchedAt = System.nanoTime();
+      }
+    }
+
+    private synchronized void debit(final double cost) {
+      debited += cost;
+
+      if (!Double.isNaN(balance)) {
+        balance -= cost;
+      }
+    }
+
+    /*
+     * Sets the estimate to nothing, due for a refresh at once so credit
+     * bought meanwhile is soon seen.
+     */
+    private synchronized void exhausted() {
+      balance = 0;
+      fetchedAt = System.nanoTime() - refreshAfter;
+    }
+  }
+}
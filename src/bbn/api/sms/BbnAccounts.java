@@ -0,0 +1,135 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of BBN accounts, each served by its own BbnApi instance, which can
+ * be queried all at once.
+ *
+ * Requests made across the accounts run concurrently on each account's own
+ * connection pool and asynchronous client, so a slow or busy account doesn't
+ * hold back the others.
+ */
+public class BbnAccounts {
+
+  // The instance of each account, by name.
+  private final Map<String, BbnApi> accounts = new ConcurrentHashMap<>();
+
+  /**
+   * Adds an account, replacing any account with the same name.
+   *
+   * @param name The name the account is known by.
+   * @param api The instance serving the account.
+   * @return BbnAccounts this set of accounts.
+   */
+  public BbnAccounts add(final String name, final BbnApi api) {
+    if ((name == null) || (api == null)) {
+      throw new NullPointerException("The account's name or api cannot be null.");
+    }
+    accounts.put(name, api);
+    return this;
+  }
+
+  /**
+   * Creates an instance for the username and password specified and adds it
+   * as an account named after the username.
+   *
+   * @param username The BBN username of the account.
+   * @param password The BBN password of the account.
+   * @return BbnApi the instance created for the account.
+   * @throws IOException if an I/O error occurs.
+   */
+  public BbnApi add(final String username, final String password) throws IOException {
+    final BbnApi api = BbnApi.forAccount(username, password);
+    add(username, api);
+    return api;
+  }
+
+  /**
+   * Removes an account.
+   *
+   * @param name The name of the account.
+   * @return BbnApi the instance which served the account, if any.
+   */
+  public BbnApi remove(final String name) {
+    return (name != null) ? accounts.remove(name) : null;
+  }
+
+  /**
+   * Returns the instance serving an account.
+   *
+   * @param name The name of the account.
+   * @return BbnApi the instance, or null if there is no such account.
+   */
+  public BbnApi get(final String name) {
+    return (name != null) ? accounts.get(name) : null;
+  }
+
+  /**
+   * Returns the names of the accounts.
+   *
+   * @return Set<String>
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(accounts.keySet());
+  }
+
+  /**
+   * Checks the balance of every account concurrently. An account whose
+   * request fails gets a result holding the error instead of failing the
+   * whole check.
+   *
+   * @return CompletableFuture<Map<String, Result<Float>>> the balance of each
+   * account, by name.
+   */
+  public CompletableFuture<Map<String, Result<Float>>> checkBalancesAsync() {
+    final List<String> names = new ArrayList<>(accounts.keySet());
+    final List<CompletableFuture<Result<Float>>> balances = new ArrayList<>(names.size());
+
+    for (String name : names) {
+      balances.add(accounts.get(name).checkBalanceAsync()
+              .exceptionally(BbnAccounts::failedResult));
+    }
+    return CompletableFuture.allOf(balances.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> {
+              final Map<String, Result<Float>> results = new LinkedHashMap<>();
+
+              for (int i = 0; i < names.size(); i++) {
+                results.put(names.get(i), balances.get(i).join());
+              }
+              return results;
+            });
+  }
+
+  /**
+   * Checks the balance of every account concurrently, blocking until all of
+   * them have answered.
+   *
+   * @return Map<String, Result<Float>> the balance of each account, by name.
+   */
+  public Map<String, Result<Float>> checkBalances() {
+    return checkBalancesAsync().join();
+  }
+
+  /*
+   * Converts the error of a failed request into a result.
+   */
+  private static Result<Float> failedResult(final Throwable error) {
+    final Throwable cause = ((error instanceof CompletionException) && (error.getCause() != null))
+            ? error.getCause() : error;
+    final Result<Float> result = new Result<>();
+    result.setMessage(String.valueOf(cause.getMessage()));
+    result.setError(true);
+    return result;
+  }
+}
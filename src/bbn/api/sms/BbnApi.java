@@ -3,40 +3,133 @@ package bbn.api.sms;
 import bbn.api.sms.domain.Result;
 import bbn.api.sms.domain.SMS;
 import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.FormValue;
+import bbn.api.sms.utils.MobileNormalizer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * The entry point of the BBN SMS API.
+ *
+ * BbnApi is safe to use from several threads: its configuration is an
+ * immutable snapshot which addConfig replaces atomically, so reading it on the
+ * send path never blocks.
+ *
+ * The singleton returned by getInstance serves a single account. Instances
+ * for other accounts can be created with newInstance or forAccount; each one
+ * has its own configuration, connection pool and asynchronous client, so the
+ * accounts don't share any budget.
  *
  * @author Victor Igbokwe (vicsstar@yahoo.com)
  * @created Sep 23, 2012 at 1:19:42 AM
  */
 public final class BbnApi {
 
-  // A singleton for the BbnApi.
-  private static BbnApi api;
-  // The configuration options available inside the config file or added manually.
-  private final Map<String, Object> config = new HashMap<>();
+  // The singleton, once getInstance has created it.
+  private static volatile BbnApi api;
+  // The current configuration snapshot, replaced whenever the config changes.
+  private final AtomicReference<Config> config;
+  // Hands out the connections used to make requests to the BBN gateway.
+  private final ConnectionManager connectionManager;
+  // Adapts the number of sends in flight to how the gateway copes.
+  private final ConcurrencyLimiter sendLimiter;
+  // Paces sends to the quotas of each account and sender id.
+  private final SendRateLimiter sendRateLimiter;
+  // The retry policy of each endpoint, by name.
+  private final ConcurrentMap<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+  // The hedge policy of each read-only endpoint which is hedged, by name.
+  private final ConcurrentMap<String, HedgePolicy> hedgePolicies = new ConcurrentHashMap<>();
+  // Fails requests fast while the gateway is failing, null if disabled.
+  private volatile CircuitBreaker circuitBreaker;
+  // Suppresses duplicate sends, null if disabled.
+  private volatile IdempotencyCache idempotencyCache;
+  // Estimates the credit of the accounts sent from, null if disabled.
+  private volatile BalanceCache balanceCache;
+  // Checks messages before they are sent, null if disabled.
+  private volatile SmsValidator validator;
+  // True if the recipients of group messages are normalized before sending.
+  private volatile boolean normalizingMobiles;
+  // Makes the asynchronous API calls, created on first use.
+  private volatile AsyncHttp asyncHttp;
 
   /**
    *
-   * @param configFile
+   * @param overrides Configuration applied over the configuration files, if
+   * any.
    * @throws IOException if an I/O error occurs.
    */
-  private BbnApi() throws IOException {
-
+  private BbnApi(final Map<String, String> overrides) throws IOException {
+    Map<String, String> loaded = new HashMap<>();
     // Load the default configuration file.
-    loadConfig(BBN.DEFAULT_CONFIG_FILE);
+    loadConfig(BBN.DEFAULT_CONFIG_FILE, loaded);
     // Load the user's configuration file.
-    loadConfig(BBN.USER_CONFIG_FILE);
+    loadConfig(BBN.USER_CONFIG_FILE, loaded);
+
+    if (overrides != null) {
+      for (Map.Entry<String, String> entry : overrides.entrySet()) {
+        if ((entry.getKey() == null) || (entry.getValue() == null)) {
+          throw new NullPointerException("The config's key or value cannot be null.");
+        }
+        loaded.put(entry.getKey(), entry.getValue());
+      }
+    }
+    config = new AtomicReference<>(new Config(loaded));
+    // Set up the connection pool from the loaded configuration.
+    connectionManager = ConnectionManager.fromConfig(this);
+    sendLimiter = ConcurrencyLimiter.fromConfig(this);
+    sendRateLimiter = SendRateLimiter.fromConfig(this);
+
+    for (String endpoint : new String[]{Endpoints.AUTH, Endpoints.ACCOUNT_BALANCE,
+      Endpoints.SEND_SMS, Endpoints.SCHEDULE_SMS}) {
+      retryPolicies.put(endpoint, RetryPolicy.fromConfig(this, endpoint));
+    }
+
+    for (String endpoint : new String[]{Endpoints.AUTH, Endpoints.ACCOUNT_BALANCE}) {
+      setHedgePolicy(endpoint, HedgePolicy.fromConfig(this, endpoint));
+    }
+    circuitBreaker = CircuitBreaker.fromConfig(this);
+    idempotencyCache = IdempotencyCache.fromConfig(this);
+    balanceCache = BalanceCache.fromConfig(this);
+    validator = SmsValidator.fromConfig(this);
+    normalizingMobiles = getConfigAsBoolean("bbn.normalization.enabled");
+  }
+
+  /*
+   * Creates the singleton the first time it is needed.
+   */
+  private static final class Holder {
+
+    private static final BbnApi INSTANCE;
+    private static final IOException ERROR;
+
+    static {
+      BbnApi instance = null;
+      IOException error = null;
+
+      try {
+        instance = new BbnApi(null);
+      } catch (IOException e) {
+        error = e;
+      }
+      INSTANCE = instance;
+      ERROR = error;
+    }
   }
 
   /**
@@ -46,14 +139,46 @@ public final class BbnApi {
    * @throws IOException if an I/O error occurs.
    */
   public static BbnApi getInstance() throws IOException {
-    if (api == null) {
-      api = new BbnApi();
+    if (Holder.ERROR != null) {
+      throw new IOException("The BBN API could not be initialized.", Holder.ERROR);
     }
+    api = Holder.INSTANCE;
     return api;
   }
 
   /**
-   * Returns the default instance for this application.
+   * Creates a new instance, independent of the singleton, whose configuration
+   * is the configuration files with the entries specified applied over them.
+   *
+   * @param config The configuration entries specific to the instance.
+   * @return BbnApi
+   * @throws IOException if an I/O error occurs.
+   */
+  public static BbnApi newInstance(final Map<String, String> config) throws IOException {
+    return new BbnApi(config);
+  }
+
+  /**
+   * Creates a new instance, independent of the singleton, which makes its
+   * requests with the username and password specified.
+   *
+   * @param username The BBN username of the account.
+   * @param password The BBN password of the account.
+   * @return BbnApi
+   * @throws IOException if an I/O error occurs.
+   */
+  public static BbnApi forAccount(
+          final String username,
+          final String password) throws IOException {
+    Map<String, String> account = new HashMap<>();
+    account.put(BBN.Params.USERNAME, username);
+    account.put(BBN.Params.PASSWORD, password);
+    return new BbnApi(account);
+  }
+
+  /**
+   * Returns the default instance for this application, or null if
+   * getInstance hasn't been called yet.
    *
    * @return
    */
@@ -62,9 +187,11 @@ public final class BbnApi {
   }
 
   /*
-   * Loads the configuration files specified in the constructor.
+   * Loads the configuration file specified into the map.
    */
-  private void loadConfig(final String configFile) throws IOException {
+  private static void loadConfig(
+          final String configFile,
+          final Map<String, String> into) throws IOException {
     Properties properties = new Properties();
 
     try {
@@ -84,9 +211,9 @@ public final class BbnApi {
     // put/add each entry into the config.
     for (Object key : properties.keySet()) {
       if ("bbn.api.config.include".equals(key.toString())) {
-        loadConfig(properties.getProperty(key.toString()));
+        loadConfig(properties.getProperty(key.toString()), into);
       } else {
-        addConfig(key.toString(), properties.getProperty(key.toString()));
+        into.put(key.toString(), properties.getProperty(key.toString()));
       }
     }
   }
@@ -101,7 +228,11 @@ public final class BbnApi {
     if ((key == null) || (value == null)) {
       throw new NullPointerException("The config's key or value cannot be null.");
     }
-    config.put(key, value);
+    Config current;
+
+    do {
+      current = config.get();
+    } while (!config.compareAndSet(current, current.with(key, value)));
   }
 
   /**
@@ -109,10 +240,23 @@ public final class BbnApi {
    * string.
    *
    * @param key The key whose value is to be retrieved.
-   * @return Boolean the value of the key as a String.
+   * @return String the value of the key, or "null" if the key is missing.
    */
   public String getConfig(String key) {
-    return (key != null) ? String.valueOf(config.get(key)) : null;
+    if (key == null) {
+      return null;
+    }
+    final String value = config.get().values.get(key);
+    return (value != null) ? value : "null";
+  }
+
+  /**
+   * Returns an immutable snapshot of the whole configuration.
+   *
+   * @return Map<String, String>
+   */
+  public Map<String, String> getConfigSnapshot() {
+    return config.get().values;
   }
 
   /**
@@ -125,6 +269,236 @@ public final class BbnApi {
     return Boolean.parseBoolean(getConfig((key)));
   }
 
+  /**
+   * Attempts converting the value of the key specified as a long, returning the
+   * default value if the key is missing or not a number.
+   *
+   * @param key The key whose value is to be retrieved.
+   * @param defaultValue The value returned if the key has no numeric value.
+   * @return long the value of the key as a long.
+   */
+  public long getConfigAsLong(String key, long defaultValue) {
+    try {
+      return Long.parseLong(getConfig(key).trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Attempts converting the value of the key specified as a double, returning
+   * the default value if the key is missing or not a number.
+   *
+   * @param key The key whose value is to be retrieved.
+   * @param defaultValue The value returned if the key has no numeric value.
+   * @return double the value of the key as a double.
+   */
+  public double getConfigAsDouble(String key, double defaultValue) {
+    try {
+      return Double.parseDouble(getConfig(key).trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the connection manager used to make requests to the BBN gateway,
+   * which holds the connection pool metrics.
+   *
+   * @return ConnectionManager
+   */
+  public ConnectionManager getConnectionManager() {
+    return connectionManager;
+  }
+
+  /**
+   * Returns the limiter of the sends in flight, which holds the current limit
+   * and the number of sends waiting for it.
+   *
+   * @return ConcurrencyLimiter
+   */
+  public ConcurrencyLimiter getSendLimiter() {
+    return sendLimiter;
+  }
+
+  /**
+   * Returns the rate limiter which paces sends to the quotas of each account
+   * and sender id.
+   *
+   * @return SendRateLimiter
+   */
+  public SendRateLimiter getSendRateLimiter() {
+    return sendRateLimiter;
+  }
+
+  /**
+   * Returns the retry policy of an endpoint.
+   *
+   * @param endpoint The name of the endpoint, one of the names in Endpoints.
+   * @return RetryPolicy the policy, or a policy which never retries if the
+   * endpoint is unknown.
+   */
+  public RetryPolicy getRetryPolicy(final String endpoint) {
+    final RetryPolicy policy = (endpoint != null) ? retryPolicies.get(endpoint) : null;
+    return (policy != null) ? policy : RetryPolicy.none();
+  }
+
+  /**
+   * Changes the retry policy of an endpoint.
+   *
+   * @param endpoint The name of the endpoint, one of the names in Endpoints.
+   * @param policy The policy to use for subsequent requests.
+   */
+  public void setRetryPolicy(final String endpoint, final RetryPolicy policy) {
+    if ((endpoint == null) || (policy == null)) {
+      throw new NullPointerException("The endpoint or policy cannot be null.");
+    }
+    retryPolicies.put(endpoint, policy);
+  }
+
+  /**
+   * Returns the hedge policy of an endpoint.
+   *
+   * @param endpoint The name of the endpoint, one of the names in Endpoints.
+   * @return HedgePolicy the policy, or null if the endpoint isn't hedged.
+   */
+  public HedgePolicy getHedgePolicy(final String endpoint) {
+    return (endpoint != null) ? hedgePolicies.get(endpoint) : null;
+  }
+
+  /**
+   * Changes the hedge policy of an endpoint. Only the read-only endpoints
+   * (Endpoints.AUTH and Endpoints.ACCOUNT_BALANCE) can be hedged, as hedging
+   * makes some requests twice.
+   *
+   * @param endpoint The name of the endpoint.
+   * @param policy The policy to use for subsequent requests, or null to stop
+   * hedging them.
+   */
+  public void setHedgePolicy(final String endpoint, final HedgePolicy policy) {
+    if (!HedgePolicy.isHedgeable(endpoint)) {
+      throw new IllegalArgumentException("Requests to " + endpoint + " cannot be hedged.");
+    }
+
+    if (policy != null) {
+      hedgePolicies.put(endpoint, policy);
+    } else {
+      hedgePolicies.remove(endpoint);
+    }
+  }
+
+  /**
+   * Returns the circuit breaker in front of the BBN gateway.
+   *
+   * @return CircuitBreaker the breaker, or null if it is disabled.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Changes the circuit breaker in front of the BBN gateway. While it is
+   * open, requests fail at once with a CircuitOpenException.
+   *
+   * @param circuitBreaker The breaker to use for subsequent requests, or null
+   * to disable it.
+   */
+  public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Returns the cache which suppresses duplicate sends.
+   *
+   * @return IdempotencyCache the cache, or null if it is disabled.
+   */
+  public IdempotencyCache getIdempotencyCache() {
+    return idempotencyCache;
+  }
+
+  /**
+   * Changes the cache which suppresses duplicate sends. A send already made
+   * within the cache's time to live returns at once without a request.
+   *
+   * @param idempotencyCache The cache to use for subsequent sends, or null to
+   * disable it.
+   */
+  public void setIdempotencyCache(final IdempotencyCache idempotencyCache) {
+    this.idempotencyCache = idempotencyCache;
+  }
+
+  /**
+   * Returns the cache which estimates the credit of the accounts sent from.
+   *
+   * @return BalanceCache the cache, or null if it is disabled.
+   */
+  public BalanceCache getBalanceCache() {
+    return balanceCache;
+  }
+
+  /**
+   * Changes the cache which estimates the credit of the accounts sent from.
+   * Sends an account is estimated not to have the credit for are refused
+   * with INSUFFICIENT_CREDIT without a request.
+   *
+   * @param balanceCache The cache to use for subsequent sends, or null to
+   * disable it.
+   */
+  public void setBalanceCache(final BalanceCache balanceCache) {
+    this.balanceCache = balanceCache;
+  }
+
+  /**
+   * Returns the validator which checks messages before they are sent.
+   *
+   * @return SmsValidator the validator, or null if it is disabled.
+   */
+  public SmsValidator getValidator() {
+    return validator;
+  }
+
+  /**
+   * Changes the validator which checks messages before they are sent.
+   * Messages the gateway would reject are refused with the code it would
+   * return, without a request.
+   *
+   * @param validator The validator to use for subsequent sends, or null to
+   * disable it.
+   */
+  public void setValidator(final SmsValidator validator) {
+    this.validator = validator;
+  }
+
+  /**
+   * Returns true if the recipients of group messages are rewritten to
+   * international form, and duplicates dropped, before they are sent.
+   *
+   * @return boolean
+   */
+  public boolean isNormalizingMobiles() {
+    return normalizingMobiles;
+  }
+
+  /**
+   * Changes whether the recipients of group messages are rewritten to
+   * international form with the country code they are sent with, and
+   * duplicates dropped, before they are sent.
+   *
+   * @param normalizingMobiles true to normalize the recipients.
+   */
+  public void setNormalizingMobiles(final boolean normalizingMobiles) {
+    this.normalizingMobiles = normalizingMobiles;
+  }
+
+  /**
+   * Returns the gateway endpoints resolved from the current configuration.
+   *
+   * @return Endpoints
+   */
+  public Endpoints getEndpoints() {
+    return config.get().endpoints;
+  }
+
   /**
    * Changes the secure state of the BBN API when making requests.
    *
@@ -176,15 +550,14 @@ public final class BbnApi {
   public Result<Boolean> login(
           final String username,
           final String password) throws IOException {
-    Http requestHttp = new Http(BBN.Resource.AUTH_URL());
-    requestHttp.addParam(BBN.Params.USERNAME, username);
-    requestHttp.addParam(BBN.Params.PASSWORD, password);
+    final Deadline deadline = Deadline.current();
+    Http requestHttp = new Http(getEndpoints().getAuth(), connectionManager);
+    requestHttp.addParams(authParams(username, password));
+    requestHttp.setDeadline(deadline);
 
     // Make the HTTP GET request.
-    final String response = requestHttp.get();
-    final boolean valid = Boolean.parseBoolean(
-            response != null ? response.trim() : "false");
-    return new Result(valid).setMessage(response).setError(!valid);
+    return getRetryPolicy(Endpoints.AUTH).execute(() -> hedged(Endpoints.AUTH,
+            () -> guarded(() -> loginResult(requestHttp.getResponse()))), deadline);
   }
 
   /**
@@ -206,16 +579,13 @@ public final class BbnApi {
   public Result<Float> checkBalance(
           final String username,
           final String password) throws IOException {
-    Http requestHttp = new Http(BBN.Resource.ACCOUNT_BALANCE_URL());
-    requestHttp.addParam(BBN.Params.USERNAME, username);
-    requestHttp.addParam(BBN.Params.PASSWORD, password);
-    final String result = requestHttp.get();
-
-    try {
-      return new Result(Float.parseFloat(result)).setError(false);
-    } catch (NumberFormatException e) {
-      return new Result().setMessage(result);
-    }
+    final Deadline deadline = Deadline.current();
+    Http requestHttp = new Http(getEndpoints().getAccountBalance(), connectionManager);
+    requestHttp.addParams(authParams(username, password));
+    requestHttp.setDeadline(deadline);
+    return getRetryPolicy(Endpoints.ACCOUNT_BALANCE).execute(
+            () -> hedged(Endpoints.ACCOUNT_BALANCE,
+            () -> guarded(() -> balanceResult(requestHttp.getResponse()))), deadline);
   }
 
   /**
@@ -247,20 +617,36 @@ public final class BbnApi {
           final boolean flash,
           final String username,
           final String password) throws MalformedURLException, IOException {
-    Http requestHttp = new Http(BBN.Resource.SEND_SMS_URL());
-    requestHttp.addParam(BBN.Params.USERNAME, username);
-    requestHttp.addParam(BBN.Params.PASSWORD, password);
-    requestHttp.addParam(BBN.Params.SENDER, sms.getSender());
-    requestHttp.addParam(BBN.Params.MESSAGE, sms.getMessage());
-    requestHttp.addParam(BBN.Params.MOBILE, sms.getMobile());
-    requestHttp.addParam(BBN.Params.C_CODE, (ccode != null ? ccode : ""));
-    requestHttp.addParam(BBN.Params.FLASH, flash ? "1" : "0");
+    final Result<String> rejected = rejected(sms);
 
-    // We use POST requests to help the user prevent failure due to too long URLs.
-    final String result = requestHttp.post();
+    if (rejected != null) {
+      return rejected;
+    }
+    final IdempotencyCache cache = idempotencyCache;
+    final IdempotencyCache.Claim claim = (cache != null) ? cache.claim(sms) : null;
 
-    return new Result(result != null ? result.trim() : "").setError(
-            !result.contains(String.valueOf(BBN.ResponseCode.MESSAGE_SENT.getCode())));
+    if ((claim != null) && claim.isDuplicate()) {
+      return claim.duplicate();
+    }
+    final BalanceCache balances = balanceCache;
+    final double cost = (balances != null) ? balances.cost(1, sms.getMessage()) : 0;
+
+    if ((balances != null) && balances.isInsufficient(username, password, cost)) {
+      return unpaid(claim);
+    }
+    final Deadline deadline = Deadline.current();
+    return charged(balances, username, cost, () -> settled(claim, () -> {
+      Http requestHttp = new Http(getEndpoints().getSendSms(), connectionManager);
+      requestHttp.addParams(sendParams(sms, ccode, flash, username, password));
+      requestHttp.setDeadline(deadline);
+      // Wait for the account's and sender's quotas.
+      sendRateLimiter.acquire(username, sms.getSender(), 1, deadline);
+
+      // We use POST requests to help the user prevent failure due to too long URLs.
+      return getRetryPolicy(Endpoints.SEND_SMS).execute(
+              () -> limited(deadline, () -> guarded(() -> sendResult(requestHttp.postResponse(),
+              BBN.ResponseCode.MESSAGE_SENT))), deadline);
+    }));
   }
 
   /**
@@ -297,19 +683,41 @@ public final class BbnApi {
           final boolean flash,
           final String username,
           final String password) throws MalformedURLException, IOException {
-    Http requestHttp = new Http(BBN.Resource.SEND_SMS_URL());
-    requestHttp.addParam(BBN.Params.USERNAME, username);
-    requestHttp.addParam(BBN.Params.PASSWORD, password);
-    requestHttp.addParam(BBN.Params.SENDER, smsGroup.getSender());
-    requestHttp.addParam(BBN.Params.MESSAGE, smsGroup.getMessage());
-    requestHttp.addParam(BBN.Params.MOBILE, smsGroup.getMobileListCommaSeparated());
-    requestHttp.addParam(BBN.Params.C_CODE, (ccode != null ? ccode : ""));
-    requestHttp.addParam(BBN.Params.FLASH, flash ? "1" : "0");
+    final SmsGroup recipients = normalized(smsGroup, ccode);
+    final Result<String> rejected = rejected(recipients);
 
-    // We use POST requests to help the user prevent failure due to too long URLs.
-    final String result = requestHttp.post();
-    return new Result(result != null ? result.trim() : "").setError(
-            !result.contains(String.valueOf(BBN.ResponseCode.MESSAGE_SENT.getCode())));
+    if (rejected != null) {
+      return rejected;
+    }
+    final IdempotencyCache cache = idempotencyCache;
+    final IdempotencyCache.Claim claim = (cache != null) ? cache.claim(recipients) : null;
+
+    if ((claim != null) && claim.isDuplicate()) {
+      return claim.duplicate();
+    }
+    // Only the recipients not sent the message already.
+    final SmsGroup group = (claim != null) ? claim.getSmsGroup() : recipients;
+    final BalanceCache balances = balanceCache;
+    final double cost = (balances != null)
+            ? balances.cost(group.getMobileCount(), group.getMessage()) : 0;
+
+    if ((balances != null) && balances.isInsufficient(username, password, cost)) {
+      return unpaid(claim);
+    }
+    final Deadline deadline = Deadline.current();
+    return charged(balances, username, cost, () -> settled(claim, () -> {
+      Http requestHttp = new Http(getEndpoints().getSendSms(), connectionManager);
+      requestHttp.addParams(batchParams(group, ccode, flash, username, password));
+      requestHttp.addStreamedParam(BBN.Params.MOBILE, group::appendMobileList);
+      requestHttp.setDeadline(deadline);
+      // Wait for the account's and sender's quotas, counting every recipient.
+      sendRateLimiter.acquire(username, group.getSender(), group.getMobileCount(), deadline);
+
+      // We use POST requests to help the user prevent failure due to too long URLs.
+      return getRetryPolicy(Endpoints.SEND_SMS).execute(
+              () -> limited(deadline, () -> guarded(() -> sendResult(requestHttp.postResponse(),
+              BBN.ResponseCode.MESSAGE_SENT))), deadline);
+    }));
   }
 
   /**
@@ -352,26 +760,22 @@ public final class BbnApi {
           final boolean flash,
           final String username,
           final String password) throws MalformedURLException, IOException {
-    Http requestHttp = new Http(BBN.Resource.SCHEDULE_SMS_URL());
-    requestHttp.addParam(BBN.Params.USERNAME, username);
-    requestHttp.addParam(BBN.Params.PASSWORD, password);
-    requestHttp.addParam(BBN.Params.SENDER, smsGroup.getSender());
-    requestHttp.addParam(BBN.Params.MESSAGE, smsGroup.getMessage());
-    requestHttp.addParam(BBN.Params.MOBILE, smsGroup.getMobileListCommaSeparated());
-    requestHttp.addParam(BBN.Params.SCHEDULE, "1");
-    requestHttp.addParam(BBN.Params.SCHEDULE_NOTIFY, notify ? "1" : "0");
-    requestHttp.addParam(BBN.Params.BROADCAST_TIME, String.valueOf(scheduleTime.getTime() / 1000));
-    requestHttp.addParam(BBN.Params.C_CODE, (ccode != null ? ccode : ""));
-    requestHttp.addParam(BBN.Params.FLASH, flash ? "1" : "0");
+    final Result<String> rejected = rejected(smsGroup, scheduleName, scheduleTime);
 
-    if (scheduleName != null) {
-      requestHttp.addParam(BBN.Params.SCHEDULE_NAME, scheduleName);
+    if (rejected != null) {
+      return rejected;
     }
+    final Deadline deadline = Deadline.current();
+    Http requestHttp = new Http(getEndpoints().getScheduleSms(), connectionManager);
+    requestHttp.addParams(scheduleParams(smsGroup, scheduleName, scheduleTime,
+            notify, ccode, flash, username, password));
+    requestHttp.addStreamedParam(BBN.Params.MOBILE, smsGroup::appendMobileList);
+    requestHttp.setDeadline(deadline);
 
     // We use POST requests to help the user prevent failure due to too long URLs.
-    final String result = requestHttp.post();
-    return new Result(result != null ? result.trim() : "").setError(
-            !result.contains(String.valueOf(BBN.ResponseCode.SCHEDULE_SAVED.getCode())));
+    return getRetryPolicy(Endpoints.SCHEDULE_SMS).execute(
+            () -> limited(deadline, () -> guarded(() -> sendResult(requestHttp.postResponse(),
+            BBN.ResponseCode.SCHEDULE_SAVED))), deadline);
   }
 
   /**
@@ -396,4 +800,667 @@ public final class BbnApi {
             getConfig(BBN.Params.USERNAME),
             getConfig(BBN.Params.PASSWORD));
   }
+
+  /**
+   * Changes the executor which runs the completion stages of the asynchronous
+   * API calls. Requests themselves are made without blocking any thread.
+   *
+   * @param executor The executor to use, or null for the default executor of
+   * java.net.http.HttpClient.
+   */
+  public void setExecutor(final Executor executor) {
+    asyncHttp = new AsyncHttp(executor);
+  }
+
+  /**
+   * Returns the client used to make the asynchronous API calls.
+   *
+   * @return AsyncHttp
+   */
+  public AsyncHttp getAsyncHttp() {
+    AsyncHttp http = asyncHttp;
+
+    if (http == null) {
+      synchronized (this) {
+        if ((http = asyncHttp) == null) {
+          asyncHttp = http = new AsyncHttp(null);
+        }
+      }
+    }
+    return http;
+  }
+
+  /**
+   * Asynchronously login with a username and password.
+   *
+   * @param username the BBN username to login with.
+   * @param password the BBN password to login with.
+   * @return CompletableFuture<Result<Boolean>>
+   */
+  public CompletableFuture<Result<Boolean>> loginAsync(
+          final String username,
+          final String password) {
+    final Deadline deadline = Deadline.current();
+    return getRetryPolicy(Endpoints.AUTH).executeAsync(() -> hedgedAsync(Endpoints.AUTH,
+            () -> guardedAsync(() -> getAsyncHttp().get(getEndpoints().getAuth(),
+            authParams(username, password), deadline).thenApply(BbnApi::loginResult))),
+            deadline);
+  }
+
+  /**
+   * Asynchronously login using the default username and password provided in
+   * the config file.
+   *
+   * @return CompletableFuture<Result<Boolean>>
+   */
+  public CompletableFuture<Result<Boolean>> loginAsync() {
+    return loginAsync(getConfig(BBN.Params.USERNAME),
+            getConfig(BBN.Params.PASSWORD));
+  }
+
+  /**
+   * Asynchronously checks the amount of credit available in a user's account.
+   *
+   * @param username The username to use in making the request.
+   * @param password The matching password to use in making the request.
+   * @return CompletableFuture<Result<Float>>
+   */
+  public CompletableFuture<Result<Float>> checkBalanceAsync(
+          final String username,
+          final String password) {
+    final Deadline deadline = Deadline.current();
+    return getRetryPolicy(Endpoints.ACCOUNT_BALANCE).executeAsync(
+            () -> hedgedAsync(Endpoints.ACCOUNT_BALANCE,
+            () -> guardedAsync(() -> getAsyncHttp().get(getEndpoints().getAccountBalance(),
+            authParams(username, password), deadline).thenApply(BbnApi::balanceResult))),
+            deadline);
+  }
+
+  /**
+   * Asynchronously checks the amount of credit available using the default
+   * username and password.
+   *
+   * @return CompletableFuture<Result<Float>>
+   */
+  public CompletableFuture<Result<Float>> checkBalanceAsync() {
+    return checkBalanceAsync(getConfig(BBN.Params.USERNAME),
+            getConfig(BBN.Params.PASSWORD));
+  }
+
+  /**
+   * Asynchronously sends an SMS to a recipient.
+   *
+   * @param sms The SMS to send.
+   * @param username The username to use in authentication.
+   * @param password The associated password to use in authentication.
+   * @return CompletableFuture<Result<String>> The result of the operation,
+   * completed exceptionally with an IOException if a network error occurs.
+   */
+  public CompletableFuture<Result<String>> sendMessageAsync(
+          final SMS sms,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    final Result<String> rejected = rejected(sms);
+
+    if (rejected != null) {
+      return CompletableFuture.completedFuture(rejected);
+    }
+    final IdempotencyCache cache = idempotencyCache;
+    final IdempotencyCache.Claim claim = (cache != null) ? cache.claim(sms) : null;
+
+    if ((claim != null) && claim.isDuplicate()) {
+      return CompletableFuture.completedFuture(claim.duplicate());
+    }
+    final BalanceCache balances = balanceCache;
+    final double cost = (balances != null) ? balances.cost(1, sms.getMessage()) : 0;
+
+    if ((balances != null) && balances.isInsufficient(username, password, cost)) {
+      return CompletableFuture.completedFuture(unpaid(claim));
+    }
+    final Deadline deadline = Deadline.current();
+    return chargedAsync(balances, username, cost, settledAsync(claim, () -> sendRateLimiter
+            .acquireAsync(username, sms.getSender(), 1, deadline)
+            .thenCompose(paced -> postAsync(Endpoints.SEND_SMS,
+            sendParams(sms, ccode, flash, username, password),
+            BBN.ResponseCode.MESSAGE_SENT, deadline))));
+  }
+
+  /**
+   * Asynchronously sends an SMS to a recipient using the default username and
+   * password.
+   *
+   * @param sms The SMS to send.
+   * @return CompletableFuture<Result<String>> The result of the operation.
+   */
+  public CompletableFuture<Result<String>> sendMessageAsync(
+          final SMS sms,
+          final String ccode,
+          final boolean flash) {
+    return sendMessageAsync(sms, ccode, flash,
+            getConfig(BBN.Params.USERNAME),
+            getConfig(BBN.Params.PASSWORD));
+  }
+
+  /**
+   * Asynchronously sends an SMS to a list of recipients.
+   *
+   * @param smsGroup The group to send the SMS to.
+   * @param username The username to use in authentication.
+   * @param password The associated password to use in authentication.
+   * @return CompletableFuture<Result<String>> The result of the operation.
+   */
+  public CompletableFuture<Result<String>> sendBatchMessageAsync(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    final SmsGroup recipients = normalized(smsGroup, ccode);
+    final Result<String> rejected = rejected(recipients);
+
+    if (rejected != null) {
+      return CompletableFuture.completedFuture(rejected);
+    }
+    final IdempotencyCache cache = idempotencyCache;
+    final IdempotencyCache.Claim claim = (cache != null) ? cache.claim(recipients) : null;
+
+    if ((claim != null) && claim.isDuplicate()) {
+      return CompletableFuture.completedFuture(claim.duplicate());
+    }
+    // Only the recipients not sent the message already.
+    final SmsGroup group = (claim != null) ? claim.getSmsGroup() : recipients;
+    final BalanceCache balances = balanceCache;
+    final double cost = (balances != null)
+            ? balances.cost(group.getMobileCount(), group.getMessage()) : 0;
+
+    if ((balances != null) && balances.isInsufficient(username, password, cost)) {
+      return CompletableFuture.completedFuture(unpaid(claim));
+    }
+    final Deadline deadline = Deadline.current();
+    return chargedAsync(balances, username, cost, settledAsync(claim, () -> sendRateLimiter
+            .acquireAsync(username, group.getSender(), group.getMobileCount(), deadline)
+            .thenCompose(paced -> postAsync(Endpoints.SEND_SMS,
+            batchParams(group, ccode, flash, username, password), mobilesOf(group),
+            BBN.ResponseCode.MESSAGE_SENT, deadline))));
+  }
+
+  /**
+   * Asynchronously sends an SMS to a list of recipients using the default
+   * username and password.
+   *
+   * @param smsGroup The group to send the SMS to.
+   * @return CompletableFuture<Result<String>> The result of the operation.
+   */
+  public CompletableFuture<Result<String>> sendBatchMessageAsync(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash) {
+    return sendBatchMessageAsync(smsGroup, ccode, flash,
+            getConfig(BBN.Params.USERNAME),
+            getConfig(BBN.Params.PASSWORD));
+  }
+
+  /**
+   * Asynchronously schedules SMS to be sent to a list of recipients.
+   *
+   * @param smsGroup The group of SMS to be sent.
+   * @param scheduleName The name of the schedule.
+   * @param username The username for authentication.
+   * @param password The associated password for authentication.
+   * @return CompletableFuture<Result<String>>
+   */
+  public CompletableFuture<Result<String>> scheduleMessageAsync(
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime,
+          final boolean notify,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    final Result<String> rejected = rejected(smsGroup, scheduleName, scheduleTime);
+
+    if (rejected != null) {
+      return CompletableFuture.completedFuture(rejected);
+    }
+    return postAsync(Endpoints.SCHEDULE_SMS,
+            scheduleParams(smsGroup, scheduleName, scheduleTime,
+            notify, ccode, flash, username, password), mobilesOf(smsGroup),
+            BBN.ResponseCode.SCHEDULE_SAVED, Deadline.current());
+  }
+
+  /**
+   * Asynchronously schedules SMS to be sent to a list of recipients using the
+   * default username and password.
+   *
+   * @param smsGroup The list of recipients to send SMS to.
+   * @param scheduleName The name of the schedule.
+   * @return CompletableFuture<Result<String>>
+   */
+  public CompletableFuture<Result<String>> scheduleMessageAsync(
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime,
+          final boolean notify,
+          final String ccode,
+          final boolean flash) {
+    return scheduleMessageAsync(
+            smsGroup, scheduleName, scheduleTime,
+            notify, ccode, flash,
+            getConfig(BBN.Params.USERNAME),
+            getConfig(BBN.Params.PASSWORD));
+  }
+
+  /*
+   * Makes a read-only request, hedged if the endpoint has a hedge policy.
+   */
+  private <T> Result<T> hedged(
+          final String endpoint,
+          final RetryPolicy.Call<T> call) throws IOException {
+    final HedgePolicy policy = hedgePolicies.get(endpoint);
+    return (policy != null) ? policy.execute(call) : call.call();
+  }
+
+  /*
+   * Starts a read-only request, hedged if the endpoint has a hedge policy.
+   */
+  private <T> CompletableFuture<Result<T>> hedgedAsync(
+          final String endpoint,
+          final Supplier<CompletableFuture<Result<T>>> call) {
+    final HedgePolicy policy = hedgePolicies.get(endpoint);
+    return (policy != null) ? policy.executeAsync(call) : call.get();
+  }
+
+  /*
+   * Makes a request through the circuit breaker, if there is one.
+   */
+  private <T> Result<T> guarded(final RetryPolicy.Call<T> call) throws IOException {
+    final CircuitBreaker breaker = circuitBreaker;
+    return (breaker != null) ? breaker.execute(call) : call.call();
+  }
+
+  /*
+   * Starts a request through the circuit breaker, if there is one.
+   */
+  private <T> CompletableFuture<Result<T>> guardedAsync(
+          final Supplier<CompletableFuture<Result<T>>> call) {
+    final CircuitBreaker breaker = circuitBreaker;
+    return (breaker != null) ? breaker.executeAsync(call) : call.get();
+  }
+
+  /*
+   * Makes a send claimed from the idempotency cache, settling the claim with
+   * its outcome.
+   */
+  private static Result<String> settled(
+          final IdempotencyCache.Claim claim,
+          final RetryPolicy.Call<String> send) throws IOException {
+    if (claim == null) {
+      return send.call();
+    }
+
+    try {
+      return claim.settle(send.call());
+    } catch (IOException | RuntimeException e) {
+      claim.release();
+      throw e;
+    }
+  }
+
+  /*
+   * Starts a send claimed from the idempotency cache, settling the claim with
+   * its outcome.
+   */
+  private static CompletableFuture<Result<String>> settledAsync(
+          final IdempotencyCache.Claim claim,
+          final Supplier<CompletableFuture<Result<String>>> send) {
+    if (claim == null) {
+      return send.get();
+    }
+
+    try {
+      return claim.settleAsync(send.get());
+    } catch (RuntimeException e) {
+      claim.release();
+      throw e;
+    }
+  }
+
+  /*
+   * Returns the group with its recipients in international form, each only
+   * once, if normalizing is enabled.
+   */
+  private SmsGroup normalized(final SmsGroup smsGroup, final String ccode) {
+    return normalizingMobiles ? new MobileNormalizer(ccode).normalize(smsGroup) : smsGroup;
+  }
+
+  /*
+   * Returns the result of a message the validator rejects, or null if it is
+   * valid or there is no validator.
+   */
+  private Result<String> rejected(final SMS sms) {
+    final SmsValidator check = validator;
+    return (check != null) ? check.validate(sms).toResult() : null;
+  }
+
+  /*
+   * A group with an invalid recipient is rejected as a whole, reporting how
+   * many are invalid: sending the others would leave the caller unable to
+   * tell which were sent. SmsValidator.Validation gives the invalid ones and
+   * a group of the valid ones, for callers who want to send those.
+   */
+  private Result<String> rejected(final SmsGroup smsGroup) {
+    final SmsValidator check = validator;
+    return (check != null) ? check.validate(smsGroup).toResult() : null;
+  }
+
+  private Result<String> rejected(
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime) {
+    final SmsValidator check = validator;
+    return (check != null) ? check.validate(smsGroup, scheduleName, scheduleTime).toResult()
+            : null;
+  }
+
+  /*
+   * Refuses a send the account is estimated not to have the credit for,
+   * giving back its claim on the idempotency cache.
+   */
+  private static Result<String> unpaid(final IdempotencyCache.Claim claim) {
+    if (claim != null) {
+      claim.release();
+    }
+    return BalanceCache.insufficientCredit();
+  }
+
+  /*
+   * Makes a send, charging its cost to the account's estimated balance if
+   * the gateway accepts it.
+   */
+  private static Result<String> charged(
+          final BalanceCache balances,
+          final String username,
+          final double cost,
+          final RetryPolicy.Call<String> send) throws IOException {
+    final Result<String> result = send.call();
+
+    if (balances != null) {
+      charge(balances, username, cost, result);
+    }
+    return result;
+  }
+
+  /*
+   * Charges the cost of an asynchronous send to the account's estimated
+   * balance once the gateway accepts it.
+   */
+  private static CompletableFuture<Result<String>> chargedAsync(
+          final BalanceCache balances,
+          final String username,
+          final double cost,
+          final CompletableFuture<Result<String>> send) {
+    if (balances == null) {
+      return send;
+    }
+    return send.whenComplete((result, error) -> {
+      if (error == null) {
+        charge(balances, username, cost, result);
+      }
+    });
+  }
+
+  private static void charge(
+          final BalanceCache balances,
+          final String username,
+          final double cost,
+          final Result<String> result) {
+    if (result.getCode() == BBN.ResponseCode.INSUFFICIENT_CREDIT.getCode()) {
+      balances.exhausted(username);
+    } else if (!result.isError()) {
+      balances.debit(username, cost);
+    }
+  }
+
+  /*
+   * Asynchronously posts a send or schedule request to the endpoint, through
+   * the endpoint's retry policy and the send limiter, within the deadline.
+   */
+  private CompletableFuture<Result<String>> postAsync(
+          final String endpoint,
+          final Map<String, String> params,
+          final BBN.Response expected,
+          final Deadline deadline) {
+    return postAsync(endpoint, params, Collections.<String, FormValue>emptyMap(),
+            expected, deadline);
+  }
+
+  /*
+   * Asynchronously posts a send or schedule request whose streamed parameters
+   * are written straight into the request body.
+   */
+  private CompletableFuture<Result<String>> postAsync(
+          final String endpoint,
+          final Map<String, String> params,
+          final Map<String, FormValue> streamedParams,
+          final BBN.Response expected,
+          final Deadline deadline) {
+    return getRetryPolicy(endpoint).executeAsync(() -> limitedAsync(deadline,
+            () -> guardedAsync(() -> getAsyncHttp()
+            .post(getEndpoints().get(endpoint), params, streamedParams, deadline)
+            .thenApply(result -> sendResult(result, expected)))), deadline);
+  }
+
+  /*
+   * Makes a send once the send limiter allows it, reporting its outcome to
+   * the limiter.
+   */
+  private Result<String> limited(
+          final Deadline deadline,
+          final RetryPolicy.Call<String> send) throws IOException {
+    final ConcurrencyLimiter.Permit permit = sendLimiter.acquire(deadline);
+
+    try {
+      final Result<String> result = send.call();
+
+      if (result.getCode() == BBN.ResponseCode.REQUEST_TIMEOUT.getCode()) {
+        permit.dropped();
+      } else {
+        permit.succeeded();
+      }
+      return result;
+    } catch (CircuitOpenException | DeadlineExceededException e) {
+      // Refused without reaching the gateway, or cut short by the caller.
+      permit.release();
+      throw e;
+    } catch (IOException e) {
+      permit.dropped();
+      throw e;
+    } finally {
+      permit.release();
+    }
+  }
+
+  /*
+   * Starts an asynchronous send once the send limiter allows it, reporting
+   * its outcome to the limiter.
+   */
+  private CompletableFuture<Result<String>> limitedAsync(
+          final Deadline deadline,
+          final Supplier<CompletableFuture<Result<String>>> send) {
+    return sendLimiter.acquireAsync(deadline).thenCompose(permit -> {
+      final CompletableFuture<Result<String>> result;
+
+      try {
+        result = send.get();
+      } catch (RuntimeException e) {
+        permit.release();
+        throw e;
+      }
+      return result.whenComplete((value, error) -> {
+        final Throwable cause = ((error instanceof CompletionException)
+                && (error.getCause() != null)) ? error.getCause() : error;
+
+        if ((cause instanceof CircuitOpenException)
+                || (cause instanceof DeadlineExceededException)) {
+          // Refused without reaching the gateway, or cut short by the caller.
+          permit.release();
+        } else if ((error != null)
+                || (value.getCode() == BBN.ResponseCode.REQUEST_TIMEOUT.getCode())) {
+          permit.dropped();
+        } else {
+          permit.succeeded();
+        }
+      });
+    });
+  }
+
+  /*
+   * Builds the request parameters for authenticated requests.
+   */
+  private static Map<String, String> authParams(
+          final String username,
+          final String password) {
+    Map<String, String> params = new HashMap<>();
+    params.put(BBN.Params.USERNAME, username);
+    params.put(BBN.Params.PASSWORD, password);
+    return params;
+  }
+
+  /*
+   * Builds the request parameters for sending an SMS to a recipient.
+   */
+  private static Map<String, String> sendParams(
+          final SMS sms,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    Map<String, String> params = authParams(username, password);
+    params.put(BBN.Params.SENDER, sms.getSender());
+    params.put(BBN.Params.MESSAGE, sms.getMessage());
+    params.put(BBN.Params.MOBILE, sms.getMobile());
+    params.put(BBN.Params.C_CODE, (ccode != null ? ccode : ""));
+    params.put(BBN.Params.FLASH, flash ? "1" : "0");
+    return params;
+  }
+
+  /*
+   * Builds the request parameters for sending an SMS to a group, leaving out
+   * the recipients so they can be streamed into the request.
+   */
+  private static Map<String, String> batchParams(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    Map<String, String> params = authParams(username, password);
+    params.put(BBN.Params.SENDER, smsGroup.getSender());
+    params.put(BBN.Params.MESSAGE, smsGroup.getMessage());
+    params.put(BBN.Params.C_CODE, (ccode != null ? ccode : ""));
+    params.put(BBN.Params.FLASH, flash ? "1" : "0");
+    return params;
+  }
+
+  /*
+   * Returns the recipients of the group as a parameter written straight into
+   * the request body, as the synchronous sends do.
+   */
+  private static Map<String, FormValue> mobilesOf(final SmsGroup smsGroup) {
+    return Collections.<String, FormValue>singletonMap(
+            BBN.Params.MOBILE, smsGroup::appendMobileList);
+  }
+
+  /*
+   * Builds the request parameters for scheduling an SMS to a group.
+   */
+  private static Map<String, String> scheduleParams(
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime,
+          final boolean notify,
+          final String ccode,
+          final boolean flash,
+          final String username,
+          final String password) {
+    Map<String, String> params = batchParams(smsGroup, ccode, flash, username, password);
+    params.put(BBN.Params.SCHEDULE, "1");
+    params.put(BBN.Params.SCHEDULE_NOTIFY, notify ? "1" : "0");
+    params.put(BBN.Params.BROADCAST_TIME, String.valueOf(scheduleTime.getTime() / 1000));
+
+    if (scheduleName != null) {
+      params.put(BBN.Params.SCHEDULE_NAME, scheduleName);
+    }
+    return params;
+  }
+
+  /*
+   * Converts the response of a login request into a result.
+   */
+  private static Result<Boolean> loginResult(final GatewayResponse response) {
+    final String text = !response.isEmpty() ? response.getText() : null;
+    final boolean valid = Boolean.parseBoolean(
+            text != null ? text.trim() : "false");
+    return new Result(valid).setMessage(text).setError(!valid);
+  }
+
+  /*
+   * Converts the response of an account balance request into a result.
+   */
+  private static Result<Float> balanceResult(final GatewayResponse response) {
+    final String result = !response.isEmpty() ? response.getText() : null;
+
+    try {
+      return new Result(Float.parseFloat(result)).setError(false);
+    } catch (NumberFormatException | NullPointerException e) {
+      return new Result().setMessage(result).setCode(response.getCode());
+    }
+  }
+
+  /*
+   * Converts the response of a send or schedule request into a result, which
+   * is successful if the response holds the expected code.
+   */
+  private static Result<String> sendResult(
+          final GatewayResponse response,
+          final BBN.Response expected) {
+    final BBN.Response code = response.getResponseCode();
+    return new Result(response.getText().trim())
+            .setCode(response.getCode())
+            .setMessage(code != null ? code.getMessage() : null)
+            .setError(response.getCode() != expected.getCode());
+  }
+
+  /*
+   * An immutable snapshot of the configuration, together with the endpoints
+   * resolved from it.
+   */
+  private static final class Config {
+
+    private final Map<String, String> values;
+    private final Endpoints endpoints;
+
+    private Config(final Map<String, String> values) {
+      this(Collections.unmodifiableMap(values), null);
+    }
+
+    private Config(final Map<String, String> values, final Endpoints endpoints) {
+      this.values = values;
+      this.endpoints = (endpoints != null) ? endpoints : Endpoints.from(values);
+    }
+
+    /*
+     * Returns a copy of this snapshot with the key set to the value.
+     */
+    private Config with(final String key, final String value) {
+      final Map<String, String> copy = new HashMap<>(values);
+      copy.put(key, value);
+      // Keep the endpoints unless the key is one they are resolved from.
+      return new Config(Collections.unmodifiableMap(copy),
+              Endpoints.isEndpointKey(key) ? null : endpoints);
+    }
+  }
 }
@@ -0,0 +1,517 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops requests from being made to the BBN gateway while it is failing.
+ *
+ * The outcomes of the last requests are kept in a window. Once enough of them
+ * failed (an I/O error or REQUEST_TIMEOUT 1800) or were slow, the breaker
+ * opens and requests fail at once with a CircuitOpenException instead of
+ * waiting for the gateway to time out. After the open duration a few probe
+ * requests are let through (half-open): if they all succeed the breaker
+ * closes again, otherwise it opens for another round. Error codes such as
+ * 1802-1809 are answers from a working gateway and count as successes.
+ */
+public class CircuitBreaker {
+
+  public static final double DEFAULT_FAILURE_RATE = 50;
+  public static final double DEFAULT_SLOW_CALL_RATE = 100;
+  public static final long DEFAULT_SLOW_CALL_DURATION = 10000;
+  public static final int DEFAULT_WINDOW_SIZE = 20;
+  public static final int DEFAULT_MIN_CALLS = 10;
+  public static final long DEFAULT_OPEN_DURATION = 30000;
+  public static final int DEFAULT_PROBES = 3;
+  private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+  // The percentages of failed and slow requests which open the breaker.
+  private final double failureRate;
+  private final double slowCallRate;
+  // How long (nanoseconds) a request may take before it counts as slow.
+  private final long slowCallDuration;
+  private final int minCalls;
+  // How long (nanoseconds) the breaker stays open before probing.
+  private final long openDuration;
+  private final int probes;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  // Guards the fields below.
+  private final Object lock = new Object();
+  private State state = State.CLOSED;
+  // Changes with every state change; outcomes of older requests are ignored.
+  private long epoch;
+  // The outcomes of the last requests, as a ring, and their totals.
+  private final Outcome[] window;
+  private int recorded;
+  private int nextOutcome;
+  private int failures;
+  private int slowCalls;
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+  // Metrics.
+  private long rejectedCount;
+  private long openCount;
+
+  /**
+   * The states of the breaker.
+   */
+  public enum State {
+
+    /**
+     * Requests are made and their outcomes recorded.
+     */
+    CLOSED,
+    /**
+     * Requests are refused.
+     */
+    OPEN,
+    /**
+     * A few probe requests are made to find out if the gateway has recovered.
+     */
+    HALF_OPEN
+  }
+
+  /**
+   * Receives the state changes of a breaker. Listeners are called on the
+   * thread whose request changed the state, so they must be quick and thread
+   * safe.
+   */
+  public interface Listener {
+
+    /**
+     * Called when the breaker changes state.
+     *
+     * @param breaker The breaker.
+     * @param from The previous state.
+     * @param to The new state.
+     */
+    void stateChanged(CircuitBreaker breaker, State from, State to);
+  }
+
+  /*
+   * How a request turned out, as far as the breaker is concerned.
+   */
+  private enum Outcome {
+
+    SUCCESS, SLOW, FAILURE, IGNORED
+  }
+
+  /**
+   * Construct a breaker with the default slow call settings and probes.
+   *
+   * @param failureRate The percentage of failed requests which opens the
+   * breaker.
+   * @param windowSize The number of recent requests the rates are taken from.
+   * @param openDuration Milliseconds the breaker stays open before probing.
+   */
+  public CircuitBreaker(final double failureRate, final int windowSize, final long openDuration) {
+    this(failureRate, DEFAULT_SLOW_CALL_RATE, DEFAULT_SLOW_CALL_DURATION, windowSize,
+            Math.min(windowSize, DEFAULT_MIN_CALLS), openDuration, DEFAULT_PROBES);
+  }
+
+  /**
+   * Construct a breaker.
+   *
+   * @param failureRate The percentage of failed requests which opens the
+   * breaker.
+   * @param slowCallRate The percentage of slow requests which opens the
+   * breaker.
+   * @param slowCallDuration Milliseconds after which a request is slow.
+   * @param windowSize The number of recent requests the rates are taken from.
+   * @param minCalls The requests needed in the window before it can open.
+   * @param openDuration Milliseconds the breaker stays open before probing.
+   * @param probes The requests let through while half-open, all of which
+   * must succeed for the breaker to close.
+   */
+  public CircuitBreaker(
+          final double failureRate,
+          final double slowCallRate,
+          final long slowCallDuration,
+          final int windowSize,
+          final int minCalls,
+          final long openDuration,
+          final int probes) {
+    if ((failureRate <= 0) || (failureRate > 100)
+            || (slowCallRate <= 0) || (slowCallRate > 100)) {
+      throw new IllegalArgumentException("The rates must be between 0 and 100.");
+    }
+
+    if ((windowSize < 1) || (minCalls < 1) || (minCalls > windowSize) || (probes < 1)
+            || (slowCallDuration < 0) || (openDuration < 0)) {
+      throw new IllegalArgumentException("Invalid window, probes or durations.");
+    }
+    this.failureRate = failureRate;
+    this.slowCallRate = slowCallRate;
+    this.slowCallDuration = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+    this.window = new Outcome[windowSize];
+    this.minCalls = minCalls;
+    this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+    this.probes = probes;
+  }
+
+  /**
+   * Creates a breaker using the settings in the config of the API specified,
+   * or returns null if the breaker is disabled (bbn.circuit.enabled).
+   *
+   * @param api The API whose config holds the breaker settings.
+   * @return CircuitBreaker
+   */
+  public static CircuitBreaker fromConfig(final BbnApi api) {
+    if (!api.getConfigAsBoolean("bbn.circuit.enabled")) {
+      return null;
+    }
+    final int windowSize = Math.max(1,
+            (int) api.getConfigAsLong("bbn.circuit.window_size", DEFAULT_WINDOW_SIZE));
+    return new CircuitBreaker(
+            api.getConfigAsDouble("bbn.circuit.failure_rate", DEFAULT_FAILURE_RATE),
+            api.getConfigAsDouble("bbn.circuit.slow_call_rate", DEFAULT_SLOW_CALL_RATE),
+            api.getConfigAsLong("bbn.circuit.slow_call_duration", DEFAULT_SLOW_CALL_DURATION),
+            windowSize,
+            Math.max(1, Math.min(windowSize,
+            (int) api.getConfigAsLong("bbn.circuit.min_calls", DEFAULT_MIN_CALLS))),
+            api.getConfigAsLong("bbn.circuit.open_duration", DEFAULT_OPEN_DURATION),
+            Math.max(1, (int) api.getConfigAsLong("bbn.circuit.probes", DEFAULT_PROBES)));
+  }
+
+  /**
+   * Makes the request if the breaker allows it, recording its outcome.
+   *
+   * @param call The request.
+   * @return Result<T> the result of the request.
+   * @throws CircuitOpenException if the breaker is open.
+   * @throws IOException if the request failed.
+   */
+  public <T> Result<T> execute(final RetryPolicy.Call<T> call) throws IOException {
+    final Ticket ticket = acquire();
+    Outcome outcome = Outcome.IGNORED;
+
+    try {
+      final Result<T> result = call.call();
+      outcome = outcomeOf(result, ticket);
+      return result;
+    } catch (DeadlineExceededException e) {
+      // The caller ran out of time; that says nothing about the gateway.
+      throw e;
+    } catch (IOException e) {
+      // The loser of a hedge, cut short, says nothing about the gateway.
+      outcome = HedgePolicy.isAbandoned() ? Outcome.IGNORED : Outcome.FAILURE;
+      throw e;
+    } finally {
+      record(ticket, outcome);
+    }
+  }
+
+  /**
+   * Starts the asynchronous request if the breaker allows it, recording its
+   * outcome.
+   *
+   * @param call Starts the request.
+   * @return CompletableFuture<Result<T>> the outcome of the request, completed
+   * exceptionally with a CircuitOpenException if the breaker is open.
+   */
+  public <T> CompletableFuture<Result<T>> executeAsync(
+          final Supplier<CompletableFuture<Result<T>>> call) {
+    final Ticket ticket;
+
+    try {
+      ticket = acquire();
+    } catch (CircuitOpenException e) {
+      final CompletableFuture<Result<T>> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+    final CompletableFuture<Result<T>> result;
+
+    try {
+      result = call.get();
+    } catch (RuntimeException e) {
+      record(ticket, Outcome.IGNORED);
+      throw e;
+    }
+    return result.whenComplete((value, error) -> {
+      if (error == null) {
+        record(ticket, outcomeOf(value, ticket));
+      } else {
+        // Cancelled attempts, such as the losers of a hedge, and attempts
+        // cut short by a deadline say nothing about the gateway.
+        final Throwable cause = ((error instanceof CompletionException)
+                && (error.getCause() != null)) ? error.getCause() : error;
+        record(ticket, ((cause instanceof IOException)
+                && !(cause instanceof DeadlineExceededException))
+                ? Outcome.FAILURE : Outcome.IGNORED);
+      }
+    });
+  }
+
+  /**
+   * Returns true if a request would be let through now. The request may
+   * still be refused if other requests take the last probe first.
+   *
+   * @return boolean
+   */
+  public boolean isCallPermitted() {
+    synchronized (lock) {
+      switch (state) {
+        case OPEN:
+          return System.nanoTime() - openedAt >= openDuration;
+        case HALF_OPEN:
+          return probesStarted < probes;
+        default:
+          return true;
+      }
+    }
+  }
+
+  /**
+   * Closes the breaker and forgets the recorded outcomes.
+   */
+  public void reset() {
+    final State from;
+
+    synchronized (lock) {
+      from = state;
+      transitionTo(State.CLOSED);
+    }
+
+    if (from != State.CLOSED) {
+      fireStateChanged(from, State.CLOSED);
+    }
+  }
+
+  /**
+   * Registers a listener for the state changes of the breaker.
+   *
+   * @param listener The listener.
+   */
+  public void addListener(final Listener listener) {
+    if (listener == null) {
+      throw new NullPointerException("listener cannot be null.");
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a listener added with addListener.
+   *
+   * @param listener The listener.
+   */
+  public void removeListener(final Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /*
+   * Takes the right to make a request, moving from open to half-open once
+   * the open duration has passed.
+   */
+  private Ticket acquire() throws CircuitOpenException {
+    boolean probing = false;
+    final Ticket ticket;
+
+    synchronized (lock) {
+      if (state == State.OPEN) {
+        final long remaining = openDuration - (System.nanoTime() - openedAt);
+
+        if (remaining > 0) {
+          rejectedCount++;
+          throw new CircuitOpenException("The BBN gateway is failing; requests are suspended.",
+                  TimeUnit.NANOSECONDS.toMillis(remaining));
+        }
+        transitionTo(State.HALF_OPEN);
+        probing = true;
+      }
+
+      if (state == State.HALF_OPEN) {
+        if (probesStarted >= probes) {
+          rejectedCount++;
+          throw new CircuitOpenException(
+                  "The BBN gateway is being probed; requests are suspended.", 0);
+        }
+        probesStarted++;
+      }
+      ticket = new Ticket(epoch);
+    }
+
+    if (probing) {
+      fireStateChanged(State.OPEN, State.HALF_OPEN);
+    }
+    return ticket;
+  }
+
+  private Outcome outcomeOf(final Result<?> result, final Ticket ticket) {
+    if (result.getCode() == BBN.ResponseCode.REQUEST_TIMEOUT.getCode()) {
+      return Outcome.FAILURE;
+    }
+    return (System.nanoTime() - ticket.startedAt >= slowCallDuration)
+            ? Outcome.SLOW : Outcome.SUCCESS;
+  }
+
+  /*
+   * Records the outcome of a request, opening or closing the breaker if it
+   * tips the balance.
+   */
+  private void record(final Ticket ticket, final Outcome outcome) {
+    final State from;
+    final State to;
+
+    synchronized (lock) {
+      if (ticket.epoch != epoch) {
+        // Started before the last state change.
+        return;
+      }
+      from = state;
+
+      if (state == State.HALF_OPEN) {
+        if (outcome == Outcome.IGNORED) {
+          probesStarted--;
+          return;
+        } else if (outcome != Outcome.SUCCESS) {
+          transitionTo(State.OPEN);
+        } else if (++probesSucceeded >= probes) {
+          transitionTo(State.CLOSED);
+        }
+      } else if ((state == State.CLOSED) && (outcome != Outcome.IGNORED)) {
+        add(outcome);
+
+        if ((recorded >= minCalls)
+                && ((failures * 100.0 >= failureRate * recorded)
+                || (slowCalls * 100.0 >= slowCallRate * recorded))) {
+          transitionTo(State.OPEN);
+        }
+      }
+      to = state;
+    }
+
+    if (from != to) {
+      fireStateChanged(from, to);
+    }
+  }
+
+  /*
+   * Adds an outcome to the window, dropping the oldest one if it is full.
+   */
+  private void add(final Outcome outcome) {
+    if (recorded == window.length) {
+      count(window[nextOutcome], -1);
+    } else {
+      recorded++;
+    }
+    window[nextOutcome] = outcome;
+    nextOutcome = (nextOutcome + 1) % window.length;
+    count(outcome, 1);
+  }
+
+  private void count(final Outcome outcome, final int delta) {
+    if (outcome == Outcome.FAILURE) {
+      failures += delta;
+    } else if (outcome == Outcome.SLOW) {
+      slowCalls += delta;
+    }
+  }
+
+  /*
+   * Changes the state, starting a new epoch. Called with the lock held.
+   */
+  private void transitionTo(final State next) {
+    if (next == State.OPEN) {
+      openedAt = System.nanoTime();
+      openCount++;
+    }
+    state = next;
+    epoch++;
+    recorded = 0;
+    nextOutcome = 0;
+    failures = 0;
+    slowCalls = 0;
+    probesStarted = 0;
+    probesSucceeded = 0;
+  }
+
+  private void fireStateChanged(final State from, final State to) {
+    LOGGER.log((to == State.OPEN) ? Level.WARNING : Level.INFO,
+            "BBN circuit breaker changed from {0} to {1}.", new Object[]{from, to});
+
+    for (Listener listener : listeners) {
+      try {
+        listener.stateChanged(this, from, to);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "A circuit breaker listener failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the state of the breaker.
+   *
+   * @return State
+   */
+  public State getState() {
+    synchronized (lock) {
+      return state;
+    }
+  }
+
+  /**
+   * Returns the percentage of failed requests in the window, or -1 if the
+   * window doesn't hold enough requests yet.
+   *
+   * @return double
+   */
+  public double getFailureRate() {
+    synchronized (lock) {
+      return ((state == State.CLOSED) && (recorded >= minCalls))
+              ? failures * 100.0 / recorded : -1;
+    }
+  }
+
+  /**
+   * Returns the number of requests refused because the breaker was open.
+   *
+   * @return long
+   */
+  public long getRejectedCount() {
+    synchronized (lock) {
+      return rejectedCount;
+    }
+  }
+
+  /**
+   * Returns the number of times the breaker has opened.
+   *
+   * @return long
+   */
+  public long getOpenCount() {
+    synchronized (lock) {
+      return openCount;
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return "CircuitBreaker{" + "state=" + state + ", recorded=" + recorded
+              + ", failures=" + failures + ", slowCalls=" + slowCalls
+              + ", rejected=" + rejectedCount + ", opened=" + openCount + '}';
+    }
+  }
+
+  /*
+   * The right to make one request, taken in a given epoch.
+   */
+  private static final class Ticket {
+
+    private final long epoch;
+    private final long startedAt = System.nanoTime();
+
+    private Ticket(final long epoch) {
+      this.epoch = epoch;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request while the circuit breaker in front of
+ * the BBN gateway is open, so the caller can queue the request or give up
+ * at once rather than wait for the gateway to time out.
+ */
+public class CircuitOpenException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+  // Milliseconds until the breaker lets a probe through, 0 if unknown.
+  private final long retryAfter;
+
+  /**
+   * Construct the exception.
+   *
+   * @param message The detail message.
+   * @param retryAfter Milliseconds until requests may be let through again.
+   */
+  public CircuitOpenException(final String message, final long retryAfter) {
+    super(message);
+    this.retryAfter = Math.max(0, retryAfter);
+  }
+
+  /**
+   * Returns how long until the breaker lets a request through again, in
+   * milliseconds.
+   *
+   * @return long
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+}
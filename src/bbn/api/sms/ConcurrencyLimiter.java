@@ -0,0 +1,385 @@
+package bbn.api.sms;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of requests in flight to the BBN gateway, adapting the
+ * limit to how the gateway copes (additive increase, multiplicative
+ * decrease).
+ *
+ * Every request which comes back within the latency tolerance raises the
+ * limit by about one per round of requests, as long as the limit is actually
+ * being used. A request which times out (1800), fails with an I/O error or
+ * takes much longer than the usual latency cuts the limit at once. Requests
+ * beyond the limit wait in a queue, in order of arrival.
+ */
+public class ConcurrencyLimiter {
+
+  public static final int DEFAULT_INITIAL_LIMIT = 4;
+  public static final int DEFAULT_MIN_LIMIT = 1;
+  public static final int DEFAULT_MAX_LIMIT = 20;
+  public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+  public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+  // Samples needed before latency spikes are looked for.
+  private static final int WARMUP_SAMPLES = 10;
+  // Weight of a new sample in the usual latency.
+  private static final double LATENCY_SMOOTHING = 0.05;
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double latencyTolerance;
+  // Guards the fields below.
+  private final Object lock = new Object();
+  private double limit;
+  private int inFlight;
+  private final ArrayDeque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+  // The usual latency of a request, in nanoseconds.
+  private double usualLatency;
+  private long samples;
+  // When the limit was last cut; requests started before then can't cut it again.
+  private long lastDecrease = System.nanoTime();
+  private long decreaseCount;
+
+  /**
+   * Construct a limiter with the default backoff and latency tolerance.
+   *
+   * @param initialLimit The limit to start with.
+   * @param minLimit The lowest the limit can go.
+   * @param maxLimit The highest the limit can go.
+   */
+  public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+    this(initialLimit, minLimit, maxLimit, DEFAULT_BACKOFF_RATIO, DEFAULT_LATENCY_TOLERANCE);
+  }
+
+  /**
+   * Construct a limiter.
+   *
+   * @param initialLimit The limit to start with.
+   * @param minLimit The lowest the limit can go.
+   * @param maxLimit The highest the limit can go.
+   * @param backoffRatio What the limit is multiplied by when it is cut.
+   * @param latencyTolerance How many times the usual latency a request may
+   * take before the limit is cut.
+   */
+  public ConcurrencyLimiter(
+          final int initialLimit,
+          final int minLimit,
+          final int maxLimit,
+          final double backoffRatio,
+          final double latencyTolerance) {
+    if ((minLimit < 1) || (maxLimit < minLimit)) {
+      throw new IllegalArgumentException("Invalid limit bounds.");
+    }
+
+    if ((backoffRatio <= 0) || (backoffRatio >= 1) || (latencyTolerance <= 1)) {
+      throw new IllegalArgumentException("Invalid backoff ratio or latency tolerance.");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = backoffRatio;
+    this.latencyTolerance = latencyTolerance;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Creates a limiter using the settings in the config of the API specified.
+   *
+   * @param api The API whose config holds the limiter settings.
+   * @return ConcurrencyLimiter
+   */
+  public static ConcurrencyLimiter fromConfig(final BbnApi api) {
+    return new ConcurrencyLimiter(
+            (int) api.getConfigAsLong("bbn.send.concurrency.initial", DEFAULT_INITIAL_LIMIT),
+            (int) api.getConfigAsLong("bbn.send.concurrency.min", DEFAULT_MIN_LIMIT),
+            (int) api.getConfigAsLong("bbn.send.concurrency.max", DEFAULT_MAX_LIMIT));
+  }
+
+  /**
+   * Waits until the request can be made.
+   *
+   * @return Permit which must be released once the request completes.
+   * @throws InterruptedIOException if interrupted while waiting.
+   */
+  public Permit acquire() throws InterruptedIOException {
+    return acquire(Deadline.none());
+  }
+
+  /**
+   * Waits until the request can be made, no longer than the deadline allows.
+   *
+   * @param deadline The deadline of the request.
+   * @return Permit which must be released once the request completes.
+   * @throws DeadlineExceededException if the deadline passes while waiting.
+   * @throws InterruptedIOException if interrupted while waiting.
+   */
+  public Permit acquire(final Deadline deadline) throws InterruptedIOException {
+    final CompletableFuture<Permit> permit = acquireAsync();
+
+    try {
+      if (deadline.isBounded()) {
+        return permit.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+      }
+      return permit.get();
+    } catch (TimeoutException e) {
+      if (permit.cancel(false)) {
+        throw new DeadlineExceededException("The deadline passed while waiting to send.");
+      }
+      // Granted just as the deadline passed.
+      return permit.join();
+    } catch (InterruptedException e) {
+      if (!permit.cancel(false)) {
+        // Granted just as we were interrupted.
+        permit.join().release();
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send.");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns a future completed once the request can be made, without blocking.
+   * Cancelling the future gives up the place in the queue.
+   *
+   * @return CompletableFuture<Permit>
+   */
+  public CompletableFuture<Permit> acquireAsync() {
+    synchronized (lock) {
+      if (waiters.isEmpty() && (inFlight < (int) limit)) {
+        inFlight++;
+        return CompletableFuture.completedFuture(new Permit());
+      }
+      final CompletableFuture<Permit> waiter = new CompletableFuture<Permit>() {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+          final boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+          if (cancelled) {
+            synchronized (lock) {
+              waiters.remove(this);
+            }
+          }
+          return cancelled;
+        }
+      };
+      waiters.add(waiter);
+      return waiter;
+    }
+  }
+
+  /**
+   * Returns a future completed once the request can be made, or failed with
+   * a DeadlineExceededException if the deadline passes first.
+   *
+   * @param deadline The deadline of the request.
+   * @return CompletableFuture<Permit>
+   */
+  public CompletableFuture<Permit> acquireAsync(final Deadline deadline) {
+    final CompletableFuture<Permit> waiter = acquireAsync();
+
+    if (waiter.isDone() || !deadline.isBounded()) {
+      return waiter;
+    }
+    final CompletableFuture<Permit> permit = new CompletableFuture<>();
+    waiter.whenComplete((granted, error) -> {
+      if (error != null) {
+        permit.completeExceptionally(error);
+      } else if (!permit.complete(granted)) {
+        // Cancelled while being granted.
+        granted.release();
+      }
+    });
+    // Cancelling the permit, or the deadline passing, gives up the place in
+    // the queue.
+    permit.whenComplete((granted, error) -> waiter.cancel(false));
+    CompletableFuture.delayedExecutor(deadline.remaining(TimeUnit.NANOSECONDS),
+            TimeUnit.NANOSECONDS).execute(() -> {
+      // A permit granted in the meantime is released by the stage above.
+      permit.completeExceptionally(
+              new DeadlineExceededException("The deadline passed while waiting to send."));
+    });
+    return permit;
+  }
+
+  /*
+   * Frees the slot of a request, adapting the limit to its outcome, and lets
+   * in as many waiting requests as the limit allows.
+   */
+  private void release(final Permit permit, final Outcome outcome) {
+    final List<CompletableFuture<Permit>> granted = new ArrayList<>();
+
+    synchronized (lock) {
+      adapt(permit, outcome);
+      inFlight--;
+
+      while (!waiters.isEmpty() && (inFlight < (int) limit)) {
+        granted.add(waiters.poll());
+        inFlight++;
+      }
+    }
+
+    // Complete the waiters outside the lock, as they run their dependents.
+    for (CompletableFuture<Permit> waiter : granted) {
+      final Permit next = new Permit();
+
+      if (!waiter.complete(next)) {
+        // Cancelled while being granted.
+        next.release();
+      }
+    }
+  }
+
+  /*
+   * Adjusts the limit from the outcome of a request. Called with the lock
+   * held, before the request's slot is freed.
+   */
+  private void adapt(final Permit permit, final Outcome outcome) {
+    if (outcome == Outcome.IGNORED) {
+      return;
+    }
+    final long latency = System.nanoTime() - permit.startedAt;
+    boolean overloaded = (outcome == Outcome.DROPPED);
+
+    if (!overloaded) {
+      overloaded = (samples >= WARMUP_SAMPLES)
+              && (latency > usualLatency * latencyTolerance);
+      usualLatency = (samples == 0)
+              ? latency : usualLatency + LATENCY_SMOOTHING * (latency - usualLatency);
+      samples++;
+    }
+
+    if (overloaded) {
+      // Cut the limit once per round: requests already in flight when it
+      // was cut were sent under the old limit.
+      if (permit.startedAt - lastDecrease >= 0) {
+        limit = Math.max(minLimit, limit * backoffRatio);
+        lastDecrease = System.nanoTime();
+        decreaseCount++;
+      }
+    } else if (inFlight * 2 >= (int) limit) {
+      // Only grow a limit which is being used.
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /**
+   * Returns the current limit of requests in flight.
+   *
+   * @return int
+   */
+  public int getLimit() {
+    synchronized (lock) {
+      return (int) limit;
+    }
+  }
+
+  /**
+   * Returns the number of requests in flight.
+   *
+   * @return int
+   */
+  public int getInFlight() {
+    synchronized (lock) {
+      return inFlight;
+    }
+  }
+
+  /**
+   * Returns the number of requests waiting for the limit to allow them.
+   *
+   * @return int
+   */
+  public int getQueueDepth() {
+    synchronized (lock) {
+      return waiters.size();
+    }
+  }
+
+  /**
+   * Returns the usual latency of a request, in milliseconds.
+   *
+   * @return long
+   */
+  public long getUsualLatency() {
+    synchronized (lock) {
+      return (long) (usualLatency / 1000000L);
+    }
+  }
+
+  /**
+   * Returns the number of times the limit has been cut.
+   *
+   * @return long
+   */
+  public long getDecreaseCount() {
+    synchronized (lock) {
+      return decreaseCount;
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return "ConcurrencyLimiter{" + "limit=" + (int) limit + ", inFlight=" + inFlight
+              + ", queueDepth=" + waiters.size() + ", decreases=" + decreaseCount + '}';
+    }
+  }
+
+  /*
+   * How a request turned out, as far as the limit is concerned.
+   */
+  private enum Outcome {
+
+    SUCCEEDED, DROPPED, IGNORED
+  }
+
+  /**
+   * The right to have one request in flight. Exactly one of the methods below
+   * must be called once the request completes; later calls are ignored.
+   */
+  public final class Permit {
+
+    private final long startedAt = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit() {
+    }
+
+    /**
+     * Releases the permit of a request the gateway answered in time.
+     */
+    public void succeeded() {
+      release(Outcome.SUCCEEDED);
+    }
+
+    /**
+     * Releases the permit of a request which timed out or failed with an I/O
+     * error, cutting the limit.
+     */
+    public void dropped() {
+      release(Outcome.DROPPED);
+    }
+
+    /**
+     * Releases the permit without letting the request affect the limit.
+     */
+    public void release() {
+      release(Outcome.IGNORED);
+    }
+
+    private void release(final Outcome outcome) {
+      if (released.compareAndSet(false, true)) {
+        ConcurrencyLimiter.this.release(this, outcome);
+      }
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package bbn.api.sms;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown when a connection to the BBN gateway couldn't be made in time, so
+ * nothing of the request was sent. Unlike a timeout waiting for the
+ * response, it is always safe to make the request again.
+ */
+public class ConnectTimeoutException extends SocketTimeoutException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Construct the exception with the timeout the connection failed with.
+   *
+   * @param message The detail message.
+   * @param cause The timeout the connection failed with.
+   */
+  public ConnectTimeoutException(final String message, final Throwable cause) {
+    super(message);
+    initCause(cause);
+  }
+}
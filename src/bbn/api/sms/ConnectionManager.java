@@ -0,0 +1,448 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manages the HTTP connections opened against the BBN gateway.
+ *
+ * The sockets themselves are kept alive and reused by the JDK's keep-alive
+ * cache; this class bounds the number of connections leased per host, makes
+ * sure every response is drained so its socket can go back to the cache,
+ * recycles sockets that outlive their configured lifetime and keeps track of
+ * how saturated each host's pool is.
+ *
+ * The lease limit, acquire timeout and socket lifetime belong to each
+ * instance, so every BbnApi (every account) keeps its own. The keep-alive
+ * cache, though, is the JVM's: its size and idle timeout are the system
+ * properties http.maxConnections and http.keepAlive.time.*, read once by the
+ * JDK. fromConfig sets them from the first configuration applied, unless
+ * the application set them itself, and logs the settings of any later
+ * configuration which differ and so are ignored.
+ */
+public class ConnectionManager {
+
+  public static final int DEFAULT_MAX_PER_HOST = 20;
+  public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+  public static final long DEFAULT_MAX_LIFETIME = 300000;
+  public static final int DEFAULT_IDLE_TIMEOUT = 5;
+  // The maximum number of connections leased at once to a single host.
+  private final int maxPerHost;
+  // How long (milliseconds) to wait for a free connection before giving up.
+  private final long acquireTimeout;
+  // How long (milliseconds) a host's sockets may be reused before recycling.
+  private final long maxLifetime;
+  // The pool of each host, keyed by protocol, host and port.
+  private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+  // The route each leased connection was taken from.
+  private final ConcurrentMap<HttpURLConnection, Route> leases = new ConcurrentHashMap<>();
+  // Metrics.
+  private final AtomicLong totalLeases = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong recycledCount = new AtomicLong();
+  private final AtomicLong discardedCount = new AtomicLong();
+
+  /**
+   * Construct a connection manager.
+   *
+   * @param maxPerHost The maximum number of connections leased per host.
+   * @param acquireTimeout Milliseconds to wait for a free connection.
+   * @param maxLifetime Milliseconds a host's sockets may be kept alive for.
+   */
+  public ConnectionManager(
+          final int maxPerHost,
+          final long acquireTimeout,
+          final long maxLifetime) {
+    if (maxPerHost < 1) {
+      throw new IllegalArgumentException("maxPerHost must be at least 1.");
+    }
+    this.maxPerHost = maxPerHost;
+    this.acquireTimeout = acquireTimeout;
+    this.maxLifetime = maxLifetime;
+  }
+
+  /**
+   * Creates a connection manager using the pool settings in the config of the
+   * API specified.
+   *
+   * @param api The API whose config holds the pool settings.
+   * @return ConnectionManager
+   */
+  public static ConnectionManager fromConfig(final BbnApi api) {
+    final int maxPerHost = (int) api.getConfigAsLong(
+            "bbn.http.pool.max_per_host", DEFAULT_MAX_PER_HOST);
+    final int idleTimeout = (int) api.getConfigAsLong(
+            "bbn.http.pool.idle_timeout", DEFAULT_IDLE_TIMEOUT);
+
+    // Size the JDK keep-alive cache to hold every socket we may lease, and
+    // let it evict idle sockets after the configured time. These are
+    // JVM-wide: only applied when not set already, by the application or by
+    // another account's configuration.
+    setPropertyIfAbsent("http.keepAlive", "true", null);
+    setPropertyIfAbsent("http.maxConnections", String.valueOf(maxPerHost),
+            "bbn.http.pool.max_per_host");
+    setPropertyIfAbsent("http.keepAlive.time.server", String.valueOf(idleTimeout),
+            "bbn.http.pool.idle_timeout");
+    setPropertyIfAbsent("http.keepAlive.time.proxy", String.valueOf(idleTimeout),
+            "bbn.http.pool.idle_timeout");
+
+    return new ConnectionManager(maxPerHost,
+            api.getConfigAsLong("bbn.http.pool.acquire_timeout", DEFAULT_ACQUIRE_TIMEOUT),
+            api.getConfigAsLong("bbn.http.pool.max_lifetime", DEFAULT_MAX_LIFETIME));
+  }
+
+  /**
+   * Returns the connection manager shared by Http objects created without one.
+   *
+   * @return ConnectionManager
+   */
+  public static ConnectionManager getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  /*
+   * Sets a JVM-wide property unless it is set already, logging when the
+   * value the setting asks for differs from the one in effect (unless
+   * setting is null).
+   */
+  private static synchronized void setPropertyIfAbsent(
+          final String key,
+          final String value,
+          final String setting) {
+    final String current = System.getProperty(key);
+
+    if (current == null) {
+      System.setProperty(key, value);
+    } else if ((setting != null) && !current.equals(value)) {
+      Logger.getLogger(ConnectionManager.class.getName()).log(Level.WARNING,
+              "{0}={1} ignored for the JVM-wide keep-alive cache: {2} is already {3}.",
+              new Object[]{setting, value, key, current});
+    }
+  }
+
+  /**
+   * Opens a connection to the URL, waiting for a free slot in the host's pool
+   * if all its connections are in use. Every leased connection must be given
+   * back with {@link #release(HttpURLConnection, boolean)}.
+   *
+   * @param url The URL to connect to.
+   * @return HttpURLConnection
+   * @throws IOException if no connection is freed in time or the connection
+   * could not be opened.
+   */
+  public HttpURLConnection lease(final URL url) throws IOException {
+    return lease(url, Deadline.none());
+  }
+
+  /**
+   * Opens a connection to the URL, waiting for a free slot in the host's pool
+   * no longer than the deadline allows.
+   *
+   * @param url The URL to connect to.
+   * @param deadline The deadline of the request.
+   * @return HttpURLConnection
+   * @throws DeadlineExceededException if the deadline passes while waiting.
+   * @throws IOException if no connection is freed in time or the connection
+   * could not be opened.
+   */
+  public HttpURLConnection lease(final URL url, final Deadline deadline) throws IOException {
+    final Route route = route(url);
+
+    if (!route.permits.tryAcquire()) {
+      waitCount.incrementAndGet();
+      final long wait = Math.min(acquireTimeout, deadline.remaining(TimeUnit.MILLISECONDS));
+      boolean acquired;
+
+      try {
+        acquired = route.permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a connection to " + route.key, e);
+      }
+
+      if (!acquired) {
+        timeoutCount.incrementAndGet();
+
+        if (wait < acquireTimeout) {
+          throw new DeadlineExceededException("The deadline passed while waiting for a "
+                  + "connection to " + route.key + ".");
+        }
+        throw new IOException("Connection pool for " + route.key
+                + " is exhausted (" + maxPerHost + " connections in use).");
+      }
+    }
+
+    HttpURLConnection connection = null;
+
+    try {
+      connection = (HttpURLConnection) url.openConnection();
+    } finally {
+      if (connection == null) {
+        route.permits.release();
+      }
+    }
+    totalLeases.incrementAndGet();
+    leases.put(connection, route);
+    route.onLease();
+
+    if (route.shouldRecycle(maxLifetime)) {
+      // Ask the server to close this socket once the response is read so
+      // that the keep-alive cache opens a fresh one next time.
+      connection.setRequestProperty("Connection", "close");
+      recycledCount.incrementAndGet();
+    }
+    return connection;
+  }
+
+  /**
+   * Gives a leased connection back to the pool.
+   *
+   * @param connection The connection to release.
+   * @param reusable True if the response was fully read and closed so the
+   * socket may be kept alive, false if the request failed.
+   */
+  public void release(final HttpURLConnection connection, final boolean reusable) {
+    if (connection == null) {
+      return;
+    }
+
+    try {
+      // Draining the error body, if any, still lets the socket be reused.
+      if (!reusable && !drainError(connection)) {
+        connection.disconnect();
+        discardedCount.incrementAndGet();
+      }
+    } finally {
+      final Route route = leases.remove(connection);
+
+      if (route != null) {
+        route.onRelease();
+      }
+    }
+  }
+
+  private boolean drainError(final HttpURLConnection connection) {
+    try {
+      final InputStream error = connection.getErrorStream();
+
+      if (error != null) {
+        consume(error);
+        return true;
+      }
+    } catch (IOException e) {
+      // fall through: the socket cannot be reused.
+    }
+    return false;
+  }
+
+  private static void consume(final InputStream in) throws IOException {
+    try {
+      final byte[] buffer = new byte[512];
+
+      while (in.read(buffer) >= 0) {
+        // discard.
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private Route route(final URL url) {
+    final String key = routeKey(url);
+    Route route = routes.get(key);
+
+    if (route == null) {
+      final Route newRoute = new Route(key, maxPerHost);
+      route = routes.putIfAbsent(key, newRoute);
+
+      if (route == null) {
+        route = newRoute;
+      }
+    }
+    return route;
+  }
+
+  private static String routeKey(final URL url) {
+    final int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+    return url.getProtocol() + "://" + url.getHost() + ":" + port;
+  }
+
+  /**
+   * Returns the maximum number of connections leased at once per host.
+   *
+   * @return int
+   */
+  public int getMaxPerHost() {
+    return maxPerHost;
+  }
+
+  /**
+   * Returns the number of connections currently leased across all hosts.
+   *
+   * @return int
+   */
+  public int getLeased() {
+    int leased = 0;
+
+    for (Route route : routes.values()) {
+      leased += route.leased.get();
+    }
+    return leased;
+  }
+
+  /**
+   * Returns the highest number of connections ever leased at once to a single
+   * host.
+   *
+   * @return int
+   */
+  public int getPeakLeased() {
+    int peak = 0;
+
+    for (Route route : routes.values()) {
+      peak = Math.max(peak, route.peak.get());
+    }
+    return peak;
+  }
+
+  /**
+   * Returns the number of connections leased so far.
+   *
+   * @return long
+   */
+  public long getTotalLeases() {
+    return totalLeases.get();
+  }
+
+  /**
+   * Returns the number of leases which had to wait for a connection because
+   * the host's pool was saturated.
+   *
+   * @return long
+   */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /**
+   * Returns the number of leases which gave up waiting for a connection.
+   *
+   * @return long
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Returns the number of sockets recycled because they reached their maximum
+   * lifetime.
+   *
+   * @return long
+   */
+  public long getRecycledCount() {
+    return recycledCount.get();
+  }
+
+  /**
+   * Returns the number of connections closed instead of being reused because
+   * their response could not be read.
+   *
+   * @return long
+   */
+  public long getDiscardedCount() {
+    return discardedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionManager{" + "maxPerHost=" + maxPerHost + ", leased=" + getLeased()
+            + ", peakLeased=" + getPeakLeased() + ", totalLeases=" + getTotalLeases()
+            + ", waits=" + getWaitCount() + ", timeouts=" + getTimeoutCount()
+            + ", recycled=" + getRecycledCount() + ", discarded=" + getDiscardedCount() + '}';
+  }
+
+  /*
+   * The pool of connections to a single host.
+   */
+  private static final class Route {
+
+    private final String key;
+    private final Semaphore permits;
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    // Sockets still to be recycled in the current lifetime round.
+    private final AtomicInteger pendingRecycles = new AtomicInteger();
+    private final int size;
+    private volatile long bornAt = System.currentTimeMillis();
+
+    private Route(final String key, final int size) {
+      this.key = key;
+      this.size = size;
+      this.permits = new Semaphore(size, true);
+    }
+
+    private void onLease() {
+      final int current = leased.incrementAndGet();
+      int max;
+
+      while (current > (max = peak.get())) {
+        if (peak.compareAndSet(max, current)) {
+          break;
+        }
+      }
+    }
+
+    private void onRelease() {
+      leased.decrementAndGet();
+      permits.release();
+    }
+
+    /*
+     * Once the host's sockets have lived past maxLifetime, each of the next
+     * "size" requests closes the socket it was given, which renews the whole
+     * pool without closing connections that are in use.
+     */
+    private boolean shouldRecycle(final long maxLifetime) {
+      if (maxLifetime <= 0) {
+        return false;
+      }
+      final long now = System.currentTimeMillis();
+      final long born = bornAt;
+
+      if (now - born >= maxLifetime) {
+        synchronized (this) {
+          if (bornAt == born) {
+            bornAt = now;
+            pendingRecycles.set(size);
+          }
+        }
+      }
+
+      int pending;
+
+      while ((pending = pendingRecycles.get()) > 0) {
+        if (pendingRecycles.compareAndSet(pending, pending - 1)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class DefaultHolder {
+
+    private static final ConnectionManager INSTANCE = new ConnectionManager(
+            DEFAULT_MAX_PER_HOST, DEFAULT_ACQUIRE_TIMEOUT, DEFAULT_MAX_LIFETIME);
+  }
+}
@@ -0,0 +1,209 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.SmsSegments;
+
+/**
+ * Estimates the credit messages cost before they are sent: the segments of
+ * each message, times its recipients, times the credit charged for a
+ * segment.
+ *
+ * An Estimate adds up the cost of a campaign message by message without
+ * allocating, so it can run inline while the messages are generated, and be
+ * checked against the balance of the account:
+ *
+ * <pre>
+ * CostEstimator.Estimate estimate = estimator.newEstimate();
+ * for (SMS sms : campaign) {
+ *   estimate.add(sms);
+ * }
+ * if (!estimate.isCoveredBy(api.checkBalance().getValue())) {
+ *   ...
+ * }
+ * </pre>
+ */
+public class CostEstimator {
+
+  public static final double DEFAULT_SEGMENT_COST = 1;
+  // The credit charged for each segment sent to each recipient.
+  private final double segmentCost;
+
+  /**
+   * Construct an estimator charging one credit a segment.
+   */
+  public CostEstimator() {
+    this(DEFAULT_SEGMENT_COST);
+  }
+
+  /**
+   * Construct an estimator.
+   *
+   * @param segmentCost The credit charged for each segment sent to each
+   * recipient.
+   */
+  public CostEstimator(final double segmentCost) {
+    if (!(segmentCost >= 0)) {
+      throw new IllegalArgumentException("Invalid segment cost: " + segmentCost);
+    }
+    this.segmentCost = segmentCost;
+  }
+
+  /**
+   * Creates the estimator for the segment cost of the API
+   * (bbn.balance.segment_cost).
+   *
+   * @param api The API whose configuration is read.
+   * @return CostEstimator
+   */
+  public static CostEstimator fromConfig(final BbnApi api) {
+    return new CostEstimator(api.getConfigAsDouble("bbn.balance.segment_cost",
+            DEFAULT_SEGMENT_COST));
+  }
+
+  /**
+   * Returns the credit charged for each segment sent to each recipient.
+   *
+   * @return double
+   */
+  public double getSegmentCost() {
+    return segmentCost;
+  }
+
+  /**
+   * Returns the credit a message to the number of recipients specified costs.
+   *
+   * @param recipients The number of recipients.
+   * @param message The message.
+   * @return double
+   */
+  public double cost(final int recipients, final CharSequence message) {
+    return (double) recipients * SmsSegments.count(message) * segmentCost;
+  }
+
+  /**
+   * Returns the credit a message costs.
+   *
+   * @param sms The message.
+   * @return double
+   */
+  public double cost(final SMS sms) {
+    return cost(1, sms.getMessage());
+  }
+
+  /**
+   * Returns the credit a group message costs.
+   *
+   * @param smsGroup The group message.
+   * @return double
+   */
+  public double cost(final SmsGroup smsGroup) {
+    return cost(smsGroup.getMobileCount(), smsGroup.getMessage());
+  }
+
+  /**
+   * Returns a new, empty estimate.
+   *
+   * @return Estimate
+   */
+  public Estimate newEstimate() {
+    return new Estimate();
+  }
+
+  @Override
+  public String toString() {
+    return "CostEstimator{" + "segmentCost=" + segmentCost + '}';
+  }
+
+  /**
+   * The running total of the messages of a campaign. An estimate is used by
+   * one thread at a time.
+   */
+  public final class Estimate {
+
+    private long messages;
+    private long recipients;
+    // Segments sent, counting each recipient.
+    private long segments;
+
+    private Estimate() {
+    }
+
+    /**
+     * Adds a message to the number of recipients specified.
+     *
+     * @param recipientCount The number of recipients.
+     * @param message The message.
+     * @return Estimate this estimate.
+     */
+    public Estimate add(final int recipientCount, final CharSequence message) {
+      messages++;
+      recipients += recipientCount;
+      segments += (long) recipientCount * SmsSegments.count(message);
+      return this;
+    }
+
+    /**
+     * Adds a message.
+     *
+     * @param sms The message.
+     * @return Estimate this estimate.
+     */
+    public Estimate add(final SMS sms) {
+      return add(1, sms.getMessage());
+    }
+
+    /**
+     * Adds a group message.
+     *
+     * @param smsGroup The group message.
+     * @return Estimate this estimate.
+     */
+    public Estimate add(final SmsGroup smsGroup) {
+      return add(smsGroup.getMobileCount(), smsGroup.getMessage());
+    }
+
+    public long getMessages() {
+      return messages;
+    }
+
+    public long getRecipients() {
+      return recipients;
+    }
+
+    /**
+     * Returns the segments sent, counting each recipient.
+     *
+     * @return long
+     */
+    public long getSegments() {
+      return segments;
+    }
+
+    /**
+     * Returns the credit the messages added cost.
+     *
+     * @return double
+     */
+    public double getCost() {
+      return segments * segmentCost;
+    }
+
+    /**
+     * Returns true if the balance specified pays for the messages added.
+     *
+     * @param balance The balance of the account, as returned by
+     * checkBalance.
+     * @return boolean
+     */
+    public boolean isCoveredBy(final double balance) {
+      return getCost() <= balance;
+    }
+
+    @Override
+    public String toString() {
+      return "Estimate{" + "messages=" + messages + ", recipients=" + recipients
+              + ", segments=" + segments + ", cost=" + getCost() + '}';
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package bbn.api.sms;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a call to the BBN gateway must have completed.
+ *
+ * A deadline is carried through everything a call waits on: the send rate,
+ * the send limiter, the connection pool, the connect and read timeouts of
+ * each attempt and the delays between retries. Whatever would outlive it
+ * fails with a DeadlineExceededException instead.
+ *
+ * BbnApi calls take the deadline of the scope they are made in:
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.after(Duration.ofSeconds(5)).enter()) {
+ *   api.sendMessage(sms, null, false);
+ * }
+ * </pre>
+ *
+ * Asynchronous calls take the deadline when they are made, not when they run.
+ */
+public final class Deadline {
+
+  // The deadline of calls made outside any scope.
+  private static final Deadline NONE = new Deadline(0, false);
+  // The deadline of the scope the current thread is in.
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+  // When the deadline expires, in System.nanoTime() terms.
+  private final long expiresAt;
+  private final boolean bounded;
+
+  private Deadline(final long expiresAt, final boolean bounded) {
+    this.expiresAt = expiresAt;
+    this.bounded = bounded;
+  }
+
+  /**
+   * Returns the deadline which never expires.
+   *
+   * @return Deadline
+   */
+  public static Deadline none() {
+    return NONE;
+  }
+
+  /**
+   * Returns the deadline the duration specified from now.
+   *
+   * @param timeout The time left until the deadline.
+   * @return Deadline
+   */
+  public static Deadline after(final Duration timeout) {
+    if (timeout == null) {
+      throw new NullPointerException("timeout cannot be null.");
+    }
+    return new Deadline(System.nanoTime() + saturatedNanos(timeout), true);
+  }
+
+  /**
+   * Returns the deadline the number of milliseconds specified from now.
+   *
+   * @param timeout Milliseconds left until the deadline.
+   * @return Deadline
+   */
+  public static Deadline after(final long timeout) {
+    return after(Duration.ofMillis(timeout));
+  }
+
+  /**
+   * Returns the deadline at the instant specified.
+   *
+   * @param instant When the deadline expires.
+   * @return Deadline
+   */
+  public static Deadline at(final Instant instant) {
+    if (instant == null) {
+      throw new NullPointerException("instant cannot be null.");
+    }
+    return after(Duration.between(Instant.now(), instant));
+  }
+
+  /**
+   * Returns the deadline of the scope the current thread is in, or the
+   * deadline which never expires.
+   *
+   * @return Deadline
+   */
+  public static Deadline current() {
+    final Deadline deadline = CURRENT.get();
+    return (deadline != null) ? deadline : NONE;
+  }
+
+  private static long saturatedNanos(final Duration duration) {
+    try {
+      return Math.max(0L, duration.toNanos());
+    } catch (ArithmeticException e) {
+      return duration.isNegative() ? 0L : Long.MAX_VALUE / 2;
+    }
+  }
+
+  /**
+   * Makes this the deadline of the calls made by the current thread until the
+   * scope returned is closed. A deadline later than the one of the enclosing
+   * scope doesn't extend it.
+   *
+   * @return Scope
+   */
+  public Scope enter() {
+    final Deadline previous = CURRENT.get();
+    CURRENT.set((previous != null) ? previous.min(this) : this);
+    return new Scope(previous);
+  }
+
+  /**
+   * Returns the earlier of this deadline and the one specified.
+   *
+   * @param other The other deadline.
+   * @return Deadline
+   */
+  public Deadline min(final Deadline other) {
+    if ((other == null) || !other.bounded) {
+      return this;
+    }
+
+    if (!bounded) {
+      return other;
+    }
+    return (other.expiresAt - expiresAt < 0) ? other : this;
+  }
+
+  /**
+   * Returns true if the deadline can expire.
+   *
+   * @return boolean
+   */
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  /**
+   * Returns true if the deadline has passed.
+   *
+   * @return boolean
+   */
+  public boolean isExpired() {
+    return bounded && (expiresAt - System.nanoTime() <= 0);
+  }
+
+  /**
+   * Returns the time left until the deadline, 0 if it has passed, or
+   * Long.MAX_VALUE if it never expires.
+   *
+   * @param unit The unit of the value returned.
+   * @return long
+   */
+  public long remaining(final TimeUnit unit) {
+    if (!bounded) {
+      return Long.MAX_VALUE;
+    }
+    return unit.convert(Math.max(0L, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Shortens a timeout so it doesn't outlive the deadline. A timeout of 0
+   * means no timeout, as for sockets; the result is only 0 if both the
+   * timeout and the deadline are unbounded.
+   *
+   * @param timeout The timeout in milliseconds, 0 for none.
+   * @return long the timeout in milliseconds, at least 1 if bounded.
+   */
+  public long clamp(final long timeout) {
+    if (!bounded) {
+      return Math.max(0L, timeout);
+    }
+    final long remaining = Math.max(1L, remaining(TimeUnit.MILLISECONDS));
+    return (timeout > 0) ? Math.min(timeout, remaining) : remaining;
+  }
+
+  /**
+   * Throws if the deadline has passed.
+   *
+   * @param what What was about to be done, for the message.
+   * @throws DeadlineExceededException if the deadline has passed.
+   */
+  public void check(final String what) throws DeadlineExceededException {
+    if (isExpired()) {
+      throw new DeadlineExceededException("The deadline passed before " + what + ".");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return bounded ? "Deadline{remaining=" + remaining(TimeUnit.MILLISECONDS) + "ms}"
+            : "Deadline{none}";
+  }
+
+  /**
+   * The extent of a deadline on the calls of a thread, closed to restore the
+   * deadline in force before it.
+   */
+  public static final class Scope implements AutoCloseable {
+
+    private final Deadline previous;
+
+    private Scope(final Deadline previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      if (previous != null) {
+        CURRENT.set(previous);
+      } else {
+        CURRENT.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package bbn.api.sms;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a request, or the wait before it, would outlive the deadline
+ * its caller set for it.
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Construct the exception.
+   *
+   * @param message The detail message.
+   */
+  public DeadlineExceededException(final String message) {
+    super(message);
+  }
+
+  /**
+   * Construct the exception with the error which the deadline caused.
+   *
+   * @param message The detail message.
+   * @param cause The timeout the deadline caused.
+   */
+  public DeadlineExceededException(final String message, final Throwable cause) {
+    super(message);
+    initCause(cause);
+  }
+}
@@ -0,0 +1,120 @@
+package bbn.api.sms;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * A resource of the BBN gateway, with its URL parsed once so requests don't
+ * have to parse it again, and the timeouts of requests to it.
+ *
+ * The parsed URL and URI are kept rather than the encoded bytes of the path:
+ * HttpURLConnection and HttpClient write the request line themselves from
+ * them, and take nothing already encoded.
+ */
+public final class Endpoint {
+
+  private final String url;
+  private final URL requestUrl;
+  private final URI requestUri;
+  // Milliseconds to wait for a connection and for the response, 0 for ever.
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  /**
+   * Construct an endpoint from its URL, without timeouts.
+   *
+   * @param url The URL of the resource.
+   */
+  public Endpoint(final String url) {
+    this(url, 0, 0);
+  }
+
+  /**
+   * Construct an endpoint from its URL and the timeouts of requests to it.
+   *
+   * @param url The URL of the resource.
+   * @param connectTimeout Milliseconds to wait for a connection, 0 for ever.
+   * @param readTimeout Milliseconds to wait for the response, 0 for ever.
+   */
+  public Endpoint(final String url, final int connectTimeout, final int readTimeout) {
+    if (url == null) {
+      throw new NullPointerException("url cannot be null.");
+    }
+
+    if ((connectTimeout < 0) || (readTimeout < 0)) {
+      throw new IllegalArgumentException("The timeouts cannot be negative.");
+    }
+    this.url = url;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    URL parsedUrl = null;
+    URI parsedUri = null;
+
+    try {
+      // Requests are made to the resource without any query it was given,
+      // the same way URLComposer composes them.
+      final URL u = new URL(url);
+      parsedUrl = new URL(u.getProtocol(), u.getHost(), u.getPort(), u.getPath());
+      parsedUri = parsedUrl.toURI();
+    } catch (MalformedURLException | URISyntaxException e) {
+      // Left unparsed: requests fail when they parse the URL themselves.
+      parsedUrl = null;
+    }
+    this.requestUrl = parsedUrl;
+    this.requestUri = parsedUri;
+  }
+
+  /**
+   * Returns the URL of the resource.
+   *
+   * @return String
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Returns the URL requests are made to (the URL without its query), or null
+   * if the URL is invalid.
+   *
+   * @return URL
+   */
+  public URL getRequestURL() {
+    return requestUrl;
+  }
+
+  /**
+   * Returns the URL requests are made to as a URI, or null if the URL is
+   * invalid.
+   *
+   * @return URI
+   */
+  public URI getRequestURI() {
+    return requestUri;
+  }
+
+  /**
+   * Returns how long to wait for a connection, in milliseconds, 0 for ever.
+   *
+   * @return int
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Returns how long to wait for the response, in milliseconds, 0 for ever.
+   *
+   * @return int
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  @Override
+  public String toString() {
+    return url;
+  }
+}
@@ -0,0 +1,122 @@
+package bbn.api.sms;
+
+import java.util.Map;
+
+/**
+ * The resources of the BBN gateway and their timeouts, resolved from a
+ * configuration snapshot once and then shared by every request.
+ */
+public final class Endpoints {
+
+  // The names of the endpoints, as used in the bbn.resource.uri.* keys.
+  public static final String AUTH = "auth";
+  public static final String ACCOUNT_BALANCE = "acctbals";
+  public static final String SEND_SMS = "send_sms";
+  public static final String SCHEDULE_SMS = "schedule_sms";
+
+  private final Endpoint auth;
+  private final Endpoint accountBalance;
+  private final Endpoint sendSms;
+  private final Endpoint scheduleSms;
+
+  private Endpoints(final Map<String, String> config) {
+    final String mainUrl = (Boolean.parseBoolean(config.get("bbn.api.secure"))
+            ? config.get("bbn.request.uri.secure")
+            : config.get("bbn.request.uri.basic"));
+    auth = endpoint(config, mainUrl, AUTH);
+    accountBalance = endpoint(config, mainUrl, ACCOUNT_BALANCE);
+    sendSms = endpoint(config, mainUrl, SEND_SMS);
+    scheduleSms = endpoint(config, mainUrl, SCHEDULE_SMS);
+  }
+
+  /*
+   * Resolves an endpoint, whose timeouts (bbn.http.send_sms.read_timeout)
+   * override the timeouts shared by all endpoints (bbn.http.read_timeout).
+   */
+  private static Endpoint endpoint(
+          final Map<String, String> config,
+          final String mainUrl,
+          final String name) {
+    return new Endpoint(mainUrl + config.get("bbn.resource.uri." + name),
+            timeout(config, "bbn.http." + name + ".connect_timeout",
+            timeout(config, "bbn.http.connect_timeout", 0)),
+            timeout(config, "bbn.http." + name + ".read_timeout",
+            timeout(config, "bbn.http.read_timeout", 0)));
+  }
+
+  private static int timeout(
+          final Map<String, String> config,
+          final String key,
+          final int defaultValue) {
+    final String value = config.get(key);
+
+    if (value != null) {
+      try {
+        return Math.max(0, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+        // fall back to the default.
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+   * Resolves the endpoints from the configuration specified.
+   *
+   * @param config The configuration holding the URLs.
+   * @return Endpoints
+   */
+  public static Endpoints from(final Map<String, String> config) {
+    return new Endpoints(config);
+  }
+
+  /**
+   * Returns true if the configuration key is one the endpoints are resolved
+   * from.
+   *
+   * @param key The configuration key.
+   * @return boolean
+   */
+  public static boolean isEndpointKey(final String key) {
+    return "bbn.api.secure".equals(key)
+            || key.startsWith("bbn.request.uri.")
+            || key.startsWith("bbn.resource.uri.")
+            || (key.startsWith("bbn.http.")
+            && (key.endsWith(".connect_timeout") || key.endsWith(".read_timeout")));
+  }
+
+  /**
+   * Returns the endpoint with the name specified.
+   *
+   * @param name The name of the endpoint.
+   * @return Endpoint the endpoint, or null if there is no such endpoint.
+   */
+  public Endpoint get(final String name) {
+    if (AUTH.equals(name)) {
+      return auth;
+    } else if (ACCOUNT_BALANCE.equals(name)) {
+      return accountBalance;
+    } else if (SEND_SMS.equals(name)) {
+      return sendSms;
+    } else if (SCHEDULE_SMS.equals(name)) {
+      return scheduleSms;
+    }
+    return null;
+  }
+
+  public Endpoint getAuth() {
+    return auth;
+  }
+
+  public Endpoint getAccountBalance() {
+    return accountBalance;
+  }
+
+  public Endpoint getSendSms() {
+    return sendSms;
+  }
+
+  public Endpoint getScheduleSms() {
+    return scheduleSms;
+  }
+}
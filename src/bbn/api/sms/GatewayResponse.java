@@ -0,0 +1,188 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Holds the raw body of a response from the BBN gateway together with the
+ * status code found in it.
+ *
+ * The body is read into a buffer kept by each thread for the next response,
+ * bounded by a maximum size, and only the bytes read are copied out of it.
+ * The status code is parsed from the bytes; the body is only decoded into a
+ * String when asked for.
+ */
+public final class GatewayResponse {
+
+  public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  // The largest read buffer kept for the next response of a thread.
+  private static final int MAX_KEPT_BUFFER_SIZE = 8 * 1024;
+  // The read buffer of each thread.
+  private static final ThreadLocal<byte[]> READ_BUFFER
+          = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+  private final byte[] body;
+  private final int length;
+  private final Charset charset;
+  private final int code;
+  private String text;
+
+  private GatewayResponse(
+          final byte[] body,
+          final int length,
+          final Charset charset) {
+    this.body = body;
+    this.length = length;
+    this.charset = charset;
+    this.code = parseCode(body, length);
+  }
+
+  /**
+   * Reads a response body from the stream, which is closed afterwards.
+   *
+   * @param in The stream to read.
+   * @param contentLength The length of the body if known, otherwise -1.
+   * @param maxBytes The largest body accepted.
+   * @param charset The charset to decode the body with.
+   * @return GatewayResponse
+   * @throws IOException if the body cannot be read or is larger than
+   * maxBytes.
+   */
+  public static GatewayResponse read(
+          final InputStream in,
+          final long contentLength,
+          final int maxBytes,
+          final Charset charset) throws IOException {
+    try {
+      byte[] buffer = READ_BUFFER.get();
+
+      if ((contentLength >= 0) && (buffer.length <= contentLength)) {
+        buffer = new byte[(int) Math.min(maxBytes + 1L, contentLength + 1)];
+      }
+      int length = 0;
+      int read;
+
+      while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+        length += read;
+
+        if (length > maxBytes) {
+          throw new IOException("The response is larger than " + maxBytes + " bytes.");
+        }
+
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, (int) Math.min(maxBytes + 1L, buffer.length * 2L));
+        }
+      }
+
+      if (buffer.length <= MAX_KEPT_BUFFER_SIZE) {
+        READ_BUFFER.set(buffer);
+      }
+      return new GatewayResponse(Arrays.copyOf(buffer, length), length, charset);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Wraps a body which has already been read.
+   *
+   * @param body The body of the response.
+   * @param charset The charset to decode the body with.
+   * @return GatewayResponse
+   */
+  public static GatewayResponse of(final byte[] body, final Charset charset) {
+    return new GatewayResponse(body, body.length, charset);
+  }
+
+  /*
+   * Wraps the first length bytes of a body which has already been read.
+   */
+  static GatewayResponse of(final byte[] body, final int length, final Charset charset) {
+    return new GatewayResponse(body, length, charset);
+  }
+
+  /*
+   * Finds the status code: the first number in the body which is a known
+   * response code, or else 0.
+   */
+  private static int parseCode(final byte[] body, final int length) {
+    int i = 0;
+
+    while (i < length) {
+      if ((body[i] < '0') || (body[i] > '9')) {
+        i++;
+        continue;
+      }
+      int value = 0;
+      int digits = 0;
+
+      while ((i < length) && (body[i] >= '0') && (body[i] <= '9')) {
+        if (digits < 9) {
+          value = value * 10 + (body[i] - '0');
+        }
+        digits++;
+        i++;
+      }
+
+      if ((digits <= 9) && (BBN.ResponseCode.forCode(value) != null)) {
+        return value;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the status code found in the body, or 0 if there is none.
+   *
+   * @return int
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * Returns the response code constant matching the status code, if any.
+   *
+   * @return BBN.Response
+   */
+  public BBN.Response getResponseCode() {
+    return BBN.ResponseCode.forCode(code);
+  }
+
+  /**
+   * Returns the number of bytes in the body.
+   *
+   * @return int
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Returns true if the body is empty.
+   *
+   * @return boolean
+   */
+  public boolean isEmpty() {
+    return length == 0;
+  }
+
+  /**
+   * Returns the body decoded as text.
+   *
+   * @return String
+   */
+  public String getText() {
+    if (text == null) {
+      text = new String(body, 0, length, charset);
+    }
+    return text;
+  }
+
+  @Override
+  public String toString() {
+    return "GatewayResponse{" + "code=" + code + ", length=" + length + '}';
+  }
+}
@@ -0,0 +1,386 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Hedges requests to idempotent endpoints: if a request hasn't been answered
+ * after the delay within which most requests are answered, the same request
+ * is made a second time and whichever answers first is used.
+ *
+ * The delay is the configured percentile of the latencies recently seen,
+ * so only the slowest requests are hedged and the extra load stays around
+ * (100 - percentile)%. Only endpoints which don't change anything on the
+ * gateway (auth and acctbals) may be hedged.
+ */
+public class HedgePolicy {
+
+  public static final double DEFAULT_PERCENTILE = 95;
+  public static final long DEFAULT_INITIAL_DELAY = 500;
+  public static final long DEFAULT_MIN_DELAY = 20;
+  // The number of recent latencies the delay is computed from.
+  private static final int WINDOW = 128;
+  // Samples needed before the delay is computed from them.
+  private static final int MIN_SAMPLES = 20;
+  // The most hedges of blocking requests made at once, by all policies. A
+  // hedge which would be one more isn't made.
+  private static final int MAX_BLOCKING_HEDGES = 16;
+  // Runs the hedges of blocking requests; their first attempts are made on
+  // the callers' threads.
+  private static final ThreadPoolExecutor HEDGE_EXECUTOR = new ThreadPoolExecutor(
+          0, MAX_BLOCKING_HEDGES, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+    final Thread thread = new Thread(r, "bbn-hedge");
+    thread.setDaemon(true);
+    return thread;
+  }, new ThreadPoolExecutor.DiscardPolicy());
+  private final double percentile;
+  private final long initialDelay;
+  private final long minDelay;
+  // The recent latencies, in milliseconds, as a ring.
+  private final long[] latencies = new long[WINDOW];
+  private int latencyCount;
+  private int nextLatency;
+  // Metrics.
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong hedgeWinCount = new AtomicLong();
+
+  /**
+   * Construct a hedge policy.
+   *
+   * @param percentile The percentile of recent latencies after which a
+   * request is hedged, such as 95.
+   * @param initialDelay The delay used until enough latencies are known, in
+   * milliseconds.
+   * @param minDelay The shortest delay, in milliseconds.
+   */
+  public HedgePolicy(final double percentile, final long initialDelay, final long minDelay) {
+    if ((percentile <= 0) || (percentile >= 100) || (initialDelay < 0) || (minDelay < 0)) {
+      throw new IllegalArgumentException("Invalid percentile or delays.");
+    }
+    this.percentile = percentile;
+    this.initialDelay = initialDelay;
+    this.minDelay = minDelay;
+  }
+
+  /**
+   * Creates the hedge policy of an endpoint from the config of the API
+   * specified, or returns null if hedging isn't enabled for the endpoint
+   * (bbn.hedge.acctbals.enabled).
+   *
+   * @param api The API whose config holds the hedge settings.
+   * @param endpoint The name of the endpoint, auth or acctbals.
+   * @return HedgePolicy
+   */
+  public static HedgePolicy fromConfig(final BbnApi api, final String endpoint) {
+    if (!api.getConfigAsBoolean("bbn.hedge." + endpoint + ".enabled")) {
+      return null;
+    }
+    return new HedgePolicy(
+            api.getConfigAsDouble("bbn.hedge.percentile", DEFAULT_PERCENTILE),
+            api.getConfigAsLong("bbn.hedge.initial_delay", DEFAULT_INITIAL_DELAY),
+            api.getConfigAsLong("bbn.hedge.min_delay", DEFAULT_MIN_DELAY));
+  }
+
+  /**
+   * Returns true if requests to the endpoint may be hedged.
+   *
+   * @param endpoint The name of the endpoint.
+   * @return boolean
+   */
+  public static boolean isHedgeable(final String endpoint) {
+    return Endpoints.AUTH.equals(endpoint) || Endpoints.ACCOUNT_BALANCE.equals(endpoint);
+  }
+
+  /**
+   * Makes the blocking request on the caller's thread, hedging it on a small
+   * shared pool if it is slow; if the pool is busy, it isn't hedged. The
+   * connection of the losing attempt is closed, and the caller returns once
+   * its own attempt has ended.
+   *
+   * @param call The request.
+   * @return Result<T> the result of the attempt which answered first.
+   * @throws IOException the error of the last attempt, if all failed.
+   */
+  public <T> Result<T> execute(final RetryPolicy.Call<T> call) throws IOException {
+    requestCount.incrementAndGet();
+    final Race<T> race = new Race<>();
+    CompletableFuture.delayedExecutor(getDelay(), TimeUnit.MILLISECONDS, HEDGE_EXECUTOR)
+            .execute(() -> race.hedge(() -> race.block(call, true)));
+    race.start(() -> race.block(call, false), false);
+
+    try {
+      return race.outcome.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Makes the asynchronous request, hedging it if it is slow. The losing
+   * attempt is cancelled.
+   *
+   * @param call Starts the request.
+   * @return CompletableFuture<Result<T>> the outcome of the attempt which
+   * answered first, or the error of the last attempt if all failed.
+   */
+  public <T> CompletableFuture<Result<T>> executeAsync(
+          final Supplier<CompletableFuture<Result<T>>> call) {
+    requestCount.incrementAndGet();
+    final Race<T> race = new Race<>();
+    race.start(call, false);
+    CompletableFuture.delayedExecutor(getDelay(), TimeUnit.MILLISECONDS)
+            .execute(() -> race.hedge(call));
+    return race.outcome;
+  }
+
+  /*
+   * Notes the connection opened by the blocking attempt on this thread, if
+   * it is hedged.
+   *
+   * @throws IOException if the attempt has already lost.
+   */
+  static void opened(final HttpURLConnection connection) throws IOException {
+    final Attempt attempt = Attempt.CURRENT.get();
+
+    if (attempt != null) {
+      attempt.opened(connection);
+    }
+  }
+
+  /*
+   * Notes that the blocking attempt on this thread is done with the
+   * connection.
+   */
+  static void closed(final HttpURLConnection connection) {
+    final Attempt attempt = Attempt.CURRENT.get();
+
+    if (attempt != null) {
+      attempt.closed(connection);
+    }
+  }
+
+  /*
+   * Returns true if the blocking attempt on this thread lost to the other
+   * attempt, so its failure says nothing about the gateway.
+   */
+  static boolean isAbandoned() {
+    final Attempt attempt = Attempt.CURRENT.get();
+    return (attempt != null) && attempt.isAbandoned();
+  }
+
+  /**
+   * Returns the delay after which a request is hedged, in milliseconds.
+   *
+   * @return long
+   */
+  public long getDelay() {
+    final long[] sorted;
+
+    synchronized (latencies) {
+      if (latencyCount < MIN_SAMPLES) {
+        return Math.max(minDelay, initialDelay);
+      }
+      sorted = Arrays.copyOf(latencies, latencyCount);
+    }
+    Arrays.sort(sorted);
+    final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return Math.max(minDelay, sorted[Math.max(0, index)]);
+  }
+
+  private void record(final long latency) {
+    synchronized (latencies) {
+      latencies[nextLatency] = latency;
+      nextLatency = (nextLatency + 1) % WINDOW;
+      latencyCount = Math.min(WINDOW, latencyCount + 1);
+    }
+  }
+
+  /**
+   * Returns the number of requests made through this policy.
+   *
+   * @return long
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the number of requests which were hedged.
+   *
+   * @return long
+   */
+  public long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /**
+   * Returns the number of hedged requests answered first by the hedge.
+   *
+   * @return long
+   */
+  public long getHedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "HedgePolicy{" + "delay=" + getDelay() + ", requests=" + requestCount.get()
+            + ", hedged=" + hedgeCount.get() + ", hedgeWins=" + hedgeWinCount.get() + '}';
+  }
+
+  /*
+   * The attempts of a single request, racing to complete its outcome.
+   */
+  private final class Race<T> {
+
+    private final CompletableFuture<Result<T>> outcome = new CompletableFuture<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean won = new AtomicBoolean();
+    private volatile CompletableFuture<Result<T>> first;
+    private volatile CompletableFuture<Result<T>> hedge;
+    // The blocking attempts, whose connections are closed if they lose.
+    private final Attempt firstAttempt = new Attempt();
+    private final Attempt hedgeAttempt = new Attempt();
+
+    private void hedge(final Supplier<CompletableFuture<Result<T>>> call) {
+      if (!outcome.isDone()) {
+        hedgeCount.incrementAndGet();
+        start(call, true);
+      }
+    }
+
+    /*
+     * Makes a blocking attempt on this thread.
+     */
+    private CompletableFuture<Result<T>> block(
+            final RetryPolicy.Call<T> call,
+            final boolean hedged) {
+      final CompletableFuture<Result<T>> attempt = new CompletableFuture<>();
+
+      try {
+        attempt.complete((hedged ? hedgeAttempt : firstAttempt).run(call));
+      } catch (IOException | RuntimeException e) {
+        attempt.completeExceptionally(e);
+      }
+      return attempt;
+    }
+
+    private void start(
+            final Supplier<CompletableFuture<Result<T>>> call,
+            final boolean hedged) {
+      pending.incrementAndGet();
+      final long startedAt = System.nanoTime();
+      CompletableFuture<Result<T>> attempt;
+
+      try {
+        attempt = call.get();
+      } catch (RuntimeException e) {
+        attempt = new CompletableFuture<>();
+        attempt.completeExceptionally(e);
+      }
+
+      if (hedged) {
+        hedge = attempt;
+      } else {
+        first = attempt;
+      }
+      attempt.whenComplete((value, error) -> {
+        final boolean last = (pending.decrementAndGet() == 0);
+
+        if (error == null) {
+          record((System.nanoTime() - startedAt) / 1000000L);
+
+          if (won.compareAndSet(false, true)) {
+            // Counted before completing, so callers see the count.
+            if (hedged) {
+              hedgeWinCount.incrementAndGet();
+            }
+            cancelOther(hedged);
+            outcome.complete(value);
+          }
+        } else if (last && won.compareAndSet(false, true)) {
+          // Fail only once no other attempt can still answer.
+          outcome.completeExceptionally(error);
+        }
+      });
+    }
+
+    private void cancelOther(final boolean hedged) {
+      final CompletableFuture<Result<T>> other = hedged ? first : hedge;
+
+      if (other != null) {
+        other.cancel(true);
+      }
+      (hedged ? firstAttempt : hedgeAttempt).abandon();
+    }
+  }
+
+  /*
+   * A blocking attempt: the connection it is reading, so it can be closed
+   * if the other attempt answers first.
+   */
+  private static final class Attempt {
+
+    // The attempt being made on each thread.
+    private static final ThreadLocal<Attempt> CURRENT = new ThreadLocal<>();
+    private HttpURLConnection connection;
+    private boolean abandoned;
+
+    private <T> Result<T> run(final RetryPolicy.Call<T> call) throws IOException {
+      final Attempt previous = CURRENT.get();
+      CURRENT.set(this);
+
+      try {
+        return call.call();
+      } finally {
+        if (previous != null) {
+          CURRENT.set(previous);
+        } else {
+          CURRENT.remove();
+        }
+      }
+    }
+
+    private synchronized void opened(final HttpURLConnection connection) throws IOException {
+      if (abandoned) {
+        throw new IOException("The request was abandoned: another attempt answered first.");
+      }
+      this.connection = connection;
+    }
+
+    private synchronized void closed(final HttpURLConnection connection) {
+      if (this.connection == connection) {
+        this.connection = null;
+      }
+    }
+
+    private synchronized boolean isAbandoned() {
+      return abandoned;
+    }
+
+    private synchronized void abandon() {
+      abandoned = true;
+
+      if (connection != null) {
+        // Fails the read the attempt is blocked in.
+        connection.disconnect();
+        connection = null;
+      }
+    }
+  }
+}
@@ -1,15 +1,16 @@
 package bbn.api.sms;
 
+import bbn.api.sms.utils.FormBodyWriter;
+import bbn.api.sms.utils.FormValue;
 import bbn.api.sms.utils.URLComposer;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,10 +26,30 @@ public class Http {
    * The HTTP request URL.
    */
   private final String requestUrl;
+  /**
+   * The resolved endpoint of the request, if it was made to one.
+   */
+  private final Endpoint endpoint;
   /**
    * The HTTP parameters to be used when making HTTP request.
    */
   private Map<String, String> params = new HashMap<String, String>();
+  /**
+   * The HTTP parameters whose values are written straight into the request.
+   */
+  private Map<String, FormValue> streamedParams = new HashMap<String, FormValue>();
+  /**
+   * The connection manager which hands out connections for the requests.
+   */
+  private final ConnectionManager connectionManager;
+  /**
+   * The largest response body accepted, in bytes.
+   */
+  private int maxResponseBytes = GatewayResponse.DEFAULT_MAX_BYTES;
+  /**
+   * The deadline the request must complete by.
+   */
+  private Deadline deadline = Deadline.none();
 
   /**
    * Initializes an Http object instance with the request URL.
@@ -36,7 +57,41 @@ public class Http {
    * @param requestUrl
    */
   public Http(String requestUrl) {
+    this(requestUrl, ConnectionManager.getDefault());
+  }
+
+  /**
+   * Initializes an Http object instance with the request URL and the
+   * connection manager to take connections from.
+   *
+   * @param requestUrl
+   * @param connectionManager
+   */
+  public Http(String requestUrl, ConnectionManager connectionManager) {
+    this(requestUrl, null, connectionManager);
+  }
+
+  /**
+   * Initializes an Http object instance with an endpoint whose URL has already
+   * been parsed, and the connection manager to take connections from.
+   *
+   * @param endpoint
+   * @param connectionManager
+   */
+  public Http(Endpoint endpoint, ConnectionManager connectionManager) {
+    this(endpoint.getUrl(), endpoint, connectionManager);
+  }
+
+  private Http(
+          String requestUrl,
+          Endpoint endpoint,
+          ConnectionManager connectionManager) {
+    if (connectionManager == null) {
+      throw new NullPointerException("connectionManager cannot be null.");
+    }
     this.requestUrl = requestUrl;
+    this.endpoint = endpoint;
+    this.connectionManager = connectionManager;
   }
 
   /**
@@ -47,10 +102,25 @@ public class Http {
    */
   public void addParam(final String name, final String value) {
     if (name != null) {
+      streamedParams.remove(name);
       params.put(name, value);
     }
   }
 
+  /**
+   * Adds an HTTP request parameter whose value is written straight into the
+   * body of POST requests, so large values never have to be held in memory.
+   *
+   * @param name The name of the request parameter.
+   * @param value Writes the value of the request parameter.
+   */
+  public void addStreamedParam(final String name, final FormValue value) {
+    if (name != null) {
+      params.remove(name);
+      streamedParams.put(name, value);
+    }
+  }
+
   /**
    * Adds a series of parameters a once to the parameter list.
    *
@@ -83,6 +153,7 @@ public class Http {
   public void removeParam(final String name) {
     if (name != null) {
       params.remove(name);
+      streamedParams.remove(name);
     }
   }
 
@@ -94,52 +165,47 @@ public class Http {
    * @throws IOException
    */
   public String get() throws MalformedURLException, IOException {
+    final GatewayResponse response = getResponse();
+    // return the content of the HTTP response, if any.
+    return !response.isEmpty() ? response.getText() : null;
+  }
+
+  /**
+   * Performs a HTTP GET request, returning the unparsed response.
+   *
+   * @return the response from the request.
+   * @throws MalformedURLException
+   * @throws IOException
+   */
+  public GatewayResponse getResponse() throws MalformedURLException, IOException {
     // Construct a URLComposer to properly compose the get URL.
-    URLComposer urlComposer = new URLComposer(requestUrl);
+    URLComposer urlComposer = (requestURL() != null)
+            ? new URLComposer(requestURL()) : new URLComposer(requestUrl);
     urlComposer.addParams(params);
 
+    for (Map.Entry<String, FormValue> param : streamedParams.entrySet()) {
+      // Query strings can't be streamed, so build the value.
+      StringBuilder value = new StringBuilder();
+      param.getValue().writeTo(value);
+      urlComposer.addParam(param.getKey(), value.toString());
+    }
+
     // Make a request to the request URL.
     URL url = new URL(urlComposer.getFullURL());
-    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-    // Stores the content of the HTTP response.
-    StringWriter result = null;
-    // Writes the result.
-    PrintWriter writer = null;
-    // Reader to read the content of the HTTP response.
-    BufferedReader reader = null;
+    HttpURLConnection connection = open(url);
+    boolean reusable = false;
 
     try {
-      // Initialize the reader.
-      reader = new BufferedReader(
-              new InputStreamReader(
-              connection.getInputStream()));
-      // Represents each line in the stream.
-      String line;
-
-      // Reads each line from the server.
-      while ((line = reader.readLine()) != null) {
-
-        if (writer == null) {
-          // Initialize the writer.
-          writer = new PrintWriter(result = new StringWriter());
-        }
-        writer.println(line);
-      }
+      connect(connection);
+      final GatewayResponse response = readResponse(connection);
+      reusable = true;
+      return response;
+    } catch (SocketTimeoutException e) {
+      throw timedOut(e);
     } finally {
-
-      // close the streams.
-      if (reader != null) {
-        reader.close();
-      }
-
-      if (writer != null) {
-        writer.close();
-      }
+      HedgePolicy.closed(connection);
+      connectionManager.release(connection, reusable);
     }
-
-    // return the content of the HTTP response, if any.
-    return (result != null) ? result.getBuffer().toString() : null;
   }
 
   /**
@@ -150,65 +216,176 @@ public class Http {
    * @throws IOException
    */
   public String post() throws MalformedURLException, IOException {
+    // return the content of the HTTP response, if any.
+    return postResponse().getText();
+  }
+
+  /**
+   * Performs an HTTP POST request, returning the unparsed response.
+   *
+   * @return the response from the request.
+   * @throws MalformedURLException
+   * @throws IOException
+   */
+  public GatewayResponse postResponse() throws MalformedURLException, IOException {
     // Make a request to the request URL.
-    URL url = new URL(new URLComposer(requestUrl).getURLPath());
-    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-    // Change the request method.
-    connection.setRequestMethod("POST");
-    connection.setRequestProperty(
-            "Content-type",
-            "application/x-www-form-urlencoded");
-    // Enable writing to the URL resource.
-    connection.setDoOutput(true);
-    connection.setDoInput(true);
-
-    PrintWriter requestWriter = new PrintWriter(
-            new OutputStreamWriter(connection.getOutputStream(), "8859_1"), true);
-    requestWriter.print(
-            new URLComposer(requestUrl).addParams(params).requestEncodedParams());
-    requestWriter.flush();
-
-    // Stores the content of the HTTP response.
-    StringWriter result = new StringWriter();
-    // Writes the result.
-    PrintWriter writer = null;
-    // Reader to read the content of the HTTP response.
-    BufferedReader reader = null;
+    URL url = (requestURL() != null)
+            ? requestURL() : new URL(new URLComposer(requestUrl).getURLPath());
+    HttpURLConnection connection = open(url);
+    boolean reusable = false;
 
     try {
-      // Initialize the reader.
-      reader = new BufferedReader(
-              new InputStreamReader(
-              connection.getInputStream()));
-      // Represents each line in the stream.
-      String line;
-
-      // Reads each line from the server.
-      while ((line = reader.readLine()) != null) {
-
-        if (writer == null) {
-          // Initialize the writer.
-          writer = new PrintWriter(result);
-        }
-        writer.println(line);
-      }
+      // Change the request method.
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty(
+              "Content-type",
+              "application/x-www-form-urlencoded");
+      // Enable writing to the URL resource.
+      connection.setDoOutput(true);
+      connection.setDoInput(true);
+
+      // Count the encoded body first so it can be streamed with a known
+      // length instead of being built in memory.
+      connection.setFixedLengthStreamingMode(writeBody(null));
+      connect(connection);
+      OutputStream requestStream = connection.getOutputStream();
 
-      if (writer != null) {
-        writer.flush();
+      try {
+        writeBody(requestStream);
+      } finally {
+        requestStream.close();
       }
+
+      final GatewayResponse response = readResponse(connection);
+      reusable = true;
+      return response;
+    } catch (SocketTimeoutException e) {
+      throw timedOut(e);
     } finally {
+      HedgePolicy.closed(connection);
+      connectionManager.release(connection, reusable);
+    }
+  }
 
-      // close the streams.
-      if (reader != null) {
-        reader.close();
-      }
+  /**
+   * Sets the deadline the request must complete by. The connect and read
+   * timeouts of the endpoint are shortened to fit it, and so is the wait for
+   * a pooled connection.
+   *
+   * @param deadline The deadline of the request.
+   */
+  public void setDeadline(final Deadline deadline) {
+    this.deadline = (deadline != null) ? deadline : Deadline.none();
+  }
 
-      if (writer != null) {
-        writer.close();
-      }
+  /**
+   * Changes the largest response body accepted, in bytes.
+   *
+   * @param maxResponseBytes The largest response body accepted.
+   */
+  public void setMaxResponseBytes(final int maxResponseBytes) {
+    this.maxResponseBytes = maxResponseBytes;
+  }
+
+  /*
+   * Returns the parsed URL of the endpoint, if the request is made to a valid
+   * one.
+   */
+  private URL requestURL() {
+    return (endpoint != null) ? endpoint.getRequestURL() : null;
+  }
+
+  /*
+   * Leases a connection to the URL, with the timeouts of the endpoint
+   * shortened to fit the deadline.
+   */
+  private HttpURLConnection open(final URL url) throws IOException {
+    deadline.check("the request to " + url.getHost() + " was made");
+    final HttpURLConnection connection = connectionManager.lease(url, deadline);
+
+    try {
+      // A hedged attempt which has already lost isn't made.
+      HedgePolicy.opened(connection);
+    } catch (IOException e) {
+      connectionManager.release(connection, false);
+      throw e;
     }
+    final int connectTimeout = (endpoint != null) ? endpoint.getConnectTimeout() : 0;
+    final int readTimeout = (endpoint != null) ? endpoint.getReadTimeout() : 0;
+    connection.setConnectTimeout((int) Math.min(Integer.MAX_VALUE, deadline.clamp(connectTimeout)));
+    connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, deadline.clamp(readTimeout)));
+    return connection;
+  }
 
-    // return the content of the HTTP response, if any.
-    return result.getBuffer().toString();
+  /*
+   * Connects before anything is written or read, so a timeout while
+   * connecting, when nothing has been sent, can be told apart from one
+   * waiting for the response.
+   */
+  private static void connect(final HttpURLConnection connection) throws IOException {
+    try {
+      connection.connect();
+    } catch (SocketTimeoutException e) {
+      throw new ConnectTimeoutException(e.getMessage(), e);
+    }
+  }
+
+  /*
+   * Reports a timeout caused by the deadline as such.
+   */
+  private IOException timedOut(final SocketTimeoutException e) {
+    if (deadline.isExpired()) {
+      return new DeadlineExceededException("The deadline passed during the request.", e);
+    }
+    return e;
+  }
+
+  /*
+   * Writes the form-encoded parameters to the stream, or only counts them if
+   * the stream is null, returning the length of the body.
+   */
+  private long writeBody(final OutputStream out) throws IOException {
+    FormBodyWriter body = new FormBodyWriter(out);
+
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      body.param(param.getKey(), param.getValue());
+    }
+
+    for (Map.Entry<String, FormValue> param : streamedParams.entrySet()) {
+      body.param(param.getKey(), param.getValue());
+    }
+    body.flush();
+    return body.getLength();
+  }
+
+  /*
+   * Reads the whole response so the connection can be kept alive.
+   */
+  private GatewayResponse readResponse(final HttpURLConnection connection)
+          throws IOException {
+    final InputStream in = connection.getInputStream();
+    return GatewayResponse.read(in, connection.getContentLengthLong(),
+            maxResponseBytes, charsetOf(connection.getContentType()));
+  }
+
+  /*
+   * Returns the charset named in a Content-Type header, or the platform's
+   * default charset.
+   */
+  static Charset charsetOf(final String contentType) {
+    if (contentType != null) {
+      for (String part : contentType.split(";")) {
+        part = part.trim();
+
+        if (part.regionMatches(true, 0, "charset=", 0, 8)) {
+          try {
+            return Charset.forName(part.substring(8).replace("\"", "").trim());
+          } catch (IllegalArgumentException e) {
+            break;
+          }
+        }
+      }
+    }
+    return Charset.defaultCharset();
   }
 }
@@ -0,0 +1,678 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Suppresses sends of a message already sent to the same recipient, so
+ * retries and replays don't send it twice.
+ *
+ * Each send is keyed by a 64 bit hash of its sender, recipient and message,
+ * or of the key the caller gives it:
+ *
+ * <pre>
+ * try (IdempotencyCache.Scope scope = IdempotencyCache.withKey("order-42")) {
+ *   api.sendMessage(sms, null, false);
+ * }
+ * </pre>
+ *
+ * A send whose key was sent (or is being sent) within the time to live
+ * returns at once, without a request to the gateway. The recipients of a
+ * group message are keyed one by one and only those not sent yet are sent.
+ * Keys of sends which fail are forgotten, so they can be retried.
+ *
+ * The keys are kept in striped open-addressing tables of primitives, about
+ * 13 bytes a key, and evicted approximately least recently used (CLOCK) once
+ * the capacity is reached. For windows holding more keys than that, a Bloom
+ * filter of the keys sent in the last two time-to-lives (about 2 bytes a key
+ * at 0.1% false positives) can be put in front of the tables: a key it holds
+ * is a duplicate without a lookup, even once evicted from the tables, at the
+ * cost of suppressing the odd new message it wrongly holds.
+ */
+public class IdempotencyCache {
+
+  public static final int DEFAULT_CAPACITY = 1000000;
+  public static final long DEFAULT_TTL = 3600000;
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+  // Expiry times are kept as ints of milliseconds, so the ttl must fit.
+  private static final long MAX_TTL = 1L << 30;
+  // The key of the sends made in the scope the current thread is in.
+  private static final ThreadLocal<String> CURRENT_KEY = new ThreadLocal<>();
+  // The tables, selected by the high bits of the key.
+  private final Stripe[] stripes;
+  private final int stripeShift;
+  private final long ttl;
+  // The keys sent recently, null if disabled.
+  private final Bloom bloom;
+  // Metrics.
+  private final AtomicLong suppressedCount = new AtomicLong();
+
+  /**
+   * Construct a cache without a Bloom filter.
+   *
+   * @param capacity The number of keys kept.
+   * @param ttl How long (milliseconds) a key is kept.
+   */
+  public IdempotencyCache(final int capacity, final long ttl) {
+    this(capacity, ttl, 0, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Construct a cache.
+   *
+   * @param capacity The number of keys kept in the tables.
+   * @param ttl How long (milliseconds) a key is kept.
+   * @param expectedKeys The number of keys sent within the ttl the Bloom
+   * filter is sized for, 0 for no Bloom filter.
+   * @param falsePositiveRate The rate of new keys the Bloom filter takes for
+   * duplicates once it holds the expected number of keys.
+   */
+  public IdempotencyCache(
+          final int capacity,
+          final long ttl,
+          final long expectedKeys,
+          final double falsePositiveRate) {
+    if ((capacity < 1) || (ttl < 1) || (ttl >= MAX_TTL) || (expectedKeys < 0)
+            || !(falsePositiveRate > 0) || !(falsePositiveRate < 1)) {
+      throw new IllegalArgumentException("Invalid capacity, ttl or Bloom filter settings.");
+    }
+    this.ttl = ttl;
+    // Enough stripes to keep contention low, but not so many they're tiny.
+    int count = Integer.highestOneBit(Math.max(1,
+            Math.min(Runtime.getRuntime().availableProcessors() * 4, capacity / 1024)));
+    stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+    stripes = new Stripe[count];
+
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe((capacity + count - 1) / count);
+    }
+    bloom = (expectedKeys > 0) ? new Bloom(expectedKeys, falsePositiveRate, ttl) : null;
+  }
+
+  /**
+   * Creates the cache configured by the bbn.idempotency.* settings of the API.
+   *
+   * @param api The API whose configuration is read.
+   * @return IdempotencyCache the cache, or null if it is disabled.
+   */
+  public static IdempotencyCache fromConfig(final BbnApi api) {
+    if (!api.getConfigAsBoolean("bbn.idempotency.enabled")) {
+      return null;
+    }
+    return new IdempotencyCache(
+            (int) api.getConfigAsLong("bbn.idempotency.capacity", DEFAULT_CAPACITY),
+            api.getConfigAsLong("bbn.idempotency.ttl", DEFAULT_TTL),
+            api.getConfigAsLong("bbn.idempotency.bloom.expected_keys", 0),
+            api.getConfigAsDouble("bbn.idempotency.bloom.false_positive_rate",
+            DEFAULT_FALSE_POSITIVE_RATE));
+  }
+
+  /**
+   * Makes the key specified the key of the sends made by the current thread
+   * until the scope returned is closed, instead of the hash of their content.
+   * A group message sent in the scope is keyed as a whole.
+   *
+   * @param key The idempotency key.
+   * @return Scope
+   */
+  public static Scope withKey(final String key) {
+    if (key == null) {
+      throw new NullPointerException("key cannot be null.");
+    }
+    final String previous = CURRENT_KEY.get();
+    CURRENT_KEY.set(key);
+    return new Scope(previous);
+  }
+
+  /**
+   * Returns the key of the scope the current thread is in, or null.
+   *
+   * @return String
+   */
+  public static String currentKey() {
+    return CURRENT_KEY.get();
+  }
+
+  /**
+   * Hashes the parts specified into a key.
+   *
+   * @param parts The parts, such as the sender, recipient and message.
+   * @return long
+   */
+  public static long key(final CharSequence... parts) {
+    // FNV-1a over the characters, then the MurmurHash3 finalizer.
+    long hash = 0xcbf29ce484222325L;
+
+    for (CharSequence part : parts) {
+      if (part != null) {
+        for (int i = 0; i < part.length(); i++) {
+          hash = (hash ^ part.charAt(i)) * 0x100000001b3L;
+        }
+      }
+      // Separates the parts, so ("ab", "c") and ("a", "bc") differ.
+      hash = (hash ^ 0x1f) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    // 0 marks the empty slots of the tables.
+    return (hash != 0) ? hash : 1;
+  }
+
+  /**
+   * Claims the send of a message.
+   *
+   * @param sms The message.
+   * @return Claim
+   */
+  public Claim claim(final SMS sms) {
+    final String scoped = CURRENT_KEY.get();
+    final long key = (scoped != null) ? key(scoped)
+            : key(sms.getSender(), sms.getMobile(), sms.getMessage());
+    return claimWhole(new long[]{key}, null);
+  }
+
+  /**
+   * Claims the send of a group message, recipient by recipient unless the
+   * current scope has a key.
+   *
+   * @param smsGroup The group message.
+   * @return Claim
+   */
+  public Claim claim(final SmsGroup smsGroup) {
+    final String scoped = CURRENT_KEY.get();
+
+    if (scoped != null) {
+      return claimWhole(new long[]{key(scoped)}, smsGroup);
+    }
+    final int count = smsGroup.getMobileCount();
+    final long[] keys = new long[count];
+
+    for (int i = 0; i < count; i++) {
+      keys[i] = key(smsGroup.getSender(), smsGroup.getMobile(i), smsGroup.getMessage());
+    }
+    final boolean[] claimed = new boolean[count];
+    final int total = claimKeys(keys, claimed);
+
+    if (total == count) {
+      return new Claim(keys, smsGroup, false);
+    }
+    final long[] sent = new long[total];
+    final SmsGroup remaining = new SmsGroup(smsGroup.getSender(), smsGroup.getMessage());
+
+    for (int i = 0, j = 0; i < count; i++) {
+      if (claimed[i]) {
+        sent[j++] = keys[i];
+        remaining.addMobile(smsGroup.getMobile(i));
+      }
+    }
+    return new Claim(sent, (total > 0) ? remaining : null, total == 0);
+  }
+
+  /*
+   * Claims a single key, keeping it whole.
+   */
+  private Claim claimWhole(final long[] keys, final SmsGroup smsGroup) {
+    final int total = claimKeys(keys, null);
+    return (total > 0) ? new Claim(keys, smsGroup, false) : new Claim(new long[0], null, true);
+  }
+
+  /*
+   * Claims the keys not already held, marking them in claimed, and returns
+   * the number claimed.
+   */
+  private int claimKeys(final long[] keys, final boolean[] claimed) {
+    final long now = System.nanoTime() / 1000000L;
+    int total = 0;
+
+    for (int i = 0; i < keys.length; i++) {
+      final boolean won = ((bloom == null) || !bloom.mightContain(keys[i], now))
+              && stripe(keys[i]).claim(keys[i], now, ttl);
+
+      if (won) {
+        total++;
+      } else {
+        suppressedCount.incrementAndGet();
+      }
+
+      if (claimed != null) {
+        claimed[i] = won;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns true if the key was sent or is being sent.
+   *
+   * @param key The key.
+   * @return boolean
+   */
+  public boolean contains(final long key) {
+    final long now = System.nanoTime() / 1000000L;
+    return ((bloom != null) && bloom.mightContain(key, now)) || stripe(key).contains(key, now);
+  }
+
+  private Stripe stripe(final long key) {
+    return stripes[(stripeShift == 64) ? 0 : (int) (key >>> stripeShift)];
+  }
+
+  /**
+   * Returns the number of keys held by the tables.
+   *
+   * @return int
+   */
+  public int size() {
+    int size = 0;
+
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of sends suppressed as duplicates, counting each
+   * recipient of a group message.
+   *
+   * @return long
+   */
+  public long getSuppressedCount() {
+    return suppressedCount.get();
+  }
+
+  /**
+   * Forgets every key.
+   */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+
+    if (bloom != null) {
+      bloom.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "IdempotencyCache{" + "size=" + size() + ", ttl=" + ttl
+            + ", bloom=" + (bloom != null) + ", suppressed=" + suppressedCount + '}';
+  }
+
+  /**
+   * The keys of a send claimed from the cache. A claim is settled with the
+   * result of the send, which keeps its keys if the message was sent and
+   * forgets them otherwise.
+   */
+  public final class Claim {
+
+    private final long[] keys;
+    private final SmsGroup smsGroup;
+    private final boolean duplicate;
+
+    private Claim(final long[] keys, final SmsGroup smsGroup, final boolean duplicate) {
+      this.keys = keys;
+      this.smsGroup = smsGroup;
+      this.duplicate = duplicate;
+    }
+
+    /**
+     * Returns true if every recipient of the send was already sent the
+     * message, so there is nothing to send.
+     *
+     * @return boolean
+     */
+    public boolean isDuplicate() {
+      return duplicate;
+    }
+
+    /**
+     * Returns the group message holding the recipients claimed, or null for
+     * a single message or a duplicate.
+     *
+     * @return SmsGroup
+     */
+    public SmsGroup getSmsGroup() {
+      return smsGroup;
+    }
+
+    /**
+     * Returns the result of a send suppressed as a duplicate.
+     *
+     * @return Result<String>
+     */
+    public Result<String> duplicate() {
+      final Result<String> result = new Result<>(
+              "Duplicate of a message already sent; not sent again.", null);
+      result.setCode(BBN.ResponseCode.MESSAGE_SENT.getCode());
+      result.setError(false);
+      return result;
+    }
+
+    /**
+     * Keeps the keys if the result says the message was sent, otherwise
+     * forgets them.
+     *
+     * @param result The result of the send.
+     * @return Result<String> the result.
+     */
+    public Result<String> settle(final Result<String> result) {
+      if (!result.isError() && (result.getCode() == BBN.ResponseCode.MESSAGE_SENT.getCode())) {
+        if (bloom != null) {
+          final long now = System.nanoTime() / 1000000L;
+
+          for (long key : keys) {
+            bloom.put(key, now);
+          }
+        }
+      } else {
+        release();
+      }
+      return result;
+    }
+
+    /**
+     * Settles the claim once the send completes, forgetting its keys if it
+     * fails.
+     *
+     * @param result The send.
+     * @return CompletableFuture<Result<String>> the send.
+     */
+    public CompletableFuture<Result<String>> settleAsync(
+            final CompletableFuture<Result<String>> result) {
+      return result.whenComplete((value, error) -> {
+        if (error != null) {
+          release();
+        } else {
+          settle(value);
+        }
+      });
+    }
+
+    /**
+     * Forgets the keys, so the send can be made again.
+     */
+    public void release() {
+      for (long key : keys) {
+        stripe(key).remove(key);
+      }
+    }
+  }
+
+  /**
+   * The extent of a caller's key on the sends of a thread, closed to restore
+   * the key in force before it.
+   */
+  public static final class Scope implements AutoCloseable {
+
+    private final String previous;
+
+    private Scope(final String previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      if (previous != null) {
+        CURRENT_KEY.set(previous);
+      } else {
+        CURRENT_KEY.remove();
+      }
+    }
+  }
+
+  /*
+   * An open-addressing table of keys with linear probing, evicting with the
+   * CLOCK algorithm once full.
+   */
+  private static final class Stripe {
+
+    private final int capacity;
+    private final int mask;
+    // Guarded by this. Slots are empty when their key is 0.
+    private final long[] keys;
+    // When each key expires, in milliseconds from the epoch of the stripe.
+    private final int[] expiries;
+    // Set when a key is looked up, cleared as the clock hand passes.
+    private final boolean[] referenced;
+    private long epoch = System.nanoTime() / 1000000L;
+    private int size;
+    private int hand;
+
+    private Stripe(final int capacity) {
+      this.capacity = capacity;
+      // At most two thirds full, so probe sequences stay short.
+      final int slots = Integer.highestOneBit(Math.max(4, capacity + capacity / 2) - 1) << 1;
+      mask = slots - 1;
+      keys = new long[slots];
+      expiries = new int[slots];
+      referenced = new boolean[slots];
+    }
+
+    private synchronized boolean claim(final long key, final long now, final long ttl) {
+      rebase(now);
+      final int time = (int) (now - epoch);
+      int slot = find(key);
+
+      if (slot >= 0) {
+        if (expiries[slot] - time > 0) {
+          referenced[slot] = true;
+          return false;
+        }
+        // Expired: claim it afresh.
+        expiries[slot] = (int) (time + ttl);
+        referenced[slot] = false;
+        return true;
+      }
+
+      if (size >= capacity) {
+        evict(time);
+      }
+      slot = home(key);
+
+      while (keys[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      expiries[slot] = (int) (time + ttl);
+      referenced[slot] = false;
+      size++;
+      return true;
+    }
+
+    private synchronized boolean contains(final long key, final long now) {
+      final int slot = find(key);
+      return (slot >= 0) && (expiries[slot] - (int) (now - epoch) > 0);
+    }
+
+    private synchronized void remove(final long key) {
+      final int slot = find(key);
+
+      if (slot >= 0) {
+        delete(slot);
+      }
+    }
+
+    private synchronized int size() {
+      return size;
+    }
+
+    private synchronized void clear() {
+      Arrays.fill(keys, 0L);
+      size = 0;
+      hand = 0;
+    }
+
+    private int home(final long key) {
+      return (int) key & mask;
+    }
+
+    private int find(final long key) {
+      int slot = home(key);
+
+      while (keys[slot] != 0) {
+        if (keys[slot] == key) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /*
+     * Evicts an expired key, or the first key not referenced since the hand
+     * last passed it.
+     */
+    private void evict(final int time) {
+      while (true) {
+        final int slot = hand;
+        hand = (hand + 1) & mask;
+
+        if (keys[slot] == 0) {
+          continue;
+        }
+
+        if (referenced[slot] && (expiries[slot] - time > 0)) {
+          referenced[slot] = false;
+          continue;
+        }
+        delete(slot);
+        return;
+      }
+    }
+
+    /*
+     * Empties the slot, shifting back the keys after it which would no
+     * longer be found.
+     */
+    private void delete(int slot) {
+      int next = slot;
+
+      while (true) {
+        next = (next + 1) & mask;
+
+        if (keys[next] == 0) {
+          break;
+        }
+        final int home = home(keys[next]);
+
+        // Move the key back unless its home lies cyclically in (slot, next].
+        if ((slot <= next) ? ((home <= slot) || (home > next)) : ((home <= slot) && (home > next))) {
+          keys[slot] = keys[next];
+          expiries[slot] = expiries[next];
+          referenced[slot] = referenced[next];
+          slot = next;
+        }
+      }
+      keys[slot] = 0;
+      size--;
+    }
+
+    /*
+     * Moves the epoch forward before the expiry times overflow.
+     */
+    private void rebase(final long now) {
+      final long shift = now - epoch;
+
+      if (shift < MAX_TTL) {
+        return;
+      }
+
+      for (int i = 0; i < keys.length; i++) {
+        expiries[i] = (int) Math.max(Integer.MIN_VALUE + 1L, expiries[i] - shift);
+      }
+      epoch = now;
+    }
+  }
+
+  /*
+   * Two Bloom filters of the keys sent, the current one taking the keys and
+   * the previous one kept for another ttl, so each key is held for at least a
+   * ttl.
+   */
+  private static final class Bloom {
+
+    private final int bits;
+    private final int hashes;
+    private final long ttl;
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+    private volatile long rotatedAt = System.nanoTime() / 1000000L;
+
+    private Bloom(final long expectedKeys, final double falsePositiveRate, final long ttl) {
+      final double size = -expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+      bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, (long) Math.ceil(size)));
+      hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * Math.log(2)));
+      this.ttl = ttl;
+      current = new AtomicLongArray((bits + 63) >>> 6);
+      previous = new AtomicLongArray((bits + 63) >>> 6);
+    }
+
+    private void put(final long key, final long now) {
+      rotate(now);
+      final AtomicLongArray words = current;
+      final int h1 = (int) key;
+      final int h2 = (int) (key >>> 32) | 1;
+
+      for (int i = 0; i < hashes; i++) {
+        final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+        final long mask = 1L << bit;
+        final int word = bit >>> 6;
+        long value;
+
+        while (((value = words.get(word)) & mask) == 0
+                && !words.compareAndSet(word, value, value | mask)) {
+          // Lost a race with another bit of the word; try again.
+        }
+      }
+    }
+
+    private boolean mightContain(final long key, final long now) {
+      rotate(now);
+      return mightContain(current, key) || mightContain(previous, key);
+    }
+
+    private boolean mightContain(final AtomicLongArray words, final long key) {
+      final int h1 = (int) key;
+      final int h2 = (int) (key >>> 32) | 1;
+
+      for (int i = 0; i < hashes; i++) {
+        final int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+
+        if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rotate(final long now) {
+      if (now - rotatedAt < ttl) {
+        return;
+      }
+
+      synchronized (this) {
+        if (now - rotatedAt >= ttl) {
+          // Both are stale after two ttls without a rotation.
+          previous = (now - rotatedAt < 2 * ttl) ? current
+                  : new AtomicLongArray(current.length());
+          current = new AtomicLongArray(previous.length());
+          rotatedAt = now;
+        }
+      }
+    }
+
+    private synchronized void clear() {
+      current = new AtomicLongArray(current.length());
+      previous = new AtomicLongArray(previous.length());
+    }
+  }
+}
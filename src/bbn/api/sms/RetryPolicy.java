@@ -0,0 +1,413 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether a request to the BBN gateway is tried again, and when.
+ *
+ * Outcomes are classified first: connection failures, read timeouts and the
+ * gateway's REQUEST_TIMEOUT (1800) are transient and may be retried, while
+ * the other error codes (1802-1809 and the like) are permanent. Retries wait
+ * an exponentially growing delay with jitter, and are drawn from a budget
+ * which every request tops up by a fraction of a retry, so that retries can't
+ * multiply the load on a gateway which is already failing.
+ */
+public class RetryPolicy {
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_BASE_DELAY = 200;
+  public static final long DEFAULT_MAX_DELAY = 5000;
+  public static final double DEFAULT_BUDGET_RATIO = 0.2;
+  public static final int DEFAULT_MIN_BUDGET = 10;
+  // Budget amounts are kept in thousandths of a retry.
+  private static final long RETRY_COST = 1000;
+  private final int maxAttempts;
+  private final long baseDelay;
+  private final long maxDelay;
+  private final boolean retryReadTimeouts;
+  private final long budgetDeposit;
+  private final long budgetCap;
+  // The retries which can still be made, in thousandths of a retry.
+  private final AtomicLong budget;
+  // Metrics.
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong budgetExhaustedCount = new AtomicLong();
+  private final AtomicLong deadlineCount = new AtomicLong();
+
+  /**
+   * The class of the outcome of a request.
+   */
+  public enum Classification {
+
+    /**
+     * The request succeeded.
+     */
+    SUCCESS,
+    /**
+     * The request failed in a way which may not happen again.
+     */
+    RETRYABLE,
+    /**
+     * The request failed and will fail the same way again.
+     */
+    PERMANENT
+  }
+
+  /**
+   * A request which can be made several times.
+   *
+   * @param <T> The type of the value of the result.
+   */
+  public interface Call<T> {
+
+    Result<T> call() throws IOException;
+  }
+
+  /**
+   * Construct a retry policy with the default budget.
+   *
+   * @param maxAttempts The most times a request is made, 1 for no retries.
+   * @param baseDelay Milliseconds waited before the first retry.
+   * @param maxDelay The longest wait before a retry, in milliseconds.
+   * @param retryReadTimeouts True to retry requests whose response timed out,
+   * which the gateway may have acted on already.
+   */
+  public RetryPolicy(
+          final int maxAttempts,
+          final long baseDelay,
+          final long maxDelay,
+          final boolean retryReadTimeouts) {
+    this(maxAttempts, baseDelay, maxDelay, retryReadTimeouts,
+            DEFAULT_BUDGET_RATIO, DEFAULT_MIN_BUDGET);
+  }
+
+  /**
+   * Construct a retry policy.
+   *
+   * @param maxAttempts The most times a request is made, 1 for no retries.
+   * @param baseDelay Milliseconds waited before the first retry.
+   * @param maxDelay The longest wait before a retry, in milliseconds.
+   * @param retryReadTimeouts True to retry requests whose response timed out,
+   * which the gateway may have acted on already.
+   * @param budgetRatio The retries each request adds to the budget.
+   * @param minBudget The retries the budget holds at most, and starts with.
+   */
+  public RetryPolicy(
+          final int maxAttempts,
+          final long baseDelay,
+          final long maxDelay,
+          final boolean retryReadTimeouts,
+          final double budgetRatio,
+          final int minBudget) {
+    if ((maxAttempts < 1) || (baseDelay < 0) || (maxDelay < baseDelay)) {
+      throw new IllegalArgumentException("Invalid attempts or delays.");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.retryReadTimeouts = retryReadTimeouts;
+    this.budgetDeposit = (long) (Math.max(0, budgetRatio) * RETRY_COST);
+    this.budgetCap = Math.max(1, minBudget) * RETRY_COST;
+    this.budget = new AtomicLong(budgetCap);
+  }
+
+  /**
+   * Returns a policy which never retries.
+   *
+   * @return RetryPolicy
+   */
+  public static RetryPolicy none() {
+    return new RetryPolicy(1, 0, 0, false);
+  }
+
+  /**
+   * Creates the retry policy of an endpoint from the config of the API
+   * specified. Settings of the endpoint (bbn.retry.send_sms.max_attempts)
+   * override the settings shared by all endpoints (bbn.retry.max_attempts).
+   *
+   * @param api The API whose config holds the retry settings.
+   * @param endpoint The name of the endpoint, one of the names in Endpoints.
+   * @return RetryPolicy
+   */
+  public static RetryPolicy fromConfig(final BbnApi api, final String endpoint) {
+    final int maxAttempts = (int) api.getConfigAsLong(key(endpoint, "max_attempts"),
+            api.getConfigAsLong("bbn.retry.max_attempts", DEFAULT_MAX_ATTEMPTS));
+    final long baseDelay = api.getConfigAsLong(key(endpoint, "base_delay"),
+            api.getConfigAsLong("bbn.retry.base_delay", DEFAULT_BASE_DELAY));
+    final long maxDelay = api.getConfigAsLong(key(endpoint, "max_delay"),
+            api.getConfigAsLong("bbn.retry.max_delay", DEFAULT_MAX_DELAY));
+    // getConfig returns "null" for missing keys.
+    final boolean readTimeouts = "null".equals(api.getConfig(key(endpoint, "read_timeouts")))
+            ? api.getConfigAsBoolean("bbn.retry.read_timeouts")
+            : api.getConfigAsBoolean(key(endpoint, "read_timeouts"));
+    return new RetryPolicy(Math.max(1, maxAttempts), baseDelay, Math.max(baseDelay, maxDelay),
+            readTimeouts,
+            api.getConfigAsDouble("bbn.retry.budget_ratio", DEFAULT_BUDGET_RATIO),
+            (int) api.getConfigAsLong("bbn.retry.min_budget", DEFAULT_MIN_BUDGET));
+  }
+
+  private static String key(final String endpoint, final String setting) {
+    return "bbn.retry." + endpoint + "." + setting;
+  }
+
+  /**
+   * Classifies the result of a request.
+   *
+   * @param result The result returned for the request.
+   * @return Classification
+   */
+  public static Classification classify(final Result<?> result) {
+    final int code = result.getCode();
+
+    if (code == BBN.ResponseCode.REQUEST_TIMEOUT.getCode()) {
+      return Classification.RETRYABLE;
+    }
+    return result.isError() ? Classification.PERMANENT : Classification.SUCCESS;
+  }
+
+  /**
+   * Classifies the error a request failed with.
+   *
+   * @param error The error the request failed with.
+   * @return Classification
+   */
+  public Classification classify(final Throwable error) {
+    final Throwable cause = unwrap(error);
+
+    // Nothing was sent when the connection failed, so it is always safe to
+    // retry.
+    if ((cause instanceof ConnectException) || (cause instanceof ConnectTimeoutException)
+            || (cause instanceof HttpConnectTimeoutException)) {
+      return Classification.RETRYABLE;
+    }
+
+    if ((cause instanceof SocketTimeoutException) || (cause instanceof HttpTimeoutException)) {
+      // Any other timeout means the gateway may already have acted on the
+      // request.
+      return retryReadTimeouts ? Classification.RETRYABLE : Classification.PERMANENT;
+    }
+    return Classification.PERMANENT;
+  }
+
+  /**
+   * Makes the request, retrying it as long as it fails in a retryable way,
+   * attempts remain and the budget allows.
+   *
+   * @param call The request.
+   * @return Result<T> the result of the last attempt.
+   * @throws IOException the error of the last attempt, if it failed.
+   */
+  public <T> Result<T> execute(final Call<T> call) throws IOException {
+    return execute(call, Deadline.none());
+  }
+
+  /**
+   * Makes the request, retrying it as long as it fails in a retryable way,
+   * attempts remain, the budget allows and the retry can be made before the
+   * deadline.
+   *
+   * @param call The request.
+   * @param deadline The deadline of the request.
+   * @return Result<T> the result of the last attempt.
+   * @throws IOException the error of the last attempt, if it failed.
+   */
+  public <T> Result<T> execute(final Call<T> call, final Deadline deadline) throws IOException {
+    deposit();
+
+    for (int attempt = 1;; attempt++) {
+      final long delay = delay(attempt);
+
+      try {
+        final Result<T> result = call.call();
+
+        if ((classify(result) != Classification.RETRYABLE)
+                || !mayRetry(attempt, delay, deadline)) {
+          return result;
+        }
+      } catch (IOException e) {
+        if ((e instanceof InterruptedIOException) && !(e instanceof SocketTimeoutException)) {
+          throw e;
+        }
+
+        if ((classify(e) != Classification.RETRYABLE) || !mayRetry(attempt, delay, deadline)) {
+          throw e;
+        }
+      }
+
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to retry.");
+      }
+    }
+  }
+
+  /**
+   * Makes the asynchronous request, retrying it as long as it fails in a
+   * retryable way, attempts remain and the budget allows.
+   *
+   * @param call Starts the request.
+   * @return CompletableFuture<Result<T>> the outcome of the last attempt.
+   */
+  public <T> CompletableFuture<Result<T>> executeAsync(
+          final Supplier<CompletableFuture<Result<T>>> call) {
+    return executeAsync(call, Deadline.none());
+  }
+
+  /**
+   * Makes the asynchronous request, retrying it as long as it fails in a
+   * retryable way, attempts remain, the budget allows and the retry can be
+   * made before the deadline.
+   *
+   * @param call Starts the request.
+   * @param deadline The deadline of the request.
+   * @return CompletableFuture<Result<T>> the outcome of the last attempt.
+   */
+  public <T> CompletableFuture<Result<T>> executeAsync(
+          final Supplier<CompletableFuture<Result<T>>> call,
+          final Deadline deadline) {
+    final CompletableFuture<Result<T>> outcome = new CompletableFuture<>();
+    deposit();
+    attemptAsync(call, 1, deadline, outcome);
+    return outcome;
+  }
+
+  private <T> void attemptAsync(
+          final Supplier<CompletableFuture<Result<T>>> call,
+          final int attempt,
+          final Deadline deadline,
+          final CompletableFuture<Result<T>> outcome) {
+    final CompletableFuture<Result<T>> result;
+
+    try {
+      result = call.get();
+    } catch (RuntimeException e) {
+      outcome.completeExceptionally(e);
+      return;
+    }
+    result.whenComplete((value, error) -> {
+      final Classification classification = (error != null) ? classify(error) : classify(value);
+      final long delay = delay(attempt);
+
+      if ((classification == Classification.RETRYABLE) && mayRetry(attempt, delay, deadline)) {
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                .execute(() -> attemptAsync(call, attempt + 1, deadline, outcome));
+      } else if (error != null) {
+        outcome.completeExceptionally(error);
+      } else {
+        outcome.complete(value);
+      }
+    });
+  }
+
+  /*
+   * Returns true, taking a retry from the budget, if the request may be made
+   * again after the attempt specified, once the delay has passed.
+   */
+  private boolean mayRetry(final int attempt, final long delay, final Deadline deadline) {
+    if (attempt >= maxAttempts) {
+      return false;
+    }
+
+    if (delay >= deadline.remaining(TimeUnit.MILLISECONDS)) {
+      // The retry would start at or after the deadline.
+      deadlineCount.incrementAndGet();
+      return false;
+    }
+
+    while (true) {
+      final long current = budget.get();
+
+      if (current < RETRY_COST) {
+        budgetExhaustedCount.incrementAndGet();
+        return false;
+      }
+
+      if (budget.compareAndSet(current, current - RETRY_COST)) {
+        retryCount.incrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /*
+   * Adds the share of a request to the budget.
+   */
+  private void deposit() {
+    if (maxAttempts > 1) {
+      budget.accumulateAndGet(budgetDeposit,
+              (current, deposit) -> Math.min(budgetCap, current + deposit));
+    }
+  }
+
+  /*
+   * Returns the delay before the retry following the attempt specified: the
+   * exponential delay, less a random part of up to half of it.
+   */
+  long delay(final int attempt) {
+    final long exponential = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+    final long half = exponential / 2;
+    return exponential - ((half > 0) ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+  }
+
+  private static Throwable unwrap(final Throwable error) {
+    return ((error instanceof CompletionException) && (error.getCause() != null))
+            ? error.getCause() : error;
+  }
+
+  /**
+   * Returns the most times a request is made.
+   *
+   * @return int
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns the number of retries made.
+   *
+   * @return long
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Returns the number of retries refused because the budget was spent.
+   *
+   * @return long
+   */
+  public long getBudgetExhaustedCount() {
+    return budgetExhaustedCount.get();
+  }
+
+  /**
+   * Returns the number of retries not made because the deadline would have
+   * passed.
+   *
+   * @return long
+   */
+  public long getDeadlineCount() {
+    return deadlineCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy{" + "maxAttempts=" + maxAttempts + ", retries=" + retryCount.get()
+            + ", budgetExhausted=" + budgetExhaustedCount.get() + '}';
+  }
+}
@@ -0,0 +1,282 @@
+package bbn.api.sms;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces sends to the messages-per-second quotas of each BBN account and each
+ * sender id.
+ *
+ * Every account (username) and every sender id gets its own token bucket,
+ * counted in recipients so that a batch takes as many permits as it has
+ * recipients. Accounts and senders without a quota of their own share the
+ * default quota; a rate of zero or less means no limit.
+ */
+public class SendRateLimiter {
+
+  // The default quotas, a rate of zero meaning no limit.
+  private final double accountRate;
+  private final int accountBurst;
+  private final double senderRate;
+  private final int senderBurst;
+  // The bucket of each account and sender, created on first use.
+  private final ConcurrentMap<String, TokenBucket> accounts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, TokenBucket> senders = new ConcurrentHashMap<>();
+  // Stands for "no limit" in the maps above.
+  private static final TokenBucket UNLIMITED = new TokenBucket(1, 1);
+
+  /**
+   * Construct a rate limiter with default quotas.
+   *
+   * @param accountRate Recipients per second per account, 0 for no limit.
+   * @param accountBurst The most recipients an account can send at once.
+   * @param senderRate Recipients per second per sender id, 0 for no limit.
+   * @param senderBurst The most recipients a sender id can send at once.
+   */
+  public SendRateLimiter(
+          final double accountRate,
+          final int accountBurst,
+          final double senderRate,
+          final int senderBurst) {
+    this.accountRate = accountRate;
+    this.accountBurst = Math.max(1, accountBurst);
+    this.senderRate = senderRate;
+    this.senderBurst = Math.max(1, senderBurst);
+  }
+
+  /**
+   * Creates a rate limiter using the quotas in the config of the API
+   * specified.
+   *
+   * @param api The API whose config holds the quotas.
+   * @return SendRateLimiter
+   */
+  public static SendRateLimiter fromConfig(final BbnApi api) {
+    return new SendRateLimiter(
+            api.getConfigAsDouble("bbn.rate.account.per_second", 0),
+            (int) api.getConfigAsLong("bbn.rate.account.burst", 1),
+            api.getConfigAsDouble("bbn.rate.sender.per_second", 0),
+            (int) api.getConfigAsLong("bbn.rate.sender.burst", 1));
+  }
+
+  /**
+   * Sets the quota of an account.
+   *
+   * @param username The username of the account.
+   * @param rate Recipients per second, 0 for no limit.
+   * @param burst The most recipients which can be sent at once.
+   */
+  public void setAccountQuota(final String username, final double rate, final int burst) {
+    accounts.put(String.valueOf(username), newBucket(rate, burst));
+  }
+
+  /**
+   * Sets the quota of a sender id.
+   *
+   * @param sender The sender id.
+   * @param rate Recipients per second, 0 for no limit.
+   * @param burst The most recipients which can be sent at once.
+   */
+  public void setSenderQuota(final String sender, final double rate, final int burst) {
+    senders.put(String.valueOf(sender), newBucket(rate, burst));
+  }
+
+  /**
+   * Waits until the account and sender id may send to the recipients.
+   *
+   * @param username The username of the account.
+   * @param sender The sender id.
+   * @param recipients The number of recipients.
+   * @throws InterruptedIOException if interrupted while waiting; the
+   * recipients are then not counted.
+   */
+  public void acquire(
+          final String username,
+          final String sender,
+          final int recipients) throws InterruptedIOException {
+    acquire(username, sender, recipients, Deadline.none());
+  }
+
+  /**
+   * Waits until the account and sender id may send to the recipients, unless
+   * that would outlive the deadline.
+   *
+   * @param username The username of the account.
+   * @param sender The sender id.
+   * @param recipients The number of recipients.
+   * @param deadline The deadline of the send.
+   * @throws DeadlineExceededException if the quotas only allow the send after
+   * the deadline; the recipients are then not counted.
+   * @throws InterruptedIOException if interrupted while waiting; the
+   * recipients are then not counted.
+   */
+  public void acquire(
+          final String username,
+          final String sender,
+          final int recipients,
+          final Deadline deadline) throws InterruptedIOException {
+    final TokenBucket account = accountBucket(username);
+    final TokenBucket senderBucket = senderBucket(sender);
+    final long wait = reserve(account, senderBucket, recipients);
+
+    if (wait > deadline.remaining(TimeUnit.NANOSECONDS)) {
+      // Fail now rather than wait for a slot the send can't use.
+      refund(account, senderBucket, recipients);
+      throw new DeadlineExceededException("The send rate only allows the send after the "
+              + "deadline.");
+    }
+
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        refund(account, senderBucket, recipients);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the send rate.");
+      }
+    }
+  }
+
+  /**
+   * Counts the recipients against the quotas only if both allow them now.
+   *
+   * @param username The username of the account.
+   * @param sender The sender id.
+   * @param recipients The number of recipients.
+   * @return boolean true if the recipients may be sent to now.
+   */
+  public boolean tryAcquire(
+          final String username,
+          final String sender,
+          final int recipients) {
+    final TokenBucket account = accountBucket(username);
+    final TokenBucket senderBucket = senderBucket(sender);
+
+    if ((account != UNLIMITED) && !account.tryAcquire(recipients)) {
+      return false;
+    }
+
+    if ((senderBucket != UNLIMITED) && !senderBucket.tryAcquire(recipients)) {
+      if (account != UNLIMITED) {
+        account.refund(recipients);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a future completed once the account and sender id may send to the
+   * recipients, without blocking.
+   *
+   * @param username The username of the account.
+   * @param sender The sender id.
+   * @param recipients The number of recipients.
+   * @return CompletableFuture<Void>
+   */
+  public CompletableFuture<Void> acquireAsync(
+          final String username,
+          final String sender,
+          final int recipients) {
+    return acquireAsync(username, sender, recipients, Deadline.none());
+  }
+
+  /**
+   * Returns a future completed once the account and sender id may send to the
+   * recipients, or failed at once with a DeadlineExceededException if that
+   * would only be after the deadline.
+   *
+   * @param username The username of the account.
+   * @param sender The sender id.
+   * @param recipients The number of recipients.
+   * @param deadline The deadline of the send.
+   * @return CompletableFuture<Void>
+   */
+  public CompletableFuture<Void> acquireAsync(
+          final String username,
+          final String sender,
+          final int recipients,
+          final Deadline deadline) {
+    final TokenBucket account = accountBucket(username);
+    final TokenBucket senderBucket = senderBucket(sender);
+    final long wait = reserve(account, senderBucket, recipients);
+
+    if (wait > deadline.remaining(TimeUnit.NANOSECONDS)) {
+      refund(account, senderBucket, recipients);
+      return CompletableFuture.failedFuture(new DeadlineExceededException(
+              "The send rate only allows the send after the deadline."));
+    }
+
+    if (wait <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return CompletableFuture.runAsync(() -> {
+    }, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+  }
+
+  /**
+   * Returns the number of recipients an account can send to now, or
+   * Integer.MAX_VALUE if it has no limit.
+   *
+   * @param username The username of the account.
+   * @return int
+   */
+  public int getAccountAvailable(final String username) {
+    final TokenBucket bucket = accountBucket(username);
+    return (bucket != UNLIMITED) ? bucket.getAvailable() : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Returns the number of recipients a sender id can send to now, or
+   * Integer.MAX_VALUE if it has no limit.
+   *
+   * @param sender The sender id.
+   * @return int
+   */
+  public int getSenderAvailable(final String sender) {
+    final TokenBucket bucket = senderBucket(sender);
+    return (bucket != UNLIMITED) ? bucket.getAvailable() : Integer.MAX_VALUE;
+  }
+
+  private TokenBucket accountBucket(final String username) {
+    return accounts.computeIfAbsent(String.valueOf(username),
+            key -> newBucket(accountRate, accountBurst));
+  }
+
+  private TokenBucket senderBucket(final String sender) {
+    return senders.computeIfAbsent(String.valueOf(sender),
+            key -> newBucket(senderRate, senderBurst));
+  }
+
+  private static TokenBucket newBucket(final double rate, final int burst) {
+    return (rate > 0) ? new TokenBucket(rate, Math.max(1, burst)) : UNLIMITED;
+  }
+
+  /*
+   * Reserves the recipients in both buckets, returning the longer wait.
+   */
+  private static long reserve(
+          final TokenBucket account,
+          final TokenBucket sender,
+          final int recipients) {
+    final long accountWait = (account != UNLIMITED) ? account.reserve(recipients) : 0L;
+    final long senderWait = (sender != UNLIMITED) ? sender.reserve(recipients) : 0L;
+    return Math.max(accountWait, senderWait);
+  }
+
+  private static void refund(
+          final TokenBucket account,
+          final TokenBucket sender,
+          final int recipients) {
+    if (account != UNLIMITED) {
+      account.refund(recipients);
+    }
+
+    if (sender != UNLIMITED) {
+      sender.refund(recipients);
+    }
+  }
+}
@@ -0,0 +1,515 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.SmsSegments;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks messages against the rules of the BBN gateway before they are sent,
+ * so requests the gateway would only reject are never made.
+ *
+ * The rules are those documented in BBN.Params and BBN.ResponseCode:
+ * <ul>
+ * <li>the sender is up to 14 digits or up to 11 letters, digits and spaces
+ * (INVALID_SENDER_ID, 1807);</li>
+ * <li>each mobile is a number of 7 to 15 digits, with an optional leading
+ * '+' (INVALID_MOBILE, 1806);</li>
+ * <li>the message isn't empty (EMPTY_MESSAGE, 1809);</li>
+ * <li>a schedule name, which is optional, is at most 16 characters
+ * (SCHEDULE_NAME_TOO_LONG, 1904);</li>
+ * <li>a broadcast time is given (INVALID_BROADCAST_TIME, 1903) and not in
+ * the past (1902). It is sent in whole seconds, so a time up to a minute
+ * late is left for the gateway to judge against its own clock.</li>
+ * </ul>
+ *
+ * The gateway documents no maximum length, so messages aren't limited by
+ * default. A limit can be set, in the segments counted by SmsSegments, for
+ * messages above it to be refused with MESSAGE_TOO_LONG (1808).
+ *
+ * The recipients of large groups are checked in parallel on a fork-join
+ * pool, and every invalid recipient is reported with its position.
+ */
+public class SmsValidator {
+
+  public static final int DEFAULT_MAX_SEGMENTS = 0;
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 8192;
+  public static final int MAX_NUMERIC_SENDER_LENGTH = 14;
+  public static final int MAX_ALPHANUMERIC_SENDER_LENGTH = 11;
+  public static final int MIN_MOBILE_DIGITS = 7;
+  public static final int MAX_MOBILE_DIGITS = 15;
+  public static final int MAX_SCHEDULE_NAME_LENGTH = 16;
+  // How far in the past, in seconds, a broadcast time may be before it is
+  // refused, allowing for "now" and for clocks which differ.
+  public static final int SCHEDULE_TIME_GRACE_SECONDS = 60;
+  // The most segments a message may be sent in, 0 for no limit.
+  private final int maxSegments;
+  // The smallest number of recipients checked in parallel, and in each task.
+  private final int parallelThreshold;
+  // Runs the checks of large groups.
+  private final ForkJoinPool pool;
+
+  /**
+   * Construct a validator with the default limits, checking large groups on
+   * the common fork-join pool.
+   */
+  public SmsValidator() {
+    this(DEFAULT_MAX_SEGMENTS, DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct a validator.
+   *
+   * @param maxSegments The most segments a message may be sent in, 0 for no
+   * limit.
+   * @param parallelThreshold The number of recipients from which a group is
+   * checked in parallel.
+   * @param pool The pool which checks large groups.
+   */
+  public SmsValidator(
+          final int maxSegments,
+          final int parallelThreshold,
+          final ForkJoinPool pool) {
+    if (pool == null) {
+      throw new NullPointerException("pool cannot be null.");
+    }
+
+    if ((maxSegments < 0) || (parallelThreshold < 1)) {
+      throw new IllegalArgumentException("Invalid maximum segments or threshold.");
+    }
+    this.maxSegments = maxSegments;
+    this.parallelThreshold = parallelThreshold;
+    this.pool = pool;
+  }
+
+  /**
+   * Creates the validator configured by the bbn.validation.* settings of the
+   * API.
+   *
+   * @param api The API whose configuration is read.
+   * @return SmsValidator the validator, or null if it is disabled.
+   */
+  public static SmsValidator fromConfig(final BbnApi api) {
+    if (!api.getConfigAsBoolean("bbn.validation.enabled")) {
+      return null;
+    }
+    return new SmsValidator(
+            (int) api.getConfigAsLong("bbn.validation.max_segments", DEFAULT_MAX_SEGMENTS),
+            (int) api.getConfigAsLong("bbn.validation.parallel_threshold",
+            DEFAULT_PARALLEL_THRESHOLD),
+            ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Checks a message to a single recipient.
+   *
+   * @param sms The message.
+   * @return Validation
+   */
+  public Validation validate(final SMS sms) {
+    final List<Violation> violations = new ArrayList<>(1);
+    checkSender(sms.getSender(), violations);
+    checkMessage(sms.getMessage(), violations);
+
+    if (!isValidMobile(sms.getMobile())) {
+      violations.add(new Violation(BBN.ResponseCode.INVALID_MOBILE, BBN.Params.MOBILE,
+              -1, sms.getMobile()));
+    }
+    return new Validation(violations, null);
+  }
+
+  /**
+   * Checks a group message and each of its recipients.
+   *
+   * @param smsGroup The group message.
+   * @return Validation
+   */
+  public Validation validate(final SmsGroup smsGroup) {
+    final List<Violation> violations = new ArrayList<>();
+    checkSender(smsGroup.getSender(), violations);
+    checkMessage(smsGroup.getMessage(), violations);
+    final int count = smsGroup.getMobileCount();
+
+    if (count == 0) {
+      violations.add(new Violation(BBN.ResponseCode.INVALID_MOBILE, BBN.Params.MOBILE, -1, null));
+      return new Validation(violations, smsGroup);
+    }
+    final List<Violation> recipients = (count < parallelThreshold)
+            ? checkMobiles(smsGroup, 0, count)
+            : pool.invoke(new MobilesTask(smsGroup, 0, count));
+    violations.addAll(recipients);
+    return new Validation(violations, smsGroup);
+  }
+
+  /**
+   * Checks a scheduled group message, its schedule and its recipients.
+   *
+   * @param smsGroup The group message.
+   * @param scheduleName The name of the schedule; may be null, as it is
+   * optional.
+   * @param scheduleTime When the message is to be sent.
+   * @return Validation
+   */
+  public Validation validate(
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime) {
+    final Validation validation = validate(smsGroup);
+    final List<Violation> violations = new ArrayList<>(2);
+
+    if ((scheduleName != null) && (scheduleName.length() > MAX_SCHEDULE_NAME_LENGTH)) {
+      violations.add(new Violation(BBN.ResponseCode.SCHEDULE_NAME_TOO_LONG,
+              BBN.Params.SCHEDULE_NAME, -1, scheduleName));
+    }
+
+    if (scheduleTime == null) {
+      violations.add(new Violation(BBN.ResponseCode.INVALID_BROADCAST_TIME,
+              BBN.Params.BROADCAST_TIME, -1, null));
+    } else if (scheduleTime.getTime() / 1000
+            < System.currentTimeMillis() / 1000 - SCHEDULE_TIME_GRACE_SECONDS) {
+      violations.add(new Violation(BBN.ResponseCode.SCHEDULE_, BBN.Params.BROADCAST_TIME,
+              -1, String.valueOf(scheduleTime.getTime() / 1000)));
+    }
+
+    if (violations.isEmpty()) {
+      return validation;
+    }
+    // Schedule errors are reported before those of the recipients.
+    violations.addAll(validation.getViolations());
+    return new Validation(violations, smsGroup);
+  }
+
+  /**
+   * Returns true if the mobile is a number of 7 to 15 digits, with an
+   * optional leading '+'.
+   *
+   * @param mobile The mobile.
+   * @return boolean
+   */
+  public static boolean isValidMobile(final String mobile) {
+    if (mobile == null) {
+      return false;
+    }
+    final int start = mobile.startsWith("+") ? 1 : 0;
+    final int digits = mobile.length() - start;
+
+    if ((digits < MIN_MOBILE_DIGITS) || (digits > MAX_MOBILE_DIGITS)) {
+      return false;
+    }
+
+    for (int i = start; i < mobile.length(); i++) {
+      if ((mobile.charAt(i) < '0') || (mobile.charAt(i) > '9')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the sender is up to 14 digits, or up to 11 letters,
+   * digits and spaces.
+   *
+   * @param sender The sender id.
+   * @return boolean
+   */
+  public static boolean isValidSender(final String sender) {
+    if ((sender == null) || sender.trim().isEmpty()) {
+      return false;
+    }
+
+    if (isNumeric(sender)) {
+      return sender.length() <= MAX_NUMERIC_SENDER_LENGTH;
+    }
+    return (sender.length() <= MAX_ALPHANUMERIC_SENDER_LENGTH) && isAlphanumeric(sender, true);
+  }
+
+  private void checkSender(final String sender, final List<Violation> violations) {
+    if (!isValidSender(sender)) {
+      violations.add(new Violation(BBN.ResponseCode.INVALID_SENDER_ID, BBN.Params.SENDER,
+              -1, sender));
+    }
+  }
+
+  private void checkMessage(final String message, final List<Violation> violations) {
+    if ((message == null) || message.trim().isEmpty()) {
+      violations.add(new Violation(BBN.ResponseCode.EMPTY_MESSAGE, BBN.Params.MESSAGE,
+              -1, message));
+    } else if ((maxSegments > 0) && (SmsSegments.count(message) > maxSegments)) {
+      violations.add(new Violation(BBN.ResponseCode.MESSAGE_TOO_LONG, BBN.Params.MESSAGE,
+              -1, null));
+    }
+  }
+
+  /*
+   * Checks the recipients between the positions specified. Numbers stored
+   * packed by the group are checked by length, without decoding them.
+   */
+  private static List<Violation> checkMobiles(
+          final SmsGroup smsGroup,
+          final int from,
+          final int to) {
+    List<Violation> violations = null;
+
+    for (int i = from; i < to; i++) {
+      final int length = smsGroup.getMobileLength(i);
+      boolean valid = (length >= MIN_MOBILE_DIGITS) && (length <= MAX_MOBILE_DIGITS + 1)
+              && smsGroup.isMobileNumeric(i);
+
+      if (valid && ((length == MIN_MOBILE_DIGITS) || (length == MAX_MOBILE_DIGITS + 1))) {
+        // Whether the length holds a '+' decides these.
+        valid = isValidMobile(smsGroup.getMobile(i));
+      }
+
+      if (!valid) {
+        if (violations == null) {
+          violations = new ArrayList<>();
+        }
+        violations.add(new Violation(BBN.ResponseCode.INVALID_MOBILE, BBN.Params.MOBILE,
+                i, smsGroup.getMobile(i)));
+      }
+    }
+    return (violations != null) ? violations : Collections.<Violation>emptyList();
+  }
+
+  private static boolean isNumeric(final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if ((value.charAt(i) < '0') || (value.charAt(i) > '9')) {
+        return false;
+      }
+    }
+    return !value.isEmpty();
+  }
+
+  private static boolean isAlphanumeric(final String value, final boolean spaces) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+
+      if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+              || ((c >= '0') && (c <= '9')) || (spaces && (c == ' ')))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "SmsValidator{" + "maxSegments=" + maxSegments
+            + ", parallelThreshold=" + parallelThreshold + '}';
+  }
+
+  /*
+   * Checks a range of recipients, splitting it in halves down to the
+   * parallel threshold.
+   */
+  private final class MobilesTask extends RecursiveTask<List<Violation>> {
+
+    private static final long serialVersionUID = 1L;
+    private final SmsGroup smsGroup;
+    private final int from;
+    private final int to;
+
+    private MobilesTask(final SmsGroup smsGroup, final int from, final int to) {
+      this.smsGroup = smsGroup;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected List<Violation> compute() {
+      if (to - from <= parallelThreshold) {
+        return checkMobiles(smsGroup, from, to);
+      }
+      final int middle = (from + to) >>> 1;
+      final MobilesTask left = new MobilesTask(smsGroup, from, middle);
+      left.fork();
+      final List<Violation> right = new MobilesTask(smsGroup, middle, to).compute();
+      final List<Violation> joined = left.join();
+
+      if (right.isEmpty()) {
+        return joined;
+      }
+
+      if (joined.isEmpty()) {
+        return right;
+      }
+      final List<Violation> all = new ArrayList<>(joined.size() + right.size());
+      all.addAll(joined);
+      all.addAll(right);
+      return all;
+    }
+  }
+
+  /**
+   * The outcome of checking a message: the rules it breaks, if any.
+   */
+  public static final class Validation {
+
+    private final List<Violation> violations;
+    private final SmsGroup smsGroup;
+
+    private Validation(final List<Violation> violations, final SmsGroup smsGroup) {
+      this.violations = Collections.unmodifiableList(violations);
+      this.smsGroup = smsGroup;
+    }
+
+    /**
+     * Returns true if the message breaks no rule.
+     *
+     * @return boolean
+     */
+    public boolean isValid() {
+      return violations.isEmpty();
+    }
+
+    /**
+     * Returns the rules broken, those of the whole message first, then those
+     * of the recipients in order.
+     *
+     * @return List<Violation>
+     */
+    public List<Violation> getViolations() {
+      return violations;
+    }
+
+    /**
+     * Returns the rules broken by the recipients.
+     *
+     * @return List<Violation>
+     */
+    public List<Violation> getInvalidRecipients() {
+      final List<Violation> recipients = new ArrayList<>();
+
+      for (Violation violation : violations) {
+        if (violation.getIndex() >= 0) {
+          recipients.add(violation);
+        }
+      }
+      return recipients;
+    }
+
+    /**
+     * Returns a group holding only the valid recipients of the group checked,
+     * or null if a single message was checked.
+     *
+     * @return SmsGroup
+     */
+    public SmsGroup getValidRecipients() {
+      if (smsGroup == null) {
+        return null;
+      }
+      final SmsGroup valid = new SmsGroup(smsGroup.getSender(), smsGroup.getMessage());
+      int next = 0;
+
+      // The violations of the recipients are in the order of their positions.
+      for (Violation violation : violations) {
+        for (; next < violation.getIndex(); next++) {
+          valid.addMobile(smsGroup.getMobile(next));
+        }
+        next = Math.max(next, violation.getIndex() + 1);
+      }
+
+      for (; next < smsGroup.getMobileCount(); next++) {
+        valid.addMobile(smsGroup.getMobile(next));
+      }
+      return valid;
+    }
+
+    /**
+     * Returns the result of a send refused for breaking the first rule, or
+     * null if the message breaks none.
+     *
+     * @return Result<String>
+     */
+    public Result<String> toResult() {
+      if (violations.isEmpty()) {
+        return null;
+      }
+      final Violation first = violations.get(0);
+      final int invalid = getInvalidRecipients().size();
+      final String detail = (first.getIndex() >= 0)
+              ? " (" + invalid + " invalid recipient" + ((invalid == 1) ? "" : "s") + ")" : "";
+      final Result<String> result = new Result<>(String.valueOf(first.getResponse().getCode()));
+      result.setCode(first.getResponse().getCode());
+      result.setMessage(first.getResponse().getMessage() + detail);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "Validation{" + "violations=" + violations + '}';
+    }
+  }
+
+  /**
+   * A rule broken by a message or one of its recipients.
+   */
+  public static final class Violation {
+
+    private final BBN.Response response;
+    private final String param;
+    private final int index;
+    private final String value;
+
+    private Violation(
+            final BBN.Response response,
+            final String param,
+            final int index,
+            final String value) {
+      this.response = response;
+      this.param = param;
+      this.index = index;
+      this.value = value;
+    }
+
+    /**
+     * Returns the response the gateway would give.
+     *
+     * @return BBN.Response
+     */
+    public BBN.Response getResponse() {
+      return response;
+    }
+
+    /**
+     * Returns the name of the parameter at fault, one of BBN.Params.
+     *
+     * @return String
+     */
+    public String getParam() {
+      return param;
+    }
+
+    /**
+     * Returns the position of the recipient at fault, or -1 if the rule is
+     * broken by the whole message.
+     *
+     * @return int
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * Returns the value at fault, or null if it is missing or too long to
+     * repeat.
+     *
+     * @return String
+     */
+    public String getValue() {
+      return value;
+    }
+
+    @Override
+    public String toString() {
+      return "Violation{" + "code=" + response.getCode() + ", param=" + param
+              + ", index=" + index + ", value=" + value + '}';
+    }
+  }
+}
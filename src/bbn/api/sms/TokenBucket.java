@@ -0,0 +1,96 @@
+package bbn.api.sms;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket: permits are released at a steady rate and up to
+ * a burst of them can be taken at once.
+ *
+ * The bucket only keeps the time at which it will next be full again (the
+ * generic cell rate algorithm), updated with compare-and-set, so taking
+ * permits never blocks other threads. Permits can be reserved ahead: the
+ * reservation is made at once and the caller waits for it to become due.
+ */
+public final class TokenBucket {
+
+  // Nanoseconds between two permits.
+  private final long interval;
+  // How far ahead of time (nanoseconds) permits may be taken: the burst.
+  private final long tolerance;
+  // When the permits handed out so far will all have been released.
+  private final AtomicLong releasedAt = new AtomicLong(System.nanoTime());
+
+  /**
+   * Construct a bucket.
+   *
+   * @param permitsPerSecond The rate permits are released at.
+   * @param burst The most permits which can be taken at once.
+   */
+  public TokenBucket(final double permitsPerSecond, final int burst) {
+    if ((permitsPerSecond <= 0) || (burst < 1)) {
+      throw new IllegalArgumentException("The rate and burst must be positive.");
+    }
+    this.interval = Math.max(1L, (long) (1000000000L / permitsPerSecond));
+    this.tolerance = interval * burst;
+  }
+
+  /**
+   * Reserves the permits, returning how long to wait before using them.
+   *
+   * @param permits The number of permits to reserve.
+   * @return long the wait in nanoseconds, 0 if the permits can be used now.
+   */
+  public long reserve(final int permits) {
+    while (true) {
+      final long now = System.nanoTime();
+      final long current = releasedAt.get();
+      final long next = ((current - now > 0) ? current : now) + permits * interval;
+
+      if (releasedAt.compareAndSet(current, next)) {
+        return Math.max(0L, next - tolerance - now);
+      }
+    }
+  }
+
+  /**
+   * Takes the permits if they are available now. More permits than the burst
+   * are never available at once.
+   *
+   * @param permits The number of permits to take.
+   * @return boolean true if the permits were taken.
+   */
+  public boolean tryAcquire(final int permits) {
+    while (true) {
+      final long now = System.nanoTime();
+      final long current = releasedAt.get();
+      final long next = ((current - now > 0) ? current : now) + permits * interval;
+
+      if (next - tolerance - now > 0) {
+        return false;
+      }
+
+      if (releasedAt.compareAndSet(current, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back permits which were taken or reserved but not used.
+   *
+   * @param permits The number of permits to give back.
+   */
+  public void refund(final int permits) {
+    releasedAt.addAndGet(-permits * interval);
+  }
+
+  /**
+   * Returns the number of permits which can be taken now.
+   *
+   * @return int
+   */
+  public int getAvailable() {
+    final long ahead = releasedAt.get() - System.nanoTime();
+    return (int) Math.max(0L, (tolerance - Math.max(0L, ahead)) / interval);
+  }
+}
@@ -0,0 +1,462 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.Deadline;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Sends large numbers of SMS through a BbnApi, one request per message.
+ *
+ * Messages are pulled from the source only as fast as they can be sent: at
+ * most maxInFlight messages are being sent (or held in memory) at once, so a
+ * source of millions of messages can be streamed in bounded memory. Each send
+ * runs on its own virtual thread when the JVM supports them, otherwise on a
+ * thread of a pool which never grows beyond maxInFlight busy threads.
+ *
+ * A dispatch can be given a deadline, which every send is made within. Once
+ * it has passed no more messages are pulled from the source, so an iterator
+ * given as the source still holds the messages which weren't sent.
+ */
+public class BulkDispatcher implements AutoCloseable {
+
+  public static final long DEFAULT_PROGRESS_INTERVAL = 1000;
+  // The API used to send the messages.
+  private final BbnApi api;
+  // The maximum number of messages being sent at once.
+  private final int maxInFlight;
+  // Runs the sends.
+  private final ExecutorService executor;
+  // True if the executor was created (and must be shut down) by this class.
+  private final boolean ownsExecutor;
+  // How often (milliseconds) progress is reported.
+  private volatile long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+  /**
+   * Construct a dispatcher which sends on virtual threads, if available.
+   *
+   * @param api The API used to send the messages.
+   * @param maxInFlight The maximum number of messages being sent at once.
+   */
+  public BulkDispatcher(final BbnApi api, final int maxInFlight) {
+    this(api, maxInFlight, newPerTaskExecutor(), true);
+  }
+
+  /**
+   * Construct a dispatcher which sends on the executor specified. The executor
+   * is not shut down when the dispatcher is closed.
+   *
+   * @param api The API used to send the messages.
+   * @param maxInFlight The maximum number of messages being sent at once.
+   * @param executor The executor which runs the sends.
+   */
+  public BulkDispatcher(
+          final BbnApi api,
+          final int maxInFlight,
+          final ExecutorService executor) {
+    this(api, maxInFlight, executor, false);
+  }
+
+  private BulkDispatcher(
+          final BbnApi api,
+          final int maxInFlight,
+          final ExecutorService executor,
+          final boolean ownsExecutor) {
+    if ((api == null) || (executor == null)) {
+      throw new NullPointerException("The api or executor cannot be null.");
+    }
+
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1.");
+    }
+    this.api = api;
+    this.maxInFlight = maxInFlight;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /*
+   * Creates an executor starting a virtual thread per task on Java 21 and
+   * above, falling back to a cached thread pool on older runtimes.
+   */
+  static ExecutorService newPerTaskExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * Changes how often progress is reported to the listener.
+   *
+   * @param progressInterval The interval in milliseconds.
+   */
+  public void setProgressInterval(final long progressInterval) {
+    this.progressInterval = progressInterval;
+  }
+
+  /**
+   * Returns the maximum number of messages being sent at once.
+   *
+   * @return int
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Sends every message of the stream, blocking until all have been sent.
+   * The stream is closed once the dispatch ends.
+   *
+   * @param messages The messages to send.
+   * @param ccode The country code to send the messages with.
+   * @param flash True to send the messages as flash messages.
+   * @param listener Receives the result of every message and the progress.
+   * @return Progress The final progress of the dispatch.
+   * @throws InterruptedException if interrupted while waiting for a send.
+   */
+  public Progress dispatch(
+          final Stream<SMS> messages,
+          final String ccode,
+          final boolean flash,
+          final Listener listener) throws InterruptedException {
+    return dispatch(messages, ccode, flash, listener, Deadline.current());
+  }
+
+  /**
+   * Sends the messages of the stream until the deadline, blocking until they
+   * have been sent or the deadline has passed. The stream is closed once the
+   * dispatch ends, so a stream reading a file or a database releases it.
+   *
+   * @param messages The messages to send.
+   * @param ccode The country code to send the messages with.
+   * @param flash True to send the messages as flash messages.
+   * @param listener Receives the result of every message and the progress.
+   * @param deadline The deadline of the whole dispatch.
+   * @return Progress The final progress of the dispatch.
+   * @throws InterruptedException if interrupted while waiting for a send.
+   */
+  public Progress dispatch(
+          final Stream<SMS> messages,
+          final String ccode,
+          final boolean flash,
+          final Listener listener,
+          final Deadline deadline) throws InterruptedException {
+    try (Stream<SMS> source = messages) {
+      return dispatch(source.iterator(), ccode, flash, listener, deadline);
+    }
+  }
+
+  /**
+   * Sends every message of the iterable, blocking until all have been sent.
+   *
+   * @param messages The messages to send.
+   * @param ccode The country code to send the messages with.
+   * @param flash True to send the messages as flash messages.
+   * @param listener Receives the result of every message and the progress.
+   * @return Progress The final progress of the dispatch.
+   * @throws InterruptedException if interrupted while waiting for a send.
+   */
+  public Progress dispatch(
+          final Iterable<SMS> messages,
+          final String ccode,
+          final boolean flash,
+          final Listener listener) throws InterruptedException {
+    return dispatch(messages.iterator(), ccode, flash, listener, Deadline.current());
+  }
+
+  /**
+   * Sends the messages of the iterator until the deadline, blocking until
+   * they have been sent or the deadline has passed. The messages which
+   * weren't sent are left in the iterator.
+   *
+   * @param messages The messages to send.
+   * @param ccode The country code to send the messages with.
+   * @param flash True to send the messages as flash messages.
+   * @param listener Receives the result of every message and the progress.
+   * @param deadline The deadline of the whole dispatch.
+   * @return Progress The final progress of the dispatch.
+   * @throws InterruptedException if interrupted while waiting for a send.
+   */
+  public Progress dispatch(
+          final Iterator<SMS> messages,
+          final String ccode,
+          final boolean flash,
+          final Listener listener,
+          final Deadline deadline) throws InterruptedException {
+    if (deadline == null) {
+      throw new NullPointerException("deadline cannot be null.");
+    }
+    final Run run = new Run(listener);
+
+    try {
+      while (messages.hasNext()) {
+        // Wait for a free slot before pulling the next message.
+        if (!acquireSlot(run, deadline)) {
+          break;
+        }
+        final SMS sms = messages.next();
+        run.submitted.incrementAndGet();
+
+        try {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              final Deadline.Scope scope = deadline.enter();
+
+              try {
+                send(run, sms, ccode, flash);
+              } finally {
+                scope.close();
+              }
+            }
+          });
+        } catch (RuntimeException e) {
+          run.slots.release();
+          throw e;
+        }
+        run.reportIfDue(false);
+      }
+    } finally {
+      // Wait for the messages still being sent.
+      run.slots.acquireUninterruptibly(maxInFlight);
+      run.slots.release(maxInFlight);
+    }
+    return run.reportIfDue(true);
+  }
+
+  /*
+   * Waits for a free slot, no longer than the deadline allows.
+   */
+  private static boolean acquireSlot(
+          final Run run,
+          final Deadline deadline) throws InterruptedException {
+    if (!deadline.isBounded()) {
+      run.slots.acquire();
+      return true;
+    }
+    return !deadline.isExpired() && run.slots.tryAcquire(
+            deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+  }
+
+  private void send(
+          final Run run,
+          final SMS sms,
+          final String ccode,
+          final boolean flash) {
+    try {
+      final Result<String> result = api.sendMessage(sms, ccode, flash);
+
+      if (result.isError()) {
+        run.failed.incrementAndGet();
+      }
+      run.listener.onResult(sms, result);
+    } catch (IOException e) {
+      run.failed.incrementAndGet();
+      run.listener.onFailure(sms, e);
+    } catch (RuntimeException e) {
+      run.failed.incrementAndGet();
+      run.listener.onFailure(sms, e);
+    } finally {
+      run.completed.incrementAndGet();
+      // Report before freeing the slot, so every report is made before the
+      // final one, which waits for all the slots.
+      run.reportIfDue(false);
+      run.slots.release();
+    }
+  }
+
+  /**
+   * Shuts down the executor created by this dispatcher, if any.
+   */
+  @Override
+  public void close() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Receives the results and progress of a dispatch. Results are delivered
+   * from the sending threads, so implementations must be thread safe.
+   */
+  public interface Listener {
+
+    /**
+     * Called with the result returned by the BBN gateway for a message.
+     *
+     * @param sms The message sent.
+     * @param result The result of the send.
+     */
+    void onResult(SMS sms, Result<String> result);
+
+    /**
+     * Called when a message could not be sent because of an I/O error.
+     *
+     * @param sms The message which failed.
+     * @param e The error which occurred.
+     */
+    void onFailure(SMS sms, IOException e);
+
+    /**
+     * Called when a message could not be sent because sending it threw an
+     * unexpected exception. The message is counted as failed. Logs the
+     * exception by default.
+     *
+     * @param sms The message which failed.
+     * @param e The exception thrown.
+     */
+    default void onFailure(SMS sms, RuntimeException e) {
+      Logger.getLogger(BulkDispatcher.class.getName()).log(Level.WARNING, null, e);
+    }
+
+    /**
+     * Called periodically, and once at the end of the dispatch, with the
+     * progress so far. Progress is reported as messages complete, from the
+     * sending threads, as well as from the dispatching thread.
+     *
+     * @param progress The progress of the dispatch.
+     */
+    default void onProgress(Progress progress) {
+    }
+  }
+
+  /**
+   * A snapshot of the progress of a dispatch.
+   */
+  public static final class Progress {
+
+    private final long submitted;
+    private final long completed;
+    private final long failed;
+    private final long elapsed;
+
+    private Progress(
+            final long submitted,
+            final long completed,
+            final long failed,
+            final long elapsed) {
+      this.submitted = submitted;
+      this.completed = completed;
+      this.failed = failed;
+      this.elapsed = elapsed;
+    }
+
+    /**
+     * Returns the number of messages pulled from the source so far.
+     *
+     * @return long
+     */
+    public long getSubmitted() {
+      return submitted;
+    }
+
+    /**
+     * Returns the number of messages whose send has finished.
+     *
+     * @return long
+     */
+    public long getCompleted() {
+      return completed;
+    }
+
+    /**
+     * Returns the number of messages which failed or were rejected.
+     *
+     * @return long
+     */
+    public long getFailed() {
+      return failed;
+    }
+
+    /**
+     * Returns the number of messages being sent.
+     *
+     * @return long
+     */
+    public long getInFlight() {
+      return submitted - completed;
+    }
+
+    /**
+     * Returns the time elapsed since the dispatch started, in milliseconds.
+     *
+     * @return long
+     */
+    public long getElapsed() {
+      return elapsed;
+    }
+
+    /**
+     * Returns the number of messages completed per second.
+     *
+     * @return double
+     */
+    public double getThroughput() {
+      return (elapsed > 0) ? (completed * 1000.0) / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Progress{" + "submitted=" + submitted + ", completed=" + completed
+              + ", failed=" + failed + ", elapsed=" + elapsed
+              + ", throughput=" + getThroughput() + '}';
+    }
+  }
+
+  /*
+   * The state of a single dispatch.
+   */
+  private final class Run {
+
+    private final Listener listener;
+    private final Semaphore slots = new Semaphore(maxInFlight);
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long startedAt = System.nanoTime();
+    // When progress was last reported, claimed by the thread reporting it.
+    private final AtomicLong lastReport = new AtomicLong(startedAt);
+
+    private Run(final Listener listener) {
+      if (listener == null) {
+        throw new NullPointerException("listener cannot be null.");
+      }
+      this.listener = listener;
+    }
+
+    /*
+     * Reports the progress if the progress interval has passed. Called by the
+     * dispatching thread and by each completed send; only the thread which
+     * claims the interval reports it.
+     */
+    private Progress reportIfDue(final boolean force) {
+      final long now = System.nanoTime();
+      final long last = lastReport.get();
+
+      if (force) {
+        lastReport.set(now);
+      } else if (((now - last) < progressInterval * 1000000L)
+              || !lastReport.compareAndSet(last, now)) {
+        return null;
+      }
+      final Progress progress = new Progress(submitted.get(), completed.get(),
+              failed.get(), (now - startedAt) / 1000000L);
+      listener.onProgress(progress);
+      return progress;
+    }
+  }
+}
@@ -0,0 +1,418 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BBN;
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.Deadline;
+import bbn.api.sms.DeadlineExceededException;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.FormEncoder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends large SmsGroups in chunks bounded by recipient count and by the size
+ * of the encoded request body, several chunks at a time.
+ *
+ * The number of recipients per chunk adapts to the latency of the chunks
+ * already sent: it grows slowly while chunks come back well within the target
+ * latency, shrinks when they are slow, and is halved when the gateway times
+ * out. Each chunk gets its own result, so a failure only costs that chunk.
+ *
+ * A send can be given a deadline, which every chunk is sent within. Once it
+ * has passed, the recipients not yet sent are returned as a failed chunk, so
+ * retryFailed can send them later.
+ */
+public class ChunkedBatchSender implements AutoCloseable {
+
+  public static final int DEFAULT_MIN_CHUNK_SIZE = 50;
+  public static final int DEFAULT_MAX_CHUNK_SIZE = 5000;
+  public static final int DEFAULT_MAX_BODY_BYTES = 512 * 1024;
+  public static final int DEFAULT_PARALLELISM = 4;
+  public static final long DEFAULT_TARGET_LATENCY = 5000;
+  // Allowance for the parameters other than sender, message and mobile.
+  private static final int PARAMS_OVERHEAD = 256;
+  // The encoded length of the comma between recipients ("%2C").
+  private static final int SEPARATOR_BYTES = 3;
+  // The API used to send the chunks.
+  private final BbnApi api;
+  // Runs the sends.
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private volatile int minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+  private volatile int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+  private volatile int maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+  private volatile int parallelism = DEFAULT_PARALLELISM;
+  private volatile long targetLatency = DEFAULT_TARGET_LATENCY;
+  // The current number of recipients per chunk.
+  private volatile int chunkSize = 1000;
+
+  /**
+   * Construct a sender which sends chunks on virtual threads, if available.
+   *
+   * @param api The API used to send the chunks.
+   */
+  public ChunkedBatchSender(final BbnApi api) {
+    this(api, BulkDispatcher.newPerTaskExecutor(), true);
+  }
+
+  /**
+   * Construct a sender which sends chunks on the executor specified. The
+   * executor is not shut down when the sender is closed.
+   *
+   * @param api The API used to send the chunks.
+   * @param executor The executor which runs the sends.
+   */
+  public ChunkedBatchSender(final BbnApi api, final ExecutorService executor) {
+    this(api, executor, false);
+  }
+
+  private ChunkedBatchSender(
+          final BbnApi api,
+          final ExecutorService executor,
+          final boolean ownsExecutor) {
+    if ((api == null) || (executor == null)) {
+      throw new NullPointerException("The api or executor cannot be null.");
+    }
+    this.api = api;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /**
+   * Sends the group in chunks, blocking until every chunk has been sent.
+   *
+   * @param smsGroup The group to send.
+   * @param ccode The country code to send the group with.
+   * @param flash True to send the messages as flash messages.
+   * @return BatchResult The result of each chunk.
+   * @throws InterruptedException if interrupted while waiting for a chunk.
+   */
+  public BatchResult send(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash) throws InterruptedException {
+    return send(smsGroup, ccode, flash, Deadline.current());
+  }
+
+  /**
+   * Sends the group in chunks within the deadline, blocking until every chunk
+   * has been sent or the deadline has passed.
+   *
+   * @param smsGroup The group to send.
+   * @param ccode The country code to send the group with.
+   * @param flash True to send the messages as flash messages.
+   * @param deadline The deadline of the whole send.
+   * @return BatchResult The result of each chunk.
+   * @throws InterruptedException if interrupted while waiting for a chunk.
+   */
+  public BatchResult send(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash,
+          final Deadline deadline) throws InterruptedException {
+    final Run run = new Run(ccode, flash, deadline);
+
+    try {
+      submit(run, smsGroup, 0);
+    } finally {
+      run.await();
+    }
+    return new BatchResult(new ArrayList<>(run.chunks));
+  }
+
+  /**
+   * Sends again only the chunks of a previous batch which failed, splitting
+   * them again with the current chunk size.
+   *
+   * @param previous The result of the previous send.
+   * @param ccode The country code to send the group with.
+   * @param flash True to send the messages as flash messages.
+   * @return BatchResult The chunks which succeeded before together with the
+   * results of the chunks sent again.
+   * @throws InterruptedException if interrupted while waiting for a chunk.
+   */
+  public BatchResult retryFailed(
+          final BatchResult previous,
+          final String ccode,
+          final boolean flash) throws InterruptedException {
+    return retryFailed(previous, ccode, flash, Deadline.current());
+  }
+
+  /**
+   * Sends again only the chunks of a previous batch which failed, within the
+   * deadline.
+   *
+   * @param previous The result of the previous send.
+   * @param ccode The country code to send the group with.
+   * @param flash True to send the messages as flash messages.
+   * @param deadline The deadline of the whole send.
+   * @return BatchResult The chunks which succeeded before together with the
+   * results of the chunks sent again.
+   * @throws InterruptedException if interrupted while waiting for a chunk.
+   */
+  public BatchResult retryFailed(
+          final BatchResult previous,
+          final String ccode,
+          final boolean flash,
+          final Deadline deadline) throws InterruptedException {
+    final Run run = new Run(ccode, flash, deadline);
+
+    try {
+      for (BatchResult.Chunk chunk : previous.getChunks()) {
+        if (chunk.isError()) {
+          submit(run, chunk.getGroup(), chunk.getOffset());
+        } else {
+          run.chunks.add(chunk);
+        }
+      }
+    } finally {
+      run.await();
+    }
+    return new BatchResult(new ArrayList<>(run.chunks));
+  }
+
+  /*
+   * Cuts the group into chunks and submits them, waiting for a free slot
+   * before each one.
+   */
+  private void submit(
+          final Run run,
+          final SmsGroup smsGroup,
+          final int baseOffset) throws InterruptedException {
+    final int count = smsGroup.getMobileCount();
+    final int fixedBytes = PARAMS_OVERHEAD
+            + encodedLength(smsGroup.getSender())
+            + encodedLength(smsGroup.getMessage());
+    int position = 0;
+
+    while (position < count) {
+      if (!acquireSlot(run)) {
+        // Out of time: the rest of the group is left for retryFailed.
+        run.chunks.add(new BatchResult.Chunk(baseOffset + position,
+                smsGroup.subGroup(position, count), null,
+                new DeadlineExceededException("The deadline passed before the chunk was sent."),
+                0));
+        return;
+      }
+      // Read the chunk size as late as possible so it reflects the latency of
+      // the chunks sent so far.
+      final int limit = chunkSize;
+      int bytes = fixedBytes;
+      int end = position;
+
+      while ((end < count) && (end - position < limit)) {
+        final int recipientBytes = encodedMobileLength(smsGroup, end) + SEPARATOR_BYTES;
+
+        if ((end > position) && (bytes + recipientBytes > maxBodyBytes)) {
+          break;
+        }
+        bytes += recipientBytes;
+        end++;
+      }
+
+      final SmsGroup chunk = smsGroup.subGroup(position, end);
+      final int offset = baseOffset + position;
+      position = end;
+
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            sendChunk(run, chunk, offset);
+          }
+        });
+      } catch (RuntimeException e) {
+        run.slots.release();
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Waits for a free slot, no longer than the deadline of the run allows.
+   */
+  private static boolean acquireSlot(final Run run) throws InterruptedException {
+    if (!run.deadline.isBounded()) {
+      run.slots.acquire();
+      return true;
+    }
+    return !run.deadline.isExpired() && run.slots.tryAcquire(
+            run.deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+  }
+
+  private void sendChunk(final Run run, final SmsGroup chunk, final int offset) {
+    final long startedAt = System.nanoTime();
+    Result<String> result = null;
+    IOException exception = null;
+    final Deadline.Scope scope = run.deadline.enter();
+
+    try {
+      result = api.sendBatchMessage(chunk, run.ccode, run.flash);
+    } catch (IOException e) {
+      exception = e;
+    } catch (RuntimeException e) {
+      Logger.getLogger(ChunkedBatchSender.class.getName()).log(Level.WARNING, null, e);
+      exception = new IOException(e);
+    } finally {
+      scope.close();
+      final long latency = (System.nanoTime() - startedAt) / 1000000L;
+      run.chunks.add(new BatchResult.Chunk(offset, chunk, result, exception, latency));
+
+      if (!(exception instanceof DeadlineExceededException)) {
+        // A chunk cut short by the deadline says nothing about its size.
+        adapt(latency, (exception != null) || isTimeout(result));
+      }
+      run.slots.release();
+    }
+  }
+
+  private static boolean isTimeout(final Result<String> result) {
+    return (result != null)
+            && (result.getCode() == BBN.ResponseCode.REQUEST_TIMEOUT.getCode());
+  }
+
+  /*
+   * Adjusts the chunk size from the latency of a chunk which just completed.
+   */
+  private synchronized void adapt(final long latency, final boolean timedOut) {
+    int size = chunkSize;
+
+    if (timedOut) {
+      size = size / 2;
+    } else if (latency > targetLatency) {
+      size = size * 3 / 4;
+    } else if (latency < targetLatency / 2) {
+      size = size + Math.max(1, size / 10);
+    }
+    chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, size));
+  }
+
+  /*
+   * Returns the length of a value as the request body encodes it, a null
+   * value being written as "null".
+   */
+  private static int encodedLength(final String value) {
+    return FormEncoder.encodedLength((value != null) ? value : "null");
+  }
+
+  /*
+   * Returns the encoded length of a recipient. Packed numbers are digits
+   * with an optional leading '+', encoded as "%2B", so they are measured
+   * without being decoded.
+   */
+  private static int encodedMobileLength(final SmsGroup smsGroup, final int index) {
+    if (smsGroup.getMobileDigits(index) < 0) {
+      return FormEncoder.encodedLength(smsGroup.getMobile(index));
+    }
+    final int length = smsGroup.getMobileLength(index);
+    return (length > smsGroup.getMobileDigitCount(index)) ? length + 2 : length;
+  }
+
+  /**
+   * Returns the number of recipients the next chunk will be cut with.
+   *
+   * @return int
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Sets the number of recipients the next chunk will be cut with.
+   *
+   * @param chunkSize The number of recipients.
+   */
+  public void setChunkSize(final int chunkSize) {
+    this.chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize));
+  }
+
+  /**
+   * Sets the bounds of the number of recipients per chunk.
+   *
+   * @param minChunkSize The fewest recipients per chunk.
+   * @param maxChunkSize The most recipients per chunk.
+   */
+  public void setChunkSizeBounds(final int minChunkSize, final int maxChunkSize) {
+    if ((minChunkSize < 1) || (maxChunkSize < minChunkSize)) {
+      throw new IllegalArgumentException("Invalid chunk size bounds.");
+    }
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    setChunkSize(chunkSize);
+  }
+
+  /**
+   * Sets the largest encoded request body a chunk may produce, in bytes.
+   *
+   * @param maxBodyBytes The maximum body size.
+   */
+  public void setMaxBodyBytes(final int maxBodyBytes) {
+    this.maxBodyBytes = maxBodyBytes;
+  }
+
+  /**
+   * Sets the number of chunks sent at once. Takes effect on the next send.
+   *
+   * @param parallelism The number of chunks sent at once.
+   */
+  public void setParallelism(final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1.");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Sets the latency, in milliseconds, the chunk size is adjusted towards.
+   *
+   * @param targetLatency The target latency.
+   */
+  public void setTargetLatency(final long targetLatency) {
+    this.targetLatency = targetLatency;
+  }
+
+  /**
+   * Shuts down the executor created by this sender, if any.
+   */
+  @Override
+  public void close() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /*
+   * The state of a single send.
+   */
+  private final class Run {
+
+    private final String ccode;
+    private final boolean flash;
+    private final Deadline deadline;
+    private final int slotCount = parallelism;
+    private final Semaphore slots = new Semaphore(slotCount);
+    private final ConcurrentLinkedQueue<BatchResult.Chunk> chunks = new ConcurrentLinkedQueue<>();
+
+    private Run(final String ccode, final boolean flash, final Deadline deadline) {
+      if (deadline == null) {
+        throw new NullPointerException("deadline cannot be null.");
+      }
+      this.ccode = ccode;
+      this.flash = flash;
+      this.deadline = deadline;
+    }
+
+    private void await() {
+      slots.acquireUninterruptibly(slotCount);
+      slots.release(slotCount);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.DiallingCodes;
+import bbn.api.sms.utils.MobileNormalizer;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits a group whose recipients are in several countries into a group per
+ * country calling code, so each is sent with the ccode its numbers need
+ * instead of the one ccode a request takes.
+ *
+ * Each recipient is put in international form with the ccode the group
+ * would have been sent with (so national numbers stay in that country) and
+ * classified with DiallingCodes. Recipients which can't be classified stay
+ * with that ccode, for the validator or the gateway to report. Recipients
+ * are copied into their group as they were written.
+ */
+public class CountryBatcher {
+
+  // Classifies the recipients.
+  private final DiallingCodes codes;
+
+  /**
+   * Construct a batcher using the bundled dialling codes.
+   */
+  public CountryBatcher() {
+    this(DiallingCodes.getDefault());
+  }
+
+  /**
+   * Construct a batcher.
+   *
+   * @param codes Classifies the recipients.
+   */
+  public CountryBatcher(final DiallingCodes codes) {
+    if (codes == null) {
+      throw new NullPointerException("codes cannot be null.");
+    }
+    this.codes = codes;
+  }
+
+  /**
+   * Splits a group into a group per country calling code, in the order the
+   * codes first occur.
+   *
+   * @param smsGroup The group to split.
+   * @param ccode The country code national numbers are in, as would be
+   * given to sendBatchMessage; may be null.
+   * @return Map<String, SmsGroup> the groups, by the ccode to send them
+   * with. Recipients which couldn't be classified are under ccode without
+   * any leading '+', as classified ones are, or "" if it is null.
+   */
+  public Map<String, SmsGroup> split(final SmsGroup smsGroup, final String ccode) {
+    final MobileNormalizer normalizer = new MobileNormalizer(ccode);
+    // Keyed like the calling codes, so "+234" and "234" make one group.
+    final String fallback = (ccode == null) ? ""
+            : ccode.startsWith("+") ? ccode.substring(1) : ccode;
+    final Map<String, SmsGroup> groups = new LinkedHashMap<>();
+    final int count = smsGroup.getMobileCount();
+    // Most neighbouring recipients are in the same country.
+    String lastCode = null;
+    SmsGroup last = null;
+
+    for (int i = 0; i < count; i++) {
+      final DiallingCodes.Entry entry = codes.classify(normalizer.toE164(smsGroup, i));
+      final String code = (entry != null) ? entry.getCallingCode() : fallback;
+
+      if (!code.equals(lastCode)) {
+        last = groups.get(code);
+
+        if (last == null) {
+          last = new SmsGroup(smsGroup.getSender(), smsGroup.getMessage());
+          groups.put(code, last);
+        }
+        lastCode = code;
+      }
+      last.addMobile(smsGroup, i);
+    }
+    return groups;
+  }
+
+  /**
+   * Sends a group split by country, one sendBatchMessage per country
+   * calling code. A group which can't be sent doesn't stop the others: its
+   * exception is kept in its chunk.
+   *
+   * @param api The API used to send the groups.
+   * @param smsGroup The group to send.
+   * @param ccode The country code national numbers are in.
+   * @param flash True to send the messages as flash messages.
+   * @return Map<String, BatchResult.Chunk> the result of each group, by the
+   * ccode it was sent with.
+   */
+  public Map<String, BatchResult.Chunk> send(
+          final BbnApi api,
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash) {
+    return send(split(smsGroup, ccode), (code, group) -> api.sendBatchMessage(group, code, flash));
+  }
+
+  /**
+   * Schedules a group split by country, one scheduleMessage per country
+   * calling code, each under the schedule name given.
+   *
+   * @param api The API used to schedule the groups.
+   * @param smsGroup The group to schedule.
+   * @param scheduleName The name of the schedule.
+   * @param scheduleTime When the messages are to be sent.
+   * @param notify True to be notified once the messages are sent.
+   * @param ccode The country code national numbers are in.
+   * @param flash True to send the messages as flash messages.
+   * @return Map<String, BatchResult.Chunk> the result of each group, by the
+   * ccode it was scheduled with.
+   */
+  public Map<String, BatchResult.Chunk> schedule(
+          final BbnApi api,
+          final SmsGroup smsGroup,
+          final String scheduleName,
+          final Date scheduleTime,
+          final boolean notify,
+          final String ccode,
+          final boolean flash) {
+    return send(split(smsGroup, ccode), (code, group) -> api.scheduleMessage(
+            group, scheduleName, scheduleTime, notify, code, flash));
+  }
+
+  /*
+   * Sends each group with the ccode it is keyed by, the group of "" (no
+   * ccode given) without one.
+   */
+  private static Map<String, BatchResult.Chunk> send(
+          final Map<String, SmsGroup> groups,
+          final Sender sender) {
+    final Map<String, BatchResult.Chunk> chunks = new LinkedHashMap<>();
+    int offset = 0;
+
+    for (Map.Entry<String, SmsGroup> group : groups.entrySet()) {
+      final long start = System.nanoTime();
+      Result<String> result = null;
+      IOException exception = null;
+
+      try {
+        result = sender.send(group.getKey().isEmpty() ? null : group.getKey(),
+                group.getValue());
+      } catch (IOException e) {
+        exception = e;
+      }
+      chunks.put(group.getKey(), new BatchResult.Chunk(offset, group.getValue(), result,
+              exception, (System.nanoTime() - start) / 1000000L));
+      offset += group.getValue().getMobileCount();
+    }
+    return chunks;
+  }
+
+  @Override
+  public String toString() {
+    return "CountryBatcher{" + "codes=" + codes + '}';
+  }
+
+  /*
+   * Sends one group with its ccode.
+   */
+  private interface Sender {
+
+    Result<String> send(String ccode, SmsGroup smsGroup) throws IOException;
+  }
+}
@@ -0,0 +1,234 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.RetryPolicy;
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the entries of an OutboundLog through a BbnApi, acknowledging them
+ * as they are sent.
+ *
+ * Up to maxInFlight entries are sent at once, but the log is only
+ * acknowledged up to the first entry whose send hasn't finished, so a drain
+ * which is stopped or crashes resumes from the first entry it didn't finish.
+ * Entries after it may then be sent again: delivery is at least once.
+ *
+ * A drain stops at the first entry which fails with an I/O error or a
+ * REQUEST_TIMEOUT from the gateway, leaving it in the log to be sent by the
+ * next drain. Other answers from the gateway, errors included, are final and
+ * their entries acknowledged.
+ */
+public class OutboundDrainer implements AutoCloseable {
+
+  private static final Logger LOGGER = Logger.getLogger(OutboundDrainer.class.getName());
+  // The log drained.
+  private final OutboundLog log;
+  // The API used to send the entries.
+  private final BbnApi api;
+  // The maximum number of entries being sent at once.
+  private final int maxInFlight;
+  // Runs the sends.
+  private final ExecutorService executor;
+  // True if the executor was created (and must be shut down) by this class.
+  private final boolean ownsExecutor;
+
+  /**
+   * Construct a drainer which sends on virtual threads, if available.
+   *
+   * @param log The log to drain.
+   * @param api The API used to send the entries.
+   * @param maxInFlight The maximum number of entries being sent at once.
+   */
+  public OutboundDrainer(final OutboundLog log, final BbnApi api, final int maxInFlight) {
+    this(log, api, maxInFlight, BulkDispatcher.newPerTaskExecutor(), true);
+  }
+
+  /**
+   * Construct a drainer which sends on the executor specified. The executor
+   * is not shut down when the drainer is closed.
+   *
+   * @param log The log to drain.
+   * @param api The API used to send the entries.
+   * @param maxInFlight The maximum number of entries being sent at once.
+   * @param executor The executor which runs the sends.
+   */
+  public OutboundDrainer(
+          final OutboundLog log,
+          final BbnApi api,
+          final int maxInFlight,
+          final ExecutorService executor) {
+    this(log, api, maxInFlight, executor, false);
+  }
+
+  private OutboundDrainer(
+          final OutboundLog log,
+          final BbnApi api,
+          final int maxInFlight,
+          final ExecutorService executor,
+          final boolean ownsExecutor) {
+    if ((log == null) || (api == null) || (executor == null)) {
+      throw new NullPointerException("The log, api or executor cannot be null.");
+    }
+
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1.");
+    }
+    this.log = log;
+    this.api = api;
+    this.maxInFlight = maxInFlight;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /**
+   * Sends the entries not yet acknowledged, blocking until every entry
+   * appended so far has been sent or the drain stopped at a failure.
+   *
+   * @param listener Receives the result of every entry sent.
+   * @return long the number of entries acknowledged by the drain.
+   * @throws IOException if the log is corrupt.
+   * @throws InterruptedException if interrupted while waiting for a send.
+   */
+  public long drain(final Listener listener) throws IOException, InterruptedException {
+    if (listener == null) {
+      throw new NullPointerException("listener cannot be null.");
+    }
+    final OutboundLog.Reader reader = log.reader();
+    final Run run = new Run(listener, reader.getOffset());
+
+    try {
+      while (!run.stopped) {
+        final List<OutboundLog.Entry> entries = reader.poll(maxInFlight);
+
+        if (entries.isEmpty()) {
+          break;
+        }
+
+        for (OutboundLog.Entry entry : entries) {
+          run.slots.acquire();
+
+          if (run.stopped) {
+            run.slots.release();
+            break;
+          }
+
+          try {
+            executor.execute(() -> send(run, entry));
+          } catch (RuntimeException e) {
+            run.slots.release();
+            throw e;
+          }
+        }
+      }
+    } finally {
+      // Wait for the entries still being sent.
+      run.slots.acquireUninterruptibly(maxInFlight);
+      run.slots.release(maxInFlight);
+    }
+    return run.acked - run.from;
+  }
+
+  private void send(final Run run, final OutboundLog.Entry entry) {
+    boolean done = false;
+
+    try {
+      final Result<String> result = (entry.getSms() != null)
+              ? api.sendMessage(entry.getSms(), entry.getCcode(), entry.isFlash())
+              : api.sendBatchMessage(entry.getSmsGroup(), entry.getCcode(), entry.isFlash());
+      done = RetryPolicy.classify(result) != RetryPolicy.Classification.RETRYABLE;
+      run.listener.onResult(entry, result);
+    } catch (IOException e) {
+      run.listener.onFailure(entry, e);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, null, e);
+    } finally {
+      if (done) {
+        run.complete(entry.getOffset());
+      } else {
+        run.stopped = true;
+      }
+      run.slots.release();
+    }
+  }
+
+  /**
+   * Shuts down the executor created by this drainer, if any.
+   */
+  @Override
+  public void close() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Receives the results of a drain. Results are delivered from the sending
+   * threads, so implementations must be thread safe.
+   */
+  public interface Listener {
+
+    /**
+     * Called with the result returned by the BBN gateway for an entry.
+     *
+     * @param entry The entry sent.
+     * @param result The result of the send.
+     */
+    void onResult(OutboundLog.Entry entry, Result<String> result);
+
+    /**
+     * Called when an entry could not be sent because of an I/O error. The
+     * entry stays in the log.
+     *
+     * @param entry The entry which failed.
+     * @param e The error which occurred.
+     */
+    void onFailure(OutboundLog.Entry entry, IOException e);
+  }
+
+  /*
+   * The state of a single drain.
+   */
+  private final class Run {
+
+    private final Listener listener;
+    private final Semaphore slots = new Semaphore(maxInFlight);
+    // The offset the drain started from.
+    private final long from;
+    // Guarded by this: the offset of the first entry not finished, and the
+    // entries after it which have.
+    private long acked;
+    private final TreeSet<Long> finished = new TreeSet<>();
+    private volatile boolean stopped;
+
+    private Run(final Listener listener, final long from) {
+      this.listener = listener;
+      this.from = from;
+      this.acked = from;
+    }
+
+    /*
+     * Records the entry as sent and acknowledges the entries up to the first
+     * one not finished.
+     */
+    private synchronized void complete(final long offset) {
+      finished.add(offset);
+      final long previous = acked;
+
+      while (!finished.isEmpty() && (finished.first() == acked)) {
+        finished.pollFirst();
+        acked++;
+      }
+
+      if (acked != previous) {
+        log.ack(acked - 1);
+      }
+    }
+  }
+}
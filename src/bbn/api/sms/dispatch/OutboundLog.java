@@ -0,0 +1,802 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of outbound messages: an append-only log of SMS and
+ * SmsGroup submissions kept in memory-mapped segment files.
+ *
+ * Every submission gets an offset, counting up from 0. Appends are written to
+ * the mapped segment and made durable by a background thread which forces the
+ * segments to disk every commit interval, or at once when a caller waits for
+ * an append with sync; a single force covers every append made before it, so
+ * appending threads share the cost of the disk flushes (group commit).
+ *
+ * Consumers read from the acknowledged offset and acknowledge the entries
+ * they have sent. The acknowledged offset is committed with the segments, so
+ * after a crash the log is read again from the first entry which wasn't
+ * acknowledged, and segments whose entries have all been acknowledged are
+ * deleted. A torn write at the end of the log is detected by its checksum and
+ * discarded when the log is opened.
+ */
+public class OutboundLog implements AutoCloseable {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final long DEFAULT_COMMIT_INTERVAL = 10;
+  private static final Logger LOGGER = Logger.getLogger(OutboundLog.class.getName());
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String ACK_FILE = "acked.offset";
+  private static final String LOCK_FILE = "log.lock";
+  // A record is its payload's length and checksum, then the payload.
+  private static final int HEADER_BYTES = 8;
+  // The acknowledged offset is kept twice, each copy with its complement.
+  private static final int ACK_SLOT_BYTES = 16;
+  private static final byte TYPE_SMS = 1;
+  private static final byte TYPE_GROUP = 2;
+  private static final byte FLAG_FLASH = 1;
+  private final File directory;
+  private final int segmentSize;
+  private final long commitInterval;
+  private final RandomAccessFile lockFile;
+  private final FileLock lock;
+  private final RandomAccessFile ackFile;
+  private final MappedByteBuffer ackBuffer;
+  // The segments, by the offset of their first entry.
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  // Guarded by this: the segment appended to and the segments rolled over
+  // since the last commit.
+  private Segment current;
+  private final List<Segment> dirty = new ArrayList<>();
+  private final CRC32 crc = new CRC32();
+  // The offset the next append gets; published after the entry is written.
+  private volatile long nextOffset;
+  // The offset of the first entry not acknowledged.
+  private volatile long ackedOffset;
+  // Guards the fields below, and lets sync wait for commits.
+  private final Object commitLock = new Object();
+  private long committedOffset;
+  private long committedAck;
+  private int waiting;
+  private int ackSlot;
+  // Serializes the commits.
+  private final Object forceLock = new Object();
+  private volatile boolean closed;
+  private final Thread committer;
+
+  /**
+   * Opens the log in the directory specified, creating it if needed, with the
+   * default segment size and commit interval.
+   *
+   * @param directory The directory holding the log.
+   * @throws IOException if the log cannot be opened or is used by another
+   * process.
+   */
+  public OutboundLog(final File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL);
+  }
+
+  /**
+   * Opens the log in the directory specified, creating it if needed.
+   *
+   * @param directory The directory holding the log.
+   * @param segmentSize The size of each segment file, in bytes.
+   * @param commitInterval The longest time, in milliseconds, an append waits
+   * to be made durable when nobody syncs it.
+   * @throws IOException if the log cannot be opened or is used by another
+   * process.
+   */
+  public OutboundLog(
+          final File directory,
+          final int segmentSize,
+          final long commitInterval) throws IOException {
+    if (directory == null) {
+      throw new NullPointerException("directory cannot be null.");
+    }
+
+    if ((segmentSize < 1024) || (commitInterval < 1)) {
+      throw new IllegalArgumentException("Invalid segment size or commit interval.");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.commitInterval = commitInterval;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create the directory " + directory);
+    }
+    lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+    FileLock acquired;
+
+    try {
+      acquired = lockFile.getChannel().tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Held by this process.
+      acquired = null;
+    }
+    lock = acquired;
+
+    if (lock == null) {
+      lockFile.close();
+      throw new IOException("The log in " + directory + " is used by another process.");
+    }
+    ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+    ackBuffer = ackFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * ACK_SLOT_BYTES);
+    recover();
+
+    committer = new Thread(this::runCommitter, "bbn-outbound-log-commit");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  /*
+   * Loads the segments and the acknowledged offset, discarding a torn write
+   * at the end of the log.
+   */
+  private void recover() throws IOException {
+    long acked = readAck();
+    final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+
+    if (files != null) {
+      for (File file : files) {
+        final String name = file.getName();
+
+        try {
+          final long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(base, new Segment(base, file, (int) file.length()));
+        } catch (NumberFormatException e) {
+          LOGGER.log(Level.WARNING, "Ignoring the unexpected file {0}.", file);
+        }
+      }
+    }
+
+    if (segments.isEmpty()) {
+      current = newSegment(acked, segmentSize);
+      nextOffset = acked;
+    } else {
+      current = segments.lastEntry().getValue();
+      nextOffset = current.base + current.recover();
+    }
+
+    if (acked > nextOffset) {
+      LOGGER.log(Level.WARNING, "The acknowledged offset {0} is past the end of the log.", acked);
+      acked = nextOffset;
+    }
+    ackedOffset = acked;
+    committedOffset = nextOffset;
+    committedAck = acked;
+    deleteAcked(acked);
+  }
+
+  /**
+   * Appends a message to the log.
+   *
+   * @param sms The message.
+   * @param ccode The country code to send it with.
+   * @param flash True to send it as a flash message.
+   * @return long the offset of the entry.
+   * @throws IOException if the log is closed or the entry can't be written.
+   */
+  public long append(final SMS sms, final String ccode, final boolean flash) throws IOException {
+    final byte[][] strings = {
+      bytes(ccode), bytes(sms.getSender()), bytes(sms.getMessage()), bytes(sms.getMobile())};
+    return append(encode(TYPE_SMS, flash, strings));
+  }
+
+  /**
+   * Appends a group message to the log.
+   *
+   * @param smsGroup The group.
+   * @param ccode The country code to send it with.
+   * @param flash True to send it as a flash message.
+   * @return long the offset of the entry.
+   * @throws IOException if the log is closed or the entry can't be written.
+   */
+  public long append(
+          final SmsGroup smsGroup,
+          final String ccode,
+          final boolean flash) throws IOException {
+    final int count = smsGroup.getMobileCount();
+    final byte[][] strings = new byte[3 + count][];
+    strings[0] = bytes(ccode);
+    strings[1] = bytes(smsGroup.getSender());
+    strings[2] = bytes(smsGroup.getMessage());
+
+    for (int i = 0; i < count; i++) {
+      strings[3 + i] = bytes(smsGroup.getMobile(i));
+    }
+    return append(encode(TYPE_GROUP, flash, strings));
+  }
+
+  private synchronized long append(final byte[] payload) throws IOException {
+    if (closed) {
+      throw new IOException("The log is closed.");
+    }
+    final int size = HEADER_BYTES + payload.length;
+
+    if (current.buffer.position() + size > current.buffer.capacity()) {
+      // Roll over, leaving the rest of the segment zeroed as its end.
+      dirty.add(current);
+      current = newSegment(nextOffset, Math.max(segmentSize, size));
+    }
+    crc.reset();
+    crc.update(payload, 0, payload.length);
+    final MappedByteBuffer buffer = current.buffer;
+    buffer.putInt(payload.length);
+    buffer.putInt((int) crc.getValue());
+    buffer.put(payload);
+    final long offset = nextOffset;
+    nextOffset = offset + 1;
+    return offset;
+  }
+
+  /*
+   * Lays out a payload: type, flags, then the strings, each as its length
+   * (-1 for null) and UTF-8 bytes. Groups have the number of recipients
+   * before their numbers.
+   */
+  private static byte[] encode(final byte type, final boolean flash, final byte[][] strings) {
+    int length = 2 + ((type == TYPE_GROUP) ? 4 : 0);
+
+    for (byte[] string : strings) {
+      length += 4 + ((string != null) ? string.length : 0);
+    }
+    final ByteBuffer payload = ByteBuffer.allocate(length);
+    payload.put(type).put(flash ? FLAG_FLASH : 0);
+
+    for (int i = 0; i < strings.length; i++) {
+      if ((type == TYPE_GROUP) && (i == 3)) {
+        payload.putInt(strings.length - 3);
+      }
+      putString(payload, strings[i]);
+    }
+
+    if ((type == TYPE_GROUP) && (strings.length == 3)) {
+      payload.putInt(0);
+    }
+    return payload.array();
+  }
+
+  private static void putString(final ByteBuffer payload, final byte[] string) {
+    if (string == null) {
+      payload.putInt(-1);
+    } else {
+      payload.putInt(string.length).put(string);
+    }
+  }
+
+  private static byte[] bytes(final String value) {
+    return (value != null) ? value.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Waits until the entry at the offset, and every entry before it, is
+   * durable.
+   *
+   * @param offset The offset of the entry.
+   * @throws IOException if the log is closed before the entry is durable.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void sync(final long offset) throws IOException, InterruptedException {
+    if (offset >= nextOffset) {
+      throw new IllegalArgumentException("No entry has been appended at " + offset + ".");
+    }
+
+    synchronized (commitLock) {
+      waiting++;
+
+      try {
+        commitLock.notifyAll();
+
+        while (committedOffset <= offset) {
+          if (closed) {
+            throw new IOException("The log was closed before the entry was committed.");
+          }
+          commitLock.wait();
+        }
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+  /**
+   * Acknowledges the entries up to and including the offset, which won't be
+   * read again once the acknowledgement is committed.
+   *
+   * @param offset The offset of the last entry sent.
+   */
+  public synchronized void ack(final long offset) {
+    if (offset >= nextOffset) {
+      throw new IllegalArgumentException("No entry has been appended at " + offset + ".");
+    }
+    ackedOffset = Math.max(ackedOffset, offset + 1);
+  }
+
+  /**
+   * Makes every entry appended and every acknowledgement made so far durable,
+   * and deletes the segments whose entries have all been acknowledged.
+   *
+   * @throws IOException if the segments can't be written.
+   */
+  public void commit() throws IOException {
+    synchronized (forceLock) {
+      final long target;
+      final List<Segment> toForce;
+
+      synchronized (this) {
+        target = nextOffset;
+        toForce = new ArrayList<>(dirty);
+        toForce.add(current);
+        dirty.clear();
+      }
+      final long acked = ackedOffset;
+      final long lastTarget;
+      final long lastAck;
+
+      synchronized (commitLock) {
+        lastTarget = committedOffset;
+        lastAck = committedAck;
+      }
+
+      if (target != lastTarget) {
+        for (Segment segment : toForce) {
+          segment.buffer.force();
+        }
+      }
+
+      if (acked != lastAck) {
+        writeAck(acked);
+      }
+
+      synchronized (commitLock) {
+        committedOffset = Math.max(committedOffset, target);
+        committedAck = acked;
+        commitLock.notifyAll();
+      }
+
+      if (acked != lastAck) {
+        deleteAcked(acked);
+      }
+    }
+  }
+
+  private void runCommitter() {
+    while (true) {
+      synchronized (commitLock) {
+        if (!closed && (waiting == 0)) {
+          try {
+            commitLock.wait(commitInterval);
+          } catch (InterruptedException e) {
+            // Closing: commit once more below.
+          }
+        }
+      }
+
+      try {
+        commit();
+      } catch (IOException e) {
+        LOGGER.log(Level.SEVERE, "The outbound log could not be committed.", e);
+      }
+
+      if (closed) {
+        return;
+      }
+    }
+  }
+
+  /*
+   * Writes the acknowledged offset to the slot not holding the last one, so
+   * a torn write leaves the previous offset readable.
+   */
+  private void writeAck(final long acked) {
+    ackSlot = 1 - ackSlot;
+    final int position = ackSlot * ACK_SLOT_BYTES;
+    ackBuffer.putLong(position, acked);
+    ackBuffer.putLong(position + 8, ~acked);
+    ackBuffer.force();
+  }
+
+  private long readAck() {
+    long acked = 0;
+
+    for (int slot = 0; slot < 2; slot++) {
+      final long value = ackBuffer.getLong(slot * ACK_SLOT_BYTES);
+
+      if ((ackBuffer.getLong(slot * ACK_SLOT_BYTES + 8) == ~value) && (value >= acked)) {
+        acked = value;
+        ackSlot = slot;
+      }
+    }
+    return acked;
+  }
+
+  /*
+   * Deletes the segments all of whose entries are below the acknowledged
+   * offset, other than the one appended to.
+   */
+  private void deleteAcked(final long acked) {
+    for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+      final Map.Entry<Long, Segment> next = segments.higherEntry(entry.getKey());
+
+      if ((next == null) || (next.getKey() > acked)) {
+        break;
+      }
+      segments.remove(entry.getKey());
+      entry.getValue().delete();
+    }
+  }
+
+  private Segment newSegment(final long base, final int size) throws IOException {
+    final Segment segment = new Segment(base,
+            new File(directory, String.format("%020d", base) + SEGMENT_SUFFIX), size);
+    segments.put(base, segment);
+    return segment;
+  }
+
+  /**
+   * Returns a reader positioned at the first entry not acknowledged.
+   *
+   * @return Reader
+   */
+  public Reader reader() {
+    return new Reader(ackedOffset);
+  }
+
+  /**
+   * Returns the offset the next entry appended will get.
+   *
+   * @return long
+   */
+  public long getNextOffset() {
+    return nextOffset;
+  }
+
+  /**
+   * Returns the offset of the first entry not acknowledged.
+   *
+   * @return long
+   */
+  public long getAckedOffset() {
+    return ackedOffset;
+  }
+
+  /**
+   * Returns the offset up to which (exclusive) entries are durable.
+   *
+   * @return long
+   */
+  public long getCommittedOffset() {
+    synchronized (commitLock) {
+      return committedOffset;
+    }
+  }
+
+  /**
+   * Returns the number of segment files the log is made of.
+   *
+   * @return int
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Commits the log and releases its files.
+   *
+   * @throws IOException if the log can't be committed.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+
+    synchronized (commitLock) {
+      commitLock.notifyAll();
+    }
+
+    try {
+      committer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      commit();
+    } finally {
+      for (Segment segment : segments.values()) {
+        segment.close();
+      }
+      ackFile.close();
+      lock.release();
+      lockFile.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "OutboundLog{" + "directory=" + directory + ", next=" + nextOffset
+            + ", acked=" + ackedOffset + ", segments=" + segments.size() + '}';
+  }
+
+  /**
+   * An entry of the log: a message or group message, with how to send it.
+   */
+  public static final class Entry {
+
+    private final long offset;
+    private final SMS sms;
+    private final SmsGroup smsGroup;
+    private final String ccode;
+    private final boolean flash;
+
+    private Entry(
+            final long offset,
+            final SMS sms,
+            final SmsGroup smsGroup,
+            final String ccode,
+            final boolean flash) {
+      this.offset = offset;
+      this.sms = sms;
+      this.smsGroup = smsGroup;
+      this.ccode = ccode;
+      this.flash = flash;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Returns the message, or null if the entry is a group message.
+     *
+     * @return SMS
+     */
+    public SMS getSms() {
+      return sms;
+    }
+
+    /**
+     * Returns the group message, or null if the entry is a single message.
+     *
+     * @return SmsGroup
+     */
+    public SmsGroup getSmsGroup() {
+      return smsGroup;
+    }
+
+    public String getCcode() {
+      return ccode;
+    }
+
+    public boolean isFlash() {
+      return flash;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "offset=" + offset + ", " + ((sms != null) ? sms : smsGroup) + '}';
+    }
+  }
+
+  /**
+   * Reads the entries of the log in order. A reader is used by one thread at
+   * a time; it sees entries as soon as they are appended, durable or not.
+   */
+  public final class Reader {
+
+    private Segment segment;
+    private ByteBuffer view;
+    private long offset;
+
+    private Reader(final long from) {
+      Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+
+      if (entry == null) {
+        entry = segments.firstEntry();
+      }
+      segment = entry.getValue();
+      view = segment.buffer.duplicate();
+      view.position(0);
+      offset = segment.base;
+
+      // Skip the entries before the one asked for.
+      while (offset < from) {
+        if (!advance()) {
+          break;
+        }
+        view.position(view.position() + HEADER_BYTES + view.getInt(view.position()));
+        offset++;
+      }
+    }
+
+    /**
+     * Returns up to max entries from the position of the reader, moving past
+     * them. Returns an empty list if no entry is left.
+     *
+     * @param max The most entries to return.
+     * @return List<Entry>
+     * @throws IOException if an entry is corrupt.
+     */
+    public List<Entry> poll(final int max) throws IOException {
+      final List<Entry> entries = new ArrayList<>(Math.min(max, 1024));
+      final CRC32 checksum = new CRC32();
+
+      while ((entries.size() < max) && advance()) {
+        final int length = view.getInt();
+        final int expected = view.getInt();
+        final byte[] payload = new byte[length];
+        view.get(payload);
+        checksum.reset();
+        checksum.update(payload, 0, length);
+
+        if ((int) checksum.getValue() != expected) {
+          throw new IOException("The entry at offset " + offset + " is corrupt.");
+        }
+        entries.add(decode(offset, ByteBuffer.wrap(payload)));
+        offset++;
+      }
+      return entries;
+    }
+
+    /*
+     * Moves to the segment holding the next entry, returning false if there
+     * is no next entry yet.
+     */
+    private boolean advance() {
+      if (offset >= nextOffset) {
+        return false;
+      }
+
+      while ((view.position() + HEADER_BYTES > view.capacity())
+              || (view.getInt(view.position()) == 0)) {
+        final Map.Entry<Long, Segment> next = segments.higherEntry(segment.base);
+
+        if (next == null) {
+          return false;
+        }
+        segment = next.getValue();
+        view = segment.buffer.duplicate();
+        view.position(0);
+      }
+      return true;
+    }
+
+    /**
+     * Returns the offset of the next entry the reader will return.
+     *
+     * @return long
+     */
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  private static Entry decode(final long offset, final ByteBuffer payload) {
+    final byte type = payload.get();
+    final boolean flash = (payload.get() & FLAG_FLASH) != 0;
+    final String ccode = getString(payload);
+    final String sender = getString(payload);
+    final String message = getString(payload);
+
+    if (type == TYPE_SMS) {
+      return new Entry(offset, new SMS(sender, getString(payload), message), null, ccode, flash);
+    }
+    final SmsGroup smsGroup = new SmsGroup(sender, message);
+    final int count = payload.getInt();
+
+    for (int i = 0; i < count; i++) {
+      smsGroup.addMobile(getString(payload));
+    }
+    return new Entry(offset, null, smsGroup, ccode, flash);
+  }
+
+  private static String getString(final ByteBuffer payload) {
+    final int length = payload.getInt();
+
+    if (length < 0) {
+      return null;
+    }
+    final String value = new String(payload.array(), payload.arrayOffset() + payload.position(),
+            length, StandardCharsets.UTF_8);
+    payload.position(payload.position() + length);
+    return value;
+  }
+
+  /*
+   * A segment file, mapped whole.
+   */
+  private static final class Segment {
+
+    private final long base;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+
+    private Segment(final long base, final File file, final int size) throws IOException {
+      this.base = base;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /*
+     * Finds the end of the entries, zeroing anything after the last entry
+     * whose checksum matches, and returns the number of entries.
+     */
+    private int recover() {
+      final CRC32 checksum = new CRC32();
+      int count = 0;
+      int position = 0;
+
+      while (position + HEADER_BYTES <= buffer.capacity()) {
+        final int length = buffer.getInt(position);
+
+        if ((length <= 0) || (position + HEADER_BYTES + length > buffer.capacity())) {
+          break;
+        }
+        final byte[] payload = new byte[length];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_BYTES);
+        view.get(payload);
+        checksum.reset();
+        checksum.update(payload, 0, length);
+
+        if ((int) checksum.getValue() != buffer.getInt(position + 4)) {
+          break;
+        }
+        position += HEADER_BYTES + length;
+        count++;
+      }
+
+      for (int i = position; i < buffer.capacity(); i++) {
+        if (buffer.get(i) != 0) {
+          LOGGER.log(Level.WARNING, "Discarding a torn write at the end of {0}.", file);
+
+          for (int j = i; j < buffer.capacity(); j++) {
+            buffer.put(j, (byte) 0);
+          }
+          buffer.force();
+          break;
+        }
+      }
+      buffer.position(position);
+      return count;
+    }
+
+    private void close() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, null, e);
+      }
+    }
+
+    private void delete() {
+      close();
+
+      if (!file.delete()) {
+        LOGGER.log(Level.WARNING, "Could not delete {0}.", file);
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.MessageTemplate;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Renders a template for every recipient of a campaign and groups the
+ * recipients by the text they get, so a personalised campaign is sent as one
+ * SmsGroup, and one sendBatchMessage request, per distinct text instead of
+ * one request per recipient.
+ *
+ * Large campaigns are rendered and grouped in parallel on a fork-join pool:
+ * each task groups a range of recipients, and the groups of neighbouring
+ * ranges are merged in order, so the recipients of each group, and the
+ * groups themselves, keep the order of the campaign.
+ */
+public class TemplateBatcher {
+
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+  // The template rendered for every recipient.
+  private final MessageTemplate template;
+  // The sender id of the groups.
+  private final String sender;
+  // The smallest number of recipients rendered in parallel, and in each task.
+  private final int parallelThreshold;
+  // Renders large campaigns.
+  private final ForkJoinPool pool;
+
+  /**
+   * Construct a batcher rendering large campaigns on the common pool.
+   *
+   * @param template The template rendered for every recipient.
+   * @param sender The sender id of the groups.
+   */
+  public TemplateBatcher(final MessageTemplate template, final String sender) {
+    this(template, sender, DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Construct a batcher.
+   *
+   * @param template The template rendered for every recipient.
+   * @param sender The sender id of the groups.
+   * @param parallelThreshold The number of recipients from which a campaign
+   * is rendered in parallel.
+   * @param pool The pool large campaigns are rendered on.
+   */
+  public TemplateBatcher(
+          final MessageTemplate template,
+          final String sender,
+          final int parallelThreshold,
+          final ForkJoinPool pool) {
+    if ((template == null) || (pool == null)) {
+      throw new NullPointerException("The template or pool cannot be null.");
+    }
+
+    if (parallelThreshold < 1) {
+      throw new IllegalArgumentException("parallelThreshold must be at least 1.");
+    }
+    this.template = template;
+    this.sender = sender;
+    this.parallelThreshold = parallelThreshold;
+    this.pool = pool;
+  }
+
+  /**
+   * Renders the template for every recipient and returns one group per
+   * distinct text, in the order the texts first occur.
+   *
+   * @param <T> The type of the recipients.
+   * @param recipients The recipients of the campaign.
+   * @param mobileOf Returns the mobile number of a recipient.
+   * @param variablesOf Returns the values of the template's variables for a
+   * recipient.
+   * @return List<SmsGroup>
+   * @throws IllegalArgumentException if a variable has no value for a
+   * recipient.
+   */
+  public <T> List<SmsGroup> group(
+          final List<T> recipients,
+          final Function<? super T, String> mobileOf,
+          final Function<? super T, ? extends Map<String, ?>> variablesOf) {
+    if ((mobileOf == null) || (variablesOf == null)) {
+      throw new NullPointerException("mobileOf or variablesOf cannot be null.");
+    }
+    final int count = recipients.size();
+    final Map<String, SmsGroup> groups = (count < parallelThreshold)
+            ? group(recipients, mobileOf, variablesOf, 0, count)
+            : pool.invoke(new GroupTask<>(recipients, mobileOf, variablesOf, 0, count));
+    return new ArrayList<>(groups.values());
+  }
+
+  /**
+   * Sends each group with sendBatchMessage, one request per group. A group
+   * which can't be sent doesn't stop the others: its exception is kept in
+   * its chunk of the result, which ChunkedBatchSender.retryFailed can send
+   * again.
+   *
+   * @param api The API used to send the groups.
+   * @param groups The groups to send, as returned by group.
+   * @param ccode The country code to send the groups with.
+   * @param flash True to send the messages as flash messages.
+   * @return BatchResult The result of each group, at the position of its
+   * first recipient among all the groups.
+   */
+  public BatchResult send(
+          final BbnApi api,
+          final List<SmsGroup> groups,
+          final String ccode,
+          final boolean flash) {
+    final List<BatchResult.Chunk> chunks = new ArrayList<>(groups.size());
+    int offset = 0;
+
+    for (SmsGroup group : groups) {
+      final long start = System.nanoTime();
+      Result<String> result = null;
+      IOException exception = null;
+
+      try {
+        result = api.sendBatchMessage(group, ccode, flash);
+      } catch (IOException e) {
+        exception = e;
+      }
+      chunks.add(new BatchResult.Chunk(offset, group, result, exception,
+              (System.nanoTime() - start) / 1000000L));
+      offset += group.getMobileCount();
+    }
+    return new BatchResult(chunks);
+  }
+
+  /*
+   * Renders and groups the recipients between the positions specified.
+   */
+  private <T> Map<String, SmsGroup> group(
+          final List<T> recipients,
+          final Function<? super T, String> mobileOf,
+          final Function<? super T, ? extends Map<String, ?>> variablesOf,
+          final int from,
+          final int to) {
+    final Map<String, SmsGroup> groups = new LinkedHashMap<>();
+
+    if (template.isConstant()) {
+      // Every recipient gets the same text, which needs no rendering.
+      final SmsGroup group = new SmsGroup(sender, template.render());
+
+      for (int i = from; i < to; i++) {
+        group.addMobile(mobileOf.apply(recipients.get(i)));
+      }
+      groups.put(group.getMessage(), group);
+      return groups;
+    }
+
+    for (int i = from; i < to; i++) {
+      final T recipient = recipients.get(i);
+      final String text = template.render(variablesOf.apply(recipient));
+      SmsGroup group = groups.get(text);
+
+      if (group == null) {
+        group = new SmsGroup(sender, text);
+        groups.put(text, group);
+      }
+      group.addMobile(mobileOf.apply(recipient));
+    }
+    return groups;
+  }
+
+  @Override
+  public String toString() {
+    return "TemplateBatcher{" + "template=" + template + ", sender=" + sender
+            + ", parallelThreshold=" + parallelThreshold + '}';
+  }
+
+  /*
+   * Groups a range of recipients, splitting it in two while it is above the
+   * parallel threshold.
+   */
+  private final class GroupTask<T> extends RecursiveTask<Map<String, SmsGroup>> {
+
+    private static final long serialVersionUID = 1L;
+    private final List<T> recipients;
+    private final Function<? super T, String> mobileOf;
+    private final Function<? super T, ? extends Map<String, ?>> variablesOf;
+    private final int from;
+    private final int to;
+
+    private GroupTask(
+            final List<T> recipients,
+            final Function<? super T, String> mobileOf,
+            final Function<? super T, ? extends Map<String, ?>> variablesOf,
+            final int from,
+            final int to) {
+      this.recipients = recipients;
+      this.mobileOf = mobileOf;
+      this.variablesOf = variablesOf;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Map<String, SmsGroup> compute() {
+      if (to - from <= parallelThreshold) {
+        return group(recipients, mobileOf, variablesOf, from, to);
+      }
+      final int middle = (from + to) >>> 1;
+      final GroupTask<T> left = new GroupTask<>(recipients, mobileOf, variablesOf, from, middle);
+      left.fork();
+      final Map<String, SmsGroup> right
+              = new GroupTask<>(recipients, mobileOf, variablesOf, middle, to).compute();
+      final Map<String, SmsGroup> joined = left.join();
+
+      // The recipients of the right range go after those of the left one.
+      for (Map.Entry<String, SmsGroup> entry : right.entrySet()) {
+        final SmsGroup group = joined.get(entry.getKey());
+
+        if (group == null) {
+          joined.put(entry.getKey(), entry.getValue());
+        } else {
+          group.addMobiles(entry.getValue());
+        }
+      }
+      return joined;
+    }
+  }
+}
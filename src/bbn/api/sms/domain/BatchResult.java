@@ -0,0 +1,181 @@
+package bbn.api.sms.domain;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the results of an SmsGroup sent in several chunks, one result per
+ * chunk, so that only the chunks which failed need to be sent again.
+ */
+public class BatchResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private final List<Chunk> chunks;
+
+  /**
+   * Construct a batch result from the results of its chunks.
+   *
+   * @param chunks The results of the chunks.
+   */
+  public BatchResult(List<Chunk> chunks) {
+    List<Chunk> sorted = new ArrayList<>(chunks);
+    Collections.sort(sorted, (a, b) -> Integer.compare(a.getOffset(), b.getOffset()));
+    this.chunks = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Returns the results of all the chunks, ordered by their offset.
+   *
+   * @return
+   */
+  public List<Chunk> getChunks() {
+    return chunks;
+  }
+
+  /**
+   * Returns the chunks which failed or were rejected by the BBN gateway.
+   *
+   * @return
+   */
+  public List<Chunk> getFailedChunks() {
+    List<Chunk> failed = new ArrayList<>();
+
+    for (Chunk chunk : chunks) {
+      if (chunk.isError()) {
+        failed.add(chunk);
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Returns the number of recipients in chunks that were sent successfully.
+   *
+   * @return
+   */
+  public int getSentCount() {
+    int sent = 0;
+
+    for (Chunk chunk : chunks) {
+      if (!chunk.isError()) {
+        sent += chunk.getGroup().getMobileCount();
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Returns true if any chunk failed.
+   *
+   * @return
+   */
+  public boolean isError() {
+    for (Chunk chunk : chunks) {
+      if (chunk.isError()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchResult{" + "chunks=" + chunks.size() + ", failed=" + getFailedChunks().size()
+            + ", sent=" + getSentCount() + '}';
+  }
+
+  /**
+   * The result of a single chunk of a batch.
+   */
+  public static class Chunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int offset;
+    private final SmsGroup group;
+    private final Result<String> result;
+    private final IOException exception;
+    private final long latency;
+
+    /**
+     * Construct the result of a chunk.
+     *
+     * @param offset The position of the chunk's first recipient in the batch.
+     * @param group The recipients and message of the chunk.
+     * @param result The result returned by the gateway, if any.
+     * @param exception The error which prevented the chunk being sent, if any.
+     * @param latency How long the chunk took to send, in milliseconds.
+     */
+    public Chunk(int offset, SmsGroup group, Result<String> result,
+            IOException exception, long latency) {
+      this.offset = offset;
+      this.group = group;
+      this.result = result;
+      this.exception = exception;
+      this.latency = latency;
+    }
+
+    /**
+     * Returns the position of the chunk's first recipient in the batch.
+     *
+     * @return
+     */
+    public int getOffset() {
+      return offset;
+    }
+
+    /**
+     * Returns the group holding the recipients of the chunk.
+     *
+     * @return
+     */
+    public SmsGroup getGroup() {
+      return group;
+    }
+
+    /**
+     * Returns the result returned by the gateway, or null if the chunk could
+     * not be sent.
+     *
+     * @return
+     */
+    public Result<String> getResult() {
+      return result;
+    }
+
+    /**
+     * Returns the error which prevented the chunk being sent, if any.
+     *
+     * @return
+     */
+    public IOException getException() {
+      return exception;
+    }
+
+    /**
+     * Returns how long the chunk took to send, in milliseconds.
+     *
+     * @return
+     */
+    public long getLatency() {
+      return latency;
+    }
+
+    /**
+     * Returns true if the chunk could not be sent or was rejected.
+     *
+     * @return
+     */
+    public boolean isError() {
+      return (result == null) || result.isError();
+    }
+
+    @Override
+    public String toString() {
+      return "Chunk{" + "offset=" + offset + ", size=" + group.getMobileCount()
+              + ", result=" + result + ", exception=" + exception + ", latency=" + latency + '}';
+    }
+  }
+}
@@ -1,10 +1,27 @@
 package bbn.api.sms.domain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * A group of recipients to send the same SMS to.
+ *
+ * Recipients are stored packed into a long each: numbers made of up to 17
+ * digits, optionally prefixed with '+', keep their digits, digit count and
+ * prefix in the long itself, while any other value is kept as a string and
+ * the long only refers to it. A group of 500k numbers therefore takes about
+ * 4MB instead of tens of megabytes of strings.
+ *
+ * The serialized form is still that of the original class, the recipients
+ * being written as a list of strings, so groups serialized by either
+ * version can be read by the other.
  *
  * @author Victor Igbokwe (vicsstar@yahoo.com)
  * @created Sep 23, 2012 at 4:28:20 AM
@@ -12,9 +29,26 @@ import java.util.List;
 public class SmsGroup implements Serializable {
 
   private static final long serialVersionUID = 1L;
+  // The fields of the original class, which the serialized form keeps.
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("sender", String.class),
+    new ObjectStreamField("mobileList", List.class),
+    new ObjectStreamField("message", String.class)
+  };
+  // The most digits a packed number can hold (10^17 < 2^57).
+  private static final int MAX_PACKED_DIGITS = 17;
+  private static final int LENGTH_SHIFT = 57;
+  private static final long PLUS_FLAG = 1L << 62;
+  private static final long DIGITS_MASK = (1L << LENGTH_SHIFT) - 1;
+  // Set on entries which refer to a value in the irregular list.
+  private static final long IRREGULAR_FLAG = Long.MIN_VALUE;
+
   private String sender;
-  private List<String> mobileList = new ArrayList<>();
+  private transient long[] mobiles = new long[16];
+  private transient int mobileCount;
+  private transient List<String> irregularMobiles;
   private String message;
+  private transient List<String> mobileListView;
 
   public SmsGroup() {
   }
@@ -31,21 +65,156 @@ public class SmsGroup implements Serializable {
   }
 
   /**
-   * Get the mobile number to send the SMS to.
+   * Get the mobile number to send the SMS to. The list is a view of the
+   * group's recipients: it can be changed like any list, and changes to it
+   * change the group. As with addMobile, adding null is ignored.
    *
    * @return
    */
   public List<String> getMobileList() {
-    return mobileList;
+    if (mobileListView == null) {
+      mobileListView = new MobileList();
+    }
+    return mobileListView;
+  }
+
+  /**
+   * Returns the number of recipients in the group.
+   *
+   * @return
+   */
+  public int getMobileCount() {
+    return mobileCount;
+  }
+
+  /**
+   * Returns the recipient at the position specified.
+   *
+   * @param index The position of the recipient.
+   * @return
+   */
+  public String getMobile(final int index) {
+    checkIndex(index);
+    final long entry = mobiles[index];
+
+    if ((entry & IRREGULAR_FLAG) != 0) {
+      return irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG));
+    }
+    final char[] chars = new char[lengthOf(entry)];
+    writePacked(entry, chars);
+    return new String(chars);
+  }
+
+  /**
+   * Returns the digits of the recipient at the position specified as a
+   * number, without decoding it. Leading zeros are only counted by
+   * getMobileDigitCount.
+   *
+   * @param index The position of the recipient.
+   * @return long the digits, or -1 if the recipient isn't made of up to 17
+   * digits after an optional '+'.
+   */
+  public long getMobileDigits(final int index) {
+    checkIndex(index);
+    final long entry = mobiles[index];
+    return ((entry & IRREGULAR_FLAG) != 0) ? -1 : entry & DIGITS_MASK;
+  }
+
+  /**
+   * Returns the number of digits, leading zeros included, of the recipient
+   * at the position specified, without decoding it. A recipient with one
+   * more character than digits starts with '+'.
+   *
+   * @param index The position of the recipient.
+   * @return int the number of digits, or -1 if the recipient isn't made of
+   * up to 17 digits after an optional '+'.
+   */
+  public int getMobileDigitCount(final int index) {
+    checkIndex(index);
+    final long entry = mobiles[index];
+    return ((entry & IRREGULAR_FLAG) != 0) ? -1 : (int) ((entry >>> LENGTH_SHIFT) & 0x1F);
+  }
+
+  /**
+   * Returns the number of characters in the recipient at the position
+   * specified, without decoding it.
+   *
+   * @param index The position of the recipient.
+   * @return
+   */
+  public int getMobileLength(final int index) {
+    checkIndex(index);
+    return lengthOf(mobiles[index]);
+  }
+
+  /**
+   * Returns true if the recipient at the position specified is made of
+   * digits only, after an optional leading '+', without decoding it.
+   *
+   * @param index The position of the recipient.
+   * @return boolean
+   */
+  public boolean isMobileNumeric(final int index) {
+    checkIndex(index);
+    final long entry = mobiles[index];
+
+    if ((entry & IRREGULAR_FLAG) == 0) {
+      return true;
+    }
+    final String mobile = irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG));
+    final int start = mobile.startsWith("+") ? 1 : 0;
+
+    for (int i = start; i < mobile.length(); i++) {
+      if ((mobile.charAt(i) < '0') || (mobile.charAt(i) > '9')) {
+        return false;
+      }
+    }
+    return mobile.length() > start;
   }
 
   public String getMobileListCommaSeparated() {
-    String mobileText = "";
+    int length = Math.max(0, mobileCount - 1);
+
+    for (int i = 0; i < mobileCount; i++) {
+      length += lengthOf(mobiles[i]);
+    }
+    final StringBuilder builder = new StringBuilder(length);
+
+    try {
+      appendMobileList(builder);
+    } catch (IOException e) {
+      // StringBuilder doesn't throw IOException.
+      throw new IllegalStateException(e);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Writes the recipients, separated with commas, to the output specified
+   * without building the whole list in memory.
+   *
+   * @param out The output to write to.
+   * @throws IOException if the output cannot be written to.
+   */
+  public void appendMobileList(final Appendable out) throws IOException {
+    final char[] chars = new char[MAX_PACKED_DIGITS + 1];
+
+    for (int i = 0; i < mobileCount; i++) {
+      if (i > 0) {
+        out.append(',');
+      }
+      final long entry = mobiles[i];
+
+      if ((entry & IRREGULAR_FLAG) != 0) {
+        out.append(irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)));
+      } else {
+        final int length = writePacked(entry, chars);
 
-    for (int i = 0; i < mobileList.size(); i++) {
-      mobileText += mobileList.get(i) + (i + 1 == mobileList.size() ? "" : ",");
+        for (int c = 0; c < length; c++) {
+          out.append(chars[c]);
+        }
+      }
     }
-    return mobileText;
   }
 
   /**
@@ -55,16 +224,108 @@ public class SmsGroup implements Serializable {
    */
   public void setMobileList(List<String> mobileList) {
     if (mobileList != null) {
-      this.mobileList.addAll(mobileList);
+      ensureCapacity(mobileCount + mobileList.size());
+
+      for (String mobile : mobileList) {
+        addMobile(mobile);
+      }
     }
   }
 
   public void addMobile(final String mobile) {
     if (mobile != null) {
-      mobileList.add(mobile);
+      ensureCapacity(mobileCount + 1);
+      mobiles[mobileCount++] = pack(mobile);
+    }
+  }
+
+  /**
+   * Adds a recipient in international (E.164) form, given as the digits of
+   * its country code and subscriber number, without creating a string for
+   * it. The recipient reads as the digits after a '+'.
+   *
+   * @param number The digits of the number, which never start with 0.
+   */
+  public void addInternational(final long number) {
+    // At most MAX_PACKED_DIGITS digits.
+    if ((number <= 0) || (number >= 100000000000000000L)) {
+      throw new IllegalArgumentException("Invalid international number: " + number);
+    }
+    int digits = 1;
+
+    // Compare rather than divide, which is much slower.
+    for (long power = 10; number >= power; power *= 10) {
+      digits++;
+    }
+    ensureCapacity(mobileCount + 1);
+    mobiles[mobileCount++] = PLUS_FLAG | ((long) digits << LENGTH_SHIFT) | number;
+  }
+
+  /**
+   * Adds a recipient of another group, copying it without decoding it.
+   *
+   * @param smsGroup The group holding the recipient.
+   * @param index The position of the recipient in that group.
+   */
+  public void addMobile(final SmsGroup smsGroup, final int index) {
+    smsGroup.checkIndex(index);
+    final long entry = smsGroup.mobiles[index];
+
+    if ((entry & IRREGULAR_FLAG) != 0) {
+      addMobile(smsGroup.irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)));
+    } else {
+      ensureCapacity(mobileCount + 1);
+      mobiles[mobileCount++] = entry;
+    }
+  }
+
+  /**
+   * Adds the recipients of another group after those of this one, copying
+   * numbers without decoding them.
+   *
+   * @param smsGroup The group whose recipients are added.
+   */
+  public void addMobiles(final SmsGroup smsGroup) {
+    ensureCapacity(mobileCount + smsGroup.mobileCount);
+
+    for (int i = 0; i < smsGroup.mobileCount; i++) {
+      final long entry = smsGroup.mobiles[i];
+
+      if ((entry & IRREGULAR_FLAG) != 0) {
+        addMobile(smsGroup.irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)));
+      } else {
+        mobiles[mobileCount++] = entry;
+      }
     }
   }
 
+  /**
+   * Returns a new group with the same sender and message holding the
+   * recipients between the positions specified.
+   *
+   * @param from The position of the first recipient, inclusive.
+   * @param to The position of the last recipient, exclusive.
+   * @return SmsGroup
+   */
+  public SmsGroup subGroup(final int from, final int to) {
+    if ((from < 0) || (to > mobileCount) || (from > to)) {
+      throw new IndexOutOfBoundsException("from: " + from + ", to: " + to + ", size: " + mobileCount);
+    }
+    final SmsGroup group = new SmsGroup(sender, message);
+    group.ensureCapacity(to - from);
+
+    for (int i = from; i < to; i++) {
+      final long entry = mobiles[i];
+
+      if ((entry & IRREGULAR_FLAG) != 0) {
+        group.addMobile(irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)));
+      } else {
+        group.mobiles[group.mobileCount++] = entry;
+      }
+    }
+    return group;
+  }
+
   public String getSender() {
     return sender;
   }
@@ -81,8 +342,238 @@ public class SmsGroup implements Serializable {
     this.message = message;
   }
 
+  private void ensureCapacity(final int capacity) {
+    if (capacity > mobiles.length) {
+      mobiles = Arrays.copyOf(mobiles, Math.max(capacity, mobiles.length * 2));
+    }
+  }
+
+  private void checkIndex(final int index) {
+    if ((index < 0) || (index >= mobileCount)) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mobileCount);
+    }
+  }
+
+  /*
+   * Drops the strings no recipient refers to any longer, rewriting the
+   * entries of those which still do.
+   */
+  private void compactIrregularMobiles() {
+    List<String> kept = null;
+
+    for (int i = 0; i < mobileCount; i++) {
+      final long entry = mobiles[i];
+
+      if ((entry & IRREGULAR_FLAG) != 0) {
+        if (kept == null) {
+          kept = new ArrayList<>();
+        }
+        kept.add(irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)));
+        mobiles[i] = IRREGULAR_FLAG | (kept.size() - 1);
+      }
+    }
+    irregularMobiles = kept;
+  }
+
+  /*
+   * Returns the number of strings held for recipients which aren't packed.
+   */
+  int getIrregularMobileCount() {
+    return (irregularMobiles != null) ? irregularMobiles.size() : 0;
+  }
+
+  /*
+   * Packs a number into a long, or stores it as a string if it cannot be.
+   */
+  private long pack(final String mobile) {
+    final long entry = packNumber(mobile);
+
+    if (entry != IRREGULAR_FLAG) {
+      return entry;
+    }
+
+    if (irregularMobiles == null) {
+      irregularMobiles = new ArrayList<>();
+    }
+    irregularMobiles.add(mobile);
+    return IRREGULAR_FLAG | (irregularMobiles.size() - 1);
+  }
+
+  /*
+   * Packs a number into a long, returning IRREGULAR_FLAG alone if it isn't
+   * made of up to 17 digits after an optional '+'.
+   */
+  private static long packNumber(final String mobile) {
+    final int length = mobile.length();
+    final boolean plus = (length > 0) && (mobile.charAt(0) == '+');
+    final int digits = plus ? length - 1 : length;
+
+    if ((digits > 0) && (digits <= MAX_PACKED_DIGITS)) {
+      long value = 0;
+      int i = plus ? 1 : 0;
+
+      for (; i < length; i++) {
+        final char c = mobile.charAt(i);
+
+        if ((c < '0') || (c > '9')) {
+          break;
+        }
+        value = value * 10 + (c - '0');
+      }
+
+      if (i == length) {
+        return (plus ? PLUS_FLAG : 0) | ((long) digits << LENGTH_SHIFT) | value;
+      }
+    }
+    return IRREGULAR_FLAG;
+  }
+
+  private int lengthOf(final long entry) {
+    if ((entry & IRREGULAR_FLAG) != 0) {
+      return irregularMobiles.get((int) (entry & ~IRREGULAR_FLAG)).length();
+    }
+    final int digits = (int) ((entry >>> LENGTH_SHIFT) & 0x1F);
+    return ((entry & PLUS_FLAG) != 0) ? digits + 1 : digits;
+  }
+
+  /*
+   * Writes a packed number into the array, returning its length.
+   */
+  private static int writePacked(final long entry, final char[] chars) {
+    final int digits = (int) ((entry >>> LENGTH_SHIFT) & 0x1F);
+    final int start = ((entry & PLUS_FLAG) != 0) ? 1 : 0;
+    long value = entry & DIGITS_MASK;
+
+    if (start == 1) {
+      chars[0] = '+';
+    }
+
+    // Write from the last digit so leading zeros are kept.
+    for (int i = start + digits - 1; i >= start; i--) {
+      chars[i] = (char) ('0' + (value % 10));
+      value /= 10;
+    }
+    return start + digits;
+  }
+
+  /*
+   * Writes the fields of the original class, the recipients as a list of
+   * strings.
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    final ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("sender", sender);
+    fields.put("mobileList", new ArrayList<>(getMobileList()));
+    fields.put("message", message);
+    out.writeFields();
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+    final ObjectInputStream.GetField fields = in.readFields();
+    final List<?> mobileList = (List<?>) fields.get("mobileList", null);
+    sender = (String) fields.get("sender", null);
+    message = (String) fields.get("message", null);
+    mobiles = new long[Math.max(16, (mobileList != null) ? mobileList.size() : 0)];
+
+    if (mobileList != null) {
+      for (Object mobile : mobileList) {
+        addMobile((String) mobile);
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return "SmsGroup{" + "sender=" + sender + ", message=" + message + '}';
   }
+
+  /*
+   * A view of the recipients as strings.
+   */
+  private final class MobileList extends AbstractList<String> {
+
+    @Override
+    public String get(int index) {
+      return getMobile(index);
+    }
+
+    @Override
+    public int size() {
+      return mobileCount;
+    }
+
+    @Override
+    public boolean add(String mobile) {
+      if (mobile == null) {
+        return false;
+      }
+      addMobile(mobile);
+      modCount++;
+      return true;
+    }
+
+    @Override
+    public void add(int index, String mobile) {
+      if ((index < 0) || (index > mobileCount)) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mobileCount);
+      }
+
+      if (mobile == null) {
+        return;
+      }
+      final long entry = pack(mobile);
+      ensureCapacity(mobileCount + 1);
+      System.arraycopy(mobiles, index, mobiles, index + 1, mobileCount - index);
+      mobiles[index] = entry;
+      mobileCount++;
+      modCount++;
+    }
+
+    /*
+     * Replaces a recipient. A null recipient can't take a position, so it is
+     * refused rather than ignored.
+     */
+    @Override
+    public String set(int index, String mobile) {
+      if (mobile == null) {
+        throw new NullPointerException("mobile cannot be null.");
+      }
+      final String previous = getMobile(index);
+      final long entry = mobiles[index];
+      final long packed = packNumber(mobile);
+
+      if (packed != IRREGULAR_FLAG) {
+        mobiles[index] = packed;
+
+        if ((entry & IRREGULAR_FLAG) != 0) {
+          // Nothing refers to the string replaced any longer.
+          irregularMobiles.set((int) (entry & ~IRREGULAR_FLAG), null);
+        }
+      } else if ((entry & IRREGULAR_FLAG) != 0) {
+        // Reuse the slot of the string replaced.
+        irregularMobiles.set((int) (entry & ~IRREGULAR_FLAG), mobile);
+      } else {
+        mobiles[index] = pack(mobile);
+      }
+      return previous;
+    }
+
+    @Override
+    public String remove(int index) {
+      final String previous = getMobile(index);
+      removeRange(index, index + 1);
+      return previous;
+    }
+
+    @Override
+    protected void removeRange(int from, int to) {
+      System.arraycopy(mobiles, to, mobiles, from, mobileCount - to);
+      mobileCount -= to - from;
+
+      if (irregularMobiles != null) {
+        compactIrregularMobiles();
+      }
+      modCount++;
+    }
+  }
 }
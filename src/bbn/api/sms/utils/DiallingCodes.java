@@ -0,0 +1,343 @@
+package bbn.api.sms.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Classifies numbers in international (E.164) form by country, and
+ * optionally operator, from their longest known prefix.
+ *
+ * The prefixes are kept in a trie held in a single int array, ten child
+ * slots per node, so classifying a number is one array read per digit of
+ * its prefix, without allocating. The bundled table (dialling-codes.txt)
+ * holds every country calling code, the area codes telling the countries
+ * of +1 apart, and the operator prefixes of Nigeria; load reads a table of
+ * the same format from elsewhere.
+ */
+public final class DiallingCodes {
+
+  // The bundled table, next to this class.
+  private static final String DEFAULT_TABLE = "dialling-codes.txt";
+  private static final long[] POWERS_OF_TEN = new long[19];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  // The child of each node for each digit, at node * 10 + digit; 0 if there
+  // is none, the root (node 0) being nobody's child.
+  private final int[] children;
+  // The index in entries of the prefix ending at each node, -1 if none.
+  private final int[] matches;
+  private final Entry[] entries;
+  // The digits of the longest prefix.
+  private final int depth;
+
+  private DiallingCodes(
+          final int[] children,
+          final int[] matches,
+          final Entry[] entries,
+          final int depth) {
+    this.children = children;
+    this.matches = matches;
+    this.entries = entries;
+    this.depth = depth;
+  }
+
+  /**
+   * Returns the codes of the bundled table.
+   *
+   * @return DiallingCodes
+   */
+  public static DiallingCodes getDefault() {
+    return DefaultHolder.CODES;
+  }
+
+  /**
+   * Reads a table of codes: a line per prefix holding the country calling
+   * code, the national digits which follow it in the prefix ("-" for none),
+   * the country and, optionally, the operator. Blank lines and lines
+   * starting with '#' are skipped.
+   *
+   * @param in The table, in UTF-8. It is not closed.
+   * @return DiallingCodes
+   * @throws IOException if the table can't be read.
+   * @throws IllegalArgumentException if a line is malformed.
+   */
+  public static DiallingCodes load(final InputStream in) throws IOException {
+    final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, StandardCharsets.UTF_8));
+    final Builder builder = new Builder();
+    String line;
+    int number = 0;
+
+    while ((line = reader.readLine()) != null) {
+      number++;
+      line = line.trim();
+
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final String[] fields = line.split("\\s+", 4);
+
+      if ((fields.length < 3) || !isDigits(fields[0])
+              || (!"-".equals(fields[1]) && !isDigits(fields[1]))) {
+        throw new IllegalArgumentException("Malformed line " + number + ": " + line);
+      }
+      final String prefix = "-".equals(fields[1]) ? fields[0] : fields[0] + fields[1];
+      builder.add(new Entry(fields[0], prefix, fields[2],
+              (fields.length > 3) ? fields[3] : null));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the entry of the longest known prefix of a number.
+   *
+   * @param number The digits of the number in international form, as
+   * returned by MobileNormalizer.toE164.
+   * @return Entry the entry, or null if no prefix is known.
+   */
+  public Entry classify(final long number) {
+    if (number <= 0) {
+      return null;
+    }
+    final int digits = digitCount(number);
+    final int length = Math.min(digits, depth);
+    // Scale the number to 18 digits so each leading digit is taken off by
+    // dividing by a constant, which compiles to a multiplication, rather
+    // than by a power of ten chosen at run time.
+    long rest = (digits <= 18) ? number * POWERS_OF_TEN[18 - digits] : number / 10;
+    int node = 0;
+    int match = matches[0];
+
+    for (int i = 0; i < length; i++) {
+      final int digit = (int) (rest / 100000000000000000L);
+      rest = (rest - digit * 100000000000000000L) * 10;
+      node = children[node * 10 + digit];
+
+      if (node == 0) {
+        break;
+      }
+
+      if (matches[node] >= 0) {
+        match = matches[node];
+      }
+    }
+    return (match >= 0) ? entries[match] : null;
+  }
+
+  /**
+   * Returns the entry of the longest known prefix of a number in
+   * international form, with or without a leading '+'.
+   *
+   * @param number The number.
+   * @return Entry the entry, or null if no prefix is known or the number
+   * isn't made of digits.
+   */
+  public Entry classify(final CharSequence number) {
+    final int length = number.length();
+    int i = ((length > 0) && (number.charAt(0) == '+')) ? 1 : 0;
+    int node = 0;
+    int match = matches[0];
+
+    for (; i < length; i++) {
+      final int digit = number.charAt(i) - '0';
+
+      if ((digit < 0) || (digit > 9)) {
+        return null;
+      }
+
+      if (node >= 0) {
+        node = children[node * 10 + digit];
+
+        if (node == 0) {
+          // No longer prefix; the rest need only be digits.
+          node = -1;
+        } else if (matches[node] >= 0) {
+          match = matches[node];
+        }
+      }
+    }
+    return (match >= 0) ? entries[match] : null;
+  }
+
+  /**
+   * Returns the number of prefixes known.
+   *
+   * @return int
+   */
+  public int size() {
+    return entries.length;
+  }
+
+  /*
+   * Returns the number of digits of a positive value: estimated from its
+   * bit length (log10(2) ~ 1233 / 4096), then corrected by one comparison.
+   */
+  private static int digitCount(final long value) {
+    final int digits = ((64 - Long.numberOfLeadingZeros(value)) * 1233) >>> 12;
+    return (value >= POWERS_OF_TEN[digits]) ? digits + 1 : digits;
+  }
+
+  private static boolean isDigits(final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if ((value.charAt(i) < '0') || (value.charAt(i) > '9')) {
+        return false;
+      }
+    }
+    return !value.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "DiallingCodes{" + "prefixes=" + entries.length + ", nodes=" + matches.length + '}';
+  }
+
+  /**
+   * A known prefix: the country, and operator if known, of the numbers
+   * starting with it.
+   */
+  public static final class Entry {
+
+    private final String callingCode;
+    private final String prefix;
+    private final String country;
+    private final String operator;
+
+    private Entry(
+            final String callingCode,
+            final String prefix,
+            final String country,
+            final String operator) {
+      this.callingCode = callingCode;
+      this.prefix = prefix;
+      this.country = country;
+      this.operator = operator;
+    }
+
+    /**
+     * Returns the country calling code, as sent in the ccode parameter.
+     *
+     * @return String
+     */
+    public String getCallingCode() {
+      return callingCode;
+    }
+
+    /**
+     * Returns the digits of the prefix, calling code included.
+     *
+     * @return String
+     */
+    public String getPrefix() {
+      return prefix;
+    }
+
+    /**
+     * Returns the ISO 3166 code of the country.
+     *
+     * @return String
+     */
+    public String getCountry() {
+      return country;
+    }
+
+    /**
+     * Returns the operator the prefix belongs to, or null if it isn't
+     * known.
+     *
+     * @return String
+     */
+    public String getOperator() {
+      return operator;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "prefix=" + prefix + ", callingCode=" + callingCode
+              + ", country=" + country + ", operator=" + operator + '}';
+    }
+  }
+
+  /*
+   * Grows the trie while the table is read, then trims it.
+   */
+  private static final class Builder {
+
+    private int[] children = new int[10 * 64];
+    private int[] matches = new int[64];
+    private int nodes = 1;
+    private final List<Entry> entries = new ArrayList<>();
+    private int depth;
+
+    private Builder() {
+      Arrays.fill(matches, -1);
+    }
+
+    private void add(final Entry entry) {
+      final String prefix = entry.getPrefix();
+      int node = 0;
+
+      if (prefix.length() > MobileNormalizer.MAX_DIGITS) {
+        throw new IllegalArgumentException("Prefix too long: " + prefix);
+      }
+
+      for (int i = 0; i < prefix.length(); i++) {
+        final int slot = node * 10 + (prefix.charAt(i) - '0');
+
+        if (children[slot] == 0) {
+          if (nodes == matches.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+            matches = Arrays.copyOf(matches, matches.length * 2);
+            Arrays.fill(matches, nodes, matches.length, -1);
+          }
+          children[slot] = nodes++;
+        }
+        node = children[slot];
+      }
+
+      if (matches[node] >= 0) {
+        throw new IllegalArgumentException("Duplicate prefix: " + prefix);
+      }
+      matches[node] = entries.size();
+      entries.add(entry);
+      depth = Math.max(depth, prefix.length());
+    }
+
+    private DiallingCodes build() {
+      return new DiallingCodes(Arrays.copyOf(children, nodes * 10),
+              Arrays.copyOf(matches, nodes), entries.toArray(new Entry[0]), depth);
+    }
+  }
+
+  /*
+   * Loads the bundled table the first time it is needed.
+   */
+  private static final class DefaultHolder {
+
+    private static final DiallingCodes CODES;
+
+    static {
+      try (InputStream in = DiallingCodes.class.getResourceAsStream(DEFAULT_TABLE)) {
+        if (in == null) {
+          throw new IllegalStateException("Missing " + DEFAULT_TABLE);
+        }
+        CODES = load(in);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package bbn.api.sms.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an application/x-www-form-urlencoded request body straight to an
+ * OutputStream through a fixed-size buffer, so the memory used doesn't depend
+ * on the size of the parameter values. Values are encoded exactly as
+ * URLEncoder.encode(value, "UTF-8") encodes them.
+ *
+ * A writer created without an OutputStream only counts the bytes the body
+ * will take, which allows a request to be sent in fixed-length streaming mode.
+ */
+public class FormBodyWriter implements Appendable {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+  // The stream the body is written to, or null when only counting.
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int position;
+  // The number of bytes written so far.
+  private long length;
+  // True once the first parameter has been written.
+  private boolean started;
+  // A high surrogate waiting for its low surrogate.
+  private char pendingHighSurrogate;
+
+  /**
+   * Construct a writer which writes the body to the stream specified.
+   *
+   * @param out The stream to write to, or null to only count the bytes.
+   */
+  public FormBodyWriter(final OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Construct a writer which writes the body to the stream specified.
+   *
+   * @param out The stream to write to, or null to only count the bytes.
+   * @param bufferSize The size of the chunks written to the stream.
+   */
+  public FormBodyWriter(final OutputStream out, final int bufferSize) {
+    this.out = out;
+    this.buffer = new byte[(out != null) ? Math.max(16, bufferSize) : 16];
+  }
+
+  /**
+   * Writes a parameter with its value.
+   *
+   * @param name The name of the parameter.
+   * @param value The value of the parameter.
+   * @return FormBodyWriter
+   * @throws IOException if the body cannot be written.
+   */
+  public FormBodyWriter param(final String name, final Object value) throws IOException {
+    startParam(name);
+
+    if (value instanceof FormValue) {
+      ((FormValue) value).writeTo(this);
+    } else {
+      append(String.valueOf(value));
+    }
+    endValue();
+    return this;
+  }
+
+  /**
+   * Writes a parameter whose value is written by the FormValue specified.
+   *
+   * @param name The name of the parameter.
+   * @param value Writes the value of the parameter.
+   * @return FormBodyWriter
+   * @throws IOException if the body cannot be written.
+   */
+  public FormBodyWriter param(final String name, final FormValue value) throws IOException {
+    return param(name, (Object) value);
+  }
+
+  /**
+   * Writes parameters which are already form-encoded, such as those composed
+   * by URLComposer.
+   *
+   * @param encoded The encoded parameters, separated with '&amp;'.
+   * @return FormBodyWriter
+   * @throws IOException if the body cannot be written.
+   */
+  public FormBodyWriter encodedParams(final CharSequence encoded) throws IOException {
+    if (encoded.length() == 0) {
+      return this;
+    }
+
+    if (started) {
+      writeByte('&');
+    }
+    started = true;
+
+    for (int i = 0; i < encoded.length(); i++) {
+      writeByte(encoded.charAt(i));
+    }
+    return this;
+  }
+
+  private void startParam(final String name) throws IOException {
+    if (started) {
+      writeByte('&');
+    }
+    started = true;
+    append(name);
+    endValue();
+    writeByte('=');
+  }
+
+  private void endValue() throws IOException {
+    if (pendingHighSurrogate != 0) {
+      // A high surrogate without its low surrogate.
+      pendingHighSurrogate = 0;
+      writeEscaped('?');
+    }
+  }
+
+  @Override
+  public Appendable append(final CharSequence value) throws IOException {
+    final CharSequence text = (value != null) ? value : "null";
+    return append(text, 0, text.length());
+  }
+
+  @Override
+  public Appendable append(final CharSequence value, final int start, final int end)
+          throws IOException {
+    final CharSequence text = (value != null) ? value : "null";
+
+    for (int i = start; i < end; i++) {
+      append(text.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public Appendable append(final char c) throws IOException {
+    if (pendingHighSurrogate != 0) {
+      final char high = pendingHighSurrogate;
+      pendingHighSurrogate = 0;
+
+      if (Character.isLowSurrogate(c)) {
+        writeCodePoint(Character.toCodePoint(high, c));
+        return this;
+      }
+      writeEscaped('?');
+    }
+
+    if (c < 128) {
+      final byte type = FormEncoder.classOf(c);
+
+      if (type == FormEncoder.SAFE) {
+        writeByte(c);
+      } else if (type == FormEncoder.SPACE) {
+        writeByte('+');
+      } else {
+        writeEscaped(c);
+      }
+    } else if (Character.isHighSurrogate(c)) {
+      pendingHighSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      writeEscaped('?');
+    } else {
+      writeCodePoint(c);
+    }
+    return this;
+  }
+
+  /*
+   * Writes the UTF-8 bytes of a code point, each escaped as %XX.
+   */
+  private void writeCodePoint(final int codePoint) throws IOException {
+    if (codePoint < 0x80) {
+      writeEscaped(codePoint);
+    } else if (codePoint < 0x800) {
+      writeEscaped(0xC0 | (codePoint >> 6));
+      writeEscaped(0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      writeEscaped(0xE0 | (codePoint >> 12));
+      writeEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+      writeEscaped(0x80 | (codePoint & 0x3F));
+    } else {
+      writeEscaped(0xF0 | (codePoint >> 18));
+      writeEscaped(0x80 | ((codePoint >> 12) & 0x3F));
+      writeEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+      writeEscaped(0x80 | (codePoint & 0x3F));
+    }
+  }
+
+  private void writeEscaped(final int b) throws IOException {
+    writeByte('%');
+    writeByte(FormEncoder.HEX[(b >> 4) & 0xF]);
+    writeByte(FormEncoder.HEX[b & 0xF]);
+  }
+
+  private void writeByte(final int b) throws IOException {
+    length++;
+
+    if (out == null) {
+      return;
+    }
+
+    if (position == buffer.length) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  /**
+   * Writes whatever is left in the buffer to the stream.
+   *
+   * @throws IOException if the stream cannot be written to.
+   */
+  public void flush() throws IOException {
+    if ((out != null) && (position > 0)) {
+      out.write(buffer, 0, position);
+      position = 0;
+      out.flush();
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the body written (or counted) so far.
+   *
+   * @return long
+   */
+  public long getLength() {
+    return length;
+  }
+}
@@ -0,0 +1,153 @@
+package bbn.api.sms.utils;
+
+/**
+ * Encodes values for application/x-www-form-urlencoded requests, producing
+ * exactly what URLEncoder.encode(value, "UTF-8") produces without looking up
+ * the charset or creating intermediate strings and byte arrays.
+ *
+ * ASCII characters are classified with a lookup table, so the digits and
+ * commas most recipient lists are made of cost a single array read each.
+ */
+public final class FormEncoder {
+
+  // Classes of ASCII characters.
+  static final byte SAFE = 0;
+  static final byte SPACE = 1;
+  static final byte ESCAPE = 2;
+  static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  private static final byte[] ASCII_CLASS = new byte[128];
+
+  static {
+    for (int c = 0; c < 128; c++) {
+      final boolean safe = ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+              || ((c >= '0') && (c <= '9'))
+              || (c == '.') || (c == '-') || (c == '*') || (c == '_');
+      ASCII_CLASS[c] = safe ? SAFE : ((c == ' ') ? SPACE : ESCAPE);
+    }
+  }
+
+  private FormEncoder() {
+  }
+
+  /**
+   * Returns the class of an ASCII character: SAFE, SPACE or ESCAPE.
+   */
+  static byte classOf(final char c) {
+    return ASCII_CLASS[c];
+  }
+
+  /**
+   * Encodes the value.
+   *
+   * @param value The value to encode.
+   * @return String the encoded value.
+   */
+  public static String encode(final CharSequence value) {
+    return encode(value, new StringBuilder(encodedLength(value))).toString();
+  }
+
+  /**
+   * Appends the encoded value to the builder specified.
+   *
+   * @param value The value to encode.
+   * @param out The builder to append to.
+   * @return StringBuilder the builder given.
+   */
+  public static StringBuilder encode(final CharSequence value, final StringBuilder out) {
+    final int length = value.length();
+    int i = 0;
+
+    while (i < length) {
+      // Copy runs of safe characters, such as the digits of a number, at once.
+      final int runStart = i;
+      char c;
+
+      while ((i < length) && ((c = value.charAt(i)) < 128) && (ASCII_CLASS[c] == SAFE)) {
+        i++;
+      }
+
+      if (i > runStart) {
+        out.append(value, runStart, i);
+
+        if (i == length) {
+          break;
+        }
+      }
+      c = value.charAt(i++);
+
+      if (c < 128) {
+        if (ASCII_CLASS[c] == SPACE) {
+          out.append('+');
+        } else {
+          appendEscaped(c, out);
+        }
+      } else if (Character.isHighSurrogate(c)) {
+        if ((i < length) && Character.isLowSurrogate(value.charAt(i))) {
+          appendCodePoint(Character.toCodePoint(c, value.charAt(i++)), out);
+        } else {
+          appendEscaped('?', out);
+        }
+      } else if (Character.isLowSurrogate(c)) {
+        appendEscaped('?', out);
+      } else {
+        appendCodePoint(c, out);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Returns the length of the encoded value, without encoding it.
+   *
+   * @param value The value to measure.
+   * @return int
+   */
+  public static int encodedLength(final CharSequence value) {
+    final int length = value.length();
+    int encoded = 0;
+
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+
+      if (c < 128) {
+        encoded += (ASCII_CLASS[c] == ESCAPE) ? 3 : 1;
+      } else if (c < 0x800) {
+        encoded += 6;
+      } else if (Character.isHighSurrogate(c)
+              && (i + 1 < length) && Character.isLowSurrogate(value.charAt(i + 1))) {
+        encoded += 12;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        encoded += 3;
+      } else {
+        encoded += 9;
+      }
+    }
+    return encoded;
+  }
+
+  /*
+   * Appends the UTF-8 bytes of a code point, each escaped as %XX.
+   */
+  private static void appendCodePoint(final int codePoint, final StringBuilder out) {
+    if (codePoint < 0x80) {
+      appendEscaped(codePoint, out);
+    } else if (codePoint < 0x800) {
+      appendEscaped(0xC0 | (codePoint >> 6), out);
+      appendEscaped(0x80 | (codePoint & 0x3F), out);
+    } else if (codePoint < 0x10000) {
+      appendEscaped(0xE0 | (codePoint >> 12), out);
+      appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+      appendEscaped(0x80 | (codePoint & 0x3F), out);
+    } else {
+      appendEscaped(0xF0 | (codePoint >> 18), out);
+      appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), out);
+      appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+      appendEscaped(0x80 | (codePoint & 0x3F), out);
+    }
+  }
+
+  private static void appendEscaped(final int b, final StringBuilder out) {
+    out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+  }
+}
@@ -0,0 +1,18 @@
+package bbn.api.sms.utils;
+
+import java.io.IOException;
+
+/**
+ * A form parameter value which is written straight into the request body
+ * instead of being held in memory as a String.
+ */
+public interface FormValue {
+
+  /**
+   * Writes the unencoded value to the output specified.
+   *
+   * @param out The output to write to.
+   * @throws IOException if the output cannot be written to.
+   */
+  void writeTo(Appendable out) throws IOException;
+}
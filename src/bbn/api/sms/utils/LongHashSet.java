@@ -0,0 +1,160 @@
+package bbn.api.sms.utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs kept in a single array with open addressing and linear
+ * probing, so adding a value neither boxes it nor allocates an entry.
+ *
+ * The table is kept at most three quarters full and doubles when it would
+ * be fuller.
+ * 0 marks an empty slot, so whether 0 itself is in the set is kept apart.
+ * A set is used by one thread at a time.
+ */
+public class LongHashSet {
+
+  // The values, at the slot their hash points to or after it.
+  private long[] table;
+  // table.length - 1; the table's length is a power of two.
+  private int mask;
+  private int size;
+  private boolean containsZero;
+
+  /**
+   * Construct a set with room for 16 values before it grows.
+   */
+  public LongHashSet() {
+    this(16);
+  }
+
+  /**
+   * Construct a set with room for the values specified before it grows.
+   *
+   * @param expectedSize The number of values expected.
+   */
+  public LongHashSet(final int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("expectedSize cannot be negative.");
+    }
+    // The smallest power of two more than expectedSize / 0.75.
+    final long capacity = Math.max(4, Long.highestOneBit(expectedSize * 4L / 3) << 1);
+
+    if (capacity > (1 << 30)) {
+      throw new IllegalArgumentException("expectedSize is too large: " + expectedSize);
+    }
+    table = new long[(int) capacity];
+    mask = table.length - 1;
+  }
+
+  /**
+   * Adds a value.
+   *
+   * @param value The value.
+   * @return boolean true if the value wasn't in the set already.
+   */
+  public boolean add(final long value) {
+    if (value == 0) {
+      if (containsZero) {
+        return false;
+      }
+      containsZero = true;
+      size++;
+      return true;
+    }
+    int slot = slot(value);
+
+    while (table[slot] != 0) {
+      if (table[slot] == value) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = value;
+
+    if (++size > table.length - (table.length >>> 2)) {
+      grow();
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the value is in the set.
+   *
+   * @param value The value.
+   * @return boolean
+   */
+  public boolean contains(final long value) {
+    if (value == 0) {
+      return containsZero;
+    }
+    int slot = slot(value);
+
+    while (table[slot] != 0) {
+      if (table[slot] == value) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of values in the set.
+   *
+   * @return int
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes every value, keeping the table's capacity.
+   */
+  public void clear() {
+    Arrays.fill(table, 0);
+    containsZero = false;
+    size = 0;
+  }
+
+  /*
+   * Returns the slot a value's hash points to. Nearby numbers, such as
+   * consecutive mobiles, are spread across the table by mixing every bit.
+   */
+  private int slot(final long value) {
+    long hash = value;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return (int) hash & mask;
+  }
+
+  /*
+   * Doubles the table, placing every value again.
+   */
+  private void grow() {
+    if (table.length >= (1 << 30)) {
+      throw new IllegalStateException("The set cannot grow any further.");
+    }
+    final long[] old = table;
+    table = new long[old.length * 2];
+    mask = table.length - 1;
+
+    for (long value : old) {
+      if (value != 0) {
+        int slot = slot(value);
+
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LongHashSet{" + "size=" + size + ", capacity=" + table.length + '}';
+  }
+}
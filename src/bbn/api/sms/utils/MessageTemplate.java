@@ -0,0 +1,200 @@
+package bbn.api.sms.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message with placeholders, such as "Dear {name}, your code is {code}.",
+ * compiled once and rendered for each recipient.
+ *
+ * A placeholder is a variable name between braces; "{{" and "}}" stand for a
+ * literal brace. Compiling splits the template into the literal text around
+ * the placeholders, so rendering only looks the values up and copies the
+ * pieces into a buffer of the exact length, without parsing the template
+ * again. A compiled template is immutable and can be rendered from any
+ * number of threads.
+ */
+public final class MessageTemplate {
+
+  // The template as given.
+  private final String source;
+  // The text before each placeholder, and after the last one.
+  private final String[] literals;
+  // The index, in variables, of the variable each placeholder is replaced by.
+  private final int[] slots;
+  // The distinct variable names, in order of first use.
+  private final List<String> variables;
+  // The length of all the literal text together.
+  private final int literalLength;
+
+  private MessageTemplate(
+          final String source,
+          final String[] literals,
+          final int[] slots,
+          final List<String> variables) {
+    this.source = source;
+    this.literals = literals;
+    this.slots = slots;
+    this.variables = Collections.unmodifiableList(variables);
+    int length = 0;
+
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  /**
+   * Compiles a template.
+   *
+   * @param template The template text.
+   * @return MessageTemplate
+   * @throws IllegalArgumentException if a placeholder is not closed or has
+   * no name.
+   */
+  public static MessageTemplate compile(final String template) {
+    if (template == null) {
+      throw new NullPointerException("template cannot be null.");
+    }
+    final List<String> literals = new ArrayList<>();
+    final List<Integer> slots = new ArrayList<>();
+    final List<String> variables = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+    final int length = template.length();
+    int i = 0;
+
+    while (i < length) {
+      final char c = template.charAt(i);
+
+      if ((c == '{' || c == '}') && (i + 1 < length) && (template.charAt(i + 1) == c)) {
+        literal.append(c);
+        i += 2;
+      } else if (c == '{') {
+        final int end = template.indexOf('}', i + 1);
+
+        if (end < 0) {
+          throw new IllegalArgumentException("Unclosed placeholder at " + i + ": " + template);
+        }
+        final String name = template.substring(i + 1, end);
+
+        if (name.isEmpty() || (name.indexOf('{') >= 0)) {
+          throw new IllegalArgumentException("Invalid placeholder at " + i + ": " + template);
+        }
+        int slot = variables.indexOf(name);
+
+        if (slot < 0) {
+          slot = variables.size();
+          variables.add(name);
+        }
+        literals.add(literal.toString());
+        literal.setLength(0);
+        slots.add(slot);
+        i = end + 1;
+      } else {
+        literal.append(c);
+        i++;
+      }
+    }
+    literals.add(literal.toString());
+    final int[] slotArray = new int[slots.size()];
+
+    for (int s = 0; s < slotArray.length; s++) {
+      slotArray[s] = slots.get(s);
+    }
+    return new MessageTemplate(template, literals.toArray(new String[0]), slotArray, variables);
+  }
+
+  /**
+   * Returns the names of the variables the template uses, in order of first
+   * use.
+   *
+   * @return List<String>
+   */
+  public List<String> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Returns true if the template has no placeholders, so every recipient
+   * gets the same text.
+   *
+   * @return boolean
+   */
+  public boolean isConstant() {
+    return slots.length == 0;
+  }
+
+  /**
+   * Renders the template with the values of its variables.
+   *
+   * @param values The value of each variable, by name.
+   * @return String
+   * @throws IllegalArgumentException if a variable has no value.
+   */
+  public String render(final Map<String, ?> values) {
+    if (isConstant()) {
+      return literals[0];
+    }
+    final String[] resolved = new String[variables.size()];
+
+    for (int v = 0; v < resolved.length; v++) {
+      final Object value = values.get(variables.get(v));
+
+      if (value == null) {
+        throw new IllegalArgumentException("No value for {" + variables.get(v) + "}.");
+      }
+      resolved[v] = value.toString();
+    }
+    return join(resolved);
+  }
+
+  /**
+   * Renders the template with the values of its variables given in the
+   * order of getVariables, without looking them up by name.
+   *
+   * @param values The value of each variable.
+   * @return String
+   * @throws IllegalArgumentException if the number of values is wrong or a
+   * value is null.
+   */
+  public String render(final Object... values) {
+    if (values.length != variables.size()) {
+      throw new IllegalArgumentException("Expected " + variables.size()
+              + " values, got " + values.length + ".");
+    }
+    final String[] resolved = new String[values.length];
+
+    for (int v = 0; v < resolved.length; v++) {
+      if (values[v] == null) {
+        throw new IllegalArgumentException("No value for {" + variables.get(v) + "}.");
+      }
+      resolved[v] = values[v].toString();
+    }
+    return join(resolved);
+  }
+
+  /*
+   * Joins the literals and the values into a buffer of the exact length.
+   */
+  private String join(final String[] resolved) {
+    int length = literalLength;
+
+    for (int slot : slots) {
+      length += resolved[slot].length();
+    }
+    final StringBuilder builder = new StringBuilder(length);
+    builder.append(literals[0]);
+
+    for (int s = 0; s < slots.length; s++) {
+      builder.append(resolved[slots[s]]).append(literals[s + 1]);
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+}
@@ -0,0 +1,246 @@
+package bbn.api.sms.utils;
+
+import bbn.api.sms.domain.SmsGroup;
+
+/**
+ * Rewrites mobile numbers to international (E.164) form using the country
+ * code messages are sent with, so "0803 123 4567", "2348031234567" and
+ * "+234 803-123-4567" are all read as +2348031234567.
+ *
+ * A number is read, ignoring spaces, dashes, dots and brackets, as:
+ * <ul>
+ * <li>international if it starts with '+' or "00";</li>
+ * <li>national if it starts with a single 0 (the trunk prefix), which is
+ * replaced by the country code;</li>
+ * <li>international if it starts with the country code, and national
+ * otherwise, the country code being put in front of it.</li>
+ * </ul>
+ * The result must have 7 to 15 digits. Numbers are parsed into a long
+ * without creating strings, and a group's recipients are deduplicated with
+ * a LongHashSet of those longs.
+ */
+public class MobileNormalizer {
+
+  public static final int MIN_DIGITS = 7;
+  public static final int MAX_DIGITS = 15;
+  // The most digits read before a number is known to be too long.
+  private static final int MAX_READ_DIGITS = 18;
+  private static final long[] POWERS_OF_TEN = new long[MAX_READ_DIGITS + 1];
+  // The recipients of a group normalized before they are looked up.
+  private static final int BLOCK_SIZE = 256;
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  // The country code national numbers are sent to, 0 if there is none.
+  private final long ccode;
+  private final int ccodeDigits;
+
+  /**
+   * Construct a normalizer.
+   *
+   * @param ccode The country code, such as "234" or "+234", national
+   * numbers are sent to. If null or empty, only numbers already in
+   * international form can be normalized.
+   */
+  public MobileNormalizer(final String ccode) {
+    final String digits = ((ccode != null) && ccode.startsWith("+")) ? ccode.substring(1) : ccode;
+
+    if ((digits == null) || digits.isEmpty()) {
+      this.ccode = 0;
+      this.ccodeDigits = 0;
+      return;
+    }
+
+    if ((digits.length() > 3) || (digits.charAt(0) == '0')) {
+      throw new IllegalArgumentException("Invalid country code: " + ccode);
+    }
+    long value = 0;
+
+    for (int i = 0; i < digits.length(); i++) {
+      final char c = digits.charAt(i);
+
+      if ((c < '0') || (c > '9')) {
+        throw new IllegalArgumentException("Invalid country code: " + ccode);
+      }
+      value = value * 10 + (c - '0');
+    }
+    this.ccode = value;
+    this.ccodeDigits = digits.length();
+  }
+
+  /**
+   * Returns the digits of the number in international form, as a long.
+   *
+   * @param mobile The number.
+   * @return long the digits, or -1 if the number can't be normalized.
+   */
+  public long toE164(final CharSequence mobile) {
+    if (mobile == null) {
+      return -1;
+    }
+    final int length = mobile.length();
+    boolean plus = false;
+    int leadingZeros = 0;
+    int digits = 0;
+    long value = 0;
+
+    for (int i = 0; i < length; i++) {
+      final char c = mobile.charAt(i);
+
+      if ((c >= '0') && (c <= '9')) {
+        if (++digits > MAX_READ_DIGITS) {
+          return -1;
+        }
+
+        if ((value == 0) && (c == '0')) {
+          leadingZeros++;
+        }
+        value = value * 10 + (c - '0');
+      } else if ((c == '+') && (digits == 0) && !plus) {
+        plus = true;
+      } else if ((c != ' ') && (c != '-') && (c != '.') && (c != '(') && (c != ')')) {
+        return -1;
+      }
+    }
+    return toE164(plus, leadingZeros, digits, value);
+  }
+
+  /*
+   * Returns the digits of a number read as its digits (leading zeros
+   * included) and whether a '+' came before them.
+   */
+  private long toE164(
+          final boolean plus,
+          final int leadingZeros,
+          final int digits,
+          final long value) {
+    final int total;
+    final long number;
+
+    if (plus || (leadingZeros == 2)) {
+      // International; country codes don't start with 0.
+      if (leadingZeros != (plus ? 0 : 2)) {
+        return -1;
+      }
+      total = digits - leadingZeros;
+      number = value;
+    } else if (leadingZeros == 1) {
+      // National, after the trunk prefix.
+      total = digits - 1 + ccodeDigits;
+      number = national(value, digits - 1, total);
+    } else if (leadingZeros > 0) {
+      return -1;
+    } else if ((ccode != 0) && (digits > ccodeDigits)
+            && startsWithCcode(value, digits - ccodeDigits)) {
+      // International without the '+'.
+      total = digits;
+      number = value;
+    } else {
+      // National, without the trunk prefix.
+      total = digits + ccodeDigits;
+      number = national(value, digits, total);
+    }
+    return ((total >= MIN_DIGITS) && (total <= MAX_DIGITS)) ? number : -1;
+  }
+
+  /*
+   * Returns true if the value's leading digits, before the number of digits
+   * specified, are the country code. Compares rather than divides, which is
+   * much slower.
+   */
+  private boolean startsWithCcode(final long value, final int digits) {
+    return (value >= ccode * POWERS_OF_TEN[digits]) && (value < (ccode + 1) * POWERS_OF_TEN[digits]);
+  }
+
+  /*
+   * Puts the country code in front of a national number.
+   */
+  private long national(final long value, final int digits, final int total) {
+    return ((ccode != 0) && (total <= MAX_DIGITS)) ? ccode * POWERS_OF_TEN[digits] + value : -1;
+  }
+
+  /**
+   * Returns the number in international form, such as "+2348031234567".
+   *
+   * @param mobile The number.
+   * @return String the number, or null if it can't be normalized.
+   */
+  public String normalize(final CharSequence mobile) {
+    final long number = toE164(mobile);
+    return (number > 0) ? "+" + number : null;
+  }
+
+  /**
+   * Returns a group with the same sender and message whose recipients are
+   * those of the group specified in international form, each only once.
+   * Recipients which can't be normalized are kept as they are, to be
+   * reported by the validator.
+   *
+   * @param smsGroup The group.
+   * @return SmsGroup
+   */
+  public SmsGroup normalize(final SmsGroup smsGroup) {
+    final int count = smsGroup.getMobileCount();
+    final SmsGroup normalized = new SmsGroup(smsGroup.getSender(), smsGroup.getMessage());
+    final LongHashSet seen = new LongHashSet(count);
+    final long[] numbers = new long[Math.min(count, BLOCK_SIZE)];
+
+    // Normalize a block of recipients, then look them all up, so the set's
+    // cache misses overlap instead of waiting on each other.
+    for (int from = 0; from < count; from += BLOCK_SIZE) {
+      final int block = Math.min(BLOCK_SIZE, count - from);
+
+      for (int b = 0; b < block; b++) {
+        numbers[b] = toE164(smsGroup, from + b);
+      }
+
+      for (int b = 0; b < block; b++) {
+        if (numbers[b] < 0) {
+          normalized.addMobile(smsGroup.getMobile(from + b));
+        } else if (seen.add(numbers[b])) {
+          normalized.addInternational(numbers[b]);
+        }
+      }
+    }
+    return normalized;
+  }
+
+  /**
+   * Returns the digits of a group's recipient in international form,
+   * reading packed numbers directly instead of parsing them.
+   *
+   * @param smsGroup The group.
+   * @param index The index of the recipient.
+   * @return long the digits, or -1 if the number can't be normalized.
+   */
+  public long toE164(final SmsGroup smsGroup, final int index) {
+    final long value = smsGroup.getMobileDigits(index);
+
+    if (value < 0) {
+      return toE164(smsGroup.getMobile(index));
+    }
+    final int digits = smsGroup.getMobileDigitCount(index);
+    final boolean plus = smsGroup.getMobileLength(index) > digits;
+    return toE164(plus, digits - digitCount(value), digits, value);
+  }
+
+  /*
+   * Returns the number of digits of a value, 0 for 0: estimated from its
+   * bit length (log10(2) ~ 1233 / 4096), then corrected by one comparison.
+   */
+  private static int digitCount(final long value) {
+    final int digits = ((64 - Long.numberOfLeadingZeros(value)) * 1233) >>> 12;
+    return (value >= POWERS_OF_TEN[digits]) ? digits + 1 : digits;
+  }
+
+  @Override
+  public String toString() {
+    return "MobileNormalizer{" + "ccode=" + ((ccode != 0) ? String.valueOf(ccode) : "") + '}';
+  }
+}
@@ -0,0 +1,156 @@
+package bbn.api.sms.utils;
+
+/**
+ * Counts the segments (parts) a message is sent in.
+ *
+ * A message made only of characters of the GSM 03.38 alphabet is sent in
+ * GSM-7: 160 septets in a single segment, or 153 in each segment of a
+ * concatenated message. The characters of the extension table (such as € [ ]
+ * { } ~ ^ | and \) take two septets each. Any other character makes the whole
+ * message UCS-2: 70 UTF-16 units in a single segment, or 67 in each segment
+ * of a concatenated message. An extension character or a surrogate pair is
+ * never split across two segments.
+ *
+ * The count is taken in a single pass over the message, classifying each
+ * character with a lookup table, without allocating.
+ */
+public final class SmsSegments {
+
+  public static final int GSM_SINGLE = 160;
+  public static final int GSM_CONCATENATED = 153;
+  public static final int UCS2_SINGLE = 70;
+  public static final int UCS2_CONCATENATED = 67;
+  // The septets each character below 256 takes in GSM-7, 0 if it has none.
+  private static final byte[] LATIN1_SEPTETS = new byte[256];
+
+  static {
+    final String basic = "@£$¥èéùìòÇ\nØø\rÅå_ÆæßÉ !\"#¤%&'()*+,-./0123456789:;<=>?"
+            + "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§¿abcdefghijklmnopqrstuvwxyzäöñüà";
+
+    for (int i = 0; i < basic.length(); i++) {
+      LATIN1_SEPTETS[basic.charAt(i)] = 1;
+    }
+
+    for (char c : "\f^{}\\[~]|".toCharArray()) {
+      LATIN1_SEPTETS[c] = 2;
+    }
+  }
+
+  private SmsSegments() {
+  }
+
+  /**
+   * Returns the septets a character takes in GSM-7: 1 for the basic
+   * alphabet, 2 for the extension table, 0 if it can't be sent in GSM-7.
+   *
+   * @param c The character.
+   * @return int
+   */
+  public static int septets(final char c) {
+    if (c < 256) {
+      return LATIN1_SEPTETS[c];
+    }
+
+    switch (c) {
+      // The Greek capitals of the basic alphabet.
+      case 'Δ':
+      case 'Φ':
+      case 'Γ':
+      case 'Λ':
+      case 'Ω':
+      case 'Π':
+      case 'Ψ':
+      case 'Σ':
+      case 'Θ':
+      case 'Ξ':
+        return 1;
+      case '€':
+        return 2;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns true if the message can be sent in GSM-7.
+   *
+   * @param message The message.
+   * @return boolean
+   */
+  public static boolean isGsm7(final CharSequence message) {
+    final int length = message.length();
+
+    for (int i = 0; i < length; i++) {
+      if (septets(message.charAt(i)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of segments the message is sent in. An empty or null
+   * message takes one.
+   *
+   * @param message The message.
+   * @return int
+   */
+  public static int count(final CharSequence message) {
+    if (message == null) {
+      return 1;
+    }
+    final int length = message.length();
+    // The septets of the message, and those in the current concatenated
+    // segment, while it can still be sent in GSM-7.
+    int septets = 0;
+    int gsmSegments = 1;
+    int gsmUsed = 0;
+    int i = 0;
+
+    for (; i < length; i++) {
+      final char c = message.charAt(i);
+      final int width = (c < 256) ? LATIN1_SEPTETS[c] : septets(c);
+
+      if (width == 0) {
+        break;
+      }
+      septets += width;
+      gsmUsed += width;
+
+      if (gsmUsed > GSM_CONCATENATED) {
+        // An escape pair is never split, so it starts the next segment.
+        gsmSegments++;
+        gsmUsed = width;
+      }
+    }
+
+    if (i == length) {
+      return (septets <= GSM_SINGLE) ? 1 : gsmSegments;
+    }
+
+    if (length <= UCS2_SINGLE) {
+      return 1;
+    }
+    // UCS-2: every character so far took one unit, then fill the rest,
+    // never splitting a surrogate pair.
+    int ucsSegments = 1 + (i - 1) / UCS2_CONCATENATED;
+    int ucsUsed = i - (ucsSegments - 1) * UCS2_CONCATENATED;
+
+    for (; i < length; i++) {
+      int units = 1;
+
+      if (Character.isHighSurrogate(message.charAt(i)) && (i + 1 < length)
+              && Character.isLowSurrogate(message.charAt(i + 1))) {
+        units = 2;
+        i++;
+      }
+      ucsUsed += units;
+
+      if (ucsUsed > UCS2_CONCATENATED) {
+        ucsSegments++;
+        ucsUsed = units;
+      }
+    }
+    return ucsSegments;
+  }
+}
@@ -1,14 +1,11 @@
 package bbn.api.sms.utils;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,33 +28,45 @@ public class URLComposer {
       throw new NullPointerException("url cannot be null.");
     }
     this.url = url;
-    init();
+
+    try {
+      init(new URL(url));
+    } catch (IOException e) {
+      Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
+    }
   }
 
-  private void init() {
+  /**
+   * Construct a URLComposer from a URL which has already been parsed.
+   *
+   * @param url
+   */
+  public URLComposer(URL url) {
 
-    try {
-      URL u = new URL(url);
-      protocol = u.getProtocol();
-      protocol = (protocol == null) ? "" : protocol + "://";
-      path = u.getPath();
-      path = (path == null) ? "" : path;
-      url = u.getHost();
-      String query = u.getQuery();
-
-      if (query != null) {
-        String[] queries = query.split("&");
-
-        for (String q : queries) {
-          String[] qus = q.split("=");
-
-          if (qus.length >= 2) {
-            addParam(qus[0], qus[1]);
-          }
+    if (url == null) {
+      throw new NullPointerException("url cannot be null.");
+    }
+    init(url);
+  }
+
+  private void init(final URL u) {
+    protocol = u.getProtocol();
+    protocol = (protocol == null) ? "" : protocol + "://";
+    path = u.getPath();
+    path = (path == null) ? "" : path;
+    url = (u.getPort() != -1) ? u.getHost() + ":" + u.getPort() : u.getHost();
+    String query = u.getQuery();
+
+    if (query != null) {
+      String[] queries = query.split("&");
+
+      for (String q : queries) {
+        String[] qus = q.split("=");
+
+        if (qus.length >= 2) {
+          addParam(qus[0], qus[1]);
         }
       }
-    } catch (IOException e) {
-      Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
     }
   }
 
@@ -136,94 +145,84 @@ public class URLComposer {
    * @return
    */
   public String getFullURL() {
-    StringBuilder builder = new StringBuilder();
+    final int pathLength = protocol.length() + url.length() + path.length() + 1;
+    StringBuilder builder = new StringBuilder(pathLength + encodedParamsLength(false));
     builder.append(protocol).append(url).append(path).append("?");
-    // Retrieve the parameter keys.
-    Set<String> keys = queryParams.keySet();
+    appendEncodedParams(builder, false);
+    return builder.toString();
+  }
+
+  /**
+   * Returns the request parameters as a request encoded string.
+   *
+   * @return
+   */
+  public String requestEncodedParams() {
+    // Construct a string builder sized to hold the encoded string.
+    StringBuilder builder = new StringBuilder(encodedParamsLength(true));
+    appendEncodedParams(builder, true);
+    return builder.toString();
+  }
+
+  /*
+   * Appends each key=value pair, separated with '&'. Keys are only encoded in
+   * request bodies, as they have always been.
+   */
+  private void appendEncodedParams(final StringBuilder builder, final boolean encodeKeys) {
+    boolean first = true;
 
-    for (String k : keys) {
-      Object value = queryParams.get(k);
+    for (Map.Entry<String, Object> param : queryParams.entrySet()) {
+      final Object value = param.getValue();
 
       if (value instanceof List) {
-        List valueList = (List) value;
-
-        for (Object v : valueList) {
-
-          try {
-            builder.append(k)
-                    .append("=")
-                    .append(URLEncoder.encode(String.valueOf(v),
-                    "UTF-8")).append("&");
-          } catch (UnsupportedEncodingException e) {
-            Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
-          }
+        for (Object v : (List) value) {
+          first = appendParam(builder, param.getKey(), v, encodeKeys, first);
         }
       } else {
-
-        try {
-          builder.append(k)
-                  .append("=")
-                  .append(URLEncoder.encode(String.valueOf(value),
-                  "UTF-8")).append("&");
-        } catch (UnsupportedEncodingException e) {
-          Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
-        }
+        first = appendParam(builder, param.getKey(), value, encodeKeys, first);
       }
     }
-    String fullUrl = builder.toString();
+  }
+
+  private static boolean appendParam(
+          final StringBuilder builder,
+          final String key,
+          final Object value,
+          final boolean encodeKey,
+          final boolean first) {
+    if (!first) {
+      builder.append('&');
+    }
 
-    if (fullUrl.endsWith("&")) {
-      fullUrl = fullUrl.substring(0, fullUrl.lastIndexOf("&"));
+    if (encodeKey) {
+      FormEncoder.encode(key, builder);
+    } else {
+      builder.append(key);
     }
-    return fullUrl;
+    builder.append('=');
+    FormEncoder.encode(String.valueOf(value), builder);
+    return false;
   }
 
-  /**
-   * Returns the request parameters as a request encoded string.
-   *
-   * @return
+  /*
+   * Returns the exact length of the encoded parameters.
    */
-  public String requestEncodedParams() {
-    // Construct a string builder to hold the encoded string.
-    StringBuilder builder = new StringBuilder();
-    // Retrieve the parameter keys.
-    Set<String> keys = queryParams.keySet();
+  private int encodedParamsLength(final boolean encodeKeys) {
+    int length = 0;
 
-    for (String k : keys) {
-      Object value = queryParams.get(k);
+    for (Map.Entry<String, Object> param : queryParams.entrySet()) {
+      final String key = param.getKey();
+      final int keyLength = (encodeKeys ? FormEncoder.encodedLength(key) : key.length()) + 2;
+      final Object value = param.getValue();
 
       if (value instanceof List) {
-        List valueList = (List) value;
-
-        for (Object v : valueList) {
-
-          try {
-            builder.append(URLEncoder.encode(k, "UTF-8"))
-                    .append("=")
-                    .append(URLEncoder.encode(String.valueOf(v),
-                    "UTF-8")).append("&");
-          } catch (UnsupportedEncodingException e) {
-            Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
-          }
+        for (Object v : (List) value) {
+          length += keyLength + FormEncoder.encodedLength(String.valueOf(v));
         }
       } else {
-
-        try {
-          builder.append(URLEncoder.encode(k, "UTF-8"))
-                  .append("=")
-                  .append(URLEncoder.encode(String.valueOf(value),
-                  "UTF-8")).append("&");
-        } catch (UnsupportedEncodingException e) {
-          Logger.getLogger(URLComposer.class.getName()).log(Level.SEVERE, null, e);
-        }
+        length += keyLength + FormEncoder.encodedLength(String.valueOf(value));
       }
     }
-
-    String encodedString = builder.toString();
-    // Remove any trailing '&' character.
-    if (encodedString.endsWith("&")) {
-      encodedString = encodedString.substring(0, encodedString.lastIndexOf("&"));
-    }
-    return encodedString;
+    return Math.max(0, length - 1);
   }
 }
@@ -0,0 +1,121 @@
+package bbn.api.sms;
+
+import bbn.api.sms.utils.FormValue;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsyncHttpTest {
+
+  private static StubGateway gateway;
+  private static String baseUrl;
+  private ExecutorService executor;
+  private AsyncHttp http;
+
+  public AsyncHttpTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    // Echoes the query string of GET requests and the body of POST requests.
+    gateway = new StubGateway(request -> request.getPath().equals("/large")
+            ? new String(new char[GatewayResponse.DEFAULT_MAX_BYTES + 1]).replace('\0', 'a')
+            : !request.getPath().equals("/echo") ? null
+            : "GET".equals(request.getMethod()) ? request.getQuery() : request.getBody());
+    baseUrl = gateway.getUrl();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    http = new AsyncHttp(executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Test of get method, of class AsyncHttp.
+   */
+  @Test
+  public void testGet() {
+    System.out.println("get");
+    Map<String, String> params = new HashMap<>();
+    params.put("username", "user123");
+    assertEquals("username=user123", http.get(baseUrl + "/echo", params).join().getText());
+  }
+
+  /**
+   * Test of post method, of class AsyncHttp.
+   */
+  @Test
+  public void testPost() {
+    System.out.println("post");
+    Map<String, String> params = new HashMap<>();
+    params.put("message", "Hello world");
+    assertEquals("message=Hello+world", http.post(baseUrl + "/echo", params).join().getText());
+  }
+
+  /**
+   * Test that streamed parameters are written into the body after the others.
+   */
+  @Test
+  public void testPostStreamed() {
+    System.out.println("post streamed");
+    Map<String, String> params = new HashMap<>();
+    params.put("message", "Hello world");
+    Map<String, FormValue> streamed = new HashMap<>();
+    streamed.put("mobile", out -> out.append("2347031234567,+2347030541644"));
+    Endpoint endpoint = new Endpoint(baseUrl + "/echo", 5000, 5000);
+
+    assertEquals("message=Hello+world&mobile=2347031234567%2C%2B2347030541644",
+            http.post(endpoint, params, streamed, Deadline.none()).join().getText());
+  }
+
+  /**
+   * Test that error responses complete the future exceptionally.
+   */
+  @Test
+  public void testErrorResponse() {
+    System.out.println("error response");
+
+    try {
+      http.post(baseUrl + "/missing", new HashMap<String, String>()).join();
+      fail("Expected the request to fail.");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  /**
+   * Test that a response larger than the maximum fails the request.
+   */
+  @Test
+  public void testLargeResponse() {
+    System.out.println("large response");
+
+    try {
+      http.get(baseUrl + "/large", new HashMap<String, String>()).join();
+      fail("Expected the request to fail.");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("larger than"));
+    }
+  }
+}
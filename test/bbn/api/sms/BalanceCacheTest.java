@@ -0,0 +1,157 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BalanceCacheTest {
+
+  private static StubGateway gateway;
+  // The requests made for balances and sends, and the answers given.
+  private static final AtomicInteger balanceRequests = new AtomicInteger();
+  private static final AtomicInteger sendRequests = new AtomicInteger();
+  private static volatile String balance = "10";
+  private static volatile String answer = "1801";
+  private static BbnApi api;
+
+  public BalanceCacheTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      if (request.getPath().endsWith("acctbals.php")) {
+        balanceRequests.incrementAndGet();
+        return balance;
+      }
+      sendRequests.incrementAndGet();
+      return answer;
+    });
+    Map<String, String> config = gateway.config();
+    config.put("bbn.balance.cache.enabled", "true");
+    api = BbnApi.newInstance(config);
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    api.getBalanceCache().clear();
+    balanceRequests.set(0);
+    sendRequests.set(0);
+    balance = "10";
+    answer = "1801";
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that the balance is fetched once and then answered from memory.
+   */
+  @Test
+  public void testGetBalance() throws Exception {
+    System.out.println("getBalance");
+    BalanceCache cache = api.getBalanceCache();
+    assertEquals(10f, cache.getBalance("user", "secret").getValue(), 0.001f);
+    assertEquals(10f, cache.getBalance("user", "secret").getValue(), 0.001f);
+    assertEquals(1, balanceRequests.get());
+    cache.debit("user", 3);
+    assertEquals(7, cache.getEstimate("user"), 0.001);
+    assertTrue(Double.isNaN(cache.getEstimate("nobody")));
+  }
+
+  /**
+   * Test that the estimate is refreshed in the background, less what was
+   * sent meanwhile.
+   */
+  @Test
+  public void testRefreshAhead() throws Exception {
+    System.out.println("refresh ahead");
+    BalanceCache cache = new BalanceCache(api, 400, 0.25, 1);
+    assertEquals(10f, cache.getBalance("user", "secret").getValue(), 0.001f);
+    balance = "50";
+    Thread.sleep(150);
+
+    // Still answered from memory, while the balance is fetched again.
+    assertEquals(10f, cache.getBalance("user", "secret").getValue(), 0.001f);
+    long waitUntil = System.currentTimeMillis() + 2000;
+
+    while ((cache.getEstimate("user") != 50) && (System.currentTimeMillis() < waitUntil)) {
+      Thread.sleep(10);
+    }
+    assertEquals(50, cache.getEstimate("user"), 0.001);
+    assertEquals(2, balanceRequests.get());
+  }
+
+  /**
+   * Test of cost method, of class BalanceCache.
+   */
+  @Test
+  public void testCost() {
+    System.out.println("cost");
+    BalanceCache cache = new BalanceCache(api, 1000, 0.5, 2);
+    assertEquals(2, cache.cost(1, "Hello"), 0.001);
+    assertEquals(6, cache.cost(3, "Hello"), 0.001);
+    assertEquals(4, cache.cost(1, new String(new char[161]).replace('\0', 'a')), 0.001);
+    assertEquals(2, cache.cost(1, new String(new char[71]).replace('\0', 'é')), 0.001);
+    assertEquals(4, cache.cost(1, new String(new char[71]).replace('\0', 'ж')), 0.001);
+  }
+
+  /**
+   * Test that sends the account can't pay for are refused without a
+   * request.
+   */
+  @Test
+  public void testInsufficientCredit() throws Exception {
+    System.out.println("insufficient credit");
+    balance = "3";
+    api.getBalanceCache().getBalance("user", "secret");
+
+    SmsGroup group = new SmsGroup("sender", "Hello");
+    group.addMobile("2347031234567");
+    group.addMobile("2348021234567");
+    assertFalse(api.sendBatchMessage(group, null, false, "user", "secret").isError());
+    assertEquals(1, api.getBalanceCache().getEstimate("user"), 0.001);
+    assertEquals(1804, api.sendBatchMessageAsync(group, null, false, "user", "secret")
+            .get(5, TimeUnit.SECONDS).getCode());
+    assertEquals(1, sendRequests.get());
+
+    SMS sms = new SMS("sender", "2347031234567", "Hello");
+    assertFalse(api.sendMessage(sms, null, false, "user", "secret").isError());
+    assertEquals(0, api.getBalanceCache().getEstimate("user"), 0.001);
+    Result<String> refused = api.sendMessage(sms, null, false, "user", "secret");
+    assertTrue(refused.isError());
+    assertEquals(1804, refused.getCode());
+    assertEquals(2, sendRequests.get());
+  }
+
+  /**
+   * Test that a 1804 from the gateway is remembered.
+   */
+  @Test
+  public void testExhausted() throws Exception {
+    System.out.println("exhausted");
+    api.getBalanceCache().getBalance("user", "secret");
+    answer = "1804";
+    SMS sms = new SMS("sender", "2347031234567", "Hello");
+    assertEquals(1804, api.sendMessageAsync(sms, null, false, "user", "secret")
+            .get(5, TimeUnit.SECONDS).getCode());
+    assertEquals(0, api.getBalanceCache().getEstimate("user"), 0.001);
+    assertEquals(1, sendRequests.get());
+  }
+}
@@ -0,0 +1,133 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BbnAccountsTest {
+
+  private static StubGateway gateway;
+  // Holds back the answers to the busy account.
+  private static final CountDownLatch busyReleased = new CountDownLatch(1);
+
+  public BbnAccountsTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    // Answers each account's balance with the length of "username=" and its
+    // name, holding back the busy account's.
+    gateway = new StubGateway(request -> {
+      String username = request.getParam("username");
+
+      if ("busy".equals(username)) {
+        try {
+          busyReleased.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return "1.5";
+      }
+      return (username == null) ? "0" : String.valueOf("username=".length() + username.length());
+    });
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static BbnApi account(String username, int port) throws IOException {
+    Map<String, String> config = new HashMap<>();
+    config.put("bbn.api.secure", "false");
+    config.put("bbn.request.uri.basic", "http://127.0.0.1:" + port + "/bulksms");
+    config.put(BBN.Params.USERNAME, username);
+    config.put(BBN.Params.PASSWORD, "secret");
+    return BbnApi.newInstance(config);
+  }
+
+  /**
+   * Test that instances don't share their configuration or pool.
+   */
+  @Test
+  public void testIsolation() throws IOException {
+    System.out.println("isolation");
+    BbnApi first = account("first", 1);
+    BbnApi second = account("second", 2);
+    assertNotSame(first, second);
+    assertNotSame(first.getConnectionManager(), second.getConnectionManager());
+    assertNotSame(first.getAsyncHttp(), second.getAsyncHttp());
+
+    first.setSecure(true);
+    assertTrue(first.isSecure());
+    assertFalse(second.isSecure());
+    assertEquals("second", second.getConfig(BBN.Params.USERNAME));
+    assertEquals("http://127.0.0.1:2/bulksms/acctbals.php",
+            second.getEndpoints().getAccountBalance().getUrl());
+
+    BbnApi.getInstance();
+    assertNotSame(BbnApi.defaultInstance(), first);
+    assertEquals("someone", BbnApi.forAccount("someone", "pw").getConfig(BBN.Params.USERNAME));
+  }
+
+  /**
+   * Test of checkBalances method, of class BbnAccounts.
+   */
+  @Test
+  public void testCheckBalances() throws Exception {
+    System.out.println("checkBalances");
+    int closedPort;
+
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closedPort = socket.getLocalPort();
+    }
+    int port = gateway.getPort();
+    BbnAccounts accounts = new BbnAccounts()
+            .add("a", account("a", port))
+            .add("bb", account("bb", port))
+            .add("busy", account("busy", port))
+            .add("down", account("down", closedPort));
+
+    // The busy account doesn't hold back the answers of the others.
+    CompletableFuture<Result<Float>> busy = accounts.get("busy").checkBalanceAsync();
+    Map<String, Result<Float>> early = new HashMap<>();
+
+    for (String name : new String[]{"a", "bb"}) {
+      early.put(name, accounts.get(name).checkBalanceAsync().get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(10.0f, early.get("a").getValue(), 0.0f);
+    assertEquals(11.0f, early.get("bb").getValue(), 0.0f);
+    assertFalse(busy.isDone());
+    busyReleased.countDown();
+    assertEquals(1.5f, busy.get(5, TimeUnit.SECONDS).getValue(), 0.0f);
+
+    Map<String, Result<Float>> balances = accounts.checkBalances();
+    assertEquals(4, balances.size());
+    assertEquals(10.0f, balances.get("a").getValue(), 0.0f);
+    assertEquals(11.0f, balances.get("bb").getValue(), 0.0f);
+    assertEquals(1.5f, balances.get("busy").getValue(), 0.0f);
+    assertFalse(balances.get("a").isError());
+    // A failed account gets an error result instead of failing the check.
+    assertTrue(balances.get("down").isError());
+    assertNull(balances.get("down").getValue());
+  }
+}
@@ -0,0 +1,146 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BbnApiConcurrencyTest {
+
+  private static final int WRITERS = 8;
+  private static final int READERS = 8;
+  private static final int KEYS_PER_WRITER = 500;
+  private static boolean secure;
+
+  public BbnApiConcurrencyTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    secure = BbnApi.getInstance().isSecure();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    BbnApi.defaultInstance().setSecure(secure);
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that getInstance always returns the same instance.
+   */
+  @Test
+  public void testGetInstance() throws Exception {
+    System.out.println("getInstance");
+    ExecutorService executor = Executors.newFixedThreadPool(READERS);
+    List<Future<BbnApi>> instances = new ArrayList<>();
+
+    try {
+      for (int i = 0; i < READERS * 4; i++) {
+        instances.add(executor.submit(new Callable<BbnApi>() {
+          @Override
+          public BbnApi call() throws IOException {
+            return BbnApi.getInstance();
+          }
+        }));
+      }
+
+      for (Future<BbnApi> instance : instances) {
+        assertSame(BbnApi.defaultInstance(), instance.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Test that no update is lost and readers always see a consistent config
+   * while several threads change it.
+   */
+  @Test
+  public void testAddConfig() throws Exception {
+    System.out.println("addConfig");
+    final BbnApi api = BbnApi.defaultInstance();
+    final ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    List<Future<?>> writers = new ArrayList<>();
+    List<Future<?>> readers = new ArrayList<>();
+
+    try {
+      for (int w = 0; w < WRITERS; w++) {
+        final int writer = w;
+        writers.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+
+            for (int k = 0; k < KEYS_PER_WRITER; k++) {
+              api.addConfig("stress." + writer + "." + k, String.valueOf(k));
+
+              if (k % 50 == 0) {
+                api.setSecure((k / 50) % 2 == 0);
+              }
+            }
+            return null;
+          }
+        }));
+      }
+
+      for (int r = 0; r < READERS; r++) {
+        readers.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+
+            while (writing.get()) {
+              assertEquals("/acctbals.php", api.getConfig("bbn.resource.uri.acctbals"));
+              String url = api.getEndpoints().getAccountBalance().getUrl();
+              assertTrue(url, url.endsWith("bulksms/acctbals.php"));
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+      writing.set(false);
+
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int w = 0; w < WRITERS; w++) {
+      for (int k = 0; k < KEYS_PER_WRITER; k++) {
+        assertEquals(String.valueOf(k), api.getConfig("stress." + w + "." + k));
+      }
+    }
+    // The endpoints follow the last secure state set.
+    api.setSecure(true);
+    assertTrue(api.getEndpoints().getAuth().getUrl().startsWith("https:"));
+  }
+}
@@ -0,0 +1,247 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  public CircuitBreakerTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static Result<String> answer(int code) {
+    Result<String> result = new Result<>("x");
+    result.setCode(code);
+    result.setError(code != 1801);
+    return result;
+  }
+
+  private static Result<String> refused() throws IOException {
+    throw new ConnectException("Connection refused");
+  }
+
+  private static List<String> record(CircuitBreaker breaker) {
+    final List<String> changes = Collections.synchronizedList(new ArrayList<String>());
+    breaker.addListener((source, from, to) -> changes.add(from + ">" + to));
+    return changes;
+  }
+
+  /**
+   * Test that the breaker opens on failures and then fails fast.
+   */
+  @Test
+  public void testOpen() throws IOException {
+    System.out.println("open");
+    CircuitBreaker breaker = new CircuitBreaker(50, 100, 10000, 4, 4, 60000, 1);
+    List<String> changes = record(breaker);
+
+    // Answers from the gateway, even errors, aren't failures.
+    breaker.execute(() -> answer(1801));
+    breaker.execute(() -> answer(1802));
+
+    try {
+      breaker.execute(() -> refused());
+      fail("ConnectException expected.");
+    } catch (ConnectException e) {
+      // expected.
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    // REQUEST_TIMEOUT is a failure.
+    breaker.execute(() -> answer(1800));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(Collections.singletonList("CLOSED>OPEN"), changes);
+
+    try {
+      breaker.execute(() -> answer(1801));
+      fail("CircuitOpenException expected.");
+    } catch (CircuitOpenException e) {
+      assertTrue(e.getRetryAfter() > 0);
+    }
+    assertFalse(breaker.isCallPermitted());
+    assertEquals(1, breaker.getRejectedCount());
+    assertEquals(1, breaker.getOpenCount());
+  }
+
+  /**
+   * Test that successful probes close the breaker and a failed one opens it.
+   */
+  @Test
+  public void testHalfOpen() throws Exception {
+    System.out.println("half open");
+    CircuitBreaker breaker = new CircuitBreaker(50, 100, 10000, 2, 2, 50, 2);
+    List<String> changes = record(breaker);
+
+    for (int i = 0; i < 2; i++) {
+      breaker.execute(() -> answer(1800));
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    Thread.sleep(100);
+    assertTrue(breaker.isCallPermitted());
+
+    // A failed probe opens the breaker again.
+    breaker.execute(() -> answer(1801));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.execute(() -> answer(1800));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    Thread.sleep(100);
+
+    // Only the probes are let through, and they close it.
+    CompletableFuture<Result<String>> pending = new CompletableFuture<>();
+    CompletableFuture<Result<String>> probe = breaker.executeAsync(() -> pending);
+    breaker.execute(() -> answer(1801));
+
+    try {
+      breaker.execute(() -> answer(1801));
+      fail("CircuitOpenException expected.");
+    } catch (CircuitOpenException e) {
+      // expected.
+    }
+    pending.complete(answer(1801));
+    assertEquals(1801, probe.get().getCode());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertEquals(List.of("CLOSED>OPEN", "OPEN>HALF_OPEN", "HALF_OPEN>OPEN",
+            "OPEN>HALF_OPEN", "HALF_OPEN>CLOSED"), changes);
+  }
+
+  /**
+   * Test that slow requests open the breaker.
+   */
+  @Test
+  public void testSlowCalls() throws IOException {
+    System.out.println("slow calls");
+    CircuitBreaker breaker = new CircuitBreaker(50, 50, 20, 2, 2, 60000, 1);
+
+    breaker.execute(() -> answer(1801));
+    breaker.execute(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return answer(1801);
+    });
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  /**
+   * Test of executeAsync method, of class CircuitBreaker.
+   */
+  @Test
+  public void testExecuteAsync() throws Exception {
+    System.out.println("executeAsync");
+    CircuitBreaker breaker = new CircuitBreaker(50, 100, 10000, 2, 2, 60000, 1);
+
+    // Cancelled requests aren't counted.
+    CompletableFuture<Result<String>> cancelled = new CompletableFuture<>();
+    breaker.executeAsync(() -> cancelled);
+    cancelled.cancel(true);
+    assertEquals(-1, breaker.getFailureRate(), 0.0);
+
+    for (int i = 0; i < 2; i++) {
+      CompletableFuture<Result<String>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new ConnectException("Connection refused"));
+      breaker.executeAsync(() -> failed);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    try {
+      breaker.executeAsync(() -> CompletableFuture.completedFuture(answer(1801))).get();
+      fail("CircuitOpenException expected.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CircuitOpenException);
+    }
+    breaker.reset();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  /**
+   * Test that the API fails fast once the gateway is down.
+   */
+  @Test
+  public void testApi() throws Exception {
+    System.out.println("api");
+    int closedPort;
+
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closedPort = socket.getLocalPort();
+    }
+    Map<String, String> config = new HashMap<>();
+    config.put("bbn.api.secure", "false");
+    config.put("bbn.request.uri.basic", "http://127.0.0.1:" + closedPort + "/bulksms");
+    config.put("bbn.retry.max_attempts", "1");
+    config.put("bbn.circuit.window_size", "2");
+    config.put("bbn.circuit.min_calls", "2");
+    BbnApi api = BbnApi.newInstance(config);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        api.checkBalance("user", "secret");
+        fail("ConnectException expected.");
+      } catch (ConnectException e) {
+        // expected.
+      }
+    }
+    assertEquals(CircuitBreaker.State.OPEN, api.getCircuitBreaker().getState());
+
+    try {
+      api.checkBalance("user", "secret");
+      fail("CircuitOpenException expected.");
+    } catch (CircuitOpenException e) {
+      // expected.
+    }
+
+    try {
+      api.checkBalanceAsync("user", "secret").get(5, TimeUnit.SECONDS);
+      fail("CircuitOpenException expected.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CircuitOpenException);
+    }
+
+    // Refused sends don't count against the send limiter.
+    SMS sms = new SMS();
+    sms.setSender("sender");
+    sms.setMobile("2347031234567");
+    sms.setMessage("Hello");
+
+    try {
+      api.sendMessage(sms, null, false, "user", "secret");
+      fail("CircuitOpenException expected.");
+    } catch (CircuitOpenException e) {
+      // expected.
+    }
+    assertEquals(0, api.getSendLimiter().getDecreaseCount());
+    assertEquals(0, api.getSendLimiter().getInFlight());
+  }
+}
@@ -0,0 +1,139 @@
+package bbn.api.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+  public ConcurrencyLimiterTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that requests beyond the limit wait in order.
+   */
+  @Test
+  public void testQueue() throws Exception {
+    System.out.println("queue");
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2);
+    ConcurrencyLimiter.Permit first = limiter.acquire();
+    ConcurrencyLimiter.Permit second = limiter.acquire();
+    CompletableFuture<ConcurrencyLimiter.Permit> third = limiter.acquireAsync();
+    CompletableFuture<ConcurrencyLimiter.Permit> fourth = limiter.acquireAsync();
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(2, limiter.getQueueDepth());
+    assertFalse(third.isDone());
+
+    first.release();
+    assertTrue(third.isDone());
+    assertFalse(fourth.isDone());
+    // Releasing twice has no effect.
+    first.release();
+    assertFalse(fourth.isDone());
+
+    // A cancelled waiter gives up its place.
+    assertTrue(fourth.cancel(false));
+    assertEquals(0, limiter.getQueueDepth());
+    second.release();
+    third.get().release();
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  /**
+   * Test that the limit grows while used and is cut once per round of drops.
+   */
+  @Test
+  public void testAdapt() throws Exception {
+    System.out.println("adapt");
+    // Latencies this short are all noise, so don't let them cut the limit.
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 0.5, 1000000);
+
+    for (int round = 0; round < 40; round++) {
+      List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+
+      for (int i = 0; i < limiter.getLimit(); i++) {
+        permits.add(limiter.acquire());
+      }
+
+      for (ConcurrencyLimiter.Permit permit : permits) {
+        permit.succeeded();
+      }
+    }
+    assertEquals(8, limiter.getLimit());
+
+    // Every request of a round times out: the limit is only halved once.
+    List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      permits.add(limiter.acquire());
+    }
+
+    for (ConcurrencyLimiter.Permit permit : permits) {
+      permit.dropped();
+    }
+    assertEquals(4, limiter.getLimit());
+    assertEquals(1, limiter.getDecreaseCount());
+
+    // Requests sent after the cut can cut it again, down to the minimum.
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire().dropped();
+    }
+    assertEquals(1, limiter.getLimit());
+  }
+
+  /**
+   * Test that a latency spike cuts the limit.
+   */
+  @Test
+  public void testLatencySpike() throws Exception {
+    System.out.println("latency spike");
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8, 0.5, 10);
+
+    for (int i = 0; i < 20; i++) {
+      ConcurrencyLimiter.Permit permit = limiter.acquire();
+      Thread.sleep(5);
+      permit.succeeded();
+    }
+    assertEquals(8, limiter.getLimit());
+    ConcurrencyLimiter.Permit slow = limiter.acquire();
+    Thread.sleep(250);
+    slow.succeeded();
+    assertEquals(4, limiter.getLimit());
+  }
+
+  /**
+   * Test that an unused limit doesn't grow.
+   */
+  @Test
+  public void testUnusedLimit() throws Exception {
+    System.out.println("unused limit");
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 20, 0.5, 1000000);
+
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire().succeeded();
+    }
+    assertEquals(10, limiter.getLimit());
+  }
+}
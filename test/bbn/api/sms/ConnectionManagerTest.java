@@ -0,0 +1,137 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+
+  private static StubGateway gateway;
+  private static String baseUrl;
+  private ConnectionManager manager;
+
+  public ConnectionManagerTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = StubGateway.answering("1801");
+    baseUrl = gateway.getUrl() + "/bulksms.php";
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    manager = new ConnectionManager(2, 100, 300000);
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of lease and release methods, of class ConnectionManager.
+   */
+  @Test
+  public void testLeaseAndRelease() throws Exception {
+    System.out.println("lease");
+    HttpURLConnection first = manager.lease(new URL(baseUrl));
+    HttpURLConnection second = manager.lease(new URL(baseUrl));
+    assertEquals(2, manager.getLeased());
+    manager.release(first, true);
+    manager.release(second, true);
+    assertEquals(0, manager.getLeased());
+    assertEquals(2, manager.getPeakLeased());
+    assertEquals(2, manager.getTotalLeases());
+  }
+
+  /**
+   * Test that a saturated pool gives up after the acquire timeout.
+   */
+  @Test
+  public void testSaturation() throws Exception {
+    System.out.println("saturation");
+    HttpURLConnection first = manager.lease(new URL(baseUrl));
+    HttpURLConnection second = manager.lease(new URL(baseUrl));
+
+    try {
+      manager.lease(new URL(baseUrl));
+      fail("Expected the pool to be exhausted.");
+    } catch (IOException e) {
+      assertEquals(1, manager.getWaitCount());
+      assertEquals(1, manager.getTimeoutCount());
+    } finally {
+      manager.release(first, true);
+      manager.release(second, true);
+    }
+    // A released connection can be leased again.
+    manager.release(manager.lease(new URL(baseUrl)), true);
+  }
+
+  /**
+   * Test of post method through a connection manager, of class Http.
+   */
+  @Test
+  public void testPostThroughPool() throws Exception {
+    System.out.println("post through pool");
+
+    for (int i = 0; i < 5; i++) {
+      Http http = new Http(baseUrl, manager);
+      http.addParam("mobile", "2347031234567");
+      assertEquals("1801", http.post().trim());
+    }
+    assertEquals(0, manager.getLeased());
+    assertEquals(5, manager.getTotalLeases());
+    assertEquals(0, manager.getDiscardedCount());
+  }
+
+  /**
+   * Test that each account keeps its own pool limits, whatever the
+   * JVM-wide keep-alive settings.
+   */
+  @Test
+  public void testFromConfigPerAccount() throws Exception {
+    System.out.println("fromConfig per account");
+    Map<String, String> config = new HashMap<>();
+    config.put("bbn.http.pool.max_per_host", "3");
+    config.put("bbn.http.pool.acquire_timeout", "100");
+    ConnectionManager first = BbnApi.newInstance(config).getConnectionManager();
+    config.put("bbn.http.pool.max_per_host", "7");
+    ConnectionManager second = BbnApi.newInstance(config).getConnectionManager();
+
+    assertEquals(3, first.getMaxPerHost());
+    assertEquals(7, second.getMaxPerHost());
+    URL url = new URL(baseUrl);
+    HttpURLConnection[] leased = new HttpURLConnection[3];
+
+    for (int i = 0; i < leased.length; i++) {
+      leased[i] = first.lease(url);
+    }
+
+    try {
+      first.lease(url);
+      fail("The first account's pool should be exhausted.");
+    } catch (IOException e) {
+      // Expected.
+    }
+    // The second account's pool is its own.
+    HttpURLConnection connection = second.lease(url);
+    second.release(connection, false);
+
+    for (HttpURLConnection lease : leased) {
+      first.release(lease, false);
+    }
+  }
+}
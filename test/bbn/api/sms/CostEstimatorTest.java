@@ -0,0 +1,90 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CostEstimatorTest {
+
+  public CostEstimatorTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of cost method, of class CostEstimator.
+   */
+  @Test
+  public void testCost() {
+    System.out.println("cost");
+    CostEstimator estimator = new CostEstimator(1.5);
+    SmsGroup group = new SmsGroup("Shop", new String(new char[200]).replace('\0', 'a'));
+    group.addMobile("2347030000001");
+    group.addMobile("2347030000002");
+    group.addMobile("2347030000003");
+
+    assertEquals(1.5, estimator.cost(new SMS("Shop", "2347030000001", "Hello")), 0.001);
+    assertEquals(9, estimator.cost(group), 0.001);
+    assertEquals(3, estimator.cost(1, new String(new char[71]).replace('\0', 'ж')), 0.001);
+  }
+
+  /**
+   * Test of the Estimate class, of class CostEstimator.
+   */
+  @Test
+  public void testEstimate() {
+    System.out.println("estimate");
+    CostEstimator.Estimate estimate = new CostEstimator(2).newEstimate();
+    SmsGroup group = new SmsGroup("Shop", "Hi");
+    group.addMobile("2347030000001");
+    group.addMobile("2347030000002");
+
+    estimate.add(new SMS("Shop", "2347030000001", new String(new char[161]).replace('\0', 'a')))
+            .add(group);
+    assertEquals(2, estimate.getMessages());
+    assertEquals(3, estimate.getRecipients());
+    assertEquals(4, estimate.getSegments());
+    assertEquals(8, estimate.getCost(), 0.001);
+    assertTrue(estimate.isCoveredBy(8));
+    assertFalse(estimate.isCoveredBy(7.5));
+  }
+
+  /**
+   * Test of fromConfig method, of class CostEstimator.
+   */
+  @Test
+  public void testFromConfig() throws Exception {
+    System.out.println("fromConfig");
+    Map<String, String> config = new HashMap<>();
+    config.put("bbn.balance.segment_cost", "0.5");
+
+    assertEquals(0.5, CostEstimator.fromConfig(BbnApi.newInstance(config)).getSegmentCost(), 0);
+
+    try {
+      new CostEstimator(-1);
+      fail("A negative segment cost should be refused.");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
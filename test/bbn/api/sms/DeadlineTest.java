@@ -0,0 +1,237 @@
+package bbn.api.sms;
+
+import bbn.api.sms.dispatch.ChunkedBatchSender;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DeadlineTest {
+
+  private static StubGateway gateway;
+  private static BbnApi api;
+
+  public DeadlineTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    // A gateway which takes two seconds to answer.
+    gateway = new StubGateway(request -> {
+      try {
+        Thread.sleep(2000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "1801";
+    });
+    api = BbnApi.newInstance(gateway.config());
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of the scopes of Deadline.
+   */
+  @Test
+  public void testScope() {
+    System.out.println("scope");
+    assertFalse(Deadline.current().isBounded());
+    assertEquals(0, Deadline.none().clamp(0));
+    assertEquals(500, Deadline.none().clamp(500));
+
+    Deadline outer = Deadline.after(Duration.ofSeconds(1));
+
+    Deadline.Scope scope = outer.enter();
+
+    try {
+      assertSame(outer, Deadline.current());
+      assertTrue(Deadline.current().clamp(0) <= 1000);
+      assertEquals(10, Deadline.current().clamp(10));
+
+      // An inner scope can't extend the deadline.
+      Deadline.Scope inner = Deadline.after(Duration.ofMinutes(1)).enter();
+
+      try {
+        assertSame(outer, Deadline.current());
+      } finally {
+        inner.close();
+      }
+      Deadline shorter = Deadline.after(10);
+      inner = shorter.enter();
+
+      try {
+        assertSame(shorter, Deadline.current());
+      } finally {
+        inner.close();
+      }
+      assertSame(outer, Deadline.current());
+    } finally {
+      scope.close();
+    }
+    assertFalse(Deadline.current().isBounded());
+    assertTrue(Deadline.after(-5).isExpired());
+  }
+
+  /**
+   * Test that the endpoints carry their timeouts.
+   */
+  @Test
+  public void testEndpointTimeouts() {
+    System.out.println("endpoint timeouts");
+    Endpoints endpoints = api.getEndpoints();
+    assertEquals(10000, endpoints.getAuth().getConnectTimeout());
+    assertEquals(30000, endpoints.getAuth().getReadTimeout());
+    assertEquals(60000, endpoints.getSendSms().getReadTimeout());
+    assertTrue(Endpoints.isEndpointKey("bbn.http.auth.read_timeout"));
+    assertFalse(Endpoints.isEndpointKey("bbn.http.pool.acquire_timeout"));
+  }
+
+  /**
+   * Test that a call doesn't outlive its deadline.
+   */
+  @Test
+  public void testCall() throws Exception {
+    System.out.println("call");
+    SMS sms = new SMS("sender", "2347031234567", "Hello");
+    long startedAt = System.nanoTime();
+
+    Deadline.Scope scope = Deadline.after(300).enter();
+
+    try {
+      api.sendMessage(sms, null, false);
+      fail("DeadlineExceededException expected.");
+    } catch (DeadlineExceededException e) {
+      // expected.
+    } finally {
+      scope.close();
+    }
+    scope = Deadline.after(300).enter();
+
+    try {
+      api.checkBalanceAsync().get(5, TimeUnit.SECONDS);
+      fail("DeadlineExceededException expected.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DeadlineExceededException);
+    } finally {
+      scope.close();
+    }
+    assertTrue((System.nanoTime() - startedAt) / 1000000L < 1500);
+    assertEquals(0, api.getSendLimiter().getInFlight());
+    assertEquals(0, api.getSendLimiter().getDecreaseCount());
+  }
+
+  /**
+   * Test that retries stop at the deadline.
+   */
+  @Test
+  public void testRetries() throws Exception {
+    System.out.println("retries");
+    RetryPolicy policy = new RetryPolicy(5, 100, 100, false);
+    final AtomicInteger calls = new AtomicInteger();
+
+    try {
+      policy.execute(() -> {
+        calls.incrementAndGet();
+        throw new ConnectException("Connection refused");
+      }, Deadline.after(120));
+      fail("ConnectException expected.");
+    } catch (ConnectException e) {
+      // expected.
+    }
+    assertTrue(calls.get() < 5);
+    assertEquals(1, policy.getDeadlineCount());
+  }
+
+  /**
+   * Test that the rate and concurrency limits don't wait past the deadline.
+   */
+  @Test
+  public void testLimits() throws Exception {
+    System.out.println("limits");
+    SendRateLimiter rate = new SendRateLimiter(1, 1, 0, 1);
+    rate.acquire("user", "sender", 1, Deadline.after(100));
+
+    try {
+      rate.acquire("user", "sender", 1, Deadline.after(100));
+      fail("DeadlineExceededException expected.");
+    } catch (DeadlineExceededException e) {
+      // expected.
+    }
+    // The refused send wasn't counted.
+    rate.acquireAsync("user", "sender", 1, Deadline.after(1500)).get(2, TimeUnit.SECONDS);
+
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+    ConcurrencyLimiter.Permit held = limiter.acquire(Deadline.none());
+
+    try {
+      limiter.acquire(Deadline.after(50));
+      fail("DeadlineExceededException expected.");
+    } catch (DeadlineExceededException e) {
+      // expected.
+    }
+
+    try {
+      limiter.acquireAsync(Deadline.after(50)).get(2, TimeUnit.SECONDS);
+      fail("DeadlineExceededException expected.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DeadlineExceededException);
+    }
+    assertEquals(0, limiter.getQueueDepth());
+    held.release();
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  /**
+   * Test that a chunked send returns the recipients it had no time for.
+   */
+  @Test
+  public void testChunkedSend() throws Exception {
+    System.out.println("chunked send");
+    SmsGroup group = new SmsGroup();
+    group.setSender("sender");
+    group.setMessage("Hello");
+
+    for (int i = 0; i < 10; i++) {
+      group.addMobile("23470312345" + (10 + i));
+    }
+
+    try (ChunkedBatchSender sender = new ChunkedBatchSender(api)) {
+      sender.setChunkSizeBounds(5, 5);
+      sender.setParallelism(1);
+      BatchResult result = sender.send(group, null, false, Deadline.after(300));
+
+      assertEquals(2, result.getChunks().size());
+      int failedRecipients = 0;
+
+      for (BatchResult.Chunk chunk : result.getChunks()) {
+        assertTrue(chunk.isError());
+        assertTrue(chunk.getException() instanceof DeadlineExceededException);
+        failedRecipients += chunk.getGroup().getMobileCount();
+      }
+      assertEquals(10, failedRecipients);
+    }
+  }
+}
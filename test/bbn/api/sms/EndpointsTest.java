@@ -0,0 +1,74 @@
+package bbn.api.sms;
+
+import java.io.IOException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EndpointsTest {
+
+  private static boolean secure;
+
+  public EndpointsTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    secure = BbnApi.getInstance().isSecure();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    BbnApi.defaultInstance().setSecure(secure);
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that the endpoints are only rebuilt when their configuration changes.
+   */
+  @Test
+  public void testRebuild() {
+    System.out.println("rebuild");
+    BbnApi api = BbnApi.defaultInstance();
+    api.setSecure(false);
+    Endpoints basic = api.getEndpoints();
+    assertEquals("http://sms.bbnplace.com/bulksms/bulksms.php", basic.getSendSms().getUrl());
+
+    api.addConfig("username", "someone@example.com");
+    assertSame(basic, api.getEndpoints());
+
+    api.setSecure(true);
+    Endpoints secureEndpoints = api.getEndpoints();
+    assertNotSame(basic, secureEndpoints);
+    assertEquals("https://www.bbnplace.com/sms/bulksms/acctbals.php",
+            secureEndpoints.getAccountBalance().getUrl());
+    assertEquals(BBN.Resource.AUTH_URL(), secureEndpoints.getAuth().getUrl());
+  }
+
+  /**
+   * Test of getRequestURL method, of class Endpoint.
+   */
+  @Test
+  public void testGetRequestURL() {
+    System.out.println("getRequestURL");
+    Endpoint endpoint = new Endpoint("http://127.0.0.1:8080/bulksms/sendsms.php?x=1");
+    assertEquals("http://127.0.0.1:8080/bulksms/sendsms.php",
+            endpoint.getRequestURL().toString());
+    assertEquals(endpoint.getRequestURL().toString(), endpoint.getRequestURI().toString());
+
+    Endpoint invalid = new Endpoint("nullnull");
+    assertEquals("nullnull", invalid.getUrl());
+    assertNull(invalid.getRequestURL());
+    assertNull(invalid.getRequestURI());
+  }
+}
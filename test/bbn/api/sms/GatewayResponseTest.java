@@ -0,0 +1,96 @@
+package bbn.api.sms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GatewayResponseTest {
+
+  public GatewayResponseTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static GatewayResponse read(String body, long contentLength) throws IOException {
+    return GatewayResponse.read(
+            new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+            contentLength, 64, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Test of getCode method, of class GatewayResponse.
+   */
+  @Test
+  public void testGetCode() throws IOException {
+    System.out.println("getCode");
+    assertEquals(1801, read("1801", 4).getCode());
+    assertEquals(1800, read(" 1800\r\n", -1).getCode());
+    assertEquals(1901, read("Status: 1901", -1).getCode());
+    // Numbers which aren't response codes are skipped.
+    assertEquals(1804, read("42 18041 1804", -1).getCode());
+    assertEquals(0, read("12.5", -1).getCode());
+    assertEquals(0, read("", 0).getCode());
+    assertSame(BBN.ResponseCode.INVALID_MOBILE, read("1806", -1).getResponseCode());
+    assertNull(read("true", -1).getResponseCode());
+  }
+
+  /**
+   * Test of getText method, of class GatewayResponse.
+   */
+  @Test
+  public void testGetText() throws IOException {
+    System.out.println("getText");
+    assertEquals("1801\n", read("1801\n", -1).getText());
+    assertTrue(read("", -1).isEmpty());
+    // A wrong Content-Length doesn't lose any of the body.
+    assertEquals("12345678", read("12345678", 2).getText());
+    // The read buffer is reused, but each response keeps its own body.
+    GatewayResponse first = read("1801", -1);
+    GatewayResponse second = read("18", -1);
+    assertEquals("1801", first.getText());
+    assertEquals("18", second.getText());
+  }
+
+  /**
+   * Test that bodies larger than the maximum are refused.
+   */
+  @Test(expected = IOException.class)
+  public void testMaxBytes() throws IOException {
+    System.out.println("maxBytes");
+    read(new String(new char[65]).replace('\0', '1'), -1);
+  }
+
+  /**
+   * Test of forCode method, of class BBN.ResponseCode.
+   */
+  @Test
+  public void testForCode() {
+    System.out.println("forCode");
+    assertSame(BBN.ResponseCode.REQUEST_TIMEOUT, BBN.ResponseCode.forCode(1800));
+    assertSame(BBN.ResponseCode.INCORRECT_SCHEDULE_NAME, BBN.ResponseCode.forCode(1906));
+    assertNull(BBN.ResponseCode.forCode(1850));
+    assertNull(BBN.ResponseCode.forCode(1799));
+    assertNull(BBN.ResponseCode.forCode(1907));
+    assertNull(BBN.ResponseCode.forCode(-1));
+  }
+}
@@ -0,0 +1,194 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HedgePolicyTest {
+
+  public HedgePolicyTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static <T> Result<T> answer(T value) {
+    Result<T> result = new Result<>(value);
+    result.setError(false);
+    return result;
+  }
+
+  /**
+   * Test that a slow request is hedged and the first answer is used.
+   */
+  @Test
+  public void testExecuteAsync() throws Exception {
+    System.out.println("executeAsync");
+    HedgePolicy policy = new HedgePolicy(95, 50, 0);
+    final AtomicInteger calls = new AtomicInteger();
+    final CompletableFuture<Result<Float>> stuck = new CompletableFuture<>();
+
+    CompletableFuture<Result<Float>> result = policy.executeAsync(() -> {
+      if (calls.incrementAndGet() == 1) {
+        return stuck;
+      }
+      return CompletableFuture.completedFuture(answer(12.5f));
+    });
+    assertEquals(12.5f, result.get(5, TimeUnit.SECONDS).getValue(), 0.0f);
+    assertEquals(2, calls.get());
+    assertEquals(1, policy.getHedgeCount());
+    assertEquals(1, policy.getHedgeWinCount());
+    // The losing attempt is cancelled.
+    assertTrue(stuck.isCancelled());
+  }
+
+  /**
+   * Test that fast requests aren't hedged.
+   */
+  @Test
+  public void testExecute() throws Exception {
+    System.out.println("execute");
+    HedgePolicy policy = new HedgePolicy(95, 1000, 0);
+    final AtomicInteger calls = new AtomicInteger();
+    final Thread caller = Thread.currentThread();
+
+    for (int i = 0; i < 10; i++) {
+      Result<Boolean> result = policy.execute(() -> {
+        // The first attempt is made on the caller's thread.
+        assertSame(caller, Thread.currentThread());
+        calls.incrementAndGet();
+        return answer(true);
+      });
+      assertTrue(result.getValue());
+    }
+    assertEquals(10, calls.get());
+    assertEquals(0, policy.getHedgeCount());
+  }
+
+  /**
+   * Test that an error is only returned once every attempt has failed.
+   */
+  @Test
+  public void testFailure() throws Exception {
+    System.out.println("failure");
+    HedgePolicy policy = new HedgePolicy(95, 20, 0);
+    final AtomicInteger calls = new AtomicInteger();
+
+    try {
+      policy.execute(() -> {
+        calls.incrementAndGet();
+        throw new ConnectException("Connection refused");
+      });
+      fail("ConnectException expected.");
+    } catch (IOException e) {
+      assertTrue(e instanceof ConnectException);
+    }
+
+    // The hedge answers even though the first attempt fails late.
+    Result<Boolean> result = policy.execute(() -> {
+      if (calls.incrementAndGet() == 2) {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new ConnectException("Connection refused");
+      }
+      return answer(true);
+    });
+    assertTrue(result.getValue());
+  }
+
+  /**
+   * Test that the connection of a slow first attempt is closed once the
+   * hedge answers.
+   */
+  @Test
+  public void testAbandon() throws Exception {
+    System.out.println("abandon");
+    final CountDownLatch released = new CountDownLatch(1);
+    final AtomicInteger requests = new AtomicInteger();
+    StubGateway gateway = new StubGateway(request -> {
+      if (requests.incrementAndGet() == 1) {
+        try {
+          released.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return "1.0";
+      }
+      return "2.5";
+    });
+
+    try {
+      Map<String, String> config = gateway.config();
+      config.put("bbn.hedge.acctbals.enabled", "true");
+      config.put("bbn.hedge.initial_delay", "100");
+      config.put("bbn.circuit.enabled", "true");
+      BbnApi api = BbnApi.newInstance(config);
+      long startedAt = System.nanoTime();
+
+      assertEquals(2.5f, api.checkBalance("user", "secret").getValue(), 0.0f);
+      assertTrue((System.nanoTime() - startedAt) / 1000000L < 5000);
+      assertEquals(1, api.getHedgePolicy(Endpoints.ACCOUNT_BALANCE).getHedgeWinCount());
+      assertEquals(2, requests.get());
+      // Neither the hedge nor the attempt it abandoned counts as a failure.
+      assertEquals(0, api.getConnectionManager().getLeased());
+      assertEquals(CircuitBreaker.State.CLOSED, api.getCircuitBreaker().getState());
+      assertTrue(api.getCircuitBreaker().toString().contains("failures=0"));
+    } finally {
+      released.countDown();
+      gateway.stop();
+    }
+  }
+
+  /**
+   * Test of getDelay method, of class HedgePolicy.
+   */
+  @Test
+  public void testGetDelay() throws Exception {
+    System.out.println("getDelay");
+    HedgePolicy policy = new HedgePolicy(90, 300, 5);
+    assertEquals(300, policy.getDelay());
+
+    for (int i = 0; i < 30; i++) {
+      policy.executeAsync(() -> CompletableFuture.completedFuture(answer(1)))
+              .get();
+    }
+    // Requests answered at once: the delay falls to the minimum.
+    assertEquals(5, policy.getDelay());
+  }
+
+  /**
+   * Test that only read-only endpoints can be hedged.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testSendNotHedgeable() throws IOException {
+    System.out.println("send not hedgeable");
+    BbnApi.getInstance().setHedgePolicy(Endpoints.SEND_SMS, new HedgePolicy(95, 100, 10));
+  }
+}
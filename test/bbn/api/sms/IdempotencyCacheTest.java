@@ -0,0 +1,177 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IdempotencyCacheTest {
+
+  private static StubGateway gateway;
+  // The requests the gateway has answered, the recipients in the last one,
+  // and the answer given.
+  private static final AtomicInteger requests = new AtomicInteger();
+  private static volatile String lastBody;
+  private static volatile String answer = "1801";
+  private static BbnApi api;
+
+  public IdempotencyCacheTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      requests.incrementAndGet();
+      lastBody = request.getBody();
+      return answer;
+    });
+    Map<String, String> config = gateway.config();
+    config.put("bbn.idempotency.enabled", "true");
+    api = BbnApi.newInstance(config);
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    api.getIdempotencyCache().clear();
+    requests.set(0);
+    answer = "1801";
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static Result<String> result(int code) {
+    Result<String> result = new Result<>("x");
+    result.setCode(code);
+    result.setError(code != 1801);
+    return result;
+  }
+
+  /**
+   * Test that keys are held for the ttl and failed sends are forgotten.
+   */
+  @Test
+  public void testClaim() throws Exception {
+    System.out.println("claim");
+    IdempotencyCache cache = new IdempotencyCache(100, 200);
+    SMS sms = new SMS("sender", "2347031234567", "Hello");
+
+    IdempotencyCache.Claim claim = cache.claim(sms);
+    assertFalse(claim.isDuplicate());
+    assertTrue(cache.claim(sms).isDuplicate());
+    claim.settle(result(1806));
+    // Not sent, so it can be sent again.
+    claim = cache.claim(sms);
+    assertFalse(claim.isDuplicate());
+    claim.settle(result(1801));
+    assertTrue(cache.claim(sms).isDuplicate());
+    assertEquals(2, cache.getSuppressedCount());
+
+    Thread.sleep(250);
+    assertFalse(cache.claim(sms).isDuplicate());
+
+    IdempotencyCache.Scope scope = IdempotencyCache.withKey("order-42");
+
+    try {
+      assertFalse(cache.claim(new SMS("a", "1", "one")).isDuplicate());
+      assertTrue(cache.claim(new SMS("b", "2", "two")).isDuplicate());
+    } finally {
+      scope.close();
+    }
+    assertNull(IdempotencyCache.currentKey());
+    assertNotEquals(IdempotencyCache.key("ab", "c"), IdempotencyCache.key("a", "bc"));
+  }
+
+  /**
+   * Test that the cache keeps no more keys than its capacity.
+   */
+  @Test
+  public void testCapacity() {
+    System.out.println("capacity");
+    IdempotencyCache cache = new IdempotencyCache(1000, 60000);
+
+    for (int i = 0; i < 100000; i++) {
+      assertFalse(cache.claim(new SMS("sender", Integer.toString(i), "Hello")).isDuplicate());
+    }
+    assertTrue(cache.size() <= 1000 + 64);
+    // The latest keys are still there.
+    assertTrue(cache.claim(new SMS("sender", "99999", "Hello")).isDuplicate());
+  }
+
+  /**
+   * Test that the Bloom filter remembers keys evicted from the tables.
+   */
+  @Test
+  public void testBloom() {
+    System.out.println("bloom");
+    IdempotencyCache cache = new IdempotencyCache(100, 60000, 100000, 0.001);
+    Result<String> sent = result(1801);
+
+    for (int i = 0; i < 10000; i++) {
+      cache.claim(new SMS("sender", Integer.toString(i), "Hello")).settle(sent);
+    }
+    int remembered = 0;
+    int wrong = 0;
+
+    for (int i = 0; i < 10000; i++) {
+      if (cache.contains(IdempotencyCache.key("sender", Integer.toString(i), "Hello"))) {
+        remembered++;
+      }
+
+      if (cache.contains(IdempotencyCache.key("sender", "x" + i, "Hello"))) {
+        wrong++;
+      }
+    }
+    assertEquals(10000, remembered);
+    assertTrue(wrong < 50);
+  }
+
+  /**
+   * Test that duplicate sends are answered without a request.
+   */
+  @Test
+  public void testSend() throws Exception {
+    System.out.println("send");
+    SMS sms = new SMS("sender", "2347031234567", "Hello");
+    assertEquals(1801, api.sendMessage(sms, null, false).getCode());
+    Result<String> duplicate = api.sendMessage(sms, null, false);
+    assertEquals(1801, duplicate.getCode());
+    assertFalse(duplicate.isError());
+    assertEquals(1801, api.sendMessageAsync(sms, null, false).get(5, TimeUnit.SECONDS).getCode());
+    assertEquals(1, requests.get());
+
+    // Only the recipients not sent the message are sent it.
+    SmsGroup group = new SmsGroup("sender", "Hello");
+    group.addMobile("2347031234567");
+    group.addMobile("2348021234567");
+    assertFalse(api.sendBatchMessage(group, null, false).isError());
+    assertEquals(2, requests.get());
+    assertFalse(lastBody.contains("2347031234567"));
+    assertTrue(lastBody.contains("2348021234567"));
+    assertFalse(api.sendBatchMessageAsync(group, null, false).get(5, TimeUnit.SECONDS).isError());
+    assertEquals(2, requests.get());
+
+    // A send the gateway refused is made again.
+    answer = "1804";
+    SMS other = new SMS("sender", "2347031234599", "Hello");
+    assertTrue(api.sendMessageAsync(other, null, false).get(5, TimeUnit.SECONDS).isError());
+    answer = "1801";
+    assertFalse(api.sendMessage(other, null, false).isError());
+    assertEquals(4, requests.get());
+  }
+}
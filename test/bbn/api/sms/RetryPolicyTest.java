@@ -0,0 +1,205 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+  public RetryPolicyTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static Result<String> result(int code) {
+    Result<String> result = new Result<>(String.valueOf(code));
+    result.setCode(code);
+    result.setError(code != 1801);
+    return result;
+  }
+
+  /**
+   * Test of classify method, of class RetryPolicy.
+   */
+  @Test
+  public void testClassify() {
+    System.out.println("classify");
+    RetryPolicy policy = new RetryPolicy(3, 0, 0, false);
+    assertEquals(RetryPolicy.Classification.RETRYABLE, RetryPolicy.classify(result(1800)));
+    assertEquals(RetryPolicy.Classification.SUCCESS, RetryPolicy.classify(result(1801)));
+
+    for (int code = 1802; code <= 1809; code++) {
+      assertEquals(RetryPolicy.Classification.PERMANENT, RetryPolicy.classify(result(code)));
+    }
+    assertEquals(RetryPolicy.Classification.RETRYABLE,
+            policy.classify(new ConnectException("Connection refused")));
+    assertEquals(RetryPolicy.Classification.RETRYABLE, policy.classify(new ConnectTimeoutException(
+            "connect timed out", new SocketTimeoutException("connect timed out"))));
+    // Timeouts are told apart by where they happened, not by their message.
+    assertEquals(RetryPolicy.Classification.PERMANENT,
+            policy.classify(new SocketTimeoutException("connect timed out")));
+    // Read timeouts are only retried when the policy allows it.
+    assertEquals(RetryPolicy.Classification.PERMANENT,
+            policy.classify(new SocketTimeoutException("Read timed out")));
+    assertEquals(RetryPolicy.Classification.RETRYABLE,
+            new RetryPolicy(3, 0, 0, true).classify(new SocketTimeoutException("Read timed out")));
+    assertEquals(RetryPolicy.Classification.PERMANENT, policy.classify(new IOException("HTTP 400")));
+  }
+
+  /**
+   * Test that a timeout waiting for the response isn't taken for one while
+   * connecting.
+   */
+  @Test
+  public void testReadTimeout() throws Exception {
+    System.out.println("read timeout");
+    StubGateway gateway = new StubGateway(request -> {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "1801";
+    });
+
+    try {
+      Http http = new Http(new Endpoint(gateway.getBasicUri(), 2000, 100),
+              new ConnectionManager(2, 100, 300000));
+      http.addParam("message", "Hello");
+      http.postResponse();
+      fail("SocketTimeoutException expected.");
+    } catch (SocketTimeoutException e) {
+      assertFalse(e instanceof ConnectTimeoutException);
+      assertEquals(RetryPolicy.Classification.PERMANENT,
+              new RetryPolicy(3, 0, 0, false).classify(e));
+    } finally {
+      gateway.stop();
+    }
+  }
+
+  /**
+   * Test of execute method, of class RetryPolicy.
+   */
+  @Test
+  public void testExecute() throws IOException {
+    System.out.println("execute");
+    RetryPolicy policy = new RetryPolicy(3, 1, 5, false);
+    final AtomicInteger calls = new AtomicInteger();
+
+    // Retried until it succeeds.
+    Result<String> result = policy.execute(() -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new ConnectException("Connection refused");
+      }
+      return result(calls.get() == 2 ? 1800 : 1801);
+    });
+    assertEquals(1801, result.getCode());
+    assertEquals(3, calls.get());
+    assertEquals(2, policy.getRetryCount());
+
+    // Permanent errors are returned at once.
+    calls.set(0);
+    assertEquals(1806, policy.execute(() -> {
+      calls.incrementAndGet();
+      return result(1806);
+    }).getCode());
+    assertEquals(1, calls.get());
+
+    // The last error is thrown once the attempts are used up.
+    calls.set(0);
+
+    try {
+      policy.execute(() -> {
+        calls.incrementAndGet();
+        throw new ConnectException("Connection refused");
+      });
+      fail("ConnectException expected.");
+    } catch (ConnectException e) {
+      assertEquals(3, calls.get());
+    }
+  }
+
+  /**
+   * Test that retries stop once the budget is spent.
+   */
+  @Test
+  public void testBudget() throws IOException {
+    System.out.println("budget");
+    RetryPolicy policy = new RetryPolicy(10, 0, 0, false, 0.0, 4);
+    final AtomicInteger calls = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      policy.execute(() -> {
+        calls.incrementAndGet();
+        return result(1800);
+      });
+    }
+    // 3 first attempts and the 4 retries the budget held.
+    assertEquals(7, calls.get());
+    assertEquals(4, policy.getRetryCount());
+    assertEquals(3, policy.getBudgetExhaustedCount());
+  }
+
+  /**
+   * Test of delay method, of class RetryPolicy.
+   */
+  @Test
+  public void testDelay() {
+    System.out.println("delay");
+    RetryPolicy policy = new RetryPolicy(10, 100, 1000, false);
+
+    for (int i = 0; i < 50; i++) {
+      long first = policy.delay(1);
+      assertTrue(first >= 50 && first <= 100);
+      long third = policy.delay(3);
+      assertTrue(third >= 200 && third <= 400);
+      long capped = policy.delay(9);
+      assertTrue(capped >= 500 && capped <= 1000);
+    }
+  }
+
+  /**
+   * Test of executeAsync method, of class RetryPolicy.
+   */
+  @Test
+  public void testExecuteAsync() throws Exception {
+    System.out.println("executeAsync");
+    RetryPolicy policy = new RetryPolicy(3, 1, 5, false);
+    final AtomicInteger calls = new AtomicInteger();
+
+    CompletableFuture<Result<String>> result = policy.executeAsync(() -> {
+      if (calls.incrementAndGet() == 1) {
+        CompletableFuture<Result<String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ConnectException("Connection refused"));
+        return failed;
+      }
+      return CompletableFuture.completedFuture(result(1801));
+    });
+    assertEquals(1801, result.get(5, TimeUnit.SECONDS).getCode());
+    assertEquals(2, calls.get());
+  }
+}
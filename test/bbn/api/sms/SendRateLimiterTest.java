@@ -0,0 +1,80 @@
+package bbn.api.sms;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SendRateLimiterTest {
+
+  public SendRateLimiterTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of tryAcquire method, of class SendRateLimiter.
+   */
+  @Test
+  public void testTryAcquire() {
+    System.out.println("tryAcquire");
+    SendRateLimiter limiter = new SendRateLimiter(0, 1, 0, 1);
+    limiter.setAccountQuota("user", 1, 100);
+    limiter.setSenderQuota("slow", 1, 10);
+
+    // Batches are counted in recipients.
+    assertTrue(limiter.tryAcquire("user", "fast", 60));
+    assertFalse(limiter.tryAcquire("user", "fast", 60));
+    assertEquals(40, limiter.getAccountAvailable("user"));
+
+    // A sender quota refusing the recipients gives them back to the account.
+    assertFalse(limiter.tryAcquire("user", "slow", 20));
+    assertEquals(40, limiter.getAccountAvailable("user"));
+    assertTrue(limiter.tryAcquire("user", "slow", 10));
+    assertEquals(30, limiter.getAccountAvailable("user"));
+    assertEquals(0, limiter.getSenderAvailable("slow"));
+
+    // Other accounts have no limit by default.
+    assertTrue(limiter.tryAcquire("other", "fast", 1000000));
+    assertEquals(Integer.MAX_VALUE, limiter.getAccountAvailable("other"));
+  }
+
+  /**
+   * Test that acquire and acquireAsync wait for the rate.
+   */
+  @Test
+  public void testAcquire() throws Exception {
+    System.out.println("acquire");
+    SendRateLimiter limiter = new SendRateLimiter(100, 10, 0, 1);
+    long startedAt = System.nanoTime();
+
+    // 10 at once, then 20 more at 100 per second.
+    for (int i = 0; i < 3; i++) {
+      limiter.acquire("user", "sender", 10);
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    assertTrue("elapsed " + elapsed, elapsed >= 150);
+
+    CompletableFuture<Void> paced = limiter.acquireAsync("user", "sender", 10);
+    assertFalse(paced.isDone());
+    paced.get(5, TimeUnit.SECONDS);
+  }
+}
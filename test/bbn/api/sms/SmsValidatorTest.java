@@ -0,0 +1,165 @@
+package bbn.api.sms;
+
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.net.ServerSocket;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SmsValidatorTest {
+
+  public SmsValidatorTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static int code(SmsValidator.Validation validation) {
+    return validation.getViolations().get(0).getResponse().getCode();
+  }
+
+  /**
+   * Test of validate method for single messages, of class SmsValidator.
+   */
+  @Test
+  public void testValidateSms() {
+    System.out.println("validate sms");
+    SmsValidator validator = new SmsValidator();
+    assertTrue(validator.validate(new SMS("victor", "2347031234567", "Hello")).isValid());
+    assertTrue(validator.validate(new SMS("23470312345678", "+2347031234567", "Hello")).isValid());
+
+    assertEquals(1807, code(validator.validate(new SMS("victorigbokwe", "2347031234567", "Hi"))));
+    assertEquals(1807, code(validator.validate(new SMS("234703123456789", "2347031234567", "Hi"))));
+    assertEquals(1807, code(validator.validate(new SMS("vic@home", "2347031234567", "Hi"))));
+    assertEquals(1807, code(validator.validate(new SMS(null, "2347031234567", "Hi"))));
+    assertEquals(1806, code(validator.validate(new SMS("victor", "0803 123 4567", "Hi"))));
+    assertEquals(1806, code(validator.validate(new SMS("victor", "+123456", "Hi"))));
+    assertEquals(1806, code(validator.validate(new SMS("victor", "1234567890123456", "Hi"))));
+    assertEquals(1809, code(validator.validate(new SMS("victor", "2347031234567", "  "))));
+    // The gateway documents no maximum length.
+    String gsm = new String(new char[919]).replace('\0', 'a');
+    assertTrue(validator.validate(new SMS("victor", "2347031234567", gsm)).isValid());
+
+    // A limit counts segments, whatever the encoding.
+    validator = new SmsValidator(6, SmsValidator.DEFAULT_PARALLEL_THRESHOLD,
+            ForkJoinPool.commonPool());
+    assertEquals(1808, code(validator.validate(new SMS("victor", "2347031234567", gsm))));
+    String ucs2 = new String(new char[500]).replace('\0', 'ж');
+    assertEquals(1808, code(validator.validate(new SMS("victor", "2347031234567", ucs2))));
+    assertTrue(validator.validate(new SMS("victor", "2347031234567",
+            gsm.substring(0, 918))).isValid());
+  }
+
+  /**
+   * Test that every invalid recipient of a large group is reported, in
+   * order.
+   */
+  @Test
+  public void testValidateGroup() {
+    System.out.println("validate group");
+    SmsValidator validator = new SmsValidator(0, 1000, new ForkJoinPool(4));
+    SmsGroup group = new SmsGroup("victor", "Hello");
+
+    for (int i = 0; i < 100000; i++) {
+      group.addMobile((i % 1000 == 0) ? "n/a " + i : String.valueOf(2347030000000L + i));
+    }
+    group.addMobile("+123456");
+    group.addMobile("+123456789012345");
+    group.addMobile("1234567890123456");
+    SmsValidator.Validation validation = validator.validate(group);
+    List<SmsValidator.Violation> invalid = validation.getInvalidRecipients();
+
+    assertEquals(102, invalid.size());
+    assertEquals(0, invalid.get(0).getIndex());
+    assertEquals("n/a 1000", invalid.get(1).getValue());
+    assertEquals(100000, invalid.get(100).getIndex());
+    assertEquals(100002, invalid.get(101).getIndex());
+
+    SmsGroup valid = validation.getValidRecipients();
+    assertEquals(100003 - 102, valid.getMobileCount());
+    assertEquals("2347030000001", valid.getMobile(0));
+    assertEquals("+123456789012345", valid.getMobile(valid.getMobileCount() - 1));
+    assertTrue(validator.validate(valid).isValid());
+    assertTrue(validator.validate(new SmsGroup("victor", "Hello")).getViolations().size() == 1);
+  }
+
+  /**
+   * Test of validate method for schedules, of class SmsValidator.
+   */
+  @Test
+  public void testValidateSchedule() {
+    System.out.println("validate schedule");
+    SmsValidator validator = new SmsValidator();
+    SmsGroup group = new SmsGroup("victor", "Hello");
+    group.addMobile("2347031234567");
+    Date later = new Date(System.currentTimeMillis() + 3600000);
+
+    assertTrue(validator.validate(group, "promo1", later).isValid());
+    assertEquals(1904, code(validator.validate(group, "averyveryverylongname", later)));
+    // The gateway documents only the length; the name itself is optional.
+    assertTrue(validator.validate(group, "scheduled_msg", later).isValid());
+    assertTrue(validator.validate(group, null, later).isValid());
+    assertEquals(1903, code(validator.validate(group, "promo1", null)));
+    assertEquals(1902, code(validator.validate(group, "promo1", new Date(0))));
+    // "Now" is sent in whole seconds and isn't refused.
+    assertTrue(validator.validate(group, "promo1", new Date()).isValid());
+    assertTrue(validator.validate(group, "promo1",
+            new Date(System.currentTimeMillis() - 30000)).isValid());
+  }
+
+  /**
+   * Test that invalid messages are refused without a request.
+   */
+  @Test
+  public void testApi() throws Exception {
+    System.out.println("api");
+    int closedPort;
+
+    try (ServerSocket socket = new ServerSocket(0)) {
+      closedPort = socket.getLocalPort();
+    }
+    Map<String, String> config = new HashMap<>();
+    config.put("bbn.api.secure", "false");
+    config.put("bbn.request.uri.basic", "http://127.0.0.1:" + closedPort + "/bulksms");
+    BbnApi api = BbnApi.newInstance(config);
+
+    Result<String> result = api.sendMessage(new SMS("victor", "12", "Hello"), null, false);
+    assertTrue(result.isError());
+    assertEquals(1806, result.getCode());
+
+    SmsGroup group = new SmsGroup("victor", "Hello");
+    group.addMobile("2347031234567");
+    group.addMobile("bad");
+    result = api.sendBatchMessageAsync(group, null, false).get(5, TimeUnit.SECONDS);
+    assertEquals(1806, result.getCode());
+    assertTrue(result.getMessage().contains("1 invalid recipient"));
+
+    result = api.scheduleMessage(group, "promo-1", new Date(0), false, null, false);
+    assertEquals(1902, result.getCode());
+    assertEquals(0, api.getSendLimiter().getInFlight());
+  }
+}
@@ -0,0 +1,231 @@
+package bbn.api.sms;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A stand-in for the BBN gateway on a free local port, for tests which send
+ * requests without leaving the machine. Every request is read in full and
+ * given to a handler, whose answer is returned as the body of a 200
+ * response, or as a 404 if there is none.
+ */
+public class StubGateway {
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /**
+   * Starts a gateway answering every request with the handler specified.
+   *
+   * @param handler Answers the requests.
+   * @throws IOException if the server can't be started.
+   */
+  public StubGateway(final Handler handler) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        answer(exchange, handler);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * Starts a gateway giving the same answer to every request.
+   *
+   * @param answer The body of every response, such as "1801".
+   * @return StubGateway
+   * @throws IOException if the server can't be started.
+   */
+  public static StubGateway answering(final String answer) throws IOException {
+    return new StubGateway(new Handler() {
+      @Override
+      public String answer(Request request) {
+        return answer;
+      }
+    });
+  }
+
+  private static void answer(
+          final HttpExchange exchange,
+          final Handler handler) throws IOException {
+    try {
+      final Request request = new Request(exchange.getRequestMethod(),
+              exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery(),
+              read(exchange.getRequestBody()));
+      final String answer = handler.answer(request);
+
+      if (answer == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      final byte[] body = answer.getBytes("UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static String read(final InputStream in) throws IOException {
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int read;
+
+    while ((read = in.read(buffer)) >= 0) {
+      received.write(buffer, 0, read);
+    }
+    return received.toString("UTF-8");
+  }
+
+  /**
+   * Returns the port the gateway listens on.
+   *
+   * @return int
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Returns the URL of the gateway, such as "http://127.0.0.1:1234".
+   *
+   * @return String
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + getPort();
+  }
+
+  /**
+   * Returns the base URI of the API's requests, bbn.request.uri.basic.
+   *
+   * @return String
+   */
+  public String getBasicUri() {
+    return getUrl() + "/bulksms";
+  }
+
+  /**
+   * Returns a configuration sending to this gateway over plain HTTP, without
+   * retries or a circuit breaker, so each test sees each request once. The
+   * map can be changed before it is given to BbnApi.newInstance.
+   *
+   * @return Map<String, String>
+   */
+  public Map<String, String> config() {
+    final Map<String, String> config = new HashMap<>();
+    config.put("bbn.api.secure", "false");
+    config.put("bbn.request.uri.basic", getBasicUri());
+    config.put("bbn.circuit.enabled", "false");
+    config.put("bbn.retry.max_attempts", "1");
+    return config;
+  }
+
+  /**
+   * Stops the gateway and the threads answering it.
+   */
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Answers the requests made to the gateway. Requests may be answered
+   * concurrently.
+   */
+  public interface Handler {
+
+    /**
+     * Returns the body of the response to a request.
+     *
+     * @param request The request.
+     * @return String the body, or null to answer 404.
+     * @throws IOException if the request can't be answered.
+     */
+    String answer(Request request) throws IOException;
+  }
+
+  /**
+   * A request made to the gateway.
+   */
+  public static final class Request {
+
+    private final String method;
+    private final String path;
+    private final String query;
+    private final String body;
+
+    private Request(
+            final String method,
+            final String path,
+            final String query,
+            final String body) {
+      this.method = method;
+      this.path = path;
+      this.query = query;
+      this.body = body;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Returns the query string, still encoded, or null if there is none.
+     *
+     * @return String
+     */
+    public String getQuery() {
+      return query;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    /**
+     * Returns the decoded value of a parameter, from the body, or from the
+     * query string if the body is empty.
+     *
+     * @param name The name of the parameter.
+     * @return String the value, or null if the parameter wasn't sent.
+     * @throws IOException if the value can't be decoded.
+     */
+    public String getParam(final String name) throws IOException {
+      final String form = body.isEmpty() ? query : body;
+
+      if (form == null) {
+        return null;
+      }
+
+      for (String pair : form.split("&")) {
+        final int equals = pair.indexOf('=');
+
+        if ((equals > 0) && pair.substring(0, equals).equals(name)) {
+          return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.StubGateway;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkDispatcherTest {
+
+  private static StubGateway gateway;
+  private static String basicUri;
+  // The number of requests being handled by the gateway at once.
+  private static final AtomicInteger concurrent = new AtomicInteger();
+  private static final AtomicInteger peak = new AtomicInteger();
+
+  public BulkDispatcherTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      final int current = concurrent.incrementAndGet();
+      peak.accumulateAndGet(current, Math::max);
+
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      concurrent.decrementAndGet();
+      return "1801";
+    });
+    BbnApi api = BbnApi.getInstance();
+    basicUri = api.getConfig("bbn.request.uri.basic");
+    api.setSecure(false);
+    api.addConfig("bbn.request.uri.basic", gateway.getBasicUri());
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    BbnApi.defaultInstance().addConfig("bbn.request.uri.basic", basicUri);
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    peak.set(0);
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of dispatch method, of class BulkDispatcher.
+   */
+  @Test
+  public void testDispatch() throws Exception {
+    System.out.println("dispatch");
+    final AtomicInteger results = new AtomicInteger();
+    final AtomicInteger progressReports = new AtomicInteger();
+
+    try (BulkDispatcher dispatcher = new BulkDispatcher(BbnApi.getInstance(), 4)) {
+      Stream<SMS> messages = Stream.iterate(0, i -> i + 1).limit(200)
+              .map(i -> new SMS("victor", "23470312" + i, "Message " + i));
+      BulkDispatcher.Progress progress = dispatcher.dispatch(messages, null, false,
+              new BulkDispatcher.Listener() {
+        @Override
+        public void onResult(SMS sms, Result<String> result) {
+          assertFalse(result.isError());
+          results.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(SMS sms, IOException e) {
+          fail(e.getMessage());
+        }
+
+        @Override
+        public void onProgress(BulkDispatcher.Progress progress) {
+          progressReports.incrementAndGet();
+        }
+      });
+      assertEquals(200, progress.getSubmitted());
+      assertEquals(200, progress.getCompleted());
+      assertEquals(0, progress.getFailed());
+      assertEquals(0, progress.getInFlight());
+    }
+    assertEquals(200, results.get());
+    assertTrue(progressReports.get() >= 1);
+    assertTrue("In-flight bound exceeded: " + peak.get(), peak.get() <= 4);
+  }
+
+  /**
+   * Test that a message whose send throws is counted as failed and reported.
+   */
+  @Test
+  public void testDispatchRuntimeFailure() throws Exception {
+    System.out.println("dispatch runtime failure");
+    final AtomicInteger results = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicBoolean closed = new AtomicBoolean();
+
+    try (BulkDispatcher dispatcher = new BulkDispatcher(BbnApi.getInstance(), 2)) {
+      // A null message makes the send throw a NullPointerException.
+      Stream<SMS> messages = Arrays.asList(new SMS("victor", "2347031234567", "Hello"), null)
+              .stream().onClose(() -> closed.set(true));
+      BulkDispatcher.Progress progress = dispatcher.dispatch(messages, null, false,
+              new BulkDispatcher.Listener() {
+        @Override
+        public void onResult(SMS sms, Result<String> result) {
+          results.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(SMS sms, IOException e) {
+          fail(e.getMessage());
+        }
+
+        @Override
+        public void onFailure(SMS sms, RuntimeException e) {
+          assertNull(sms);
+          failures.incrementAndGet();
+        }
+      });
+      assertEquals(2, progress.getCompleted());
+      assertEquals(1, progress.getFailed());
+    }
+    assertEquals(1, results.get());
+    assertEquals(1, failures.get());
+    assertTrue("The stream wasn't closed.", closed.get());
+  }
+
+  /**
+   * Test that progress is reported by the sends as they complete, not only
+   * by the dispatching thread.
+   */
+  @Test
+  public void testProgressFromSends() throws Exception {
+    System.out.println("progress from sends");
+    final Thread dispatching = Thread.currentThread();
+    final Set<Thread> reporters = ConcurrentHashMap.newKeySet();
+
+    try (BulkDispatcher dispatcher = new BulkDispatcher(BbnApi.getInstance(), 4)) {
+      dispatcher.setProgressInterval(0);
+      Stream<SMS> messages = Stream.iterate(0, i -> i + 1).limit(20)
+              .map(i -> new SMS("victor", "23470312" + i, "Message " + i));
+      BulkDispatcher.Progress progress = dispatcher.dispatch(messages, null, false,
+              new BulkDispatcher.Listener() {
+        @Override
+        public void onResult(SMS sms, Result<String> result) {
+        }
+
+        @Override
+        public void onFailure(SMS sms, IOException e) {
+          fail(e.getMessage());
+        }
+
+        @Override
+        public void onProgress(BulkDispatcher.Progress progress) {
+          reporters.add(Thread.currentThread());
+        }
+      });
+      assertEquals(20, progress.getCompleted());
+    }
+    reporters.remove(dispatching);
+    assertFalse("Progress was only reported by the dispatching thread.", reporters.isEmpty());
+  }
+}
@@ -0,0 +1,140 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.Endpoints;
+import bbn.api.sms.RetryPolicy;
+import bbn.api.sms.StubGateway;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ChunkedBatchSenderTest {
+
+  // A recipient whose chunk times out the first time it is sent.
+  private static final String FLAKY_MOBILE = "2340000000000";
+  private static StubGateway gateway;
+  private static String basicUri;
+  private static RetryPolicy sendRetryPolicy;
+  private static final AtomicInteger recipients = new AtomicInteger();
+  private static final AtomicBoolean flakyFailed = new AtomicBoolean();
+  private ChunkedBatchSender sender;
+
+  public ChunkedBatchSenderTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      String mobile = request.getParam("mobile");
+
+      if (mobile == null) {
+        mobile = "";
+      }
+
+      if (mobile.contains(FLAKY_MOBILE) && flakyFailed.compareAndSet(false, true)) {
+        return "1800";
+      }
+      recipients.addAndGet(mobile.split(",").length);
+      return "1801";
+    });
+    BbnApi api = BbnApi.getInstance();
+    basicUri = api.getConfig("bbn.request.uri.basic");
+    api.setSecure(false);
+    api.addConfig("bbn.request.uri.basic", gateway.getBasicUri());
+    // Leave failed chunks to the sender rather than retrying them in the api.
+    sendRetryPolicy = api.getRetryPolicy(Endpoints.SEND_SMS);
+    api.setRetryPolicy(Endpoints.SEND_SMS, RetryPolicy.none());
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    BbnApi.defaultInstance().addConfig("bbn.request.uri.basic", basicUri);
+    BbnApi.defaultInstance().setRetryPolicy(Endpoints.SEND_SMS, sendRetryPolicy);
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    recipients.set(0);
+    flakyFailed.set(false);
+    sender = new ChunkedBatchSender(BbnApi.getInstance());
+    sender.setChunkSizeBounds(10, 100);
+    sender.setChunkSize(50);
+  }
+
+  @After
+  public void tearDown() {
+    sender.close();
+  }
+
+  private static SmsGroup group(int size) {
+    SmsGroup group = new SmsGroup("victor", "This is a group message.");
+
+    for (int i = 0; i < size; i++) {
+      group.addMobile(String.valueOf(2347030000000L + i));
+    }
+    return group;
+  }
+
+  /**
+   * Test of send method, of class ChunkedBatchSender.
+   */
+  @Test
+  public void testSend() throws Exception {
+    System.out.println("send");
+    BatchResult result = sender.send(group(1000), null, false);
+    assertFalse(result.isError());
+    assertEquals(1000, result.getSentCount());
+    assertEquals(1000, recipients.get());
+    assertTrue(result.getChunks().size() >= 10);
+    // Chunks are contiguous and ordered.
+    int offset = 0;
+
+    for (BatchResult.Chunk chunk : result.getChunks()) {
+      assertEquals(offset, chunk.getOffset());
+      offset += chunk.getGroup().getMobileList().size();
+    }
+  }
+
+  /**
+   * Test that chunks are bounded by the encoded body size.
+   */
+  @Test
+  public void testMaxBodyBytes() throws Exception {
+    System.out.println("maxBodyBytes");
+    sender.setMaxBodyBytes(1024);
+    BatchResult result = sender.send(group(500), null, false);
+
+    for (BatchResult.Chunk chunk : result.getChunks()) {
+      assertTrue(chunk.getGroup().getMobileList().size() * 16 <= 1024);
+    }
+    assertEquals(500, result.getSentCount());
+  }
+
+  /**
+   * Test of retryFailed method, of class ChunkedBatchSender.
+   */
+  @Test
+  public void testRetryFailed() throws Exception {
+    System.out.println("retryFailed");
+    SmsGroup group = group(300);
+    group.addMobile(FLAKY_MOBILE);
+    BatchResult result = sender.send(group, null, false);
+    assertEquals(1, result.getFailedChunks().size());
+    final int failedSize = result.getFailedChunks().get(0).getGroup().getMobileList().size();
+    assertEquals(301 - failedSize, recipients.get());
+
+    result = sender.retryFailed(result, null, false);
+    assertFalse(result.isError());
+    assertEquals(301, result.getSentCount());
+    assertEquals(301, recipients.get());
+  }
+}
@@ -0,0 +1,158 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.StubGateway;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CountryBatcherTest {
+
+  private static StubGateway gateway;
+  private static BbnApi api;
+  // The ccode of each request received.
+  private static final List<String> ccodes = Collections.synchronizedList(new ArrayList<>());
+
+  public CountryBatcherTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      ccodes.add(request.getParam("ccode"));
+      return "1801";
+    });
+    api = BbnApi.newInstance(gateway.config());
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    ccodes.clear();
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that recipients are split by calling code, in the order the codes
+   * first occur, national numbers staying with the ccode given.
+   */
+  @Test
+  public void testSplit() {
+    System.out.println("split");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.addMobile("08031234567");
+    group.addMobile("+447911123456");
+    group.addMobile("+14165551234");
+    group.addMobile("2348051234567");
+    group.addMobile("+12125551234");
+    group.addMobile("not a number");
+    group.addMobile("00447911654321");
+
+    Map<String, SmsGroup> groups = new CountryBatcher().split(group, "234");
+    assertEquals(Arrays.asList("234", "44", "1"), new ArrayList<>(groups.keySet()));
+    assertEquals(Arrays.asList("08031234567", "2348051234567", "not a number"),
+            mobiles(groups.get("234")));
+    assertEquals(Arrays.asList("+447911123456", "00447911654321"), mobiles(groups.get("44")));
+    assertEquals(Arrays.asList("+14165551234", "+12125551234"), mobiles(groups.get("1")));
+    assertEquals("Shop", groups.get("44").getSender());
+    assertEquals("Hello", groups.get("44").getMessage());
+  }
+
+  /**
+   * Test that a ccode given with a '+' keys its recipients like the
+   * classified ones, so they are sent together.
+   */
+  @Test
+  public void testSplitWithPlusCcode() {
+    System.out.println("splitWithPlusCcode");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.addMobile("08031234567");
+    group.addMobile("not a number");
+    group.addMobile("+447911123456");
+
+    Map<String, SmsGroup> groups = new CountryBatcher().split(group, "+234");
+    assertEquals(Arrays.asList("234", "44"), new ArrayList<>(groups.keySet()));
+    assertEquals(Arrays.asList("08031234567", "not a number"), mobiles(groups.get("234")));
+  }
+
+  /**
+   * Test that without a ccode, only international numbers are classified.
+   */
+  @Test
+  public void testSplitWithoutCcode() {
+    System.out.println("splitWithoutCcode");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.addMobile("08031234567");
+    group.addMobile("+2348031234567");
+
+    Map<String, SmsGroup> groups = new CountryBatcher().split(group, null);
+    assertEquals(Arrays.asList("", "234"), new ArrayList<>(groups.keySet()));
+    assertTrue(new CountryBatcher().split(new SmsGroup("Shop", "Hello"), "234").isEmpty());
+  }
+
+  /**
+   * Test that each country's group is sent with its own ccode.
+   */
+  @Test
+  public void testSend() {
+    System.out.println("send");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.addMobile("08031234567");
+    group.addMobile("+447911123456");
+    group.addMobile("08051234567");
+
+    Map<String, BatchResult.Chunk> chunks = new CountryBatcher().send(api, group, "234", false);
+    assertEquals(Arrays.asList("234", "44"), new ArrayList<>(chunks.keySet()));
+    assertEquals(Arrays.asList("234", "44"), ccodes);
+    assertEquals(0, chunks.get("234").getOffset());
+    assertEquals(2, chunks.get("234").getGroup().getMobileCount());
+    assertEquals(2, chunks.get("44").getOffset());
+    assertFalse(chunks.get("234").isError());
+    assertFalse(chunks.get("44").isError());
+  }
+
+  /**
+   * Test that each country's group is scheduled with its own ccode.
+   */
+  @Test
+  public void testSchedule() {
+    System.out.println("schedule");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.addMobile("+14165551234");
+    group.addMobile("+79161234567");
+
+    Map<String, BatchResult.Chunk> chunks = new CountryBatcher().schedule(
+            api, group, "Launch", new Date(System.currentTimeMillis() + 3600000L),
+            false, "234", false);
+    assertEquals(Arrays.asList("1", "7"), new ArrayList<>(chunks.keySet()));
+    assertEquals(Arrays.asList("1", "7"), ccodes);
+  }
+
+  private static List<String> mobiles(final SmsGroup group) {
+    List<String> mobiles = new ArrayList<>();
+
+    for (int i = 0; i < group.getMobileCount(); i++) {
+      mobiles.add(group.getMobile(i));
+    }
+    return mobiles;
+  }
+}
@@ -0,0 +1,232 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.StubGateway;
+import bbn.api.sms.domain.Result;
+import bbn.api.sms.domain.SMS;
+import bbn.api.sms.domain.SmsGroup;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OutboundLogTest {
+
+  private static StubGateway gateway;
+  // The number of requests the gateway has answered, and the answer given.
+  private static final AtomicInteger requests = new AtomicInteger();
+  private static volatile String answer = "1801";
+  private File directory;
+
+  public OutboundLogTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      requests.incrementAndGet();
+      return answer;
+    });
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("outbound").toFile();
+    requests.set(0);
+    answer = "1801";
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<java.nio.file.Path> paths = Files.walk(directory.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+    }
+  }
+
+  private static SMS sms(int i) {
+    return new SMS("sender", "23470312345" + (10 + i), "Hello " + i);
+  }
+
+  /**
+   * Test that entries are read back as they were appended.
+   */
+  @Test
+  public void testAppend() throws Exception {
+    System.out.println("append");
+
+    try (OutboundLog log = new OutboundLog(directory)) {
+      assertEquals(0, log.append(sms(0), "234", true));
+      SmsGroup group = new SmsGroup("sender", "Héllo wörld");
+      group.addMobile("2347031234567");
+      group.addMobile("2348021234567");
+      assertEquals(1, log.append(group, null, false));
+      log.sync(1);
+      assertEquals(2, log.getCommittedOffset());
+
+      List<OutboundLog.Entry> entries = log.reader().poll(10);
+      assertEquals(2, entries.size());
+      OutboundLog.Entry first = entries.get(0);
+      assertEquals("2347031234510", first.getSms().getMobile());
+      assertEquals("Hello 0", first.getSms().getMessage());
+      assertEquals("234", first.getCcode());
+      assertTrue(first.isFlash());
+      OutboundLog.Entry second = entries.get(1);
+      assertNull(second.getSms());
+      assertNull(second.getCcode());
+      assertEquals("Héllo wörld", second.getSmsGroup().getMessage());
+      assertEquals("2348021234567", second.getSmsGroup().getMobile(1));
+    }
+  }
+
+  /**
+   * Test that a reopened log resumes from the first entry not acknowledged,
+   * and that acknowledged segments are deleted.
+   */
+  @Test
+  public void testReopen() throws Exception {
+    System.out.println("reopen");
+
+    try (OutboundLog log = new OutboundLog(directory, 1024, 10)) {
+      for (int i = 0; i < 100; i++) {
+        log.append(sms(i), null, false);
+      }
+      assertTrue(log.getSegmentCount() > 1);
+      log.ack(59);
+    }
+
+    try (OutboundLog log = new OutboundLog(directory, 1024, 10)) {
+      assertEquals(100, log.getNextOffset());
+      assertEquals(60, log.getAckedOffset());
+      assertTrue(log.getSegmentCount() < 5);
+      List<OutboundLog.Entry> entries = log.reader().poll(100);
+      assertEquals(40, entries.size());
+      assertEquals(60, entries.get(0).getOffset());
+      assertEquals("Hello 60", entries.get(0).getSms().getMessage());
+
+      log.ack(99);
+      log.commit();
+      assertEquals(1, log.getSegmentCount());
+      assertEquals(100, log.append(sms(100), null, false));
+    }
+  }
+
+  /**
+   * Test that a torn write at the end of the log is discarded.
+   */
+  @Test
+  public void testTornWrite() throws Exception {
+    System.out.println("torn write");
+    File segment;
+
+    try (OutboundLog log = new OutboundLog(directory, 4096, 10)) {
+      for (int i = 0; i < 3; i++) {
+        log.append(sms(i), null, false);
+      }
+    }
+    segment = directory.listFiles((dir, name) -> name.endsWith(".log"))[0];
+
+    try (OutboundLog log = new OutboundLog(directory, 4096, 10)) {
+      assertEquals(3, log.reader().poll(10).size());
+    }
+
+    // Corrupt the last entry.
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      long end = 0;
+
+      for (int i = 0; i < 3; i++) {
+        file.seek(end);
+        end += 8 + file.readInt();
+      }
+      file.seek(end - 2);
+      file.write(0x7f);
+    }
+
+    try (OutboundLog log = new OutboundLog(directory, 4096, 10)) {
+      assertEquals(2, log.getNextOffset());
+      assertEquals(2, log.reader().poll(10).size());
+      assertEquals(2, log.append(sms(9), null, false));
+      assertEquals("Hello 9", log.reader().poll(10).get(2).getSms().getMessage());
+    }
+  }
+
+  /**
+   * Test that only one process opens a log.
+   */
+  @Test
+  public void testLock() throws Exception {
+    System.out.println("lock");
+
+    OutboundLog log = new OutboundLog(directory);
+
+    try {
+      new OutboundLog(directory);
+      fail("IOException expected.");
+    } catch (IOException e) {
+      // expected.
+    } finally {
+      log.close();
+    }
+  }
+
+  /**
+   * Test of drain method, of class OutboundDrainer.
+   */
+  @Test
+  public void testDrain() throws Exception {
+    System.out.println("drain");
+    BbnApi api = BbnApi.newInstance(gateway.config());
+    final AtomicInteger results = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    OutboundDrainer.Listener listener = new OutboundDrainer.Listener() {
+      @Override
+      public void onResult(OutboundLog.Entry entry, Result<String> result) {
+        results.incrementAndGet();
+      }
+
+      @Override
+      public void onFailure(OutboundLog.Entry entry, IOException e) {
+        failures.incrementAndGet();
+      }
+    };
+
+    try (OutboundLog log = new OutboundLog(directory, 4096, 10);
+            OutboundDrainer drainer = new OutboundDrainer(log, api, 8)) {
+      for (int i = 0; i < 50; i++) {
+        log.append(sms(i), null, false);
+      }
+      assertEquals(50, drainer.drain(listener));
+      assertEquals(50, results.get());
+      assertEquals(50, log.getAckedOffset());
+      assertEquals(0, drainer.drain(listener));
+
+      // A REQUEST_TIMEOUT stops the drain and leaves the entries in the log.
+      answer = "1800";
+
+      for (int i = 0; i < 10; i++) {
+        log.append(sms(i), null, false);
+      }
+      assertEquals(0, drainer.drain(listener));
+      assertEquals(50, log.getAckedOffset());
+
+      answer = "1801";
+      assertEquals(10, drainer.drain(listener));
+      assertEquals(60, log.getAckedOffset());
+      assertEquals(0, failures.get());
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package bbn.api.sms.dispatch;
+
+import bbn.api.sms.BbnApi;
+import bbn.api.sms.StubGateway;
+import bbn.api.sms.domain.BatchResult;
+import bbn.api.sms.domain.SmsGroup;
+import bbn.api.sms.utils.MessageTemplate;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TemplateBatcherTest {
+
+  private static StubGateway gateway;
+  private static BbnApi api;
+  private static final AtomicInteger sendRequests = new AtomicInteger();
+
+  public TemplateBatcherTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    gateway = new StubGateway(request -> {
+      sendRequests.incrementAndGet();
+      return "1801";
+    });
+    api = BbnApi.newInstance(gateway.config());
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    gateway.stop();
+  }
+
+  @Before
+  public void setUp() {
+    sendRequests.set(0);
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /*
+   * A recipient of the campaigns: its mobile, name and plan.
+   */
+  private static List<String[]> campaign(int size) {
+    List<String[]> recipients = new ArrayList<>(size);
+    String[] plans = {"Basic", "Plus", "Gold"};
+
+    for (int i = 0; i < size; i++) {
+      recipients.add(new String[]{String.valueOf(2347030000000L + i), plans[i % plans.length]});
+    }
+    return recipients;
+  }
+
+  private static Map<String, Object> variables(String[] recipient) {
+    return Collections.<String, Object>singletonMap("plan", recipient[1]);
+  }
+
+  /**
+   * Test of group method, of class TemplateBatcher.
+   */
+  @Test
+  public void testGroup() {
+    System.out.println("group");
+    TemplateBatcher batcher = new TemplateBatcher(
+            MessageTemplate.compile("Your {plan} plan renews tomorrow."), "Telco");
+    List<SmsGroup> groups = batcher.group(campaign(7), r -> r[0], TemplateBatcherTest::variables);
+
+    assertEquals(3, groups.size());
+    assertEquals("Your Basic plan renews tomorrow.", groups.get(0).getMessage());
+    assertEquals("Your Plus plan renews tomorrow.", groups.get(1).getMessage());
+    assertEquals("Telco", groups.get(2).getSender());
+    assertEquals("2347030000000,2347030000003,2347030000006",
+            groups.get(0).getMobileListCommaSeparated());
+    assertEquals(Arrays.asList("2347030000002", "2347030000005"), groups.get(2).getMobileList());
+  }
+
+  /**
+   * Test that a campaign grouped in parallel gets the same groups, in the
+   * same order, as one grouped on the calling thread.
+   */
+  @Test
+  public void testGroupParallel() {
+    System.out.println("groupParallel");
+    MessageTemplate template = MessageTemplate.compile("Your {plan} plan renews tomorrow.");
+    List<String[]> recipients = campaign(50000);
+    List<SmsGroup> sequential = new TemplateBatcher(template, "Telco", Integer.MAX_VALUE,
+            ForkJoinPool.commonPool()).group(recipients, r -> r[0], TemplateBatcherTest::variables);
+    List<SmsGroup> parallel = new TemplateBatcher(template, "Telco", 1000,
+            ForkJoinPool.commonPool()).group(recipients, r -> r[0], TemplateBatcherTest::variables);
+
+    assertEquals(sequential.size(), parallel.size());
+
+    for (int i = 0; i < sequential.size(); i++) {
+      assertEquals(sequential.get(i).getMessage(), parallel.get(i).getMessage());
+      assertEquals(sequential.get(i).getMobileList(), parallel.get(i).getMobileList());
+    }
+  }
+
+  /**
+   * Test that a template without placeholders puts every recipient in one
+   * group.
+   */
+  @Test
+  public void testGroupConstant() {
+    System.out.println("groupConstant");
+    TemplateBatcher batcher = new TemplateBatcher(
+            MessageTemplate.compile("Happy new year!"), "Telco", 10, ForkJoinPool.commonPool());
+    List<SmsGroup> groups = batcher.group(campaign(100), r -> r[0], TemplateBatcherTest::variables);
+
+    assertEquals(1, groups.size());
+    assertEquals(100, groups.get(0).getMobileCount());
+  }
+
+  /**
+   * Test of send method, of class TemplateBatcher.
+   */
+  @Test
+  public void testSend() {
+    System.out.println("send");
+    TemplateBatcher batcher = new TemplateBatcher(
+            MessageTemplate.compile("Your {plan} plan renews tomorrow."), "Telco");
+    List<SmsGroup> groups = batcher.group(campaign(9000), r -> r[0], TemplateBatcherTest::variables);
+    BatchResult result = batcher.send(api, groups, null, false);
+
+    assertEquals(3, sendRequests.get());
+    assertFalse(result.isError());
+    assertEquals(9000, result.getSentCount());
+    assertEquals(3000, result.getChunks().get(1).getOffset());
+  }
+}
@@ -0,0 +1,269 @@
+package bbn.api.sms.domain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SmsGroupTest {
+
+  private SmsGroup smsGroup;
+
+  public SmsGroupTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+    smsGroup = new SmsGroup("victor", "This is a group message.");
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that numbers come back exactly as they were added.
+   */
+  @Test
+  public void testMobilesRoundTrip() {
+    System.out.println("mobiles round trip");
+    List<String> mobiles = Arrays.asList("2347031234567", "+2347031234567", "08031234567",
+            "0", "+12345678901234567", "123456789012345678", "0803-123-4567", "", "+");
+    smsGroup.setMobileList(mobiles);
+    assertEquals(mobiles.size(), smsGroup.getMobileCount());
+    assertEquals(mobiles, smsGroup.getMobileList());
+
+    for (int i = 0; i < mobiles.size(); i++) {
+      assertEquals(mobiles.get(i).length(), smsGroup.getMobileLength(i));
+    }
+  }
+
+  /**
+   * Test of getMobileListCommaSeparated method, of class SmsGroup.
+   */
+  @Test
+  public void testGetMobileListCommaSeparated() {
+    System.out.println("getMobileListCommaSeparated");
+    assertEquals("", smsGroup.getMobileListCommaSeparated());
+    smsGroup.addMobile("2347031234567");
+    assertEquals("2347031234567", smsGroup.getMobileListCommaSeparated());
+    smsGroup.getMobileList().add("+2347030541644");
+    smsGroup.addMobile("0803 123 4567");
+    assertEquals("2347031234567,+2347030541644,0803 123 4567",
+            smsGroup.getMobileListCommaSeparated());
+  }
+
+  /**
+   * Test of subGroup method, of class SmsGroup.
+   */
+  @Test
+  public void testSubGroup() {
+    System.out.println("subGroup");
+
+    for (int i = 0; i < 100; i++) {
+      smsGroup.addMobile((i % 10 == 0) ? "n/a " + i : String.valueOf(2347030000000L + i));
+    }
+    SmsGroup sub = smsGroup.subGroup(5, 25);
+    assertEquals(20, sub.getMobileCount());
+    assertEquals(smsGroup.getMobileList().subList(5, 25), sub.getMobileList());
+    assertEquals(smsGroup.getSender(), sub.getSender());
+    assertEquals(smsGroup.getMessage(), sub.getMessage());
+  }
+
+  /**
+   * Test of addMobiles method, of class SmsGroup.
+   */
+  @Test
+  public void testAddMobiles() {
+    System.out.println("addMobiles");
+    SmsGroup other = new SmsGroup("Other", "Other message");
+
+    for (int i = 0; i < 40; i++) {
+      other.addMobile((i % 10 == 0) ? "n/a " + i : String.valueOf(2347030000000L + i));
+    }
+    smsGroup.addMobile("+2348030000000");
+    smsGroup.addMobiles(other);
+    assertEquals(41, smsGroup.getMobileCount());
+    assertEquals("+2348030000000", smsGroup.getMobile(0));
+    assertEquals(other.getMobileList(), smsGroup.getMobileList().subList(1, 41));
+  }
+
+  /**
+   * Test of addMobile method copying from another group, of class SmsGroup.
+   */
+  @Test
+  public void testAddMobileFromGroup() {
+    System.out.println("addMobile from group");
+    SmsGroup other = new SmsGroup("Other", "Other message");
+    other.setMobileList(Arrays.asList("08031234567", "n/a", "+2348031234567"));
+
+    smsGroup.addMobile(other, 2);
+    smsGroup.addMobile(other, 1);
+    smsGroup.addMobile(other, 0);
+    assertEquals(Arrays.asList("+2348031234567", "n/a", "08031234567"),
+            smsGroup.getMobileList());
+    assertEquals(8031234567L, smsGroup.getMobileDigits(2));
+
+    try {
+      smsGroup.addMobile(other, 3);
+      fail("Copied a recipient past the end of the group.");
+    } catch (IndexOutOfBoundsException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Test of getMobileDigits, getMobileDigitCount and addInternational
+   * methods, of class SmsGroup.
+   */
+  @Test
+  public void testDigits() {
+    System.out.println("digits");
+    smsGroup.setMobileList(Arrays.asList("08031234567", "+2348031234567", "n/a"));
+    smsGroup.addInternational(2347031234567L);
+
+    assertEquals(8031234567L, smsGroup.getMobileDigits(0));
+    assertEquals(11, smsGroup.getMobileDigitCount(0));
+    assertEquals(13, smsGroup.getMobileDigitCount(1));
+    assertEquals(14, smsGroup.getMobileLength(1));
+    assertEquals(-1, smsGroup.getMobileDigits(2));
+    assertEquals(-1, smsGroup.getMobileDigitCount(2));
+    assertEquals("+2347031234567", smsGroup.getMobile(3));
+
+    try {
+      smsGroup.addInternational(0);
+      fail("0 should be refused.");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * Test that the list returned by getMobileList can be changed like the
+   * ArrayList it used to be, changing the group.
+   */
+  @Test
+  public void testMobileListChanges() {
+    System.out.println("mobile list changes");
+    List<String> mobiles = smsGroup.getMobileList();
+    List<String> expected = new ArrayList<>(Arrays.asList(
+            "08031234567", "n/a", "+2348031234567", "other", "2347031234567"));
+    mobiles.addAll(expected);
+    assertFalse(mobiles.add(null));
+    mobiles.add(1, null);
+    assertEquals(expected, mobiles);
+
+    assertEquals("n/a", mobiles.set(1, "also n/a"));
+    assertEquals("+2348031234567", mobiles.set(2, "bad number"));
+    assertEquals("08031234567", mobiles.set(0, "+447911123456"));
+    mobiles.add(3, "09031234567");
+    assertEquals("other", mobiles.remove(4));
+    expected = Arrays.asList("+447911123456", "also n/a", "bad number", "09031234567",
+            "2347031234567");
+    assertEquals(expected, mobiles);
+    assertEquals(5, smsGroup.getMobileCount());
+    assertEquals(String.join(",", expected), smsGroup.getMobileListCommaSeparated());
+
+    Iterator<String> iterator = mobiles.iterator();
+    iterator.next();
+    iterator.remove();
+    assertEquals("also n/a", smsGroup.getMobile(0));
+    mobiles.removeIf(mobile -> mobile.startsWith("0"));
+    assertEquals(Arrays.asList("also n/a", "bad number", "2347031234567"), mobiles);
+
+    try {
+      mobiles.set(0, null);
+      fail("Set a recipient to null.");
+    } catch (NullPointerException e) {
+      // Expected.
+    }
+    mobiles.clear();
+    assertEquals(0, smsGroup.getMobileCount());
+    smsGroup.addMobile("n/a");
+    assertEquals(Arrays.asList("n/a"), mobiles);
+  }
+
+  /**
+   * Test that the strings of replaced and removed recipients aren't kept.
+   */
+  @Test
+  public void testIrregularMobilesFreed() {
+    System.out.println("irregular mobiles freed");
+    List<String> mobiles = smsGroup.getMobileList();
+    mobiles.addAll(Arrays.asList("a", "2347031234567", "b", "c", "d", "e"));
+    assertEquals(5, smsGroup.getIrregularMobileCount());
+
+    // Replacing a string with a number leaves its slot until a removal.
+    assertEquals("b", mobiles.set(2, "08031234567"));
+    mobiles.remove(0);
+    mobiles.subList(2, 4).clear();
+    assertEquals(Arrays.asList("2347031234567", "08031234567", "e"), mobiles);
+    assertEquals(1, smsGroup.getIrregularMobileCount());
+
+    // The entries of the strings kept still refer to them.
+    mobiles.add(0, "f");
+    mobiles.set(2, "g");
+    mobiles.remove(1);
+    assertEquals(Arrays.asList("f", "g", "e"), mobiles);
+    assertEquals(3, smsGroup.getIrregularMobileCount());
+    assertEquals("f,g,e", smsGroup.getMobileListCommaSeparated());
+
+    mobiles.clear();
+    assertEquals(0, smsGroup.getIrregularMobileCount());
+  }
+
+  /**
+   * Test that a group survives serialization, in the form of the original
+   * class.
+   */
+  @Test
+  public void testSerialization() throws Exception {
+    System.out.println("serialization");
+    smsGroup.setMobileList(Arrays.asList("08031234567", "n/a", "+2348031234567"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(smsGroup);
+    }
+    SmsGroup read;
+
+    try (ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (SmsGroup) in.readObject();
+    }
+    assertEquals("victor", read.getSender());
+    assertEquals("This is a group message.", read.getMessage());
+    assertEquals(smsGroup.getMobileList(), read.getMobileList());
+    assertEquals(8031234567L, read.getMobileDigits(0));
+    read.addMobile("2347031234567");
+    assertEquals(4, read.getMobileCount());
+
+    List<String> fields = new ArrayList<>();
+
+    for (ObjectStreamField field : ObjectStreamClass.lookup(SmsGroup.class).getFields()) {
+      fields.add(field.getName() + ":" + field.getType().getName());
+    }
+    fields.sort(null);
+    assertEquals(Arrays.asList("message:java.lang.String", "mobileList:java.util.List",
+            "sender:java.lang.String"), fields);
+  }
+}
@@ -0,0 +1,55 @@
+package bbn.api.sms.utils;
+
+import java.util.Random;
+
+/**
+ * Measures classifying 10M international numbers from a mix of countries,
+ * as longs and as strings.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * bbn.api.sms.utils.DiallingCodesBenchmark
+ */
+public class DiallingCodesBenchmark {
+
+  private static final int NUMBERS = 10000000;
+  private static final int ROUNDS = 5;
+  private static final long[] PREFIXES = {
+    234803L, 234906L, 23324L, 44791L, 1416L, 1212L, 7916L, 7701L, 9198L, 27821L
+  };
+  // Keeps the results alive so the work isn't optimized away.
+  private static long sink;
+
+  public static void main(String[] args) {
+    DiallingCodes codes = DiallingCodes.getDefault();
+    Random random = new Random(7);
+    long[] numbers = new long[NUMBERS];
+    String[] strings = new String[NUMBERS];
+
+    for (int i = 0; i < NUMBERS; i++) {
+      long prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+      // Pad every number out to 12 or 13 digits.
+      long scale = (prefix >= 10000L) ? 10000000L : 100000000L;
+      numbers[i] = prefix * scale + random.nextInt((int) scale);
+      strings[i] = "+" + numbers[i];
+    }
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+
+      for (long number : numbers) {
+        sink += codes.classify(number).getPrefix().length();
+      }
+      long longs = System.nanoTime() - start;
+
+      start = System.nanoTime();
+
+      for (String number : strings) {
+        sink += codes.classify(number).getPrefix().length();
+      }
+      long chars = System.nanoTime() - start;
+      System.out.printf("%,d numbers  long: %5d ms (%,d M/s)  String: %5d ms (%,d M/s)%n",
+              NUMBERS, longs / 1000000, NUMBERS * 1000L / longs,
+              chars / 1000000, NUMBERS * 1000L / chars);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package bbn.api.sms.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DiallingCodesTest {
+
+  private static DiallingCodes codes;
+
+  public DiallingCodesTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    codes = DiallingCodes.getDefault();
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that numbers are classified by country and, where known, operator.
+   */
+  @Test
+  public void testClassify() {
+    System.out.println("classify");
+    DiallingCodes.Entry entry = codes.classify(2348031234567L);
+    assertEquals("234", entry.getCallingCode());
+    assertEquals("234803", entry.getPrefix());
+    assertEquals("NG", entry.getCountry());
+    assertEquals("MTN", entry.getOperator());
+
+    entry = codes.classify(2347021234567L);
+    assertEquals("234", entry.getPrefix());
+    assertEquals("NG", entry.getCountry());
+    assertNull(entry.getOperator());
+
+    assertEquals("GB", codes.classify(447911123456L).getCountry());
+    assertEquals("GH", codes.classify(233241234567L).getCountry());
+    assertEquals("US", codes.classify(12125551234L).getCountry());
+    assertEquals("CA", codes.classify(14165551234L).getCountry());
+    assertEquals("1", codes.classify(14165551234L).getCallingCode());
+    assertEquals("JM", codes.classify(18765551234L).getCountry());
+    assertEquals("RU", codes.classify(79161234567L).getCountry());
+    assertEquals("KZ", codes.classify(77011234567L).getCountry());
+    assertEquals("GG", codes.classify(441481123456L).getCountry());
+    assertEquals("44", codes.classify(441481123456L).getCallingCode());
+  }
+
+  /**
+   * Test that numbers with no known prefix aren't classified.
+   */
+  @Test
+  public void testClassifyUnknown() {
+    System.out.println("classifyUnknown");
+    // Neither 0 nor 999 starts a calling code.
+    assertNull(codes.classify(9991234567L));
+    assertNull(codes.classify(0));
+    assertNull(codes.classify(-1));
+    assertNull(codes.classify("0123456789"));
+    assertNull(codes.classify(""));
+  }
+
+  /**
+   * Test that strings are classified as their digits are.
+   */
+  @Test
+  public void testClassifyString() {
+    System.out.println("classifyString");
+    assertSame(codes.classify(2348031234567L), codes.classify("+2348031234567"));
+    assertSame(codes.classify(2348031234567L), codes.classify("2348031234567"));
+    assertSame(codes.classify(14165551234L), codes.classify("+14165551234"));
+    // Only the prefix has to be known.
+    assertEquals("NG", codes.classify("234").getCountry());
+    assertNull(codes.classify("+234 803"));
+    assertNull(codes.classify("+2348031234567x"));
+  }
+
+  /**
+   * Test that the longest prefix of a loaded table wins.
+   */
+  @Test
+  public void testLoad() throws IOException {
+    System.out.println("load");
+    DiallingCodes table = load("# Test table\n"
+            + "\n"
+            + "44 - GB\n"
+            + "44 7 GB Mobile\n"
+            + "44 79 GB Other operator\n");
+    assertEquals(3, table.size());
+    assertEquals("GB", table.classify(441234567890L).getCountry());
+    assertNull(table.classify(441234567890L).getOperator());
+    assertEquals("Mobile", table.classify(447123456789L).getOperator());
+    assertEquals("Other operator", table.classify(447911123456L).getOperator());
+    assertNull(table.classify(4512345678L));
+    assertNull(load("").classify(441234567890L));
+  }
+
+  /**
+   * Test that a malformed table is rejected.
+   */
+  @Test
+  public void testLoadMalformed() throws IOException {
+    System.out.println("loadMalformed");
+    String[] tables = {
+      "44 GB\n",
+      "4a - GB\n",
+      "44 7x GB\n",
+      "44 - GB\n44 - GB\n",
+      "44 1234567890123456 GB\n"
+    };
+
+    for (String table : tables) {
+      try {
+        load(table);
+        fail("Accepted " + table);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Test that the bundled table is loaded once.
+   */
+  @Test
+  public void testGetDefault() {
+    System.out.println("getDefault");
+    assertSame(codes, DiallingCodes.getDefault());
+    assertTrue(codes.size() > 200);
+  }
+
+  private static DiallingCodes load(final String table) throws IOException {
+    try (InputStream in = new ByteArrayInputStream(table.getBytes(StandardCharsets.UTF_8))) {
+      return DiallingCodes.load(in);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package bbn.api.sms.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FormBodyWriterTest {
+
+  private static final String[] VALUES = {
+    "", "2347031234567,2347030541644", "+2347031234567", "This is a test message.",
+    "a-b_c.d*e~f!g'h(i)j", "100% & more = less?",
+    "\u1ECC\u0300 n\u00E0 \u00E0b\u00E1y\u1ECD", "na\u00EFve caf\u00E9 \u20AC5",
+    "\uD83D\uDE00 emoji", "lone \uD83D high", "lone \uDE00 low", "end \uD83D", "\uD83D\uD83D\uDE00",
+    "tab\tnew\nline\r", "null"
+  };
+
+  public FormBodyWriterTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that values are encoded exactly as URLEncoder encodes them.
+   */
+  @Test
+  public void testMatchesURLEncoder() throws Exception {
+    System.out.println("matches URLEncoder");
+
+    for (String value : VALUES) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      FormBodyWriter writer = new FormBodyWriter(out, 16);
+      writer.param("message", value);
+      writer.flush();
+      String expected = "message=" + URLEncoder.encode(value, "UTF-8");
+      assertEquals(value, expected, out.toString("US-ASCII"));
+      assertEquals(expected.length(), writer.getLength());
+    }
+  }
+
+  /**
+   * Test of param method with several parameters and a FormValue.
+   */
+  @Test
+  public void testParams() throws Exception {
+    System.out.println("params");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FormBodyWriter writer = new FormBodyWriter(out);
+    writer.param("sender", "victor")
+            .param("mobile", new FormValue() {
+      @Override
+      public void writeTo(Appendable value) throws java.io.IOException {
+        value.append("2347031234567").append(',').append("+2347030541644");
+      }
+    }).param("schedule_name", null);
+    writer.flush();
+    assertEquals("sender=victor&mobile=2347031234567%2C%2B2347030541644&schedule_name=null",
+            out.toString("US-ASCII"));
+
+    // Counting only gives the same length.
+    FormBodyWriter counter = new FormBodyWriter(null);
+    counter.param("sender", "victor").param("mobile", "2347031234567,+2347030541644")
+            .param("schedule_name", null);
+    assertEquals(out.size(), counter.getLength());
+  }
+
+  /**
+   * Test of encodedParams method, of class FormBodyWriter.
+   */
+  @Test
+  public void testEncodedParams() throws Exception {
+    System.out.println("encodedParams");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FormBodyWriter writer = new FormBodyWriter(out);
+    writer.encodedParams("").encodedParams("sender=victor&message=Hi+there")
+            .param("mobile", "2347031234567,2347030541644");
+    writer.flush();
+    assertEquals("sender=victor&message=Hi+there&mobile=2347031234567%2C2347030541644",
+            out.toString("US-ASCII"));
+    assertEquals(out.size(), writer.getLength());
+  }
+}
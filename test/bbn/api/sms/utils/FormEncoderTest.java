@@ -0,0 +1,104 @@
+package bbn.api.sms.utils;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FormEncoderTest {
+
+  public FormEncoderTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that random text is encoded exactly as URLEncoder encodes it.
+   */
+  @Test
+  public void testEncodeMatchesURLEncoder() throws Exception {
+    System.out.println("encode");
+    Random random = new Random(42);
+
+    for (int n = 0; n < 2000; n++) {
+      char[] chars = new char[random.nextInt(40)];
+
+      for (int i = 0; i < chars.length; i++) {
+        // Mostly ASCII, with some Latin, BMP and surrogate characters.
+        switch (random.nextInt(4)) {
+          case 0:
+            chars[i] = (char) (0x80 + random.nextInt(0x780));
+            break;
+          case 1:
+            chars[i] = (char) random.nextInt(0x10000);
+            break;
+          default:
+            chars[i] = (char) random.nextInt(128);
+        }
+      }
+      String value = new String(chars);
+      String expected = URLEncoder.encode(value, "UTF-8");
+      assertEquals(expected, FormEncoder.encode(value));
+      assertEquals(expected.length(), FormEncoder.encodedLength(value));
+    }
+  }
+
+  /**
+   * Test that URLComposer composes exactly what it composed with URLEncoder.
+   */
+  @Test
+  public void testURLComposer() throws Exception {
+    System.out.println("URLComposer");
+    URLComposer composer = new URLComposer("http://sms.bbnplace.com:8080/bulksms/bulksms.php")
+            .addParam("mobile", "2347031234567,+2347030541644")
+            .addParam("message", "Hello world & everyone")
+            .addParam("my key", "1")
+            .addParam("my key", "2");
+    // Filled the same way, so iterated in the same order as the composer's.
+    Map<String, Object> params = new HashMap<>();
+    params.put("mobile", "2347031234567,+2347030541644");
+    params.put("message", "Hello world & everyone");
+    params.put("my key", Arrays.asList("1", "2"));
+    StringBuilder body = new StringBuilder();
+    StringBuilder query = new StringBuilder();
+
+    for (Map.Entry<String, Object> param : params.entrySet()) {
+      List<?> values = (param.getValue() instanceof List)
+              ? (List<?>) param.getValue() : Arrays.asList(param.getValue());
+
+      for (Object value : values) {
+        String encoded = URLEncoder.encode(String.valueOf(value), "UTF-8");
+        body.append(URLEncoder.encode(param.getKey(), "UTF-8")).append('=')
+                .append(encoded).append('&');
+        query.append(param.getKey()).append('=').append(encoded).append('&');
+      }
+    }
+    assertEquals(body.substring(0, body.length() - 1), composer.requestEncodedParams());
+    assertEquals("http://sms.bbnplace.com:8080/bulksms/bulksms.php?"
+            + query.substring(0, query.length() - 1), composer.getFullURL());
+    assertEquals("", new URLComposer("http://sms.bbnplace.com").requestEncodedParams());
+    assertEquals("http://sms.bbnplace.com?", new URLComposer("http://sms.bbnplace.com").getFullURL());
+  }
+}
@@ -0,0 +1,72 @@
+package bbn.api.sms.utils;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LongHashSetTest {
+
+  public LongHashSetTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test that the set agrees with a HashSet as it grows.
+   */
+  @Test
+  public void testAddMatchesHashSet() {
+    System.out.println("add");
+    LongHashSet set = new LongHashSet(4);
+    Set<Long> expected = new HashSet<>();
+    Random random = new Random(3);
+
+    for (int i = 0; i < 100000; i++) {
+      // Few enough distinct values that many are added twice, 0 included.
+      long value = random.nextInt(50000) - 1000;
+      assertEquals(expected.add(value), set.add(value));
+    }
+    assertEquals(expected.size(), set.size());
+
+    for (long value = -2000; value < 60000; value++) {
+      assertEquals(expected.contains(value), set.contains(value));
+    }
+  }
+
+  /**
+   * Test of clear method, of class LongHashSet.
+   */
+  @Test
+  public void testClear() {
+    System.out.println("clear");
+    LongHashSet set = new LongHashSet();
+    set.add(0);
+    set.add(2348031234567L);
+    set.clear();
+
+    assertEquals(0, set.size());
+    assertFalse(set.contains(0));
+    assertFalse(set.contains(2348031234567L));
+    assertTrue(set.add(2348031234567L));
+  }
+}
@@ -0,0 +1,93 @@
+package bbn.api.sms.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MessageTemplateTest {
+
+  public MessageTemplateTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of compile method, of class MessageTemplate.
+   */
+  @Test
+  public void testCompile() {
+    System.out.println("compile");
+    MessageTemplate template = MessageTemplate.compile("Dear {name}, {code} is your code, {name}.");
+    assertEquals(Arrays.asList("name", "code"), template.getVariables());
+    assertFalse(template.isConstant());
+    assertTrue(MessageTemplate.compile("No {{placeholders}} here").isConstant());
+
+    for (String invalid : new String[]{"Dear {name", "Dear {}", "Dear {a{b}"}) {
+      try {
+        MessageTemplate.compile(invalid);
+        fail("Should have been refused: " + invalid);
+      } catch (IllegalArgumentException e) {
+      }
+    }
+  }
+
+  /**
+   * Test of render method, of class MessageTemplate.
+   */
+  @Test
+  public void testRender() {
+    System.out.println("render");
+    MessageTemplate template = MessageTemplate.compile("{greeting} {name}, {{not}} {name}}}!");
+    Map<String, Object> values = new HashMap<>();
+    values.put("greeting", "Hi");
+    values.put("name", "Ada");
+    values.put("unused", 1);
+
+    assertEquals("Hi Ada, {not} Ada}!", template.render(values));
+    assertEquals("Hi 42, {not} 42}!", template.render("Hi", 42));
+    assertEquals("No {placeholders}", MessageTemplate.compile("No {{placeholders}}").render());
+    assertEquals("{x}", MessageTemplate.compile("{x}").toString());
+  }
+
+  /**
+   * Test that rendering without a value for every variable is refused.
+   */
+  @Test
+  public void testRenderMissingValue() {
+    System.out.println("renderMissingValue");
+    MessageTemplate template = MessageTemplate.compile("Hi {name}, your code is {code}");
+
+    try {
+      template.render(new HashMap<String, Object>());
+      fail("A missing value should be refused.");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("{name}"));
+    }
+
+    try {
+      template.render("Ada");
+      fail("Too few values should be refused.");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+}
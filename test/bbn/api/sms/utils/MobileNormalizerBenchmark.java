@@ -0,0 +1,65 @@
+package bbn.api.sms.utils;
+
+import bbn.api.sms.domain.SmsGroup;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Measures normalizing and deduplicating a group of 10M recipients written
+ * in mixed forms, against doing it with strings in a HashSet.
+ *
+ * Run with: java -Xmx4g -cp build/classes:build/test/classes
+ * bbn.api.sms.utils.MobileNormalizerBenchmark
+ */
+public class MobileNormalizerBenchmark {
+
+  private static final int RECIPIENTS = 10000000;
+  private static final int ROUNDS = 5;
+  // Keeps the results alive so the work isn't optimized away.
+  private static long sink;
+
+  public static void main(String[] args) {
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+
+    for (int i = 0; i < RECIPIENTS; i++) {
+      // About one recipient in four is written again in another form.
+      long subscriber = 8030000000L + (i * 3L) / 4;
+
+      switch (i % 3) {
+        case 0:
+          group.addMobile("0" + subscriber);
+          break;
+        case 1:
+          group.addMobile("234" + subscriber);
+          break;
+        default:
+          group.addMobile("+234" + subscriber);
+      }
+    }
+    MobileNormalizer normalizer = new MobileNormalizer("234");
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      SmsGroup normalized = normalizer.normalize(group);
+      long packed = System.nanoTime() - start;
+      sink += normalized.getMobileCount();
+
+      start = System.nanoTime();
+      sink += strings(normalizer, group);
+      long strings = System.nanoTime() - start;
+      System.out.printf("%,d -> %,d recipients  LongHashSet: %6d ms  HashSet<String>: %6d ms%n",
+              group.getMobileCount(), normalized.getMobileCount(),
+              packed / 1000000, strings / 1000000);
+    }
+  }
+
+  private static int strings(MobileNormalizer normalizer, SmsGroup group) {
+    Set<String> seen = new HashSet<>();
+
+    for (int i = 0; i < group.getMobileCount(); i++) {
+      String mobile = normalizer.normalize(group.getMobile(i));
+      seen.add((mobile != null) ? mobile : group.getMobile(i));
+    }
+    return seen.size();
+  }
+}
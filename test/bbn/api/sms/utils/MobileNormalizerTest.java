@@ -0,0 +1,90 @@
+package bbn.api.sms.utils;
+
+import bbn.api.sms.domain.SmsGroup;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MobileNormalizerTest {
+
+  private MobileNormalizer normalizer;
+
+  public MobileNormalizerTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+    normalizer = new MobileNormalizer("234");
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of normalize method, of class MobileNormalizer.
+   */
+  @Test
+  public void testNormalize() {
+    System.out.println("normalize");
+
+    for (String mobile : new String[]{"08031234567", "2348031234567", "+2348031234567",
+      "+234 803-123-4567", "002348031234567", "8031234567", "(0803) 123.4567"}) {
+      assertEquals(mobile, "+2348031234567", normalizer.normalize(mobile));
+    }
+    assertEquals("+447911123456", normalizer.normalize("+44 7911 123456"));
+    assertEquals("+447911123456", new MobileNormalizer("+44").normalize("07911 123456"));
+    assertEquals(2348031234567L, normalizer.toE164("0803 123 4567"));
+  }
+
+  /**
+   * Test that numbers which can't be normalized are refused.
+   */
+  @Test
+  public void testNormalizeInvalid() {
+    System.out.println("normalizeInvalid");
+
+    for (String mobile : new String[]{null, "", "+", "0803ABC4567", "+0803123456",
+      "0008031234567", "123", "+1234567890123456", "0803+1234567"}) {
+      assertNull(mobile, normalizer.normalize(mobile));
+    }
+    MobileNormalizer international = new MobileNormalizer(null);
+    assertNull(international.normalize("08031234567"));
+    assertEquals("+2348031234567", international.normalize("+2348031234567"));
+
+    try {
+      new MobileNormalizer("0234");
+      fail("An invalid country code should be refused.");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * Test of normalize method with a group, of class MobileNormalizer.
+   */
+  @Test
+  public void testNormalizeGroup() {
+    System.out.println("normalizeGroup");
+    SmsGroup group = new SmsGroup("Shop", "Hello");
+    group.setMobileList(Arrays.asList("08031234567", "not a number", "2348031234567",
+            "+2348031234567", "07031234567", "not a number", "234 703 123 4567"));
+    SmsGroup normalized = normalizer.normalize(group);
+
+    assertEquals("Shop", normalized.getSender());
+    assertEquals("Hello", normalized.getMessage());
+    assertEquals(Arrays.asList("+2348031234567", "not a number", "+2347031234567",
+            "not a number"), normalized.getMobileList());
+  }
+}
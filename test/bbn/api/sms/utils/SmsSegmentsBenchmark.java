@@ -0,0 +1,54 @@
+package bbn.api.sms.utils;
+
+/**
+ * Measures SmsSegments.count on typical campaign messages, to check it keeps
+ * up with counting every message of a large campaign.
+ *
+ * Run with: java -cp build/classes:build/test/classes
+ * bbn.api.sms.utils.SmsSegmentsBenchmark
+ */
+public class SmsSegmentsBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURED_ROUNDS = 10;
+  // Keeps the results alive so the counting isn't optimized away.
+  private static long sink;
+
+  public static void main(String[] args) {
+    run("short GSM-7", "Dear customer, your order #1234 has shipped. Thank you!", 10000000);
+    run("long GSM-7", repeat("Your code is 4821. Valid for 10 minutes [ref €5]. ", 8), 2000000);
+    run("UCS-2", repeat("Ваш заказ отправлен. Спасибо! ", 4), 2000000);
+  }
+
+  private static String repeat(String value, int times) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < times; i++) {
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  private static void run(String name, String message, int iterations) {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      count(message, iterations);
+    }
+    long time = 0;
+
+    for (int round = 0; round < MEASURED_ROUNDS; round++) {
+      time += count(message, iterations);
+    }
+    final double nanos = time / (double) (MEASURED_ROUNDS * iterations);
+    System.out.printf("%-12s %4d chars, %d segments: %6.1f ns/op  (10M messages in %.2f s)%n",
+            name, message.length(), SmsSegments.count(message), nanos, nanos * 10000000 / 1e9);
+  }
+
+  private static long count(String message, int iterations) {
+    final long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; i++) {
+      sink += SmsSegments.count(message);
+    }
+    return System.nanoTime() - start;
+  }
+}
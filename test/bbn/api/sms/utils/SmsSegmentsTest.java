@@ -0,0 +1,165 @@
+package bbn.api.sms.utils;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SmsSegmentsTest {
+
+  public SmsSegmentsTest() {
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  private static String repeat(String value, int times) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < times; i++) {
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Test of septets method, of class SmsSegments.
+   */
+  @Test
+  public void testSeptets() {
+    System.out.println("septets");
+    assertEquals(1, SmsSegments.septets('a'));
+    assertEquals(1, SmsSegments.septets('@'));
+    assertEquals(1, SmsSegments.septets('é'));
+    assertEquals(1, SmsSegments.septets('Ω'));
+    assertEquals(1, SmsSegments.septets('\n'));
+    assertEquals(2, SmsSegments.septets('€'));
+    assertEquals(2, SmsSegments.septets('['));
+    assertEquals(2, SmsSegments.septets('\\'));
+    assertEquals(0, SmsSegments.septets('`'));
+    assertEquals(0, SmsSegments.septets('á'));
+    assertEquals(0, SmsSegments.septets('ж'));
+    assertEquals(0, SmsSegments.septets('\t'));
+  }
+
+  /**
+   * Test of isGsm7 method, of class SmsSegments.
+   */
+  @Test
+  public void testIsGsm7() {
+    System.out.println("isGsm7");
+    assertTrue(SmsSegments.isGsm7(""));
+    assertTrue(SmsSegments.isGsm7("Price: 5€ {ok} ¿Qué?"));
+    assertFalse(SmsSegments.isGsm7("Привет"));
+    assertFalse(SmsSegments.isGsm7("ok 😀"));
+  }
+
+  /**
+   * Test of count method with GSM-7 messages, of class SmsSegments.
+   */
+  @Test
+  public void testCountGsm7() {
+    System.out.println("countGsm7");
+    assertEquals(1, SmsSegments.count(null));
+    assertEquals(1, SmsSegments.count(""));
+    assertEquals(1, SmsSegments.count(repeat("a", 160)));
+    assertEquals(2, SmsSegments.count(repeat("a", 161)));
+    assertEquals(2, SmsSegments.count(repeat("a", 306)));
+    assertEquals(3, SmsSegments.count(repeat("a", 307)));
+    // Extension characters take two septets.
+    assertEquals(1, SmsSegments.count(repeat("€", 80)));
+    assertEquals(2, SmsSegments.count(repeat("€", 81)));
+    // An escape pair isn't split: 152 septets then one that doesn't fit.
+    assertEquals(2, SmsSegments.count(repeat("a", 152) + "€" + repeat("a", 7)));
+    assertEquals(3, SmsSegments.count(repeat("a", 152) + "€" + repeat("a", 152) + "a"));
+    assertEquals(2, SmsSegments.count(repeat("a", 151) + "€" + repeat("a", 153)));
+  }
+
+  /**
+   * Test of count method with UCS-2 messages, of class SmsSegments.
+   */
+  @Test
+  public void testCountUcs2() {
+    System.out.println("countUcs2");
+    assertEquals(1, SmsSegments.count(repeat("ж", 70)));
+    assertEquals(2, SmsSegments.count(repeat("ж", 71)));
+    assertEquals(2, SmsSegments.count(repeat("ж", 134)));
+    assertEquals(3, SmsSegments.count(repeat("ж", 135)));
+    // A single non-GSM character makes the whole message UCS-2.
+    assertEquals(3, SmsSegments.count(repeat("a", 140) + "ж"));
+    // Surrogate pairs take two units and aren't split.
+    assertEquals(1, SmsSegments.count(repeat("😀", 35)));
+    assertEquals(2, SmsSegments.count(repeat("a", 66) + "😀" + repeat("a", 3)));
+    assertEquals(3, SmsSegments.count(repeat("a", 66) + "😀" + repeat("a", 66)));
+  }
+
+  /**
+   * Test that count agrees with splitting the message into segments one at a
+   * time.
+   */
+  @Test
+  public void testCountMatchesSplitting() {
+    System.out.println("countMatchesSplitting");
+    Random random = new Random(7);
+    String[] alphabet = {"a", "b", " ", "€", "[", "ж", "😀"};
+
+    for (int n = 0; n < 2000; n++) {
+      StringBuilder builder = new StringBuilder();
+      int length = random.nextInt(400);
+      boolean unicode = random.nextBoolean();
+
+      while (builder.length() < length) {
+        builder.append(alphabet[random.nextInt(unicode ? alphabet.length : 5)]);
+      }
+      String message = builder.toString();
+      assertEquals(message, split(message), SmsSegments.count(message));
+    }
+  }
+
+  /*
+   * Counts segments by filling them one at a time.
+   */
+  private static int split(String message) {
+    boolean gsm = SmsSegments.isGsm7(message);
+    int total = 0;
+
+    for (int i = 0; i < message.length(); i++) {
+      total += gsm ? SmsSegments.septets(message.charAt(i)) : 1;
+    }
+
+    if (total <= (gsm ? 160 : 70)) {
+      return 1;
+    }
+    int limit = gsm ? 153 : 67;
+    int segments = 1;
+    int used = 0;
+
+    for (int i = 0; i < message.length(); i += Character.charCount(message.codePointAt(i))) {
+      int size = gsm ? SmsSegments.septets(message.charAt(i))
+              : Character.charCount(message.codePointAt(i));
+
+      if (used + size > limit) {
+        segments++;
+        used = 0;
+      }
+      used += size;
+    }
+    return segments;
+  }
+}